@@ -0,0 +1,150 @@
+package cz.matejcik.openwig.desktop;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/** Persistent index of cartridge headers.
+ * <p>
+ * Remembers what the cartridge list needs to show about each cartridge
+ * (name, starting point and icon), so that cartridges that didn't change
+ * since last time don't have to be opened again. Entries are keyed by
+ * path and are only valid while the file has the same size and
+ * modification time.
+ * <p>
+ * All methods are thread-safe.
+ */
+public class CartridgeIndex {
+
+	private static final int VERSION = 1;
+
+	/** Header data of one cartridge file */
+	public static class Entry {
+		public final String path;
+		public final long size, modified;
+		public final String name;
+		public final double latitude, longitude;
+		/** icon image data, or null if the cartridge has no icon */
+		public final byte[] icon;
+
+		public Entry (File file, String name, double latitude, double longitude, byte[] icon) {
+			this(file.getPath(), file.length(), file.lastModified(), name, latitude, longitude, icon);
+		}
+
+		private Entry (String path, long size, long modified, String name, double latitude, double longitude, byte[] icon) {
+			this.path = path;
+			this.size = size;
+			this.modified = modified;
+			this.name = name;
+			this.latitude = latitude;
+			this.longitude = longitude;
+			this.icon = icon;
+		}
+
+		/** Checks whether the entry still describes this file. */
+		public boolean matches (File file) {
+			return file.length() == size && file.lastModified() == modified;
+		}
+	}
+
+	private File indexFile;
+	private HashMap<String, Entry> entries = new HashMap<String, Entry>();
+	private boolean changed = false;
+
+	/** Creates index stored in the specified file and loads it, if it exists. */
+	public CartridgeIndex (File indexFile) {
+		this.indexFile = indexFile;
+		try {
+			load();
+		} catch (IOException e) {
+			// broken index is as good as none
+			entries.clear();
+		}
+	}
+
+	/** Returns entry for the file, or null if the file is not indexed or has changed since. */
+	public synchronized Entry get (File file) {
+		Entry e = entries.get(file.getPath());
+		if (e == null || !e.matches(file)) return null;
+		return e;
+	}
+
+	public synchronized void put (Entry e) {
+		entries.put(e.path, e);
+		changed = true;
+	}
+
+	/** Removes entries of files from the specified directory that are not in <code>keep</code>. */
+	public synchronized void prune (File directory, Map<String, ?> keep) {
+		String dir = directory.getPath();
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			Entry e = it.next();
+			if (dir.equals(new File(e.path).getParent()) && !keep.containsKey(e.path)) {
+				it.remove();
+				changed = true;
+			}
+		}
+	}
+
+	private void load () throws IOException {
+		if (!indexFile.exists()) return;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+		try {
+			if (in.readInt() != VERSION) return;
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = in.readUTF();
+				long size = in.readLong();
+				long modified = in.readLong();
+				String name = in.readUTF();
+				double lat = in.readDouble();
+				double lon = in.readDouble();
+				int len = in.readInt();
+				byte[] icon = null;
+				if (len >= 0) {
+					icon = new byte[len];
+					in.readFully(icon);
+				}
+				entries.put(path, new Entry(path, size, modified, name, lat, lon, icon));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Writes the index to its file, if anything changed. */
+	public synchronized void save () throws IOException {
+		if (!changed) return;
+		File dir = indexFile.getParentFile();
+		if (dir != null && !dir.exists()) dir.mkdirs();
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			for (Entry e : entries.values()) {
+				out.writeUTF(e.path);
+				out.writeLong(e.size);
+				out.writeLong(e.modified);
+				out.writeUTF(e.name == null ? "" : e.name);
+				out.writeDouble(e.latitude);
+				out.writeDouble(e.longitude);
+				if (e.icon == null) {
+					out.writeInt(-1);
+				} else {
+					out.writeInt(e.icon.length);
+					out.write(e.icon);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(indexFile)) {
+			indexFile.delete();
+			if (!tmp.renameTo(indexFile)) throw new IOException("unable to replace "+indexFile);
+		}
+		changed = false;
+	}
+}
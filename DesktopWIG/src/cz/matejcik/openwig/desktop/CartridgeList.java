@@ -5,9 +5,6 @@ import cz.matejcik.openwig.desktop.common.WigList;
 import cz.matejcik.openwig.desktop.common.RefreshableListModel;
 import cz.matejcik.openwig.desktop.gps.GPSManager;
 import cz.matejcik.openwig.formats.CartridgeFile;
-import cz.matejcik.openwig.j2se.J2SEFileHandle;
-import cz.matejcik.openwig.j2se.J2SESeekableFile;
-import cz.matejcik.openwig.platform.*;
 
 import java.io.*;
 import java.util.prefs.Preferences;
@@ -26,6 +23,12 @@ public class CartridgeList extends WigList {
 
 	private RefreshableListModel<CartridgeListItem> model = new RefreshableListModel<CartridgeListItem>();
 
+	/** headers of cartridges seen before, shared by all lists */
+	private static CartridgeIndex index = new CartridgeIndex(
+		new File(System.getProperty("user.home"), ".openwig" + File.separator + "cartridges.idx"));
+
+	private CartridgeScanner scanner = new CartridgeScanner(index, model);
+
 	private CartridgeSelector parent;
 
 	Preferences prefs = Preferences.userNodeForPackage(this.getClass());
@@ -39,33 +42,23 @@ public class CartridgeList extends WigList {
 	}
 
 	/** Refreshes list of cartridges in the current directory.
+	 * The list is filled in the background.
 	 *
 	 * @see #setCurrentDirectory(java.io.File)
 	 */
 	private void refreshList () {
-		model.clear();
-		for (File file : currentDirectory.listFiles()) {
-			try {
-				if (!file.isFile() || !file.getName().endsWith(".gwc")) continue;
-				SeekableFile sf = new J2SESeekableFile(new RandomAccessFile(file, "r"));
-				String path = file.getPath();
-				String savefile = path.substring(0, path.length() - 4) + ".ows";
-				FileHandle save = new J2SEFileHandle(new File(savefile));
-				CartridgeFile cf = CartridgeFile.read(sf, save);
-				model.add(new CartridgeListItem(file, cf));
-			} catch (IOException e) {
-				e.printStackTrace();
-				continue;
-			}
-		}
-		model.refreshLater();
+		scanner.scan(currentDirectory);
 		prefs.put("path", currentDirectory.getAbsolutePath());
 	}
 
 	@Override
 	public void onClick (int id, Object item) {
-		CartridgeFile cf = ((CartridgeListItem)item).getCartridge();
-		parent.showDetails(cf);
+		try {
+			CartridgeFile cf = ((CartridgeListItem)item).getCartridge();
+			parent.showDetails(cf);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 	/** Generates log file name for the cartridge specified by <code>f</code>
@@ -92,7 +85,10 @@ public class CartridgeList extends WigList {
 		CartridgeListItem ci = (CartridgeListItem)model.getElementAt(getSelectedIndex());
 		OutputStream log = getLogFile(ci.getFile());
 		try {
-			Engine.newInstance(ci.getCartridge(), log, Main.gui, GPSManager.getGPS()).start();
+			Engine e = Engine.newInstance(ci.getCartridge(), log, Main.gui, GPSManager.getGPS());
+			e.setCompiler(ci.getCompiler());
+			e.savegame.setIncremental(true);
+			e.start();
 		} catch (IOException e) {
 			// TODO
 		}
@@ -103,7 +99,10 @@ public class CartridgeList extends WigList {
 		CartridgeListItem ci = (CartridgeListItem)model.getElementAt(getSelectedIndex());
 		OutputStream log = getLogFile(ci.getFile());
 		try {
-			Engine.newInstance(ci.getCartridge(), log, Main.gui, GPSManager.getGPS()).restore();
+			Engine e = Engine.newInstance(ci.getCartridge(), log, Main.gui, GPSManager.getGPS());
+			e.setCompiler(ci.getCompiler());
+			e.savegame.setIncremental(true);
+			e.restore();
 		} catch (IOException e) {
 			// TODO
 		}
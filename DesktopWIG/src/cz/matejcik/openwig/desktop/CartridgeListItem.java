@@ -5,46 +5,58 @@ import cz.matejcik.openwig.desktop.common.Navigator;
 import cz.matejcik.openwig.ZonePoint;
 import cz.matejcik.openwig.desktop.common.ListItemAdapter;
 import cz.matejcik.openwig.formats.CartridgeFile;
+import cz.matejcik.openwig.j2se.J2SEFileHandle;
+import cz.matejcik.openwig.j2se.LuaClassCompiler;
+import cz.matejcik.openwig.j2se.MappedCartridgeFile;
+import cz.matejcik.openwig.platform.FileHandle;
 import java.io.File;
 import java.io.IOException;
 import javax.swing.Icon;
 import javax.swing.ImageIcon;
 
-/** List item that pulls relevant data from CartridgeFile objects */
+/** List item that shows a cartridge from its index entry.
+ * <p>
+ * The cartridge file itself is only opened when it is needed.
+ */
 public class CartridgeListItem implements ListItemAdapter {
 
 	/** File object from which this cartridge item was generated */
 	private File file;
 
+	private CartridgeIndex.Entry entry;
+	/** opened cartridge, or null if it wasn't needed yet */
 	private CartridgeFile cartridge;
+	/** compiler for the cartridge's code, kept so that a replay
+	 * doesn't compile the same functions again */
+	private LuaClassCompiler compiler;
 	/** Generated <code>ZonePoint</code> that represents this cartridge's starting coordinates */
 	private ZonePoint startingPoint;
 	/** True when cartridge starting point is at (360,360).
 	 * This means that the cartridge can be played anywhere in the world.
 	 */
 	private boolean playAnywhere;
+	/** decoded icon, or null if it wasn't shown yet */
 	private ImageIcon icon;
 	private ZonePointIcon arrow;
 
 	/** default icon, in case cartridge does not contain its own */
 	private static final ImageIcon CART_ICON = new ImageIcon(CartridgeListItem.class.getResource("/icons/cartridge.png"));
 
-	/** create new CartridgeListItem instance based on supplied CartridgeFile */
-	public CartridgeListItem (File file, CartridgeFile cartridge) {
+	/** create new CartridgeListItem instance based on index entry of the file */
+	public CartridgeListItem (File file, CartridgeIndex.Entry entry) {
 		this.file = file;
-		this.cartridge = cartridge;
-		playAnywhere = cartridge.latitude == 360 && cartridge.longitude == 360;
+		this.entry = entry;
+		playAnywhere = entry.latitude == 360 && entry.longitude == 360;
 		if (!playAnywhere) {
-			startingPoint = new ZonePoint(cartridge.latitude, cartridge.longitude, 0);
+			startingPoint = new ZonePoint(entry.latitude, entry.longitude, 0);
 			arrow = new ZonePointIcon(startingPoint);
 		}
-		try {
-			byte[] b = cartridge.getFile(cartridge.iconId);
-			if (b == null) icon = CART_ICON;
-			else icon = new ImageIcon(b);
-		} catch (IOException e) {
-			icon = CART_ICON;
-		}
+	}
+
+	/** Reads header of a cartridge file into an index entry. */
+	public static CartridgeIndex.Entry readEntry (File file) throws IOException {
+		CartridgeFile cf = MappedCartridgeFile.read(file, saveFileFor(file));
+		return new CartridgeIndex.Entry(file, cf.name, cf.latitude, cf.longitude, cf.getFile(cf.iconId));
 	}
 
 	public Icon getStatus () {
@@ -52,7 +64,7 @@ public class CartridgeListItem implements ListItemAdapter {
 	}
 
 	public String getName () {
-		return cartridge.name;
+		return entry.name;
 	}
 
 	public String getSubtitle () {
@@ -63,16 +75,33 @@ public class CartridgeListItem implements ListItemAdapter {
 	}
 
 	public Icon getIcon () {
+		if (icon == null) {
+			if (entry.icon == null) icon = CART_ICON;
+			else icon = new ImageIcon(entry.icon);
+		}
 		return icon;
 	}
 
-	/**
+	/** Opens the cartridge file, if it isn't open already.
 	 * @return the cartridge object
 	 */
-	public CartridgeFile getCartridge () {
+	public CartridgeFile getCartridge () throws IOException {
+		if (cartridge == null) cartridge = MappedCartridgeFile.read(file, saveFileFor(file));
 		return cartridge;
 	}
 
+	/** @return the compiler to run this cartridge with */
+	public LuaClassCompiler getCompiler () {
+		if (compiler == null) compiler = new LuaClassCompiler();
+		return compiler;
+	}
+
+	private static FileHandle saveFileFor (File file) {
+		String path = file.getPath();
+		String savefile = path.substring(0, path.length() - 4) + ".ows";
+		return new J2SEFileHandle(new File(savefile));
+	}
+
 	/**
 	 * @return the file
 	 */
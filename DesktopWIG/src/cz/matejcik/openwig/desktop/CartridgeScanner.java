@@ -0,0 +1,148 @@
+package cz.matejcik.openwig.desktop;
+
+import cz.matejcik.openwig.desktop.common.RefreshableListModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.SwingUtilities;
+
+/** Fills a list model with cartridges from a directory in the background.
+ * <p>
+ * Cartridges that are in the {@link CartridgeIndex} and didn't change
+ * are listed right away; headers of the others are read in parallel
+ * on a small thread pool. Items are passed to the model on the event
+ * dispatch thread as they arrive, several at a time. When the scan
+ * is complete, the index is saved.
+ */
+public class CartridgeScanner {
+
+	private static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	private static final ExecutorService executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+		public Thread newThread (Runnable r) {
+			Thread t = new Thread(r, "cartridge scanner");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+	});
+
+	private CartridgeIndex index;
+	private RefreshableListModel<CartridgeListItem> model;
+
+	/** scan in progress, results of other scans are thrown away */
+	private volatile Scan current;
+
+	public CartridgeScanner (CartridgeIndex index, RefreshableListModel<CartridgeListItem> model) {
+		this.index = index;
+		this.model = model;
+	}
+
+	/** Starts listing the directory. A scan that is still running is abandoned. */
+	public void scan (File directory) {
+		final Scan scan = new Scan(directory);
+		current = scan;
+		SwingUtilities.invokeLater(new Runnable() { public void run () {
+			if (current != scan) return;
+			model.clear();
+			model.refresh();
+		}});
+		executor.execute(new Runnable() { public void run () {
+			scan.list();
+		}});
+	}
+
+	private class Scan {
+		private File directory;
+		/** paths of cartridges found, for pruning the index */
+		private ConcurrentHashMap<String, Boolean> seen = new ConcurrentHashMap<String, Boolean>();
+		/** items waiting for the event dispatch thread */
+		private ConcurrentLinkedQueue<CartridgeListItem> ready = new ConcurrentLinkedQueue<CartridgeListItem>();
+		private AtomicBoolean drainScheduled = new AtomicBoolean(false);
+		/** tasks still running, including the listing */
+		private AtomicInteger pending = new AtomicInteger(1);
+
+		private Scan (File directory) {
+			this.directory = directory;
+		}
+
+		private void list () {
+			try {
+				File[] files = directory.listFiles();
+				if (files == null) return;
+				for (final File file : files) {
+					if (current != this) return;
+					if (!file.getName().endsWith(".gwc") || !file.isFile()) continue;
+					seen.put(file.getPath(), Boolean.TRUE);
+					CartridgeIndex.Entry e = index.get(file);
+					if (e != null) {
+						deliver(new CartridgeListItem(file, e));
+					} else {
+						pending.incrementAndGet();
+						executor.execute(new Runnable() { public void run () {
+							try {
+								read(file);
+							} finally {
+								done();
+							}
+						}});
+					}
+				}
+			} finally {
+				done();
+			}
+		}
+
+		private void read (File file) {
+			if (current != this) return;
+			try {
+				CartridgeIndex.Entry e = CartridgeListItem.readEntry(file);
+				index.put(e);
+				deliver(new CartridgeListItem(file, e));
+			} catch (IOException e) {
+				e.printStackTrace();
+			} catch (RuntimeException e) {
+				// broken cartridge shouldn't stop the scan
+				e.printStackTrace();
+			}
+		}
+
+		private void deliver (CartridgeListItem item) {
+			ready.add(item);
+			if (drainScheduled.compareAndSet(false, true)) {
+				SwingUtilities.invokeLater(new Runnable() { public void run () {
+					drain();
+				}});
+			}
+		}
+
+		/** Moves ready items to the model. Runs on the event dispatch thread. */
+		private void drain () {
+			drainScheduled.set(false);
+			if (current != this) return;
+			CartridgeListItem item;
+			boolean any = false;
+			while ((item = ready.poll()) != null) {
+				model.add(item);
+				any = true;
+			}
+			if (any) model.refresh();
+		}
+
+		private void done () {
+			if (pending.decrementAndGet() > 0 || current != this) return;
+			index.prune(directory, seen);
+			try {
+				index.save();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
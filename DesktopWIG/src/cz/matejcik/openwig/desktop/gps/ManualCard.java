@@ -2,6 +2,7 @@ package cz.matejcik.openwig.desktop.gps;
 
 import cz.matejcik.openwig.desktop.common.SwingHelpers;
 import cz.matejcik.openwig.platform.LocationService;
+import cz.matejcik.openwig.platform.LocationSource;
 import java.awt.Component;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -21,10 +22,12 @@ import javax.swing.JTextField;
  * At this point, it is very simplistic, but parses DDD.ddd, DDD MM.mmm and
  * DDD MM SS.sss with either directional prefix or suffix.
  */
-public class ManualCard implements GPSManager.Card, LocationService {
+public class ManualCard implements GPSManager.Card, LocationSource {
 	
 	private double latitude, longitude;
 
+	private LocationSource.ListenerList locationListeners = new LocationSource.ListenerList();
+
 	private Box card = Box.createVerticalBox();
 	private JTextField lat = new JTextField();
 	private JTextField lon = new JTextField();
@@ -226,6 +229,15 @@ public class ManualCard implements GPSManager.Card, LocationService {
 		} catch (Exception e) {
 			// TODO sensible parsing
 		}
+		locationListeners.fire(this);
+	}
+
+	public void addLocationListener (LocationSource.Listener l) {
+		locationListeners.add(l);
+	}
+
+	public void removeLocationListener (LocationSource.Listener l) {
+		locationListeners.remove(l);
 	}
 
 	public Component getCard () {
@@ -1,6 +1,7 @@
 package cz.matejcik.openwig.desktop.gps;
 
 import cz.matejcik.openwig.platform.LocationService;
+import cz.matejcik.openwig.platform.LocationSource;
 import java.io.*;
 import java.util.Hashtable;
 import java.util.Vector;
@@ -17,7 +18,7 @@ import java.util.Vector;
  * some actions, but the code is largely unchanged, so the comments
  * (including Javadocs) are from original author(s).
  */
-public class NMEAParser implements Runnable, LocationService {
+public class NMEAParser implements Runnable, LocationSource {
 	//gps udaje
 	protected double latitude;
 	protected double longitude;
@@ -50,6 +51,16 @@ public class NMEAParser implements Runnable, LocationService {
 		listener = l;
 	}
 
+	protected LocationSource.ListenerList locationListeners = new LocationSource.ListenerList();
+
+	public void addLocationListener (LocationSource.Listener l) {
+		locationListeners.add(l);
+	}
+
+	public void removeLocationListener (LocationSource.Listener l) {
+		locationListeners.remove(l);
+	}
+
 	protected void fireEvent (int event) {
 		if (listener != null) listener.statusChanged(this, event);
 	}
@@ -253,9 +264,12 @@ public class NMEAParser implements Runnable, LocationService {
 			//cteni dat
 			boolean prevfix = false;
 			while (thread != null) {
+				double lat = latitude, lon = longitude, alt = altitude;
 				receiveNmea(readline(stream));
 				if (prevfix != fix) fireEvent(fix ? Listener.FIX_ACQUIRED : Listener.FIX_LOST);
 				prevfix = fix;
+				if (lat != latitude || lon != longitude || alt != altitude)
+					locationListeners.fire(this);
 			}
 		} catch (IOException ex) {
 			//Midlet.coordinates.gpsError(ex.getMessage());
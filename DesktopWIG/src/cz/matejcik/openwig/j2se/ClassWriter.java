@@ -0,0 +1,287 @@
+package cz.matejcik.openwig.j2se;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/** Writes simple class files.
+ * <p>
+ * Just enough for LuaClassCompiler: a constant pool, methods with code,
+ * and branches to labels. The class file version is 49, which the JVM
+ * verifies by type inference, so no stack map frames are needed.
+ */
+class ClassWriter {
+
+	static final int ACC_PUBLIC = 0x0001;
+	static final int ACC_FINAL = 0x0010;
+	static final int ACC_SUPER = 0x0020;
+
+	private ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+	private DataOutputStream pool = new DataOutputStream(poolBytes);
+	private HashMap<String, Integer> poolIndex = new HashMap<String, Integer>();
+	private int poolSize = 1;
+
+	private ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+	private DataOutputStream methods = new DataOutputStream(methodBytes);
+	private int methodCount = 0;
+
+	private final int thisClass, superClass;
+
+	ClassWriter (String name, String superName) {
+		thisClass = classRef(name);
+		superClass = classRef(superName);
+	}
+
+	private Integer lookup (String key) {
+		return poolIndex.get(key);
+	}
+
+	private int added (String key) {
+		poolIndex.put(key, poolSize);
+		return poolSize++;
+	}
+
+	int utf8 (String s) {
+		String key = "U" + s;
+		Integer i = lookup(key);
+		if (i != null) return i;
+		try {
+			pool.writeByte(1);
+			pool.writeUTF(s);
+		} catch (IOException e) { throw new RuntimeException(e); }
+		return added(key);
+	}
+
+	int integer (int v) {
+		String key = "I" + v;
+		Integer i = lookup(key);
+		if (i != null) return i;
+		try {
+			pool.writeByte(3);
+			pool.writeInt(v);
+		} catch (IOException e) { throw new RuntimeException(e); }
+		return added(key);
+	}
+
+	int classRef (String internalName) {
+		String key = "C" + internalName;
+		Integer i = lookup(key);
+		if (i != null) return i;
+		int name = utf8(internalName);
+		try {
+			pool.writeByte(7);
+			pool.writeShort(name);
+		} catch (IOException e) { throw new RuntimeException(e); }
+		return added(key);
+	}
+
+	private int nameAndType (String name, String desc) {
+		String key = "N" + name + ' ' + desc;
+		Integer i = lookup(key);
+		if (i != null) return i;
+		int n = utf8(name), d = utf8(desc);
+		try {
+			pool.writeByte(12);
+			pool.writeShort(n);
+			pool.writeShort(d);
+		} catch (IOException e) { throw new RuntimeException(e); }
+		return added(key);
+	}
+
+	private int memberRef (int tag, String owner, String name, String desc) {
+		String key = "M" + tag + owner + '.' + name + ' ' + desc;
+		Integer i = lookup(key);
+		if (i != null) return i;
+		int c = classRef(owner), nt = nameAndType(name, desc);
+		try {
+			pool.writeByte(tag);
+			pool.writeShort(c);
+			pool.writeShort(nt);
+		} catch (IOException e) { throw new RuntimeException(e); }
+		return added(key);
+	}
+
+	int fieldRef (String owner, String name, String desc) {
+		return memberRef(9, owner, name, desc);
+	}
+
+	int methodRef (String owner, String name, String desc) {
+		return memberRef(10, owner, name, desc);
+	}
+
+	void addMethod (int access, String name, String desc, Code code) {
+		int n = utf8(name), d = utf8(desc), codeName = utf8("Code");
+		byte[] bytes = code.toByteArray();
+		try {
+			methods.writeShort(access);
+			methods.writeShort(n);
+			methods.writeShort(d);
+			methods.writeShort(1);
+			methods.writeShort(codeName);
+			methods.writeInt(12 + bytes.length);
+			methods.writeShort(code.maxStack);
+			methods.writeShort(code.maxLocals);
+			methods.writeInt(bytes.length);
+			methods.write(bytes);
+			methods.writeShort(0); // exception table
+			methods.writeShort(0); // attributes
+		} catch (IOException e) { throw new RuntimeException(e); }
+		methodCount++;
+	}
+
+	byte[] toByteArray () {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(49);
+			out.writeShort(poolSize);
+			poolBytes.writeTo(out);
+			out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(0); // interfaces
+			out.writeShort(0); // fields
+			out.writeShort(methodCount);
+			methodBytes.writeTo(out);
+			out.writeShort(0); // attributes
+			return bytes.toByteArray();
+		} catch (IOException e) { throw new RuntimeException(e); }
+	}
+
+	/** A place in the code that branches can go to before it is known. */
+	static class Label {
+		int position = -1;
+		// places of branch offsets to fill in: opcode position, offset position, wide
+		private ArrayList<int[]> uses = new ArrayList<int[]>();
+	}
+
+	/** Bytecode of one method. */
+	static class Code {
+		static final int ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, ALOAD_2 = 0x2c, ALOAD_3 = 0x2d;
+		static final int ASTORE_3 = 0x4e;
+		static final int AALOAD = 0x32;
+		static final int ICONST_0 = 0x03;
+		static final int BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13;
+		static final int IFEQ = 0x99, IFNE = 0x9a, GOTO = 0xa7;
+		static final int TABLESWITCH = 0xaa;
+		static final int RETURN = 0xb1;
+		static final int GETSTATIC = 0xb2, GETFIELD = 0xb4, PUTFIELD = 0xb5;
+		static final int INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+		static final int CHECKCAST = 0xc0;
+
+		int maxStack, maxLocals;
+		private byte[] code = new byte[1024];
+		private int length = 0;
+		private HashSet<Label> labels = new HashSet<Label>();
+
+		Code (int maxStack, int maxLocals) {
+			this.maxStack = maxStack;
+			this.maxLocals = maxLocals;
+		}
+
+		int length () {
+			return length;
+		}
+
+		void op (int b) {
+			if (length == code.length) {
+				byte[] n = new byte[code.length * 2];
+				System.arraycopy(code, 0, n, 0, length);
+				code = n;
+			}
+			code[length++] = (byte)b;
+		}
+
+		void op2 (int s) {
+			op(s >> 8);
+			op(s);
+		}
+
+		void op4 (int i) {
+			op2(i >> 16);
+			op2(i);
+		}
+
+		/** op with a two byte operand, such as a constant pool index */
+		void op (int b, int operand) {
+			op(b);
+			op2(operand);
+		}
+
+		void push (ClassWriter cw, int v) {
+			if (v >= -1 && v <= 5) {
+				op(ICONST_0 + v);
+			} else if (v >= -128 && v < 128) {
+				op(BIPUSH);
+				op(v);
+			} else if (v >= -32768 && v < 32768) {
+				op(SIPUSH, v);
+			} else {
+				op(LDC_W, cw.integer(v));
+			}
+		}
+
+		void mark (Label l) {
+			l.position = length;
+			labels.add(l);
+		}
+
+		/** a conditional branch or goto */
+		void jump (int opcode, Label l) {
+			int at = length;
+			op(opcode);
+			l.uses.add(new int[] { at, length, 0 });
+			op2(0);
+			labels.add(l);
+		}
+
+		/** tableswitch over low..low+targets.length-1 */
+		void tableswitch (int low, Label dflt, Label[] targets) {
+			int at = length;
+			op(TABLESWITCH);
+			while (length % 4 != 0) op(0);
+			addWide(at, dflt);
+			op4(0);
+			op4(low);
+			op4(low + targets.length - 1);
+			for (int i = 0; i < targets.length; i++) {
+				addWide(at, targets[i]);
+				op4(0);
+			}
+		}
+
+		private void addWide (int at, Label l) {
+			l.uses.add(new int[] { at, length, 1 });
+			labels.add(l);
+		}
+
+		byte[] toByteArray () {
+			for (Label l : labels) {
+				if (l.position < 0) throw new IllegalStateException("label not placed");
+				for (int[] use : l.uses) {
+					int offset = l.position - use[0];
+					int p = use[1];
+					if (use[2] == 0) {
+						if (offset != (short)offset) throw new IllegalStateException("branch too far");
+						code[p] = (byte)(offset >> 8);
+						code[p + 1] = (byte)offset;
+					} else {
+						code[p] = (byte)(offset >> 24);
+						code[p + 1] = (byte)(offset >> 16);
+						code[p + 2] = (byte)(offset >> 8);
+						code[p + 3] = (byte)offset;
+					}
+				}
+				l.uses.clear();
+			}
+			byte[] b = new byte[length];
+			System.arraycopy(code, 0, b, 0, length);
+			return b;
+		}
+	}
+}
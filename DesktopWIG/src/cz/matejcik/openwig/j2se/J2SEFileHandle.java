@@ -7,9 +7,11 @@ import java.io.*;
 public class J2SEFileHandle implements FileHandle {
 
 	private File file;
+	private File temp;
 
 	public J2SEFileHandle (File file) {
 		this.file = file;
+		this.temp = new File(file.getPath() + ".tmp");
 	}
 
 	public DataInputStream openDataInputStream () throws IOException {
@@ -38,4 +40,19 @@ public class J2SEFileHandle implements FileHandle {
 		raf.close();
 	}
 
+	public OutputStream openTemporaryOutputStream () throws IOException {
+		return new FileOutputStream(temp);
+	}
+
+	public void commitTemporary () throws IOException {
+		// rename replaces the target atomically on POSIX systems
+		if (temp.renameTo(file)) return;
+		// elsewhere it refuses to overwrite
+		file.delete();
+		if (!temp.renameTo(file)) throw new IOException("could not replace " + file.getPath());
+	}
+
+	public OutputStream openAppendOutputStream () throws IOException {
+		return new FileOutputStream(file, true);
+	}
 }
@@ -0,0 +1,467 @@
+package cz.matejcik.openwig.j2se;
+
+import cz.matejcik.openwig.j2se.ClassWriter.Code;
+import cz.matejcik.openwig.j2se.ClassWriter.Label;
+import java.util.HashMap;
+import se.krka.kahlua.vm.CompiledFunction;
+import se.krka.kahlua.vm.LuaCompiler;
+import se.krka.kahlua.vm.LuaPrototype;
+
+import static se.krka.kahlua.vm.LuaState.*;
+
+/** Compiles Lua functions to JVM classes.
+ * <p>
+ * Every instruction of a function becomes a short piece of bytecode with
+ * its operands decoded, and jumps become JVM branches, so that the JIT
+ * can compile the function like any other Java method. The code works
+ * on the interpreter's call frame, see CompiledFunction, and returns to
+ * the interpreter for calls of Lua functions, returns, tail calls and
+ * closures. Functions whose code would be too big for the JIT stay
+ * interpreted.
+ * <p>
+ * Classes are kept by the content of the function, so one compiler
+ * shared by all runs of a cartridge compiles each function only once,
+ * even though every run loads the bytecode again.
+ */
+public class LuaClassCompiler implements LuaCompiler {
+
+	/** HotSpot doesn't compile methods larger than this */
+	public static final int MAX_CODE = 8000;
+
+	private static final String FUNCTION = "se/krka/kahlua/vm/CompiledFunction";
+	private static final String FRAME = "se/krka/kahlua/vm/LuaCallFrame";
+	private static final String STATE = "se/krka/kahlua/vm/LuaState";
+	private static final String PROTOTYPE = "se/krka/kahlua/vm/LuaPrototype";
+	private static final String OBJECT = "Ljava/lang/Object;";
+	private static final String L_STATE = "L" + STATE + ";";
+	private static final String L_FRAME = "L" + FRAME + ";";
+
+	// locals of run()
+	private static final int THIS = 0, STATE_VAR = 1, FRAME_VAR = 2, CONSTANTS = 3;
+
+	private static class Loader extends ClassLoader {
+		Loader (ClassLoader parent) {
+			super(parent);
+		}
+
+		Class<?> define (String name, byte[] b) {
+			return defineClass(name, b, 0, b.length);
+		}
+	}
+
+	private final Loader loader = new Loader(CompiledFunction.class.getClassLoader());
+	/** function key -> class, or null for functions that can't be compiled */
+	private final HashMap<String, Class<?>> classes = new HashMap<String, Class<?>>();
+	private int count = 0;
+
+	public synchronized CompiledFunction compile (LuaPrototype prototype) {
+		String key = key(prototype);
+		Class<?> c;
+		if (classes.containsKey(key)) {
+			c = classes.get(key);
+		} else {
+			String name = "cz/matejcik/openwig/j2se/compiled/LuaFunction" + (count++);
+			byte[] b = generate(prototype, name);
+			c = b == null ? null : loader.define(name.replace('/', '.'), b);
+			classes.put(key, c);
+		}
+		if (c == null) return null;
+		try {
+			return (CompiledFunction)c.getConstructor(LuaPrototype.class).newInstance(prototype);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Number of classes generated so far. */
+	public synchronized int getClassCount () {
+		return count;
+	}
+
+	/** What the generated code depends on: the instructions, and which constants are strings. */
+	private static String key (LuaPrototype p) {
+		StringBuffer sb = new StringBuffer(p.code.length * 2 + p.constants.length + 1);
+		for (int i = 0; i < p.code.length; i++) {
+			sb.append((char)(p.code[i] >>> 16)).append((char)p.code[i]);
+		}
+		sb.append('/');
+		for (int i = 0; i < p.constants.length; i++) {
+			sb.append(p.constants[i] instanceof String ? 's' : 'o');
+		}
+		return sb.toString();
+	}
+
+	/** Returns the class file, or null when the function is too big. */
+	static byte[] generate (LuaPrototype p, String name) {
+		ClassWriter cw = new ClassWriter(name, FUNCTION);
+
+		Code init = new Code(2, 2);
+		init.op(Code.ALOAD_0);
+		init.op(Code.ALOAD_1);
+		init.op(Code.INVOKESPECIAL, cw.methodRef(FUNCTION, "<init>", "(L" + PROTOTYPE + ";)V"));
+		init.op(Code.RETURN);
+		cw.addMethod(ClassWriter.ACC_PUBLIC, "<init>", "(L" + PROTOTYPE + ";)V", init);
+
+		Code code = new Generator(cw, p).run();
+		if (code.length() > MAX_CODE) return null;
+		cw.addMethod(ClassWriter.ACC_PUBLIC, "run", "(" + L_STATE + L_FRAME + ")V", code);
+		return cw.toByteArray();
+	}
+
+	private static class Generator {
+		private final ClassWriter cw;
+		private final LuaPrototype p;
+		private final int[] ops;
+		private final Code code = new Code(10, 4);
+		private final Label[] labels;
+		private final Label done = new Label();
+
+		Generator (ClassWriter cw, LuaPrototype p) {
+			this.cw = cw;
+			this.p = p;
+			this.ops = p.code;
+			labels = new Label[ops.length];
+			for (int i = 0; i < ops.length; i++) labels[i] = new Label();
+		}
+
+		private Label label (int pc) {
+			return pc >= 0 && pc < labels.length ? labels[pc] : done;
+		}
+
+		Code run () {
+			// words that are operands of the instruction before them
+			boolean[] data = new boolean[ops.length];
+			for (int i = 0; i < ops.length; i++) {
+				int op = ops[i];
+				int opcode = op & 63;
+				if (opcode == OP_CLOSURE) {
+					int n = p.prototypes[op >>> 14].numUpvalues;
+					for (int j = 1; j <= n && i + j < ops.length; j++) data[i + j] = true;
+					i += n;
+				} else if (opcode == OP_SETLIST && ((op >>> 14) & 511) == 0) {
+					if (i + 1 < ops.length) data[i + 1] = true;
+					i++;
+				}
+			}
+
+			aload(THIS);
+			code.op(Code.GETFIELD, cw.fieldRef(FUNCTION, "constants", "[" + OBJECT));
+			code.op(Code.ASTORE_3);
+			aload(FRAME_VAR);
+			code.op(Code.GETFIELD, cw.fieldRef(FRAME, "pc", "I"));
+			Label[] entries = new Label[ops.length];
+			for (int i = 0; i < ops.length; i++) entries[i] = data[i] ? done : labels[i];
+			code.tableswitch(0, done, entries);
+
+			for (int i = 0; i < ops.length; i++) {
+				code.mark(labels[i]);
+				if (!data[i]) instruction(i, ops[i]);
+			}
+			code.mark(done);
+			code.op(Code.RETURN);
+			return code;
+		}
+
+		private void push (int v) {
+			code.push(cw, v);
+		}
+
+		private void aload (int var) {
+			code.op(Code.ALOAD_0 + var);
+		}
+
+		private void invokeStatic (String owner, String name, String desc) {
+			code.op(Code.INVOKESTATIC, cw.methodRef(owner, name, desc));
+		}
+
+		private void invokeVirtual (String owner, String name, String desc) {
+			code.op(Code.INVOKEVIRTUAL, cw.methodRef(owner, name, desc));
+		}
+
+		/** pushes register r */
+		private void reg (int r) {
+			aload(FRAME_VAR);
+			push(r);
+			invokeVirtual(FRAME, "get", "(I)" + OBJECT);
+		}
+
+		/** pushes register or constant */
+		private void rk (int x) {
+			if (x >= 256) {
+				constant(x - 256);
+			} else {
+				reg(x);
+			}
+		}
+
+		private void constant (int k) {
+			aload(CONSTANTS);
+			push(k);
+			code.op(Code.AALOAD);
+		}
+
+		/** first part of setting register a: frame and index */
+		private void target (int a) {
+			aload(FRAME_VAR);
+			push(a);
+		}
+
+		/** second part: stores the value on the stack */
+		private void store () {
+			invokeVirtual(FRAME, "set", "(I" + OBJECT + ")V");
+		}
+
+		private void setPc (int pc) {
+			aload(FRAME_VAR);
+			push(pc);
+			code.op(Code.PUTFIELD, cw.fieldRef(FRAME, "pc", "I"));
+		}
+
+		/** leaves instruction i to the interpreter */
+		private void exit (int i) {
+			setPc(i);
+			code.op(Code.RETURN);
+		}
+
+		private boolean isStringConstant (int x) {
+			return x >= 256 && p.constants[x - 256] instanceof String;
+		}
+
+		private void instruction (int i, int op) {
+			int opcode = op & 63;
+			int a = (op >>> 6) & 255;
+			int b = (op >>> 23) & 511;
+			int c = (op >>> 14) & 511;
+			int bx = op >>> 14;
+			int sbx = bx - 131071;
+			int next = i + 1;
+
+			switch (opcode) {
+			case OP_MOVE:
+				target(a);
+				reg(b);
+				store();
+				break;
+			case OP_LOADK:
+				target(a);
+				constant(bx);
+				store();
+				break;
+			case OP_LOADBOOL:
+				target(a);
+				code.op(Code.GETSTATIC, cw.fieldRef("java/lang/Boolean", b == 0 ? "FALSE" : "TRUE", "Ljava/lang/Boolean;"));
+				store();
+				if (c != 0) code.jump(Code.GOTO, label(i + 2));
+				break;
+			case OP_LOADNIL:
+				aload(FRAME_VAR);
+				push(a);
+				push(b);
+				invokeVirtual(FRAME, "stackClear", "(II)V");
+				break;
+			case OP_GETUPVAL:
+				target(a);
+				aload(FRAME_VAR);
+				push(b);
+				invokeStatic(FUNCTION, "getUpval", "(" + L_FRAME + "I)" + OBJECT);
+				store();
+				break;
+			case OP_GETGLOBAL:
+				setPc(next);
+				target(a);
+				aload(STATE_VAR);
+				aload(FRAME_VAR);
+				push(next);
+				constant(bx);
+				invokeStatic(FUNCTION, "getGlobal", "(" + L_STATE + L_FRAME + "I" + OBJECT + ")" + OBJECT);
+				store();
+				break;
+			case OP_GETTABLE:
+				setPc(next);
+				target(a);
+				if (isStringConstant(c)) {
+					aload(STATE_VAR);
+					aload(FRAME_VAR);
+					push(next);
+					reg(b);
+					constant(c - 256);
+					code.op(Code.CHECKCAST, cw.classRef("java/lang/String"));
+					invokeStatic(FUNCTION, "getField", "(" + L_STATE + L_FRAME + "I" + OBJECT + "Ljava/lang/String;)" + OBJECT);
+				} else {
+					aload(STATE_VAR);
+					reg(b);
+					rk(c);
+					invokeVirtual(STATE, "tableGet", "(" + OBJECT + OBJECT + ")" + OBJECT);
+				}
+				store();
+				break;
+			case OP_SETGLOBAL:
+				setPc(next);
+				aload(STATE_VAR);
+				aload(FRAME_VAR);
+				constant(bx);
+				reg(a);
+				invokeStatic(FUNCTION, "setGlobal", "(" + L_STATE + L_FRAME + OBJECT + OBJECT + ")V");
+				break;
+			case OP_SETUPVAL:
+				aload(FRAME_VAR);
+				push(b);
+				reg(a);
+				invokeStatic(FUNCTION, "setUpval", "(" + L_FRAME + "I" + OBJECT + ")V");
+				break;
+			case OP_SETTABLE:
+				setPc(next);
+				aload(STATE_VAR);
+				reg(a);
+				rk(b);
+				rk(c);
+				invokeVirtual(STATE, "tableSet", "(" + OBJECT + OBJECT + OBJECT + ")V");
+				break;
+			case OP_NEWTABLE:
+				target(a);
+				push(b);
+				push(c);
+				invokeStatic(FUNCTION, "newTable", "(II)Lse/krka/kahlua/vm/LuaTable;");
+				store();
+				break;
+			case OP_SELF:
+				setPc(next);
+				aload(STATE_VAR);
+				aload(FRAME_VAR);
+				push(next);
+				push(a);
+				push(b);
+				rk(c);
+				push(isStringConstant(c) ? 1 : 0);
+				invokeStatic(FUNCTION, "self", "(" + L_STATE + L_FRAME + "III" + OBJECT + "Z)V");
+				break;
+			case OP_ADD:
+			case OP_SUB:
+			case OP_MUL:
+			case OP_DIV:
+			case OP_MOD:
+			case OP_POW:
+				setPc(next);
+				target(a);
+				aload(STATE_VAR);
+				rk(b);
+				rk(c);
+				push(opcode);
+				invokeStatic(FUNCTION, "arith", "(" + L_STATE + OBJECT + OBJECT + "I)" + OBJECT);
+				store();
+				break;
+			case OP_UNM:
+			case OP_LEN:
+				setPc(next);
+				target(a);
+				aload(STATE_VAR);
+				reg(b);
+				invokeStatic(FUNCTION, opcode == OP_UNM ? "unm" : "len", "(" + L_STATE + OBJECT + ")" + OBJECT);
+				store();
+				break;
+			case OP_NOT:
+				target(a);
+				reg(b);
+				invokeStatic(FUNCTION, "not", "(" + OBJECT + ")Ljava/lang/Boolean;");
+				store();
+				break;
+			case OP_CONCAT:
+				setPc(next);
+				target(a);
+				aload(STATE_VAR);
+				aload(FRAME_VAR);
+				push(b);
+				push(c);
+				invokeStatic(FUNCTION, "concat", "(" + L_STATE + L_FRAME + "II)" + OBJECT);
+				store();
+				break;
+			case OP_JMP:
+				code.jump(Code.GOTO, label(next + sbx));
+				break;
+			case OP_EQ:
+			case OP_LT:
+			case OP_LE:
+				setPc(next);
+				aload(STATE_VAR);
+				rk(b);
+				rk(c);
+				push(opcode);
+				invokeStatic(FUNCTION, "compare", "(" + L_STATE + OBJECT + OBJECT + "I)Z");
+				// the next instruction is skipped when the result equals (a == 0)
+				code.jump(a == 0 ? Code.IFNE : Code.IFEQ, label(i + 2));
+				break;
+			case OP_TEST:
+				reg(a);
+				invokeStatic(STATE, "boolEval", "(" + OBJECT + ")Z");
+				code.jump(c == 0 ? Code.IFNE : Code.IFEQ, label(i + 2));
+				break;
+			case OP_TESTSET:
+				aload(FRAME_VAR);
+				push(a);
+				push(b);
+				push(c);
+				invokeStatic(FUNCTION, "testSet", "(" + L_FRAME + "III)Z");
+				code.jump(Code.IFNE, label(i + 2));
+				break;
+			case OP_CALL:
+				setPc(next);
+				aload(STATE_VAR);
+				aload(FRAME_VAR);
+				push(a);
+				push(b);
+				push(c);
+				invokeStatic(FUNCTION, "call", "(" + L_STATE + L_FRAME + "III)Z");
+				code.jump(Code.IFNE, label(next));
+				exit(i);
+				break;
+			case OP_FORPREP:
+				setPc(next);
+				aload(FRAME_VAR);
+				push(a);
+				invokeStatic(FUNCTION, "forPrep", "(" + L_FRAME + "I)V");
+				code.jump(Code.GOTO, label(next + sbx));
+				break;
+			case OP_FORLOOP:
+				aload(FRAME_VAR);
+				push(a);
+				invokeStatic(FUNCTION, "forLoop", "(" + L_FRAME + "I)Z");
+				code.jump(Code.IFNE, label(next + sbx));
+				break;
+			case OP_TFORLOOP:
+				setPc(next);
+				aload(STATE_VAR);
+				aload(FRAME_VAR);
+				push(op);
+				invokeStatic(FUNCTION, "tforLoop", "(" + L_STATE + L_FRAME + "I)Z");
+				code.jump(Code.IFNE, label(i + 2));
+				break;
+			case OP_SETLIST:
+				if (c == 0) {
+					exit(i);
+					break;
+				}
+				setPc(next);
+				aload(STATE_VAR);
+				aload(FRAME_VAR);
+				push(op);
+				invokeStatic(FUNCTION, "setList", "(" + L_STATE + L_FRAME + "I)V");
+				break;
+			case OP_CLOSE:
+				aload(FRAME_VAR);
+				push(a);
+				invokeVirtual(FRAME, "closeUpvalues", "(I)V");
+				break;
+			case OP_VARARG:
+				setPc(next);
+				aload(FRAME_VAR);
+				push(a);
+				push(b - 1);
+				invokeVirtual(FRAME, "pushVarargs", "(II)V");
+				break;
+			default:
+				// RETURN, TAILCALL, CLOSURE
+				exit(i);
+			}
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package cz.matejcik.openwig.j2se;
+
+import cz.matejcik.openwig.formats.CartridgeFile;
+import cz.matejcik.openwig.platform.FileHandle;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** CartridgeFile over a memory-mapped file.
+ * <p>
+ * Besides the usual byte[] access, media and bytecode can be obtained
+ * as read-only ByteBuffer slices of the mapping, without copying.
+ */
+public class MappedCartridgeFile extends CartridgeFile {
+
+	private MappedSeekableFile source;
+
+	protected MappedCartridgeFile () { }
+
+	/** Maps the specified file and reads its header.
+	 *
+	 * @param file the GWC file
+	 * @param savefile save file corresponding to this cartridge
+	 */
+	public static MappedCartridgeFile read (File file, FileHandle savefile)
+	throws IOException {
+		MappedCartridgeFile cf = new MappedCartridgeFile();
+		cf.source = new MappedSeekableFile(file);
+		cf.open(cf.source, savefile);
+		return cf;
+	}
+
+	/** Returns data of the specified data file as a read-only buffer,
+	 * or null if there is no such file.
+	 */
+	public synchronized ByteBuffer getFileBuffer (int oid) throws IOException {
+		int len = seekFile(oid);
+		if (len < 0) return null;
+		return source.slice(source.position(), len);
+	}
+
+	/** Returns the Lua bytecode as a read-only buffer. */
+	public synchronized ByteBuffer getBytecodeBuffer () throws IOException {
+		int len = seekBytecode();
+		return source.slice(source.position(), len);
+	}
+
+	public synchronized byte[] getFile (int oid) throws IOException {
+		return super.getFile(oid);
+	}
+
+	public synchronized byte[][] getFiles (int[] oids) throws IOException {
+		return super.getFiles(oids);
+	}
+
+	public synchronized byte[] getBytecode () throws IOException {
+		return super.getBytecode();
+	}
+}
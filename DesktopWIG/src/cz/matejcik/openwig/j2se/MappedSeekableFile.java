@@ -0,0 +1,117 @@
+package cz.matejcik.openwig.j2se;
+
+import cz.matejcik.openwig.platform.SeekableFile;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** SeekableFile implementation backed by a read-only memory-mapped file.
+ * <p>
+ * Apart from the usual reads, parts of the file can be obtained as
+ * ByteBuffer slices that share memory with the mapping, so that large
+ * data don't need to be copied to the heap.
+ */
+public class MappedSeekableFile implements SeekableFile {
+
+	private ByteBuffer buffer;
+
+	/** Maps the whole file. The file is closed right away, the mapping stays valid. */
+	public MappedSeekableFile (File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer = map.order(ByteOrder.LITTLE_ENDIAN);
+		} finally {
+			raf.close();
+		}
+	}
+
+	public void seek (long pos) throws IOException {
+		if (pos < 0 || pos > buffer.limit()) throw new EOFException("seek past end of file: " + pos);
+		buffer.position((int)pos);
+	}
+
+	public long position () throws IOException {
+		return buffer.position();
+	}
+
+	public long skip (long what) throws IOException {
+		int n = (int)Math.max(0, Math.min(what, buffer.remaining()));
+		buffer.position(buffer.position() + n);
+		return n;
+	}
+
+	public short readShort () throws IOException {
+		try {
+			return buffer.getShort();
+		} catch (BufferUnderflowException e) {
+			throw new EOFException();
+		}
+	}
+
+	public int readInt () throws IOException {
+		try {
+			return buffer.getInt();
+		} catch (BufferUnderflowException e) {
+			throw new EOFException();
+		}
+	}
+
+	public double readDouble () throws IOException {
+		try {
+			return buffer.getDouble();
+		} catch (BufferUnderflowException e) {
+			throw new EOFException();
+		}
+	}
+
+	public long readLong () throws IOException {
+		try {
+			return buffer.getLong();
+		} catch (BufferUnderflowException e) {
+			throw new EOFException();
+		}
+	}
+
+	public void readFully (byte[] buf) throws IOException {
+		try {
+			buffer.get(buf);
+		} catch (BufferUnderflowException e) {
+			throw new EOFException();
+		}
+	}
+
+	public String readString () throws IOException {
+		StringBuffer sb = new StringBuffer();
+		int b = read();
+		while (b > 0) {
+			sb.append((char)b);
+			b = read();
+		}
+		return sb.toString();
+	}
+
+	public int read () throws IOException {
+		if (!buffer.hasRemaining()) return -1;
+		return buffer.get() & 0xff;
+	}
+
+	/** Returns a read-only view of len bytes starting at pos.
+	 * Does not move the file pointer.
+	 */
+	public ByteBuffer slice (long pos, int len) throws IOException {
+		if (pos < 0 || len < 0 || pos + len > buffer.limit())
+			throw new EOFException("slice past end of file: " + pos + "+" + len);
+		ByteBuffer b = buffer.duplicate();
+		b.position((int)pos);
+		b.limit((int)pos + len);
+		return b.slice().asReadOnlyBuffer();
+	}
+}
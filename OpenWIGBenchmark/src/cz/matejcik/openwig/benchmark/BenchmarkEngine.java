@@ -0,0 +1,59 @@
+package cz.matejcik.openwig.benchmark;
+
+import cz.matejcik.openwig.Engine;
+import cz.matejcik.openwig.WherigoLib;
+import cz.matejcik.openwig.formats.CartridgeFile;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import se.krka.kahlua.vm.LuaClosure;
+import se.krka.kahlua.vm.LuaPrototype;
+import se.krka.kahlua.vm.LuaState;
+
+/** Engine without UI, GPS and event thread.
+ * <p>
+ * Sets up the global state the same way Engine.run() does, but
+ * synchronously, so that benchmarks can poke at zones and savegames
+ * directly.
+ */
+public class BenchmarkEngine extends Engine {
+
+	private BenchmarkEngine () {
+		/* headless, no cartridge */
+	}
+
+	private BenchmarkEngine (CartridgeFile cf) throws IOException {
+		super(cf, null);
+	}
+
+	/** Creates a global engine that only has a player. */
+	public static BenchmarkEngine headless () {
+		BenchmarkEngine e = new BenchmarkEngine();
+		Engine.instance = e;
+		return e;
+	}
+
+	/** Creates a global engine and runs the cartridge's bytecode. */
+	public static BenchmarkEngine load (CartridgeFile cf) throws IOException {
+		BenchmarkEngine e = new BenchmarkEngine(cf);
+		Engine.instance = e;
+		// stdlib hides some of the functions it gets, so the map
+		// must be built before running it, same as in Engine
+		e.luaState = Engine.state = new LuaState(System.out);
+		e.savegame.buildJavafuncMap(Engine.state.getEnvironment());
+		LuaScripts.run(Engine.state, LuaScripts.STDLIB);
+		WherigoLib.register(Engine.state);
+
+		byte[] lbc = cf.getBytecode();
+		LuaClosure closure = LuaPrototype.loadByteCode(new ByteArrayInputStream(lbc), Engine.state.getEnvironment());
+		e.savegame.setCartridgeCode(closure.prototype);
+		Engine.state.call(closure, null, null, null);
+		return e;
+	}
+
+	/** Moves the player without going through LocationService. */
+	public void movePlayer (double lat, double lon) {
+		player.position.latitude = lat;
+		player.position.longitude = lon;
+		if (cartridge != null) cartridge.walk(player.position);
+	}
+}
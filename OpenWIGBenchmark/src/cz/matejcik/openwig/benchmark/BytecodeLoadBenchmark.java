@@ -0,0 +1,71 @@
+package cz.matejcik.openwig.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import cz.matejcik.openwig.formats.CartridgeFile;
+import se.krka.kahlua.vm.LuaClosure;
+import se.krka.kahlua.vm.LuaPrototype;
+
+/**
+ * Loading compiled Lua: the bundled standard library, the benchmark
+ * cartridge, or the code of a real cartridge given by its path, as in
+ * <code>-p chunk=/path/to/game.gwc</code> (or a .lbc file).
+ * <p>
+ * fromArray is how Engine loads cartridge code and Savegame loads dumped
+ * functions, fromStream how a chunk of unknown size is read. Line
+ * numbers are only decoded when something asks for them, which
+ * withLines does, the way an error message would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BytecodeLoadBenchmark {
+
+	@Param({"stdlib", "cartridge"})
+	public String chunk;
+
+	private byte[] bytecode;
+
+	@Setup
+	public void setup () throws Exception {
+		if (chunk.equals("stdlib")) {
+			bytecode = LuaScripts.bytes(LuaScripts.STDLIB);
+		} else if (chunk.equals("cartridge")) {
+			bytecode = LuaScripts.bytes("cartridge.lbc");
+		} else if (chunk.endsWith(".gwc")) {
+			byte[] gwc = Files.readAllBytes(Paths.get(chunk));
+			bytecode = CartridgeFile.read(new MemorySeekableFile(gwc), new MemoryFileHandle()).getBytecode();
+		} else {
+			bytecode = Files.readAllBytes(Paths.get(chunk));
+		}
+	}
+
+	@Benchmark
+	public LuaClosure fromArray () throws Exception {
+		return LuaPrototype.loadByteCode(bytecode, null);
+	}
+
+	@Benchmark
+	public LuaClosure fromStream () throws Exception {
+		return LuaPrototype.loadByteCode(new ByteArrayInputStream(bytecode), null);
+	}
+
+	@Benchmark
+	public int withLines () throws Exception {
+		return lines(LuaPrototype.loadByteCode(bytecode, null).prototype);
+	}
+
+	private static int lines (LuaPrototype p) {
+		int n = p.getLines().length;
+		for (int i = 0; i < p.prototypes.length; i++) n += lines(p.prototypes[i]);
+		return n;
+	}
+}
@@ -0,0 +1,88 @@
+package cz.matejcik.openwig.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import cz.matejcik.openwig.formats.CartridgeFile;
+
+/**
+ * Opening a GWC and pulling media out of it. The file lives in
+ * memory, so this measures the format code and not the storage.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CartridgeFileBenchmark {
+
+	@Param({"200", "5000"})
+	public int media;
+
+	@Param({"4096"})
+	public int mediaSize;
+
+	private byte[] gwc;
+	private CartridgeFile cartridge, uncached;
+	private int[] batch;
+	private int next = 0;
+
+	@Setup
+	public void setup () throws Exception {
+		gwc = SyntheticCartridge.build(LuaScripts.bytes("cartridge.lbc"), media, mediaSize);
+		cartridge = CartridgeFile.read(new MemorySeekableFile(gwc), new MemoryFileHandle());
+		uncached = CartridgeFile.read(new MemorySeekableFile(gwc), new MemoryFileHandle());
+		uncached.getCache().setCapacity(0);
+		// icons of a list, in no particular order
+		Random random = new Random(42);
+		batch = new int[64];
+		for (int i = 0; i < batch.length; i++) batch[i] = random.nextInt(media) + 1;
+	}
+
+	@Benchmark
+	public CartridgeFile read () throws Exception {
+		return CartridgeFile.read(new MemorySeekableFile(gwc), new MemoryFileHandle());
+	}
+
+	/** Cycles through all media, so every call misses the one-file cache. */
+	@Benchmark
+	public byte[] getFile () throws Exception {
+		next = next % media + 1;
+		return cartridge.getFile(next);
+	}
+
+	/** Asks for the same file over and over, as the UI does when redrawing. */
+	@Benchmark
+	public byte[] getFileRepeated () throws Exception {
+		return cartridge.getFile(1);
+	}
+
+	/** Two files in turn, like a list showing icons of two items. */
+	@Benchmark
+	public byte[] getFileAlternating () throws Exception {
+		next = next % 2 + 1;
+		return cartridge.getFile(next);
+	}
+
+	/** 64 files one by one, no cache */
+	@Benchmark
+	public byte[] getFileBatch () throws Exception {
+		byte[] last = null;
+		for (int i = 0; i < batch.length; i++) last = uncached.getFile(batch[i]);
+		return last;
+	}
+
+	/** the same 64 files at once */
+	@Benchmark
+	public byte[][] getFiles () throws Exception {
+		return uncached.getFiles(batch);
+	}
+
+	@Benchmark
+	public byte[] getBytecode () throws Exception {
+		return cartridge.getBytecode();
+	}
+}
@@ -0,0 +1,154 @@
+package cz.matejcik.openwig.benchmark;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import cz.matejcik.openwig.j2se.LuaClassCompiler;
+import se.krka.kahlua.vm.LuaState;
+
+/**
+ * The interpreter loop on code made of common opcodes, and on the rarer
+ * ones (concatenation, string comparison, varargs) that live outside it,
+ * and on calls through library tables and methods, which the bytecode
+ * optimizer runs as pairs of instructions.
+ * <p>
+ * HotSpot never compiles a method whose bytecode is longer than
+ * HugeMethodLimit (8000 bytes), and large methods compile late and
+ * with worse register allocation, so setup fails when LuaState's
+ * interpreter loop has grown past {@link #LOOP_LIMIT}. To see when the
+ * loop reaches the optimizing compiler, run with
+ * <code>-jvmArgsAppend -XX:+PrintCompilation</code> and look for
+ * luaMainloop at tier 4.
+ * <p>
+ * With <code>compiled</code> set, the functions are turned into JVM
+ * classes by LuaClassCompiler on their first call, the way the desktop
+ * port runs cartridges. Setup then fails if any of them returns something
+ * else than it does interpreted.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+
+	/** size the interpreter loop should stay under, well below HugeMethodLimit */
+	public static final int LOOP_LIMIT = 4000;
+
+	@Param({"500"})
+	public int n;
+
+	@Param({"false", "true"})
+	public boolean compiled;
+
+	private LuaState state;
+	private Object hot, whileLoop, cold, libraryCalls;
+	private Double arg;
+
+	@Setup
+	public void setup () throws Exception {
+		int size = codeLength(LuaState.class, "luaMainloop");
+		if (size > LOOP_LIMIT)
+			throw new IllegalStateException("LuaState.luaMainloop is " + size + " bytes of bytecode, limit is " + LOOP_LIMIT);
+
+		state = LuaScripts.newState();
+		if (compiled) state.setCompiler(new LuaClassCompiler(), 1);
+		LuaScripts.run(state, "interpreter.lbc");
+		hot = state.getEnvironment().rawget("hot");
+		whileLoop = state.getEnvironment().rawget("whileLoop");
+		cold = state.getEnvironment().rawget("cold");
+		libraryCalls = state.getEnvironment().rawget("libraryCalls");
+		arg = LuaState.toDouble(n);
+		if (compiled) checkCompiled();
+	}
+
+	/** Compares results of the compiled functions with a state that interprets them. */
+	private void checkCompiled () throws IOException {
+		LuaState interpreted = LuaScripts.newState();
+		LuaScripts.run(interpreted, "interpreter.lbc");
+		String[] names = { "hot", "whileLoop", "cold", "libraryCalls" };
+		for (String name : names) {
+			Object expected = interpreted.call(interpreted.getEnvironment().rawget(name), arg, null, null);
+			Object actual = state.call(state.getEnvironment().rawget(name), arg, null, null);
+			if (!expected.equals(actual))
+				throw new IllegalStateException(name + " returns " + actual + " compiled, but " + expected + " interpreted");
+		}
+	}
+
+	@Benchmark
+	public Object hotOpcodes () {
+		return state.call(hot, arg, null, null);
+	}
+
+	@Benchmark
+	public Object whileLoop () {
+		return state.call(whileLoop, arg, null, null);
+	}
+
+	@Benchmark
+	public Object coldOpcodes () {
+		return state.call(cold, arg, null, null);
+	}
+
+	@Benchmark
+	public Object libraryCalls () {
+		return state.call(libraryCalls, arg, null, null);
+	}
+
+	/** Length of the bytecode of a method, read from the class file. */
+	static int codeLength (Class<?> c, String method) throws IOException {
+		InputStream stream = c.getResourceAsStream(c.getSimpleName() + ".class");
+		if (stream == null) throw new IOException("no class file for " + c.getName());
+		DataInputStream in = new DataInputStream(stream);
+		try {
+			in.skipBytes(8); // magic, version
+			int count = in.readUnsignedShort();
+			String[] utf8 = new String[count];
+			for (int i = 1; i < count; i++) {
+				int tag = in.readUnsignedByte();
+				switch (tag) {
+					case 1: utf8[i] = in.readUTF(); break;
+					case 5: case 6: in.skipBytes(8); i++; break;
+					case 7: case 8: case 16: case 19: case 20: in.skipBytes(2); break;
+					case 15: in.skipBytes(3); break;
+					default: in.skipBytes(4); break;
+				}
+			}
+			in.skipBytes(6); // access, this, super
+			in.skipBytes(2 * in.readUnsignedShort());
+			for (int fields = in.readUnsignedShort(); fields > 0; fields--) {
+				in.skipBytes(6);
+				skipAttributes(in);
+			}
+			for (int methods = in.readUnsignedShort(); methods > 0; methods--) {
+				in.skipBytes(2);
+				String name = utf8[in.readUnsignedShort()];
+				in.skipBytes(2);
+				for (int attrs = in.readUnsignedShort(); attrs > 0; attrs--) {
+					String attr = utf8[in.readUnsignedShort()];
+					int length = in.readInt();
+					if (name.equals(method) && attr.equals("Code")) {
+						in.skipBytes(4); // max stack, max locals
+						return in.readInt();
+					}
+					in.skipBytes(length);
+				}
+			}
+			throw new IOException("no method " + method + " in " + c.getName());
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void skipAttributes (DataInputStream in) throws IOException {
+		for (int attrs = in.readUnsignedShort(); attrs > 0; attrs--) {
+			in.skipBytes(2);
+			in.skipBytes(in.readInt());
+		}
+	}
+}
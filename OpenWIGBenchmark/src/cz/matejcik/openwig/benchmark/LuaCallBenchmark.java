@@ -0,0 +1,92 @@
+package cz.matejcik.openwig.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import se.krka.kahlua.vm.LuaClosure;
+import se.krka.kahlua.vm.LuaPrototype;
+import se.krka.kahlua.vm.LuaState;
+
+/**
+ * LuaState.call on function calls, method dispatch, closures, varargs,
+ * tail calls, global and field lookups, plus running a whole cartridge-shaped chunk
+ * through the interpreter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LuaCallBenchmark {
+
+	@Param({"200"})
+	public int n;
+
+	private LuaState state;
+	private Object fib, methods, closures, varargs, tailcalls, globals, fields;
+	private Double arg, fibArg;
+	private byte[] bytecode;
+
+	@Setup
+	public void setup () throws Exception {
+		state = LuaScripts.newState();
+		bytecode = LuaScripts.bytes("calls.lbc");
+		LuaScripts.run(state, "calls.lbc");
+		fib = state.getEnvironment().rawget("fib");
+		methods = state.getEnvironment().rawget("methods");
+		closures = state.getEnvironment().rawget("closures");
+		varargs = state.getEnvironment().rawget("varargs");
+		tailcalls = state.getEnvironment().rawget("tailcalls");
+		globals = state.getEnvironment().rawget("globals");
+		fields = state.getEnvironment().rawget("fields");
+		arg = LuaState.toDouble(n);
+		fibArg = LuaState.toDouble(15);
+	}
+
+	@Benchmark
+	public Object recursion () {
+		return state.call(fib, fibArg, null, null);
+	}
+
+	@Benchmark
+	public Object methodCalls () {
+		return state.call(methods, arg, null, null);
+	}
+
+	@Benchmark
+	public Object closures () {
+		return state.call(closures, arg, null, null);
+	}
+
+	@Benchmark
+	public Object varargs () {
+		return state.call(varargs, arg, null, null);
+	}
+
+	@Benchmark
+	public Object tailCalls () {
+		return state.call(tailcalls, arg, null, null);
+	}
+
+	/** Library functions looked up through globals, like Wherigo.* calls. */
+	@Benchmark
+	public Object globals () {
+		return state.call(globals, arg, null, null);
+	}
+
+	/** Field reads with constant keys, own and inherited through __index. */
+	@Benchmark
+	public Object fields () {
+		return state.call(fields, arg, null, null);
+	}
+
+	/** Loading and running a compiled chunk, the way Engine starts a cartridge. */
+	@Benchmark
+	public Object loadAndRun () throws Exception {
+		LuaClosure chunk = LuaPrototype.loadByteCode(new ByteArrayInputStream(bytecode), state.getEnvironment());
+		return state.call(chunk, null, null, null);
+	}
+}
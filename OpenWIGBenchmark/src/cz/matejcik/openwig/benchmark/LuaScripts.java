@@ -0,0 +1,56 @@
+package cz.matejcik.openwig.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import se.krka.kahlua.vm.LuaClosure;
+import se.krka.kahlua.vm.LuaPrototype;
+import se.krka.kahlua.vm.LuaState;
+
+/** Loads benchmark scripts into a fresh Kahlua state. */
+public class LuaScripts {
+
+	public static final String STDLIB = "/cz/matejcik/openwig/stdlib.lbc";
+
+	/** Creates a state with the Lua part of the standard library loaded. */
+	public static LuaState newState () throws IOException {
+		LuaState state = new LuaState(System.out);
+		run(state, STDLIB);
+		return state;
+	}
+
+	/** Loads the compiled chunk from a resource and runs it. */
+	public static void run (LuaState state, String resource) throws IOException {
+		state.call(load(state, resource), null, null, null);
+	}
+
+	public static LuaClosure load (LuaState state, String resource) throws IOException {
+		InputStream stream = open(resource);
+		try {
+			return LuaPrototype.loadByteCode(stream, state.getEnvironment());
+		} finally {
+			stream.close();
+		}
+	}
+
+	/** Returns raw content of a resource, e.g. bytecode to put into a cartridge. */
+	public static byte[] bytes (String resource) throws IOException {
+		InputStream stream = open(resource);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = stream.read(buf)) > 0) out.write(buf, 0, n);
+			return out.toByteArray();
+		} finally {
+			stream.close();
+		}
+	}
+
+	private static InputStream open (String resource) throws IOException {
+		InputStream stream = LuaScripts.class.getResourceAsStream(resource);
+		if (stream == null) throw new IOException("missing resource " + resource);
+		return stream;
+	}
+}
@@ -0,0 +1,87 @@
+package cz.matejcik.openwig.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import se.krka.kahlua.vm.LuaState;
+import se.krka.kahlua.vm.LuaTable;
+import se.krka.kahlua.vm.LuaTableImpl;
+
+/**
+ * Raw LuaTableImpl operations, called from Java the way the engine
+ * and the libraries use them: integer keys (arrays, inventories),
+ * string keys (object properties), iteration and length.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LuaTableBenchmark {
+
+	@Param({"16", "1024"})
+	public int size;
+
+	private LuaTable array, hash;
+	private Double[] indices;
+	private String[] names;
+
+	@Setup
+	public void setup () {
+		indices = new Double[size];
+		names = new String[size];
+		array = new LuaTableImpl();
+		hash = new LuaTableImpl();
+		for (int i = 0; i < size; i++) {
+			indices[i] = LuaState.toDouble(i + 1);
+			names[i] = "Property" + i;
+			array.rawset(indices[i], names[i]);
+			hash.rawset(names[i], indices[i]);
+		}
+	}
+
+	@Benchmark
+	public void getArray (Blackhole bh) {
+		for (int i = 0; i < size; i++) bh.consume(array.rawget(indices[i]));
+	}
+
+	@Benchmark
+	public void getHash (Blackhole bh) {
+		for (int i = 0; i < size; i++) bh.consume(hash.rawget(names[i]));
+	}
+
+	@Benchmark
+	public LuaTable setArray () {
+		LuaTable t = new LuaTableImpl();
+		for (int i = 0; i < size; i++) t.rawset(indices[i], names[i]);
+		return t;
+	}
+
+	@Benchmark
+	public LuaTable setHash () {
+		LuaTable t = new LuaTableImpl();
+		for (int i = 0; i < size; i++) t.rawset(names[i], indices[i]);
+		return t;
+	}
+
+	@Benchmark
+	public void overwrite (Blackhole bh) {
+		for (int i = 0; i < size; i++) hash.rawset(names[i], indices[size - i - 1]);
+		bh.consume(hash);
+	}
+
+	@Benchmark
+	public void next (Blackhole bh) {
+		Object key = null;
+		while ((key = hash.next(key)) != null) bh.consume(key);
+		while ((key = array.next(key)) != null) bh.consume(key);
+	}
+
+	@Benchmark
+	public int len () {
+		return array.len() + hash.len();
+	}
+}
@@ -0,0 +1,83 @@
+package cz.matejcik.openwig.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import cz.matejcik.openwig.formats.CartridgeFile;
+import cz.matejcik.openwig.j2se.J2SESeekableFile;
+import cz.matejcik.openwig.j2se.MappedCartridgeFile;
+
+/**
+ * Media access from a GWC on disk: RandomAccessFile reads into a fresh
+ * byte[] against slices of a memory-mapped file. Every call asks for
+ * a different file, so the one-file cache never hits. Also opening
+ * the cartridge through RandomAccessFile.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MappedCartridgeFileBenchmark {
+
+	@Param({"50"})
+	public int media;
+
+	@Param({"4096", "262144"})
+	public int mediaSize;
+
+	private File file;
+	private RandomAccessFile raf;
+	private CartridgeFile cartridge;
+	private MappedCartridgeFile mapped;
+	private int next = 0;
+
+	@Setup
+	public void setup () throws Exception {
+		file = File.createTempFile("bench", ".gwc");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(SyntheticCartridge.build(LuaScripts.bytes("cartridge.lbc"), media, mediaSize));
+		out.close();
+		raf = new RandomAccessFile(file, "r");
+		cartridge = CartridgeFile.read(new J2SESeekableFile(raf), new MemoryFileHandle());
+		mapped = MappedCartridgeFile.read(file, new MemoryFileHandle());
+	}
+
+	@TearDown
+	public void tearDown () throws Exception {
+		raf.close();
+		file.delete();
+	}
+
+	/** header and offset table through RandomAccessFile */
+	@Benchmark
+	public CartridgeFile read () throws Exception {
+		raf.seek(0);
+		return CartridgeFile.read(new J2SESeekableFile(raf), new MemoryFileHandle());
+	}
+
+	@Benchmark
+	public byte[] getFile () throws Exception {
+		next = next % media + 1;
+		return cartridge.getFile(next);
+	}
+
+	/** byte[] API over the mapping, as Engine.mediaFile uses it */
+	@Benchmark
+	public byte[] getFileMapped () throws Exception {
+		next = next % media + 1;
+		return mapped.getFile(next);
+	}
+
+	@Benchmark
+	public ByteBuffer getFileBuffer () throws Exception {
+		next = next % media + 1;
+		return mapped.getFileBuffer(next);
+	}
+}
@@ -0,0 +1,62 @@
+package cz.matejcik.openwig.benchmark;
+
+import cz.matejcik.openwig.platform.FileHandle;
+import java.io.*;
+
+/** FileHandle keeping the save file in memory. */
+public class MemoryFileHandle implements FileHandle {
+
+	private ByteArrayOutputStream data = null;
+	private ByteArrayOutputStream temp = null;
+
+	public DataInputStream openDataInputStream () throws IOException {
+		if (data == null) throw new FileNotFoundException();
+		return new DataInputStream(new ByteArrayInputStream(data.toByteArray()));
+	}
+
+	public DataOutputStream openDataOutputStream () throws IOException {
+		if (data == null) throw new FileNotFoundException();
+		data.reset();
+		return new DataOutputStream(data);
+	}
+
+	public boolean exists () throws IOException {
+		return data != null;
+	}
+
+	public void create () throws IOException {
+		data = new ByteArrayOutputStream(64 * 1024);
+	}
+
+	public void delete () throws IOException {
+		data = null;
+	}
+
+	public void truncate (long len) throws IOException {
+		byte[] b = data.toByteArray();
+		data.reset();
+		data.write(b, 0, (int)Math.min(len, b.length));
+	}
+
+	public OutputStream openTemporaryOutputStream () throws IOException {
+		if (temp == null) temp = new ByteArrayOutputStream(64 * 1024);
+		temp.reset();
+		return temp;
+	}
+
+	public void commitTemporary () throws IOException {
+		ByteArrayOutputStream old = data;
+		data = temp;
+		temp = old;
+	}
+
+	public OutputStream openAppendOutputStream () throws IOException {
+		if (data == null) throw new FileNotFoundException();
+		return data;
+	}
+
+	/** Returns current length of the file. */
+	public int size () {
+		return data == null ? 0 : data.size();
+	}
+}
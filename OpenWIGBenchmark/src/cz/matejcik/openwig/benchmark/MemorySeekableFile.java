@@ -0,0 +1,68 @@
+package cz.matejcik.openwig.benchmark;
+
+import cz.matejcik.openwig.platform.SeekableFile;
+import java.io.EOFException;
+import java.io.IOException;
+
+/** SeekableFile over a byte array, so that cartridge benchmarks
+ * measure parsing and not the disk.
+ */
+public class MemorySeekableFile implements SeekableFile {
+
+	private byte[] data;
+	private int pos = 0;
+
+	public MemorySeekableFile (byte[] data) {
+		this.data = data;
+	}
+
+	public void seek (long pos) throws IOException {
+		this.pos = (int)pos;
+	}
+
+	public long position () throws IOException {
+		return pos;
+	}
+
+	public long skip (long what) throws IOException {
+		pos += (int)what;
+		return what;
+	}
+
+	public short readShort () throws IOException {
+		return (short)(read() | (read() << 8));
+	}
+
+	public int readInt () throws IOException {
+		return read() | (read() << 8) | (read() << 16) | (read() << 24);
+	}
+
+	public double readDouble () throws IOException {
+		return Double.longBitsToDouble(readLong());
+	}
+
+	public long readLong () throws IOException {
+		return (readInt() & 0xffffffffL) | ((long)readInt() << 32);
+	}
+
+	public void readFully (byte[] buf) throws IOException {
+		if (pos + buf.length > data.length) throw new EOFException();
+		System.arraycopy(data, pos, buf, 0, buf.length);
+		pos += buf.length;
+	}
+
+	public String readString () throws IOException {
+		StringBuffer sb = new StringBuffer();
+		int b = read();
+		while (b > 0) {
+			sb.append((char)b);
+			b = read();
+		}
+		return sb.toString();
+	}
+
+	public int read () throws IOException {
+		if (pos >= data.length) return -1;
+		return data[pos++] & 0xff;
+	}
+}
@@ -0,0 +1,54 @@
+package cz.matejcik.openwig.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import se.krka.kahlua.vm.LuaState;
+
+/**
+ * Numeric loops in the interpreter. Run with <code>-prof gc</code>
+ * and watch gc.alloc.rate.norm - with the small integer cache in
+ * LuaState.toDouble, loop counters, indices and lengths no longer
+ * allocate a Double per step.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NumericLoopBenchmark {
+
+	@Param({"500"})
+	public int n;
+
+	private LuaState state;
+	private Object sum, fill, compare;
+	private Double arg;
+
+	@Setup
+	public void setup () throws Exception {
+		state = LuaScripts.newState();
+		LuaScripts.run(state, "numeric.lbc");
+		sum = state.getEnvironment().rawget("sum");
+		fill = state.getEnvironment().rawget("fill");
+		compare = state.getEnvironment().rawget("compare");
+		arg = LuaState.toDouble(n);
+	}
+
+	@Benchmark
+	public Object forLoop () {
+		return state.call(sum, arg, null, null);
+	}
+
+	@Benchmark
+	public Object tableFill () {
+		return state.call(fill, arg, null, null);
+	}
+
+	@Benchmark
+	public Object comparisons () {
+		return state.call(compare, arg, null, null);
+	}
+}
@@ -0,0 +1,53 @@
+package cz.matejcik.openwig.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import cz.matejcik.openwig.Engine;
+import cz.matejcik.openwig.Timer;
+import cz.matejcik.openwig.formats.CartridgeFile;
+import cz.matejcik.openwig.formats.Savegame;
+
+/**
+ * Storing and restoring the whole Lua environment of a running
+ * cartridge (cartridge.lua) to an in-memory save file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SavegameBenchmark {
+
+	private MemoryFileHandle saveFile;
+	private Savegame savegame;
+
+	@Setup
+	public void setup () throws Exception {
+		byte[] gwc = SyntheticCartridge.build(LuaScripts.bytes("cartridge.lbc"), 4, 1024);
+		saveFile = new MemoryFileHandle();
+		CartridgeFile cf = CartridgeFile.read(new MemorySeekableFile(gwc), saveFile);
+		BenchmarkEngine.load(cf);
+		savegame = Engine.instance.savegame;
+		savegame.store(Engine.state.getEnvironment());
+	}
+
+	@TearDown
+	public void tearDown () {
+		Timer.kill();
+	}
+
+	@Benchmark
+	public int store () throws Exception {
+		savegame.store(Engine.state.getEnvironment());
+		return saveFile.size();
+	}
+
+	@Benchmark
+	public Object restore () throws Exception {
+		savegame.restore(Engine.state.getEnvironment());
+		return Engine.instance.cartridge;
+	}
+}
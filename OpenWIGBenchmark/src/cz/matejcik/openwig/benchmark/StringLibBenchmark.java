@@ -0,0 +1,80 @@
+package cz.matejcik.openwig.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import se.krka.kahlua.vm.LuaState;
+
+/**
+ * string.gsub, string.find, string.match and string.format called from Lua on
+ * a paragraph of cartridge-like text.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringLibBenchmark {
+
+	private static final String PARAGRAPH =
+		"Walk 120 metres north to zone 3, where the old oak stands. "
+		+ "Count the 7 benches and the 12 lamps; the answer to zone 4 is their sum. "
+		+ "Beware: zone 5 is only reachable between 9 and 17 o'clock.\n";
+
+	@Param({"4"})
+	public int paragraphs;
+
+	private LuaState state;
+	private Object gsubWords, gsubFunction, findAll, captures, findPlain, format;
+	private String text;
+	private Double count;
+
+	@Setup
+	public void setup () throws Exception {
+		state = LuaScripts.newState();
+		LuaScripts.run(state, "strings.lbc");
+		gsubWords = state.getEnvironment().rawget("gsubWords");
+		gsubFunction = state.getEnvironment().rawget("gsubFunction");
+		findAll = state.getEnvironment().rawget("findAll");
+		captures = state.getEnvironment().rawget("captures");
+		findPlain = state.getEnvironment().rawget("findPlain");
+		format = state.getEnvironment().rawget("format");
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < paragraphs; i++) sb.append(PARAGRAPH);
+		text = sb.toString();
+		count = LuaState.toDouble(20);
+	}
+
+	@Benchmark
+	public Object gsub () {
+		return state.call(gsubWords, text, null, null);
+	}
+
+	@Benchmark
+	public Object gsubFunction () {
+		return state.call(gsubFunction, text, null, null);
+	}
+
+	@Benchmark
+	public Object find () {
+		return state.call(findAll, text, null, null);
+	}
+
+	/** string.find with captures and string.match, the way input gets parsed */
+	@Benchmark
+	public Object captures () {
+		return state.call(captures, text, null, null);
+	}
+
+	@Benchmark
+	public Object findPlain () {
+		return state.call(findPlain, text, null, null);
+	}
+
+	@Benchmark
+	public Object format () {
+		return state.call(format, count, null, null);
+	}
+}
@@ -0,0 +1,112 @@
+package cz.matejcik.openwig.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+/** Builds GWC files in memory.
+ * <p>
+ * File 0 is the Lua bytecode, files 1..mediaCount are media
+ * of the given size filled with junk.
+ */
+public class SyntheticCartridge {
+
+	private static final byte[] CART_ID = { 0x02, 0x0a, 0x43, 0x41, 0x52, 0x54, 0x00 };
+
+	public static final double LATITUDE = 50.0755, LONGITUDE = 14.4378;
+
+	private ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+	public static byte[] build (byte[] bytecode, int mediaCount, int mediaSize) {
+		try {
+			return new SyntheticCartridge().write(bytecode, mediaCount, mediaSize);
+		} catch (IOException e) {
+			throw new RuntimeException(e.toString());
+		}
+	}
+
+	private byte[] write (byte[] bytecode, int mediaCount, int mediaSize) throws IOException {
+		int files = mediaCount + 1;
+
+		out.write(CART_ID);
+		writeShort(files);
+		int offsetTable = out.size();
+		for (int i = 0; i < files; i++) {
+			writeShort(i);
+			writeInt(0); // patched below
+		}
+
+		byte[] header = header();
+		writeInt(header.length);
+		out.write(header);
+
+		int[] offsets = new int[files];
+		offsets[0] = out.size();
+		writeInt(bytecode.length);
+		out.write(bytecode);
+
+		byte[] media = new byte[mediaSize];
+		for (int i = 0; i < mediaSize; i++) media[i] = (byte)(i * 31);
+		for (int i = 1; i < files; i++) {
+			offsets[i] = out.size();
+			out.write(1); // valid
+			writeInt(i % 4); // type
+			writeInt(mediaSize);
+			out.write(media);
+		}
+
+		byte[] gwc = out.toByteArray();
+		for (int i = 0; i < files; i++) {
+			int pos = offsetTable + i * 6 + 2;
+			for (int b = 0; b < 4; b++) gwc[pos + b] = (byte)(offsets[i] >>> (b * 8));
+		}
+		return gwc;
+	}
+
+	private byte[] header () throws IOException {
+		ByteArrayOutputStream main = out;
+		out = new ByteArrayOutputStream();
+		writeLong(Double.doubleToLongBits(LATITUDE));
+		writeLong(Double.doubleToLongBits(LONGITUDE));
+		writeLong(0); // zeroes
+		writeLong(0); // unknown
+		writeShort(1); // splash
+		writeShort(2); // icon
+		writeString("Tour guide");
+		writeString("benchmark");
+		writeLong(0); // unknown
+		writeString("Benchmark cartridge");
+		writeString("00000000-0000-0000-0000-000000000000");
+		writeString("Synthetic cartridge for the benchmarks.");
+		writeString("Start anywhere.");
+		writeString("1.0");
+		writeString("openWIG");
+		writeString("http://example.com/");
+		writeString("PocketPC");
+		writeInt(0); // unknown
+		writeString("BENCH");
+		byte[] header = out.toByteArray();
+		out = main;
+		return header;
+	}
+
+	private void writeShort (int v) {
+		out.write(v);
+		out.write(v >>> 8);
+	}
+
+	private void writeInt (int v) {
+		writeShort(v);
+		writeShort(v >>> 16);
+	}
+
+	private void writeLong (long v) {
+		writeInt((int)v);
+		writeInt((int)(v >>> 32));
+	}
+
+	private void writeString (String s) throws UnsupportedEncodingException, IOException {
+		out.write(s.getBytes("UTF-8"));
+		out.write(0);
+	}
+}
@@ -0,0 +1,51 @@
+package cz.matejcik.openwig.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import cz.matejcik.openwig.Zone;
+import cz.matejcik.openwig.ZonePoint;
+
+/**
+ * Precise evaluation of a single zone with many vertices, like outlines
+ * traced along streets. Every step crosses the zone boundary, alternating
+ * between a point inside and a point in proximity range, so that the
+ * point-in-polygon test and the nearest-edge search run each time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZonePolygonBenchmark {
+
+	@Param({"10", "100", "1000"})
+	public int vertices;
+
+	private static final int STEPS = 256;
+	private static final double RADIUS = 200; // metres
+
+	private Zone zone;
+	private ZonePoint[] path;
+	private int step = 0;
+
+	@Setup
+	public void setup () {
+		BenchmarkEngine.headless();
+		zone = ZoneWalkBenchmark.zone(SyntheticCartridge.LATITUDE, SyntheticCartridge.LONGITUDE, RADIUS, vertices);
+		path = new ZonePoint[STEPS];
+		for (int i = 0; i < STEPS; i++) {
+			double r = (i % 2 == 0) ? RADIUS * 0.3 : RADIUS * 1.1;
+			path[i] = zone.bbCenter.translate(360.0 * i / STEPS + 3, r);
+		}
+	}
+
+	@Benchmark
+	public double walk () {
+		step = (step + 1) % STEPS;
+		zone.walk(path[step]);
+		return zone.distance;
+	}
+}
@@ -0,0 +1,123 @@
+package cz.matejcik.openwig.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import cz.matejcik.openwig.Cartridge;
+import cz.matejcik.openwig.Engine;
+import cz.matejcik.openwig.Zone;
+import cz.matejcik.openwig.ZonePoint;
+import se.krka.kahlua.vm.LuaState;
+import se.krka.kahlua.vm.LuaTable;
+import se.krka.kahlua.vm.LuaTableImpl;
+
+/**
+ * Zone evaluation, which runs on every GPS fix. The zones form
+ * a grid of star-shaped polygons; the player walks a circle across
+ * the grid, so each step sees a mix of far zones, proximity zones and
+ * zones the player is inside of. With 200 m spacing all zones are
+ * within proximity range, with 2000 m most of them are far away.
+ * cartridgeStanding models a player waiting in the middle of the grid,
+ * with the usual few metres of GPS noise.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZoneWalkBenchmark {
+
+	@Param({"10", "100"})
+	public int zones;
+
+	@Param({"8", "64"})
+	public int vertices;
+
+	@Param({"200", "2000"})
+	public double spacing; // metres
+
+	private static final int STEPS = 256;
+	private static final double RADIUS = 40; // metres
+
+	private Cartridge cartridge;
+	private Zone single;
+	private ZonePoint[] path, near, standing;
+	private int step = 0;
+
+	@Setup
+	public void setup () {
+		BenchmarkEngine.headless();
+		cartridge = new Cartridge();
+		Engine.instance.cartridge = cartridge;
+
+		int side = (int)Math.ceil(Math.sqrt(zones));
+		double lat0 = SyntheticCartridge.LATITUDE, lon0 = SyntheticCartridge.LONGITUDE;
+		for (int i = 0; i < zones; i++) {
+			double lat = lat0 + ZonePoint.m2lat(spacing * (i / side));
+			double lon = lon0 + ZonePoint.m2lon(lat0, spacing * (i % side));
+			cartridge.addObject(zone(lat, lon, RADIUS, vertices));
+		}
+		single = (Zone)cartridge.zones.elementAt(0);
+
+		// a circle through the middle of the grid
+		double extent = spacing * (side - 1) / 2;
+		ZonePoint center = new ZonePoint(lat0 + ZonePoint.m2lat(extent), lon0 + ZonePoint.m2lon(lat0, extent), 0);
+		path = new ZonePoint[STEPS];
+		for (int i = 0; i < STEPS; i++) {
+			path[i] = center.translate(360.0 * i / STEPS, Math.max(extent, spacing / 2));
+		}
+		// and a circle that keeps crossing the edges of the first zone
+		near = new ZonePoint[STEPS];
+		for (int i = 0; i < STEPS; i++) {
+			near[i] = single.bbCenter.translate(360.0 * i / STEPS + 7, RADIUS * 0.7);
+		}
+		// GPS noise of up to 3 metres around a fixed spot
+		Random random = new Random(42);
+		standing = new ZonePoint[STEPS];
+		for (int i = 0; i < STEPS; i++) {
+			standing[i] = center.translate(random.nextDouble() * 360, random.nextDouble() * 3);
+		}
+	}
+
+	/** Builds an active star-shaped zone, set up through Lua properties like a cartridge would. */
+	public static Zone zone (double lat, double lon, double radius, int vertices) {
+		Zone z = new Zone();
+		LuaTable points = new LuaTableImpl();
+		for (int i = 0; i < vertices; i++) {
+			double r = (i % 2 == 0) ? radius : radius / 2;
+			ZonePoint zp = new ZonePoint(lat, lon, 0).translate(360.0 * i / vertices, r);
+			points.rawset(LuaState.toDouble(i + 1), zp);
+		}
+		z.rawset("Name", "zone");
+		z.rawset("ProximityRange", LuaState.toDouble(60));
+		z.rawset("DistanceRange", LuaState.toDouble(-1));
+		z.rawset("Points", points);
+		z.rawset("Active", Boolean.TRUE);
+		return z;
+	}
+
+	@Benchmark
+	public Cartridge cartridgeWalk () {
+		step = (step + 1) % STEPS;
+		cartridge.walk(path[step]);
+		return cartridge;
+	}
+
+	@Benchmark
+	public Cartridge cartridgeStanding () {
+		step = (step + 1) % STEPS;
+		cartridge.walk(standing[step]);
+		return cartridge;
+	}
+
+	/** Single zone, player close enough for the precise polygon tests. */
+	@Benchmark
+	public double zoneWalk () {
+		step = (step + 1) % STEPS;
+		single.walk(near[step]);
+		return single.distance;
+	}
+}
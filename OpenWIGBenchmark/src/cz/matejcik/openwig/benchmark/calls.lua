@@ -0,0 +1,77 @@
+-- Function calls, closures, method dispatch through metatables and
+-- varargs - the control flow that event handlers are made of.
+
+function fib(n)
+	if n < 2 then return n end
+	return fib(n - 1) + fib(n - 2)
+end
+
+local Counter = {}
+Counter.__index = Counter
+
+function Counter.new(step)
+	return setmetatable({value = 0, step = step}, Counter)
+end
+
+function Counter:bump()
+	self.value = self.value + self.step
+	return self.value
+end
+
+function methods(n)
+	local c = Counter.new(2)
+	for i = 1, n do
+		c:bump()
+	end
+	return c.value
+end
+
+function closures(n)
+	local acc = 0
+	local function add(x) acc = acc + x end
+	for i = 1, n do
+		local f = function() add(i) end
+		f()
+	end
+	return acc
+end
+
+local function count(...)
+	return select("#", ...)
+end
+
+function varargs(n)
+	local total = 0
+	for i = 1, n do
+		total = total + count(i, "a", nil, i)
+	end
+	return total
+end
+
+local function loop(n, acc)
+	if n == 0 then return acc end
+	return loop(n - 1, acc + 1)
+end
+
+function tailcalls(n)
+	return loop(n, 0)
+end
+
+function globals(n)
+	local total = 0
+	for i = 1, n do
+		total = total + math.floor(i / 2) + string.len("abc")
+	end
+	return total
+end
+
+function fields(n)
+	local c = Counter.new(2)
+	local total = 0
+	for i = 1, n do
+		-- own fields, a method found through __index and a global table
+		total = total + c.value + c.step
+		if c.bump and math.pi then total = total + 1 end
+	end
+	return total
+end
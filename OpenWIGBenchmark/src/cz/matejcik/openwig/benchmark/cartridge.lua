@@ -0,0 +1,137 @@
+-- A cartridge in the shape the builders generate: zones around the
+-- starting point, items, characters, tasks, timers and game state
+-- in globals.  Used by the savegame and engine benchmarks.
+-- Compile without -s, like the builders do: LuaPrototype.dump()
+-- cannot write stripped prototypes back.
+
+require "Wherigo"
+ZonePoint = Wherigo.ZonePoint
+Distance = Wherigo.Distance
+Player = Wherigo.Player
+
+cartBench = Wherigo.ZCartridge()
+cartBench.Id = "00000000-0000-0000-0000-000000000000"
+cartBench.Name = "Benchmark cartridge"
+cartBench.Description = [[Synthetic cartridge for the benchmarks.]]
+cartBench.Visible = true
+cartBench.Activity = "TourGuide"
+cartBench.StartingLocationDescription = [[Start anywhere.]]
+cartBench.StartingLocation = ZonePoint(50.0755, 14.4378, 0)
+cartBench.Version = "1.0"
+cartBench.Company = ""
+cartBench.Author = "openWIG"
+cartBench.BuilderVersion = "bench"
+cartBench.CreateDate = "1/1/2010 12:00:00 PM"
+cartBench.PublishDate = "1/1/2010 12:00:00 PM"
+cartBench.UpdateDate = "1/1/2010 12:00:00 PM"
+cartBench.LastPlayedDate = "1/1/2010 12:00:00 PM"
+cartBench.TargetDevice = "PocketPC"
+cartBench.TargetDeviceVersion = "0"
+cartBench.StateId = "1"
+cartBench.CountryId = "2"
+cartBench.Complete = false
+cartBench.UseLogging = false
+
+ZONES = 20
+score = 0
+visited = {}
+journal = {}
+
+local function polygon(lat, lon, r, n)
+	local pts = {}
+	for i = 1, n do
+		local a = 2 * math.pi * i / n
+		pts[i] = ZonePoint(lat + r * math.sin(a), lon + 1.5 * r * math.cos(a), 0)
+	end
+	return pts
+end
+
+local function onEnter(self)
+	visited[self.Name] = (visited[self.Name] or 0) + 1
+	score = score + 10
+	table.insert(journal, "entered " .. self.Name)
+end
+
+zones = {}
+for i = 1, ZONES do
+	local lat = 50.0755 + 0.002 * (i % 5)
+	local lon = 14.4378 + 0.003 * math.floor(i / 5)
+	local z = Wherigo.Zone(cartBench)
+	z.Id = "zone" .. i
+	z.Name = "Zone " .. i
+	z.Description = "Zone number " .. i .. " of the <b>benchmark</b>."
+	z.Visible = true
+	z.Commands = {}
+	z.DistanceRange = Distance(-1, "feet")
+	z.ShowObjects = "OnEnter"
+	z.ProximityRange = Distance(60, "meters")
+	z.AllowSetPositionTo = false
+	z.Active = true
+	z.Points = polygon(lat, lon, 0.0003, 4 + i % 9)
+	z.OriginalPoint = ZonePoint(lat, lon, 0)
+	z.DistanceRangeUOM = "Feet"
+	z.ProximityRangeUOM = "Meters"
+	z.OutOfRangeName = ""
+	z.InRangeName = ""
+	z.OnEnter = onEnter
+	zones[i] = z
+end
+
+items = {}
+for i = 1, 2 * ZONES do
+	local it = Wherigo.ZItem(cartBench)
+	it.Id = "item" .. i
+	it.Name = "Item " .. i
+	it.Description = "A thing to pick up."
+	it.Visible = i % 3 ~= 0
+	it.Commands = {
+		Take = Wherigo.ZCommand{Text = "Take", CmdWith = false, Enabled = true, EmptyTargetListText = "Nothing available"},
+		Look = Wherigo.ZCommand{Text = "Look", CmdWith = false, Enabled = true, EmptyTargetListText = "Nothing available"},
+	}
+	it.ObjectLocation = Wherigo.INVALID_ZONEPOINT
+	it.Locked = false
+	it.Opened = false
+	it.Container = zones[(i - 1) % ZONES + 1]
+	function it:OnTake()
+		score = score + i
+		self:MoveTo(Player)
+	end
+	items[i] = it
+end
+
+guide = Wherigo.ZCharacter(cartBench)
+guide.Id = "guide"
+guide.Name = "Guide"
+guide.Description = "Knows the way."
+guide.Visible = true
+guide.Container = zones[1]
+guide.Gender = "Female"
+guide.Type = "NPC"
+
+tasks = {}
+for i = 1, 10 do
+	local t = Wherigo.ZTask(cartBench)
+	t.Id = "task" .. i
+	t.Name = "Task " .. i
+	t.Description = "Visit zone " .. i .. "."
+	t.Visible = true
+	t.Active = i == 1
+	t.Complete = false
+	t.CorrectState = "None"
+	tasks[i] = t
+end
+
+timer = Wherigo.ZTimer(cartBench)
+timer.Id = "timer"
+timer.Name = "Countdown"
+timer.Type = "Countdown"
+timer.Duration = 60
+function timer:OnTick()
+	score = score - 1
+end
+
+function cartBench:OnStart()
+	tasks[1].Active = true
+end
+
+return cartBench
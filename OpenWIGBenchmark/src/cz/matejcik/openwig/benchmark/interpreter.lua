@@ -0,0 +1,69 @@
+-- Plain interpreter work: register moves, constants, table reads and
+-- writes, calls, arithmetic, jumps and tests - the opcodes that make up
+-- most of an event handler - and a few of the rarer ones for comparison.
+
+local function clamp(x, lo, hi)
+	if x < lo then return lo end
+	if x > hi then return hi end
+	return x
+end
+
+function hot(n)
+	local t = {a = 0, b = 1, list = {}}
+	local acc, flag = 0, false
+	for i = 1, n do
+		local x = clamp(i * 3 % 7 - 2, 0, 4)
+		t.a = t.a + x
+		t.list[x + 1] = i
+		if x == 0 or flag then
+			acc = acc + t.b
+		elseif not flag and x > 2 then
+			acc = acc - 1
+		end
+		flag = not flag
+	end
+	return acc + t.a
+end
+
+function whileLoop(n)
+	local i, s = 0, 0
+	while i < n do
+		i = i + 1
+		if i % 2 == 0 then s = s + i else s = s - 1 end
+	end
+	return s
+end
+
+local function last(...)
+	local n = select("#", ...)
+	return (select(n, ...))
+end
+
+function cold(n)
+	local count = 0
+	for i = 1, n do
+		local s = "zone" .. i .. ":" .. -i
+		if s >= "zone5" and #s > 6 then count = count + 1 end
+		count = count + last(i, i, 1)
+	end
+	return count
+end
+
+-- Calls into a library table and methods without arguments, as cartridges
+-- do with Wherigo.ZonePoint(...) and obj:Method(). Global names, so that
+-- GETGLOBAL is followed by GETTABLE.
+Wherigo = {
+	Distance = 0,
+	ZonePoint = function(lat, lon, alt) return lat + lon + alt end,
+}
+Tracker = {n = 0}
+function Tracker:tick() self.n = self.n + 1 end
+
+function libraryCalls(n)
+	local s = 0
+	for i = 1, n do
+		s = s + Wherigo.ZonePoint(i, 2, Wherigo.Distance)
+		Tracker:tick()
+	end
+	return s
+end
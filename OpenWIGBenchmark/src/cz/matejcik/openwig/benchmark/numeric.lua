@@ -0,0 +1,35 @@
+-- Tight numeric loops, the kind cartridges use for scoring and counters.
+
+function sum(n)
+	local s = 0
+	for i = 1, n do
+		s = s + i % 7
+	end
+	return s
+end
+
+function fill(n)
+	local t = {}
+	for i = 1, n do
+		t[i] = i * 2
+	end
+	local count = 0
+	for i = 1, #t do
+		if t[i] > n then
+			count = count + 1
+		end
+	end
+	return count
+end
+
+function compare(n)
+	local lo, hi = 0, 0
+	for i = 1, n do
+		if i < n / 2 then
+			lo = lo + 1
+		elseif i <= n then
+			hi = hi + 1
+		end
+	end
+	return lo - hi
+end
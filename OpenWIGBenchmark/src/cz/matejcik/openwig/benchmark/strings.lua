@@ -0,0 +1,53 @@
+-- String library workloads: the kind of text munging cartridges do
+-- on player input and descriptions.
+
+function gsubWords(s)
+	local r, n = string.gsub(s, "(%w+)", "<%1>")
+	return n
+end
+
+function gsubFunction(s)
+	local r, n = string.gsub(s, "%a+", function(w) return string.upper(w) end)
+	return n
+end
+
+function findAll(s)
+	local count, pos = 0, 1
+	while true do
+		local a, b = string.find(s, "%d+", pos)
+		if not a then break end
+		count = count + 1
+		pos = b + 1
+	end
+	return count
+end
+
+function captures(s)
+	local count, pos = 0, 1
+	while true do
+		local a, b, word, num = string.find(s, "(%a+) (%d+)", pos)
+		if not a then break end
+		if string.match(word, "^%s*(.-)%s*$") == "zone" then count = count + tonumber(num) end
+		pos = b + 1
+	end
+	return count
+end
+
+function findPlain(s)
+	local count, pos = 0, 1
+	while true do
+		local a, b = string.find(s, "zone", pos, true)
+		if not a then break end
+		count = count + 1
+		pos = b + 1
+	end
+	return count
+end
+
+function format(n)
+	local t = {}
+	for i = 1, n do
+		t[#t + 1] = string.format("%s %d: %.2f m (%5.1f%%)", "Zone", i, i * 1.5, i / n * 100)
+	end
+	return #t
+end
@@ -38,8 +38,9 @@ public class Action extends EventTable {
 					t.actions.addElement(this);
 			}
 		}
-		if (isUniversal() && !Engine.instance.cartridge.universalActions.contains(this)) {
-			Engine.instance.cartridge.universalActions.addElement(this);
+		Vector universal = Engine.current().cartridge.universalActions;
+		if (isUniversal() && !universal.contains(this)) {
+			universal.addElement(this);
 		}
 	}
 
@@ -52,7 +53,7 @@ public class Action extends EventTable {
 			}
 		}
 		if (isUniversal()) {
-			Engine.instance.cartridge.universalActions.removeElement(this);
+			Engine.current().cartridge.universalActions.removeElement(this);
 		}
 	}
 
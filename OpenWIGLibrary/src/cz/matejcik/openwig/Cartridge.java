@@ -15,16 +15,19 @@ public class Cartridge extends EventTable {
 	public Vector tasks = new Vector();
 	
 	public LuaTable allZObjects = new LuaTableImpl();
+
+	private ZoneIndex zoneIndex = new ZoneIndex();
+	private int walkCount = 0;
 	
 	private static JavaFunction requestSync = new JavaFunction() {
 		public int call (LuaCallFrame callFrame, int nArguments) {
-			Engine.instance.store();
+			Engine.current().store();
 			return 0;
 		}
 	};
 
 	public static void register () {
-		Engine.instance.savegame.addJavafunc(requestSync);
+		Engine.current().savegame.addJavafunc(requestSync);
 	}
 
 	protected String luaTostring () { return "a ZCartridge instance"; }
@@ -35,10 +38,20 @@ public class Cartridge extends EventTable {
 		TableLib.rawappend(allZObjects, this);
 	}
 		
-	public void walk (ZonePoint zp) {		
-		for (int i = 0; i < zones.size(); i++) {
+	public void walk (ZonePoint zp) {
+		if (zp == null) return;
+		// mark zones that can have zp in their proximity box
+		int mark = ++walkCount;
+		Zone[] near = zoneIndex.near(zp.latitude, zp.longitude);
+		for (int i = 0; i < near.length; i++) near[i].walkMark = mark;
+		near = zoneIndex.large();
+		for (int i = 0; i < near.length; i++) near[i].walkMark = mark;
+
+		int n = zones.size();
+		for (int i = 0; i < n; i++) {
 			Zone z = (Zone)zones.elementAt(i);
-			z.walk(zp);
+			if (z.walkMark == mark) z.walk(zp);
+			else z.walkFar(zp); // far away, only distance needs updating
 		}
 	}
 	
@@ -54,6 +67,19 @@ public class Cartridge extends EventTable {
 
 	}
 	
+	/** Returns true if tick() has work to do: a zone has events waiting,
+	 * or a timer is counting down.
+	 */
+	public boolean needsTick () {
+		for (int i = 0; i < zones.size(); i++) {
+			if (((Zone)zones.elementAt(i)).hasPendingState()) return true;
+		}
+		for (int i = 0; i < timers.size(); i++) {
+			if (((Timer)timers.elementAt(i)).isRunning()) return true;
+		}
+		return false;
+	}
+
 	public int visibleZones () {
 		int count = 0;
 		for (int i = 0; i < zones.size(); i++) {
@@ -106,7 +132,12 @@ public class Cartridge extends EventTable {
 
 	private void sortObject (Object o) {
 		if (o instanceof Task) tasks.addElement(o);
-		else if (o instanceof Zone) zones.addElement(o);
+		else if (o instanceof Zone) {
+			Zone z = (Zone)o;
+			zones.addElement(z);
+			z.index = zoneIndex;
+			zoneIndex.update(z);
+		}
 		else if (o instanceof Timer) timers.addElement(o);
 		else if (o instanceof Thing) things.addElement(o);
 	}
@@ -114,8 +145,13 @@ public class Cartridge extends EventTable {
 	public void deserialize (DataInputStream in)
 	throws IOException {
 		super.deserialize(in);
-		Engine.instance.cartridge = this;
+		Engine.current().cartridge = this;
 		allZObjects = (LuaTable)table.rawget("AllZObjects");
+		// a savegame journal may update a cartridge that is already sorted
+		zones.removeAllElements();
+		timers.removeAllElements();
+		things.removeAllElements();
+		tasks.removeAllElements();
 		Object next = null;
 		while ((next = allZObjects.next(next)) != null) {
 			sortObject(allZObjects.rawget(next));
@@ -0,0 +1,90 @@
+package cz.matejcik.openwig;
+
+/** Source of time for a game.
+ * <p>
+ * Engine, Timers and the os library of the Lua state ask their game's
+ * clock for the current time, and Timers schedule their ticks through it.
+ * The default is SYSTEM, which follows the wall clock and runs tasks
+ * on a shared java.util.Timer thread. Simulations use a VirtualClock
+ * instead, where time moves only when the simulation says so.
+ */
+public abstract class Clock {
+
+	/** Task that runs at a time given by its clock. */
+	public static abstract class Task implements Runnable {
+		private boolean cancelled = false;
+		/** clock that the task is scheduled with */
+		private Clock clock = null;
+		/** clock's own data about the task */
+		Object handle = null;
+
+		/** Stops the task. If it is running, it finishes, but it won't run again. */
+		public void cancel () {
+			cancelled = true;
+			if (clock != null) clock.cancelled(this);
+		}
+
+		public boolean isCancelled () {
+			return cancelled;
+		}
+	}
+
+	/** the wall clock */
+	public static final Clock SYSTEM = new SystemClock();
+
+	/** Returns the current time in milliseconds, in the same
+	 * scale as System.currentTimeMillis().
+	 */
+	public abstract long currentTimeMillis ();
+
+	/** Runs the task after delay milliseconds, and then every period
+	 * milliseconds until cancelled, if period is greater than zero.
+	 * Repeated runs keep a fixed rate, like java.util.Timer.scheduleAtFixedRate.
+	 */
+	public void schedule (Task task, long delay, long period) {
+		if (task.clock != null) throw new IllegalStateException("task already scheduled");
+		task.clock = this;
+		if (task.cancelled) return;
+		add(task, delay < 0 ? 0 : delay, period);
+	}
+
+	/** Puts a task in the schedule. */
+	protected abstract void add (Task task, long delay, long period);
+
+	/** Called when a task scheduled with this clock is cancelled. */
+	protected void cancelled (Task task) { }
+
+	/** Cancels all scheduled tasks. */
+	public abstract void cancelAll ();
+
+	private static class SystemClock extends Clock {
+		private java.util.Timer timer;
+
+		public long currentTimeMillis () {
+			return System.currentTimeMillis();
+		}
+
+		protected synchronized void add (final Task task, long delay, long period) {
+			if (timer == null) timer = new java.util.Timer();
+			java.util.TimerTask t = new java.util.TimerTask() {
+				public void run () {
+					if (task.isCancelled()) cancel();
+					else task.run();
+				}
+			};
+			task.handle = t;
+			if (period > 0) timer.scheduleAtFixedRate(t, delay, period);
+			else timer.schedule(t, delay);
+		}
+
+		protected void cancelled (Task task) {
+			// not yet handed to the timer, it will check the flag when it runs
+			if (task.handle != null) ((java.util.TimerTask)task.handle).cancel();
+		}
+
+		public synchronized void cancelAll () {
+			if (timer != null) timer.cancel();
+			timer = null;
+		}
+	}
+}
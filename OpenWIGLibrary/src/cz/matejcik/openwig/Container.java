@@ -29,8 +29,8 @@ public class Container extends EventTable {
 	};
 
 	public static void register () {
-		Engine.instance.savegame.addJavafunc(moveTo);
-		Engine.instance.savegame.addJavafunc(contains);
+		Engine.current().savegame.addJavafunc(moveTo);
+		Engine.current().savegame.addJavafunc(contains);
 	}
 	
 	public Container() {
@@ -41,15 +41,15 @@ public class Container extends EventTable {
 	}
 	
 	public void moveTo(Container c) {
-		String cn = c == null ? "(nowhere)" : c.name;
-		Engine.log("MOVE: "+name+" to "+cn, Engine.LOG_CALL);
+		Engine.log(Engine.LOG_CALL, "MOVE: {} to {}", name, c == null ? "(nowhere)" : c.name);
 		if (container != null) TableLib.removeItem(container.inventory, this);
 		// location.things.removeElement(this);
 		if (c != null) {
 			TableLib.rawappend(c.inventory, this);
-			if (c == Engine.instance.player) setPosition(null);
+			Player player = Engine.current().player;
+			if (c == player) setPosition(null);
 			else if (position != null) setPosition(c.position);
-			else if (container == Engine.instance.player) setPosition(ZonePoint.copy(Engine.instance.player.position));
+			else if (container == player) setPosition(ZonePoint.copy(player.position));
 			container = c;
 		} else {
 			container = null;
@@ -72,7 +72,7 @@ public class Container extends EventTable {
 	
 	public boolean visibleToPlayer () {
 		if (!isVisible()) return false;
-		if (container == Engine.instance.player) return true;
+		if (container == Engine.current().player) return true;
 		if (container instanceof Zone) {
 			Zone z = (Zone)container;
 			return z.showThings();
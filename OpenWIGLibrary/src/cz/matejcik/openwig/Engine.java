@@ -15,11 +15,14 @@ import util.BackgroundRunner;
  * This is the heart of OpenWIG. It instantiates the Lua machine and acts
  * as an interface between GPS position source, GUI and the Lua Wherigo script.
  * <p>
- * Engine is a partial singleton - although its singleness is not guarded, it
- * doesn't make sense to run more than one Engine at once, because most components
- * access Engine.instance statically (this is more a convenience than a purposeful
+ * Engine is a partial singleton - components don't keep a reference to it,
+ * they find it through Engine.current() (this is more a convenience than a purposeful
  * decision - it would be massively impractical to have reference to Engine in
- * every last component that might somehow use it).
+ * every last component that might somehow use it). Usually, there is one
+ * game running, the main instance created by newInstance(), and current() returns
+ * that. To run several games in one VM, create them with newSession(). Threads of
+ * such a session are bound to it, so that current() returns the right Engine
+ * in them. Other threads that want to talk to a session use bind().
  * <p>
  * To create a new Engine, you need a CartridgeFile, a reference to UI and LocationService.
  * Optionally, you can provide an OutputStream that will be used for logging.
@@ -30,31 +33,56 @@ import util.BackgroundRunner;
  * whose sole purpose is to do everything related to Lua state - calling events, callbacks,
  * saving game.
  * Engine's own main loop consists of relaying position information from LocationService
- * to the Lua properties and evaluating position of player against zones.
+ * to the Lua properties and evaluating position of player against zones. A plain
+ * LocationService is polled every second. A LocationSource wakes the loop with each
+ * new fix instead, and when there is no fix and no timer or zone event pending,
+ * the loop sleeps until something happens.
+ * <p>
+ * Time comes from the game's Clock. Simulation runs a game on a virtual clock in the
+ * caller's thread instead, without the two threads described above.
  */
 public class Engine implements Runnable {
 
-	public static final String VERSION = "428";
+	public static final String VERSION = "429";
 
 	/** the main instance */
 	public static Engine instance;
-	/** Lua state - don't touch this if you don't have to */
+	/** Lua state of the main instance - don't touch this if you don't have to */
 	public static LuaState state;
 
-	/** reference to UI implementation */
+	/** reference to UI implementation of the main instance */
 	public static UI ui;
-	/** reference to LocationService */
+	/** reference to LocationService of the main instance */
 	public static LocationService gps;
 
+	/** Lua state of this game */
+	public LuaState luaState;
+	/** UI of this game */
+	public UI userInterface;
+	/** LocationService of this game */
+	public LocationService locationService;
+	/** id of next Media object */
+	int mediaId = 1;
+
 	/** reference to source file */
 	public CartridgeFile gwcfile;
 	/** reference to save file */
 	public Savegame savegame = null;
-	/** reference to log stream */
-	private PrintStream log;
+	/** game log, or null */
+	private Logger logger;
 
 	/** event runner taking care of Lua state calls */
 	protected BackgroundRunner eventRunner;
+	/** events run only when the owner of the Engine says so, see Simulation */
+	boolean synchronous = false;
+
+	/** source of time for this game */
+	private Clock clock = Clock.SYSTEM;
+
+	/** compiler for often used Lua functions, or null */
+	private LuaCompiler compiler;
+	/** calls of a function after which it gets compiled */
+	public static final int COMPILE_THRESHOLD = 50;
 
 	/** Cartridge (a global Lua object) */
 	public Cartridge cartridge;
@@ -62,7 +90,7 @@ public class Engine implements Runnable {
 	public Player player = new Player();
 
 	private boolean doRestore = false;
-	private boolean end = false;
+	boolean end = false;
 	
 	public static final int LOG_PROP = 0;
 	public static final int LOG_CALL = 1;
@@ -74,25 +102,98 @@ public class Engine implements Runnable {
 
 	/** creates a new global Engine instance */
 	public static Engine newInstance (CartridgeFile cf, OutputStream log, UI ui, LocationService service) throws IOException {
-		ui.debugMsg("Creating engine...\n");
 		Engine.ui = ui;
 		Engine.gps = service;
-		instance = new Engine(cf, log);
+		instance = newSession(cf, log, ui, service);
 		return instance;
 	}
 
+	/** Creates an Engine that runs independently of the main instance.
+	 * <p>
+	 * Static fields of Engine are left alone, the session's state is in
+	 * its luaState, userInterface and locationService.
+	 */
+	public static Engine newSession (CartridgeFile cf, OutputStream log, UI ui, LocationService service) throws IOException {
+		ui.debugMsg("Creating engine...\n");
+		Engine e = new Engine(cf, log);
+		e.userInterface = ui;
+		e.locationService = service;
+		return e;
+	}
+
 	protected Engine (CartridgeFile cf, OutputStream out) throws IOException {
 		gwcfile = cf;
 		savegame = cf.getSavegame();
-		if (out != null) log = new PrintStream(out);
-		if(gwcfile != null && gwcfile.device != null)
-			WherigoLib.env.put("Device", gwcfile.device);
+		if (out != null) logger = new Logger(out, Logger.TEXT);
 	}
 
 	protected Engine () {
 		/* for test mockups */
 	}
 
+	/** engines of threads that belong to sessions */
+	private static Hashtable sessions = new Hashtable();
+	private static int boundThreads = 0;
+
+	/** Returns the Engine that the calling thread works for.
+	 * That is the session that the thread is bound to, or the main instance.
+	 */
+	public static Engine current () {
+		if (boundThreads > 0) {
+			Engine e = (Engine)sessions.get(Thread.currentThread());
+			if (e != null) return e;
+		}
+		return instance;
+	}
+
+	/** Binds the calling thread to the specified Engine, or unbinds it if null.
+	 * @return Engine that the thread was bound to before, so that it can be restored
+	 */
+	public static Engine bind (Engine e) {
+		synchronized (sessions) {
+			Thread t = Thread.currentThread();
+			Engine previous = e == null ? (Engine)sessions.remove(t) : (Engine)sessions.put(t, e);
+			boundThreads = sessions.size();
+			return previous;
+		}
+	}
+
+	/** Unbinds all threads that are bound to the specified Engine,
+	 * such as the event thread of a session that is over.
+	 */
+	static void unbindAll (Engine e) {
+		synchronized (sessions) {
+			Vector threads = new Vector();
+			for (Enumeration keys = sessions.keys(); keys.hasMoreElements(); ) {
+				Object t = keys.nextElement();
+				if (sessions.get(t) == e) threads.addElement(t);
+			}
+			for (int i = 0; i < threads.size(); i++) sessions.remove(threads.elementAt(i));
+			boundThreads = sessions.size();
+		}
+	}
+
+	/** Returns the number of threads bound to some session. */
+	static int boundThreads () {
+		return boundThreads;
+	}
+
+	public Clock getClock () {
+		return clock;
+	}
+
+	/** Sets the clock of the game. Must be called before the game starts. */
+	public void setClock (Clock clock) {
+		this.clock = clock;
+	}
+
+	/** Sets the compiler for Lua functions of the game, for platforms
+	 * that have one. Must be called before the game starts.
+	 */
+	public void setCompiler (LuaCompiler compiler) {
+		this.compiler = compiler;
+	}
+
 	/** starts Engine's thread */
 	public void start () {
 		thread = new Thread(this);
@@ -108,8 +209,18 @@ public class Engine implements Runnable {
 	/** prepares Lua state and some bookkeeping */
 	protected void prepareState ()
 	throws IOException {
+		UI ui = userInterface;
 		ui.debugMsg("Creating state...\n");
-		state = new LuaState(System.out);
+		luaState = new LuaState(System.out) {
+			public long currentTimeMillis () {
+				return clock.currentTimeMillis();
+			}
+		};
+		if (instance == this) state = luaState;
+		LuaState state = luaState;
+		// a game on a virtual clock should play the same every time
+		if (clock != Clock.SYSTEM) state.random.setSeed(clock.currentTimeMillis());
+		if (compiler != null) state.setCompiler(compiler, COMPILE_THRESHOLD);
 
 		/*write("Registering base libs...\n");
 		BaseLib.register(state);
@@ -133,10 +244,18 @@ public class Engine implements Runnable {
 		WherigoLib.register(state);
 
 		ui.debugMsg("Building event queue...\n");
-		eventRunner = new BackgroundRunner(true);
+		eventRunner = synchronous ? BackgroundRunner.manual() : new BackgroundRunner(true);
+		// first task, so that the event thread works for this Engine
+		eventRunner.perform(new Runnable() {
+			public void run () {
+				bind(Engine.this);
+			}
+		});
 		eventRunner.setQueueListener(new Runnable() {
 			public void run () {
-				ui.refresh();
+				userInterface.refresh();
+				// events may have changed zones or started timers
+				wakeup();
 			}
 		});
 	}
@@ -144,14 +263,20 @@ public class Engine implements Runnable {
 	/** invokes game restore */
 	private void restoreGame ()
 	throws IOException {
-		ui.debugMsg("Restoring saved state...");
+		userInterface.debugMsg("Restoring saved state...");
 		cartridge = new Cartridge();
-		savegame.restore(state.getEnvironment());
+		if (gwcfile != null) {
+			// functions in the savegame refer to cartridge code
+			byte[] lbc = gwcfile.getBytecode();
+			savegame.setCartridgeCode(LuaPrototype.loadByteCode(lbc, luaState.getEnvironment()).prototype);
+		}
+		savegame.restore(luaState.getEnvironment());
 	}
 
 	/** invokes creation of clean new game environment */
 	private void newGame ()
 	throws IOException {
+		UI ui = userInterface;
 		// starting game normally
 		ui.debugMsg("Loading gwc...");
 		if (gwcfile == null) throw new IOException("invalid cartridge file");
@@ -164,69 +289,137 @@ public class Engine implements Runnable {
 		byte[] lbc = gwcfile.getBytecode();
 
 		ui.debugMsg("parsing...");
-		LuaClosure closure = LuaPrototype.loadByteCode(new ByteArrayInputStream(lbc), state.getEnvironment());
+		LuaClosure closure = LuaPrototype.loadByteCode(lbc, luaState.getEnvironment());
+		savegame.setCartridgeCode(closure.prototype);
 
 		ui.debugMsg("calling...\n");
-		state.call(closure, null, null, null);
+		luaState.call(closure, null, null, null);
 		lbc = null;
 		closure = null;
 	}
 
-	/** main loop - periodically copy location data into Lua and evaluate zone positions */
-	private void mainloop () {
+	/** one round of the main loop - copy location data into Lua and evaluate zone positions */
+	void step () {
+		LocationService gps = locationService;
 		try {
-			while (!end) {
-				try {
-					if (gps.getLatitude() != player.position.latitude
-					|| gps.getLongitude() != player.position.longitude
-					|| gps.getAltitude() != player.position.altitude) {
-						player.refreshLocation();
-					}
-					cartridge.tick();
-				} catch (Exception e) {
-					stacktrace(e);
+			if (gps.getLatitude() != player.position.latitude
+			|| gps.getLongitude() != player.position.longitude
+			|| gps.getAltitude() != player.position.altitude) {
+				player.refreshLocation();
+			}
+			cartridge.tick();
+		} catch (Exception e) {
+			stacktrace(e);
+		}
+	}
+
+	/** set when the main loop should run a step without waiting */
+	private boolean wakeup = false;
+	private final Object sleeper = new Object();
+
+	private LocationSource.Listener locationListener = new LocationSource.Listener() {
+		public void locationChanged (LocationService source) {
+			wakeup();
+		}
+	};
+
+	/** Makes the main loop run a step now. Fixes that come during
+	 * the step are handled together in the next one.
+	 */
+	private void wakeup () {
+		synchronized (sleeper) {
+			wakeup = true;
+			sleeper.notify();
+		}
+	}
+
+	/** waits for the next step of the main loop */
+	private void sleep () {
+		boolean push = locationService instanceof LocationSource;
+		synchronized (sleeper) {
+			try {
+				if (wakeup || end) {
+					// something came in during the step
+				} else if (push && !cartridge.needsTick()) {
+					// nothing to do until a new fix or a change in the game
+					sleeper.wait();
+				} else {
+					sleeper.wait(1000);
 				}
+			} catch (InterruptedException e) { }
+			wakeup = false;
+		}
+	}
 
-				try { Thread.sleep(1000); } catch (InterruptedException e) { }
+	/** main loop - calls step() whenever there may be something to do */
+	private void mainloop () {
+		LocationSource source = locationService instanceof LocationSource ? (LocationSource)locationService : null;
+		if (source != null) source.addLocationListener(locationListener);
+		try {
+			while (!end) {
+				step();
+				sleep();
 			}
-			if (log != null) log.close();
 		} catch (Throwable t) {
-			ui.end();
+			userInterface.end();
 			stacktrace(t);
 		} finally {
+			if (source != null) source.removeLocationListener(locationListener);
+		}
+	}
+
+	/** releases the Lua state and the event runner after the game ends */
+	void finish () {
+		if (instance == this) {
 			instance = null;
 			state = null;
-			if (eventRunner != null) eventRunner.kill();
-			eventRunner = null;
 		}
+		luaState = null;
+		if (eventRunner != null) eventRunner.kill();
+		eventRunner = null;
+		// the event thread stays bound to this Engine until it dies
+		unbindAll(this);
+		if (logger != null) logger.close();
 	}
 
-	/** thread's run() method that does all the work in the right order */
-	public void run () {
-		try {
-			if (log != null) log.println("-------------------\ncartridge " + gwcfile.name + " started (openWIG r" + VERSION + ")\n-------------------");
-			prepareState ();
+	/** loads the game and calls its OnStart or OnRestore event */
+	void startGame (boolean restore) throws IOException {
+		UI ui = userInterface;
+		doRestore = restore;
+		if (logger != null) logger.add(clock.currentTimeMillis(), Logger.RAW, 0, 0, 0, 0,
+			"-------------------\ncartridge " + gwcfile.name + " started (openWIG r" + VERSION + ")\n-------------------", 0, null, null, null);
+		prepareState ();
+
+		if (doRestore) restoreGame();
+		else newGame();
 
-			if (doRestore) restoreGame();
-			else newGame();
+		loglevel = LOG_PROP;
 
-			loglevel = LOG_PROP;
+		ui.debugMsg("Starting game...\n");
+		ui.start();
 
-			ui.debugMsg("Starting game...\n");
-			ui.start();
+		player.refreshLocation();
+		cartridge.callEvent(doRestore ? "OnRestore" : "OnStart", null);
+		ui.refresh();
+		eventRunner.unpause();
+	}
 
-			player.refreshLocation();
-			cartridge.callEvent(doRestore ? "OnRestore" : "OnStart", null);
-			ui.refresh();
-			eventRunner.unpause();
-			
+	/** thread's run() method that does all the work in the right order */
+	public void run () {
+		UI ui = userInterface;
+		bind(this);
+		try {
+			startGame(doRestore);
 			mainloop();
 		} catch (IOException e) {
 			ui.showError("Could not load cartridge: "+e.getMessage());
 		} catch (Throwable t) {
 			stacktrace(t);
 		} finally {
+			// also when loading fails, so that the log and the event thread end
+			finish();
 			ui.end();
+			bind(null);
 		}
 	}
 
@@ -234,6 +427,8 @@ public class Engine implements Runnable {
 	public static void stacktrace (Throwable e) {
 		e.printStackTrace();
 		String msg;
+		Engine engine = current();
+		LuaState state = engine == null ? null : engine.luaState;
 		if (state != null) {
 			System.out.println(state.currentThread.stackTrace);
 			msg = e.toString() + "\n\nstack trace: " + state.currentThread.stackTrace;
@@ -241,63 +436,101 @@ public class Engine implements Runnable {
 			msg = e.toString();
 		}
 		log(msg, LOG_ERROR);
-		ui.showError("you hit a bug! please report at openwig.googlecode.com and i'll fix it for you!\n"+msg);
+		if (engine != null) engine.userInterface.showError("you hit a bug! please report at openwig.googlecode.com and i'll fix it for you!\n"+msg);
 	}
 
 	/** stops Engine */
 	public static void kill () {
-		if (instance == null) return;
-		Timer.kill();
-		instance.end = true;
+		Engine engine = current();
+		if (engine == null) return;
+		engine.end();
+	}
+
+	/** stops this Engine and its timers, leaving other sessions running */
+	public void end () {
+		if (cartridge != null) {
+			for (int i = 0; i < cartridge.timers.size(); i++)
+				((Timer)cartridge.timers.elementAt(i)).dispose();
+		}
+		end = true;
+		wakeup();
 	}
 
 	/** builds and calls a dialog from a Message table */
 	public static void message (LuaTable message) {
 		String[] texts = {removeHtml((String)message.rawget("Text"))};
-		log("CALL: MessageBox - " + texts[0].substring(0, Math.min(100,texts[0].length())), LOG_CALL);
+		if (isLogging(LOG_CALL)) log(LOG_CALL, "CALL: MessageBox - {}", texts[0].substring(0, Math.min(100,texts[0].length())));
 		Media[] media = {(Media)message.rawget("Media")};
 		String button1 = null, button2 = null;
 		LuaTable buttons = (LuaTable)message.rawget("Buttons");
 		if (buttons != null) {
-			button1 = (String)buttons.rawget(new Double(1));
-			button2 = (String)buttons.rawget(new Double(2));
+			button1 = (String)buttons.rawget(LuaState.toDouble(1));
+			button2 = (String)buttons.rawget(LuaState.toDouble(2));
 		}
 		LuaClosure callback = (LuaClosure)message.rawget("Callback");
-		ui.pushDialog(texts, media, button1, button2, callback);
+		current().userInterface.pushDialog(texts, media, button1, button2, callback);
 	}
 
 	/** builds and calls a dialog from a Dialog table */
 	public static void dialog (String[] texts, Media[] media) {
 		if (texts.length > 0) {
-			log("CALL: Dialog - " + texts[0].substring(0, Math.min(100,texts[0].length())), LOG_CALL);
+			if (isLogging(LOG_CALL)) log(LOG_CALL, "CALL: Dialog - {}", texts[0].substring(0, Math.min(100,texts[0].length())));
 		}
-		ui.pushDialog(texts, media, null, null, null);
+		current().userInterface.pushDialog(texts, media, null, null, null);
 	}
 
 	/** calls input to UI */
 	public static void input (EventTable input) {
-		log("CALL: GetInput - "+input.name, LOG_CALL);
-		ui.pushInput(input);
+		log(LOG_CALL, "CALL: GetInput - {}", input.name);
+		current().userInterface.pushInput(input);
+	}
+
+	/** event call waiting in the event queue */
+	private static class Event implements Runnable {
+		private EventTable subject;
+		private String name;
+		private Object param;
+
+		public Event (EventTable subject, String name, Object param) {
+			this.subject = subject;
+			this.name = name;
+			this.param = param;
+		}
+
+		public void run () {
+			subject.callEvent(name, param);
+			// callEvent handles its failures, so no catch here
+		}
+
+		public boolean equals (Object o) {
+			if (!(o instanceof Event)) return false;
+			Event e = (Event)o;
+			return e.subject == subject && e.name.equals(name) && e.param == param;
+		}
+
+		public int hashCode () {
+			return subject.hashCode() ^ name.hashCode();
+		}
 	}
 
 	/** fires the specified event on the specified object in the event thread */
-	public static void callEvent (final EventTable subject, final String name, final Object param) {
+	public static void callEvent (EventTable subject, String name, Object param) {
 		if (!subject.hasEvent(name)) return;
-		instance.eventRunner.perform(new Runnable() {
-			public void run () {
-				subject.callEvent(name, param);
-				// callEvent handles its failures, so no catch here
-			}
-		});
+		Event e = new Event(subject, name, param);
+		// zone state events only report the current state, so a repeated one
+		// that is still waiting says nothing new
+		Engine engine = current();
+		if (subject instanceof Zone) engine.eventRunner.coalesce(e);
+		else engine.eventRunner.perform(e);
 	}
 
 	/** invokes a Lua callback in the event thread */
 	public static void invokeCallback (final LuaClosure callback, final Object value) {
-		instance.eventRunner.perform(new Runnable() {
+		current().eventRunner.perform(new Runnable() {
 			public void run () {
 				try {
-					Engine.log("BTTN: " + (value == null ? "(cancel)" : value.toString()) + " pressed", LOG_CALL);
-					Engine.state.call(callback, value, null, null);
+					Engine.log(LOG_CALL, "BTTN: {} pressed", value == null ? "(cancel)" : value);
+					current().luaState.call(callback, value, null, null);
 					Engine.log("BTTN END", LOG_CALL);
 				} catch (Throwable t) {
 					stacktrace(t);
@@ -311,32 +544,95 @@ public class Engine implements Runnable {
 	public static byte[] mediaFile (Media media) throws IOException {
 		/*String filename = media.jarFilename();
 		return media.getClass().getResourceAsStream("/media/"+filename);*/
-		return instance.gwcfile.getFile(media.id);
+		return current().gwcfile.getFile(media.id);
+	}
+
+	/** Loads icons of everything that the player can see into media cache,
+	 * so that the UI doesn't have to wait for the cartridge file when
+	 * drawing its lists. Meant to be called outside the UI thread.
+	 */
+	public static void prefetchIcons () {
+		Engine engine = current();
+		Cartridge c = engine.cartridge;
+		for (int i = 0; i < c.zones.size(); i++) {
+			Zone z = (Zone)c.zones.elementAt(i);
+			if (z.isVisible()) prefetch(z.icon);
+		}
+		prefetchIcons(c.currentThings());
+		prefetchIcons(engine.player.inventory);
+		for (int i = 0; i < c.tasks.size(); i++) {
+			Task t = (Task)c.tasks.elementAt(i);
+			if (t.isVisible()) prefetch(t.icon);
+		}
+	}
+
+	private static void prefetchIcons (LuaTable things) {
+		Object key = null;
+		while ((key = things.next(key)) != null) {
+			Object o = things.rawget(key);
+			if (o instanceof Thing && ((Thing)o).isVisible()) prefetch(((Thing)o).icon);
+		}
+	}
+
+	private static void prefetch (Media media) {
+		if (media == null) return;
+		try {
+			current().gwcfile.prefetch(media.id);
+		} catch (IOException e) {
+			log("PRFT: failed to read media " + media.id + ": " + e.toString(), LOG_WARN);
+		}
+	}
+
+	/** Replaces the game log. Use before the game starts, for example
+	 * to write the log in the binary format.
+	 */
+	public void setLogger (Logger logger) {
+		this.logger = logger;
+	}
+
+	/** returns the Engine that logs at the specified level, or null */
+	private static Engine logging (int level) {
+		Engine engine = current();
+		if (engine == null || engine.logger == null || level < engine.loglevel) return null;
+		return engine;
+	}
+
+	/** Checks whether a message of the specified level would be logged.
+	 * Use to skip building messages that no one will see.
+	 */
+	public static boolean isLogging (int level) {
+		return logging(level) != null;
 	}
 
 	/** tries to log the specified message, if verbosity is higher than its level */
 	public static void log (String s, int level) {
-		if (instance == null || instance.log == null) return;
-		if (level < instance.loglevel) return;
-		synchronized (instance.log) {
-		Calendar now = Calendar.getInstance();
-		instance.log.print(now.get(Calendar.HOUR_OF_DAY));
-		instance.log.print(':');
-		instance.log.print(now.get(Calendar.MINUTE));
-		instance.log.print(':');
-		instance.log.print(now.get(Calendar.SECOND));
-		instance.log.print('|');
-		instance.log.print((int)(gps.getLatitude() * 10000 + 0.5) / 10000.0);
-		instance.log.print('|');
-		instance.log.print((int)(gps.getLongitude() * 10000 + 0.5) / 10000.0);
-		instance.log.print('|');
-		instance.log.print(gps.getAltitude());
-		instance.log.print('|');
-		instance.log.print(gps.getPrecision());
-		instance.log.print("|:: ");
-		instance.log.println(s);
-		instance.log.flush();
-		}
+		Engine engine = logging(level);
+		if (engine != null) engine.record(level, s, 0, null, null, null);
+	}
+
+	/** Logs a message built from template, where {} stands for the argument.
+	 * The message is only built when it is written, by the log's own thread.
+	 */
+	public static void log (int level, String template, Object a) {
+		Engine engine = logging(level);
+		if (engine != null) engine.record(level, template, 1, a, null, null);
+	}
+
+	public static void log (int level, String template, Object a, Object b) {
+		Engine engine = logging(level);
+		if (engine != null) engine.record(level, template, 2, a, b, null);
+	}
+
+	public static void log (int level, String template, Object a, Object b, Object c) {
+		Engine engine = logging(level);
+		if (engine != null) engine.record(level, template, 3, a, b, c);
+	}
+
+	private void record (int level, String template, int argc, Object a, Object b, Object c) {
+		LocationService gps = locationService;
+		logger.add(clock.currentTimeMillis(), level,
+			gps.getLatitude(), gps.getLongitude(), gps.getAltitude(), gps.getPrecision(),
+			template, argc, Logger.value(a), Logger.value(b), Logger.value(c));
 	}
 
 	private static void replace (String source, String pattern, String replace, StringBuffer builder) {
@@ -369,29 +665,31 @@ public class Engine implements Runnable {
 	
 	private Runnable refresh = new Runnable() {
 		public void run () {
-			synchronized (instance) {
-				ui.refresh();
+			// requests that come during the refresh need another one
+			synchronized (Engine.this) {
 				refreshScheduled = false;
 			}
+			userInterface.refresh();
 		}
 	};
 	private boolean refreshScheduled = false;
 
 	public static void refreshUI () {
-		synchronized (instance) {
-			if (!instance.refreshScheduled) {
-				instance.refreshScheduled = true;
-				instance.eventRunner.perform(instance.refresh);
-			}
+		Engine engine = current();
+		synchronized (engine) {
+			if (engine.refreshScheduled) return;
+			engine.refreshScheduled = true;
 		}
+		engine.eventRunner.perform(engine.refresh);
 	}
 
 	private Runnable store = new Runnable() {
 		public void run () {
 			// perform the actual sync
+			UI ui = userInterface;
 			try {
 				ui.blockForSaving();
-				savegame.store(state.getEnvironment());
+				savegame.store(luaState.getEnvironment());
 			} catch (IOException e) {
 				log("STOR: save failed: "+e.toString(), LOG_WARN);
 				ui.showError("Sync failed.\n" + e.getMessage());
@@ -408,6 +706,17 @@ public class Engine implements Runnable {
 
 	/** requests save in event thread */
 	public static void requestSync () {
-		instance.eventRunner.perform(instance.store);
+		Engine engine = current();
+		engine.eventRunner.perform(engine.store);
+	}
+
+	/** Estimates how much memory the game state takes, in bytes.
+	 * <p>
+	 * Walks everything reachable from the Lua environment, so it should
+	 * be called from the event thread, or when the game is not running.
+	 */
+	public long estimateMemory () {
+		if (luaState == null) return 0;
+		return new MemoryEstimate().measure(luaState.getEnvironment());
 	}
 }
\ No newline at end of file
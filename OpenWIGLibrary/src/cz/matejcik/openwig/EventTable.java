@@ -34,12 +34,12 @@ public class EventTable implements LuaTable, Serializable {
 	}
 
 	public void serialize (DataOutputStream out) throws IOException {
-		Engine.instance.savegame.storeValue(table, out);
+		Engine.current().savegame.storeValue(table, out);
 	}
 
 	public void deserialize (DataInputStream in) throws IOException {
 		isDeserializing = true;
-		Engine.instance.savegame.restoreValue(in, this);
+		Engine.current().savegame.restoreValue(in, this);
 		isDeserializing = false;
 		//setTable(table);
 	}
@@ -89,11 +89,11 @@ public class EventTable implements LuaTable, Serializable {
 
 	protected Object getItem (String key) {
 		if ("CurrentDistance".equals(key)) {
-			if (isLocated()) return LuaState.toDouble(position.distance(Engine.instance.player.position));
+			if (isLocated()) return LuaState.toDouble(position.distance(Engine.current().player.position));
 			else return LuaState.toDouble(-1);
 		} else if ("CurrentBearing".equals(key)) {
 			if (isLocated())
-				return LuaState.toDouble(ZonePoint.angle2azimuth(position.bearing(Engine.instance.player.position)));
+				return LuaState.toDouble(ZonePoint.angle2azimuth(position.bearing(Engine.current().player.position)));
 			else return LuaState.toDouble(0);
 		} else return table.rawget(key);
 	}
@@ -120,10 +120,11 @@ public class EventTable implements LuaTable, Serializable {
 		try {
 			Object o = table.rawget(name);
 			if (o instanceof LuaClosure) {
-				Engine.log("EVNT: " + toString() + "." + name + (param!=null ? " (" + param.toString() + ")" : ""), Engine.LOG_CALL);
+				if (param == null) Engine.log(Engine.LOG_CALL, "EVNT: {}.{}", this, name);
+				else Engine.log(Engine.LOG_CALL, "EVNT: {}.{} ({})", this, name, param);
 				LuaClosure event = (LuaClosure) o;
-				Engine.state.call(event, this, param, null);
-				Engine.log("EEND: " + toString() + "." + name, Engine.LOG_CALL);
+				Engine.current().luaState.call(event, this, param, null);
+				Engine.log(Engine.LOG_CALL, "EEND: {}.{}", this, name);
 			}
 		} catch (Throwable t) {
 			Engine.stacktrace(t);
@@ -145,7 +146,7 @@ public class EventTable implements LuaTable, Serializable {
 			setItem((String) key, value);
 		}
 		table.rawset(key, value);
-		Engine.log("PROP: " + toString() + "." + key + " is set to " + (value == null ? "nil" : value.toString()), Engine.LOG_PROP);
+		Engine.log(Engine.LOG_PROP, "PROP: {}.{} is set to {}", this, key, value);
 	}
 
 	public void setMetatable (LuaTable metatable) { }
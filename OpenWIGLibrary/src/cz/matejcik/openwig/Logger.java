@@ -0,0 +1,221 @@
+package cz.matejcik.openwig;
+
+import cz.matejcik.openwig.formats.BinaryLog;
+
+import java.io.*;
+import java.util.Calendar;
+import java.util.Date;
+
+/** Game log that is written in a background thread.
+ * <p>
+ * A record is a message template with up to three arguments, plus time
+ * and position. Records go into a ring buffer that is allocated once;
+ * a writer thread takes them out in batches, formats them and flushes
+ * the stream when the buffer is empty, so the game thread doesn't pay
+ * for formatting, number printing or I/O. When the buffer is full,
+ * the game waits for the writer rather than losing records.
+ * <p>
+ * Templates mark arguments with {}. Arguments that are not strings,
+ * numbers or booleans are converted to strings when the record is added,
+ * so that the log shows their state at that time.
+ * <p>
+ * The log is either text, one line per record, or the compact binary
+ * format of BinaryLog, which can be turned into the same text later.
+ */
+public class Logger implements Runnable {
+
+	public static final int TEXT = 0;
+	public static final int BINARY = 1;
+
+	/** level of records that are written as they are, without time and position */
+	public static final int RAW = -1;
+
+	private static final int CAPACITY = 256;
+	private static final int MASK = CAPACITY - 1;
+	/** how long the writer waits for records before its thread ends */
+	private static final long IDLE = 2000;
+
+	// the ring buffer, one slot per record
+	private final long[] times = new long[CAPACITY];
+	private final int[] levels = new int[CAPACITY];
+	private final double[] positions = new double[CAPACITY * 4];
+	private final String[] templates = new String[CAPACITY];
+	private final int[] argcs = new int[CAPACITY];
+	private final Object[] args = new Object[CAPACITY * 3];
+	private int head = 0, count = 0;
+
+	private boolean closed = false;
+	/** the writer has taken records that aren't flushed yet */
+	private boolean writing = false;
+	private Thread thread = null;
+
+	private PrintStream text = null;
+	private BinaryLog binary = null;
+	private Calendar calendar = Calendar.getInstance();
+
+	public Logger (OutputStream out, int format) throws IOException {
+		if (format == BINARY) binary = new BinaryLog(out);
+		else text = new PrintStream(out);
+	}
+
+	/** Returns o if it can be kept in a record as it is, or its string form. */
+	public static Object value (Object o) {
+		if (o == null || o instanceof String || o instanceof Double || o instanceof Boolean) return o;
+		return o.toString();
+	}
+
+	/** Adds a record. Arguments should have gone through value(). */
+	public synchronized void add (long time, int level, double lat, double lon, double alt, double precision,
+	String template, int argc, Object a, Object b, Object c) {
+		if (closed) return;
+		while (count == CAPACITY) {
+			try { wait(); } catch (InterruptedException e) { }
+			if (closed) return;
+		}
+		int i = (head + count) & MASK;
+		times[i] = time;
+		levels[i] = level;
+		positions[4*i] = lat;
+		positions[4*i + 1] = lon;
+		positions[4*i + 2] = alt;
+		positions[4*i + 3] = precision;
+		templates[i] = template;
+		argcs[i] = argc;
+		args[3*i] = a;
+		args[3*i + 1] = b;
+		args[3*i + 2] = c;
+		count++;
+		if (thread == null) {
+			thread = new Thread(this);
+			thread.start();
+		}
+		// the writer only waits when the buffer is empty
+		if (count == 1) notifyAll();
+	}
+
+	public void run () {
+		while (true) {
+			int start, n;
+			synchronized (this) {
+				if (count == 0 && !closed) {
+					// CLDC has no daemon threads, so the writer ends when idle
+					// and a log that isn't closed doesn't keep the VM running
+					try { wait(IDLE); } catch (InterruptedException e) { }
+				}
+				if (count == 0) {
+					thread = null;
+					return;
+				}
+				start = head;
+				n = count;
+				writing = true;
+			}
+			// these slots stay ours until head moves past them
+			for (int k = 0; k < n; k++) {
+				int i = (start + k) & MASK;
+				try {
+					write(i);
+				} catch (IOException e) {
+					// nowhere to report it
+				}
+				templates[i] = null;
+				args[3*i] = args[3*i + 1] = args[3*i + 2] = null;
+			}
+			boolean empty;
+			synchronized (this) {
+				head = (head + n) & MASK;
+				count -= n;
+				empty = count == 0;
+				notifyAll();
+			}
+			if (empty) {
+				try {
+					if (text != null) text.flush();
+					else binary.flush();
+				} catch (IOException e) { }
+			}
+			synchronized (this) {
+				if (count == 0) {
+					writing = false;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	private void write (int i) throws IOException {
+		int j = 3*i;
+		if (text != null) {
+			format(text, calendar, times[i], levels[i], positions[4*i], positions[4*i + 1], positions[4*i + 2], positions[4*i + 3],
+				templates[i], argcs[i], args[j], args[j + 1], args[j + 2]);
+		} else {
+			binary.write(times[i], levels[i], positions[4*i], positions[4*i + 1], positions[4*i + 2], positions[4*i + 3],
+				templates[i], argcs[i], args[j], args[j + 1], args[j + 2]);
+		}
+	}
+
+	/** Prints a record as a line of the text log. */
+	public static void format (PrintStream out, Calendar calendar, long time, int level,
+	double lat, double lon, double alt, double precision,
+	String template, int argc, Object a, Object b, Object c) {
+		if (level == RAW) {
+			out.println(template);
+			return;
+		}
+		calendar.setTime(new Date(time));
+		out.print(calendar.get(Calendar.HOUR_OF_DAY));
+		out.print(':');
+		out.print(calendar.get(Calendar.MINUTE));
+		out.print(':');
+		out.print(calendar.get(Calendar.SECOND));
+		out.print('|');
+		out.print((int)(lat * 10000 + 0.5) / 10000.0);
+		out.print('|');
+		out.print((int)(lon * 10000 + 0.5) / 10000.0);
+		out.print('|');
+		out.print(alt);
+		out.print('|');
+		out.print(precision);
+		out.print("|:: ");
+		int pos = 0;
+		for (int k = 0; k < argc; k++) {
+			int p = template.indexOf("{}", pos);
+			if (p == -1) break;
+			out.print(template.substring(pos, p));
+			Object o = k == 0 ? a : k == 1 ? b : c;
+			out.print(o == null ? "nil" : o.toString());
+			pos = p + 2;
+		}
+		out.println(pos == 0 ? template : template.substring(pos));
+	}
+
+	/** Waits until everything added so far is written out. */
+	public synchronized void flush () {
+		while ((count > 0 || writing) && thread != null) {
+			try { wait(); } catch (InterruptedException e) { }
+		}
+	}
+
+	/** Returns true while the writer thread runs. */
+	synchronized boolean hasWriter () {
+		return thread != null;
+	}
+
+	/** Writes out the remaining records and closes the stream. */
+	public void close () {
+		Thread t;
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			t = thread;
+			notifyAll();
+		}
+		if (t != null) {
+			try { t.join(); } catch (InterruptedException e) { }
+		}
+		try {
+			if (text != null) text.close();
+			else binary.close();
+		} catch (IOException e) { }
+	}
+}
@@ -5,10 +5,23 @@ import se.krka.kahlua.vm.*;
 
 public class Media extends EventTable {
 	
-	private static int media_no;
+	/** id of next Media object created outside of any Engine */
+	private static int media_no = 1;
 
+	/** Starts numbering Media objects of the current game from 1. */
 	public static void reset () {
-		media_no = 1;
+		setNextId(1);
+	}
+
+	private static int getNextId () {
+		Engine e = Engine.current();
+		return e == null ? media_no : e.mediaId;
+	}
+
+	private static void setNextId (int id) {
+		Engine e = Engine.current();
+		if (e == null) media_no = id;
+		else e.mediaId = id;
 	}
 	
 	public int id;
@@ -16,7 +29,8 @@ public class Media extends EventTable {
 	public String type = null;
 	
 	public Media() {
-		id = media_no++;
+		id = getNextId();
+		setNextId(id + 1);
 	}
 
 	public void serialize (DataOutputStream out) throws IOException {
@@ -25,9 +39,13 @@ public class Media extends EventTable {
 	}
 
 	public void deserialize (DataInputStream in) throws IOException {
-		media_no--; // deserialize must be called directly after construction
+		int next = getNextId();
+		// undo the numbering done by the constructor. a savegame journal may
+		// also update an older Media, whose number is already accounted for
+		if (id == next - 1) next = id;
 		id = in.readInt();
-		if (id >= media_no) media_no = id + 1;
+		if (id >= next) next = id + 1;
+		setNextId(next);
 		super.deserialize(in);
 	}
 	
@@ -38,7 +56,7 @@ public class Media extends EventTable {
 			LuaTable lt = (LuaTable)value;
 			int n = lt.len();
 			for (int i = 1; i <= n; i++) {
-				LuaTable res = (LuaTable)lt.rawget(new Double(i));
+				LuaTable res = (LuaTable)lt.rawget(LuaState.toDouble(i));
 				String t = (String)res.rawget("Type");
 				if ("fdl".equals(t)) continue;
 				type = t.toLowerCase();
@@ -55,7 +73,7 @@ public class Media extends EventTable {
 			String mime = null;
 			if ("wav".equals(type)) mime = "audio/x-wav";
 			else if ("mp3".equals(type)) mime = "audio/mpeg";
-			Engine.ui.playSound(Engine.mediaFile(this), mime);
+			Engine.current().userInterface.playSound(Engine.mediaFile(this), mime);
 		} catch (IOException e) {
 			// meh
 		}
@@ -0,0 +1,84 @@
+package cz.matejcik.openwig;
+
+import java.util.Hashtable;
+import java.util.Vector;
+import se.krka.kahlua.vm.*;
+
+/** Rough estimate of memory taken by Lua objects.
+ * <p>
+ * Walks everything reachable from a table and adds up approximate
+ * sizes of the objects it finds. The numbers are meant for comparing
+ * games with each other, not for exact accounting: they don't know
+ * about the VM's object layout, and objects shared with other games,
+ * like strings from the Java side or library functions, are counted too.
+ */
+class MemoryEstimate {
+
+	private static final int OBJECT = 16;
+	private static final int REFERENCE = 4;
+
+	private Hashtable seen = new Hashtable();
+	private Vector pending = new Vector();
+	private long total = 0;
+
+	public long measure (LuaTable root) {
+		add(root);
+		while (!pending.isEmpty()) {
+			Object o = pending.lastElement();
+			pending.removeElementAt(pending.size() - 1);
+			walk(o);
+		}
+		return total;
+	}
+
+	private void add (Object o) {
+		if (o == null || o instanceof Boolean || o instanceof JavaFunction) return;
+		if (seen.put(o, o) != null) return;
+		pending.addElement(o);
+	}
+
+	private void walk (Object o) {
+		if (o instanceof String) {
+			total += OBJECT + 16 + 2 * ((String)o).length();
+		} else if (o instanceof Double) {
+			total += OBJECT + 8;
+		} else if (o instanceof EventTable) {
+			// Java fields of the Wherigo object
+			total += OBJECT + 16 * REFERENCE;
+			add(((EventTable)o).table);
+		} else if (o instanceof ZonePoint) {
+			total += OBJECT + 3 * 8;
+		} else if (o instanceof LuaTable) {
+			LuaTable t = (LuaTable)o;
+			// key, value and chain index per entry, tables are at most half empty
+			total += OBJECT + 8 * REFERENCE;
+			Object key = null;
+			while ((key = t.next(key)) != null) {
+				total += 2 * 3 * REFERENCE;
+				add(key);
+				add(t.rawget(key));
+			}
+			add(t.getMetatable());
+		} else if (o instanceof LuaClosure) {
+			LuaClosure c = (LuaClosure)o;
+			total += OBJECT + 3 * REFERENCE;
+			for (int i = 0; i < c.upvalues.length; i++) {
+				total += OBJECT + 3 * REFERENCE;
+				if (c.upvalues[i] != null) add(c.upvalues[i].getValue());
+			}
+			add(c.prototype);
+		} else if (o instanceof LuaPrototype) {
+			LuaPrototype p = (LuaPrototype)o;
+			total += OBJECT + 10 * REFERENCE + 4 * p.code.length + 4 * p.getLineCount();
+			total += REFERENCE * p.constants.length;
+			for (int i = 0; i < p.constants.length; i++) add(p.constants[i]);
+			for (int i = 0; i < p.prototypes.length; i++) add(p.prototypes[i]);
+		} else if (o instanceof LuaThread) {
+			LuaThread t = (LuaThread)o;
+			total += OBJECT + REFERENCE * t.objectStack.length + 8 * REFERENCE * t.callFrameStack.length;
+			for (int i = 0; i < t.objectStack.length; i++) add(t.objectStack[i]);
+		} else {
+			total += OBJECT;
+		}
+	}
+}
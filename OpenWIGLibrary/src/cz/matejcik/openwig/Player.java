@@ -1,5 +1,6 @@
 package cz.matejcik.openwig;
 
+import cz.matejcik.openwig.platform.LocationService;
 import java.io.DataInputStream;
 import java.io.IOException;
 import se.krka.kahlua.stdlib.TableLib;
@@ -11,13 +12,13 @@ public class Player extends Thing {
 	
 	private static JavaFunction refreshLocation = new JavaFunction() {
 		public int call (LuaCallFrame callFrame, int nArguments) {
-			Engine.instance.player.refreshLocation();
+			Engine.current().player.refreshLocation();
 			return 0;
 		}
 	};
 
 	public static void register () {
-		Engine.instance.savegame.addJavafunc(refreshLocation);
+		Engine.current().savegame.addJavafunc(refreshLocation);
 	}
 	
 	public Player() {
@@ -45,7 +46,7 @@ public class Player extends Thing {
 	public void leaveZone (Zone z) {
 		TableLib.removeItem(insideOfZones, z);
 		if (insideOfZones.len() > 0)
-			container = (Container)insideOfZones.rawget(new Double(insideOfZones.len()));
+			container = (Container)insideOfZones.rawget(LuaState.toDouble(insideOfZones.len()));
 		//TableLib.removeItem(z.inventory, this);
 	}
 
@@ -54,7 +55,7 @@ public class Player extends Thing {
 	public void deserialize (DataInputStream in)
 	throws IOException {
 		super.deserialize(in);
-		Engine.instance.player = this;
+		Engine.current().player = this;
 		//setPosition(new ZonePoint(360,360,0));
 	}
 	
@@ -69,11 +70,13 @@ public class Player extends Thing {
 	}
 
 	public void refreshLocation() {
-		position.latitude = Engine.gps.getLatitude();
-		position.longitude = Engine.gps.getLongitude();
-		position.altitude = Engine.gps.getAltitude();
-		table.rawset("PositionAccuracy", LuaState.toDouble(Engine.gps.getPrecision()));
-		Engine.instance.cartridge.walk(position);
+		Engine engine = Engine.current();
+		LocationService gps = engine.locationService;
+		position.latitude = gps.getLatitude();
+		position.longitude = gps.getLongitude();
+		position.altitude = gps.getAltitude();
+		table.rawset("PositionAccuracy", LuaState.toDouble(gps.getPrecision()));
+		engine.cartridge.walk(position);
 	}
 
 	public void rawset (Object key, Object value) {
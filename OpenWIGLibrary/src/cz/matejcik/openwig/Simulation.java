@@ -0,0 +1,159 @@
+package cz.matejcik.openwig;
+
+import cz.matejcik.openwig.formats.CartridgeFile;
+import cz.matejcik.openwig.platform.*;
+
+import java.io.*;
+import java.util.Vector;
+
+/** Plays a game along a scripted GPS track, as fast as possible.
+ * <p>
+ * The game runs on a VirtualClock, entirely in the thread that calls
+ * start() and run(): no thread of its own, no event thread, no sleeping.
+ * Time advances in steps of one second, like the main loop of Engine.
+ * Timers that come due inside a step fire in order of their time, and
+ * the events they cause are processed before the next timer fires;
+ * then the position is moved along the track, zones are evaluated and
+ * their events processed. So a run depends only on the cartridge, the
+ * track and what the UI does, and an hour of play takes milliseconds.
+ * <p>
+ * The track is a list of points with times relative to the start of
+ * the simulation. Position between two points is interpolated linearly;
+ * before the first and after the last point, it stays at that point.
+ * <p>
+ * The UI gets the usual calls in the same thread and can answer dialogs
+ * and inputs right away through Engine.invokeCallback() and friends.
+ */
+public class Simulation implements LocationService {
+
+	/** length of one step of the main loop, in milliseconds */
+	public static final int STEP = 1000;
+
+	private Engine engine;
+	private VirtualClock clock;
+	private long startTime;
+
+	/** track points: time, latitude, longitude, altitude */
+	private Vector track = new Vector();
+
+	private double latitude = 0, longitude = 0, altitude = 0, heading = 0;
+
+	/** Creates the game of a simulation.
+	 * @param cf cartridge to play
+	 * @param log stream for the game log, or null
+	 * @param ui user interface of the game
+	 * @param startTime wall clock time at which the game starts, in milliseconds
+	 */
+	public Simulation (CartridgeFile cf, OutputStream log, UI ui, long startTime) throws IOException {
+		this.startTime = startTime;
+		clock = new VirtualClock(startTime);
+		engine = Engine.newSession(cf, log, ui, this);
+		engine.setClock(clock);
+		engine.synchronous = true;
+	}
+
+	public Engine getEngine () {
+		return engine;
+	}
+
+	public VirtualClock getClock () {
+		return clock;
+	}
+
+	/** Returns time since the start of the simulation, in milliseconds. */
+	public long elapsed () {
+		return clock.currentTimeMillis() - startTime;
+	}
+
+	/** Adds a point to the track. Points must be added in order of time.
+	 * @param time milliseconds since the start of the simulation
+	 */
+	public void addPoint (long time, double lat, double lon, double alt) {
+		if (!track.isEmpty() && ((double[])track.lastElement())[0] > time)
+			throw new IllegalArgumentException("track points must be in order of time");
+		track.addElement(new double[] { time, lat, lon, alt });
+		if (track.size() == 1) moveTo(0);
+	}
+
+	/** Starts a new game, or restores the saved one. Runs OnStart or OnRestore
+	 * and the events that it causes.
+	 */
+	public void start (boolean restore) throws IOException {
+		Engine previous = Engine.bind(engine);
+		try {
+			engine.startGame(restore);
+			engine.eventRunner.runPending();
+		} finally {
+			Engine.bind(previous);
+		}
+	}
+
+	/** Plays the game until the specified time since the start of the
+	 * simulation, or until the game ends.
+	 * @return false if the game has ended
+	 */
+	public boolean run (long until) {
+		Engine previous = Engine.bind(engine);
+		try {
+			long target = startTime + until;
+			while (!engine.end) {
+				long now = clock.currentTimeMillis();
+				if (now >= target) break;
+				long next = Math.min(now + STEP, target);
+				// timers that fire during the step, one by one
+				long t;
+				while ((t = clock.nextTime()) <= next && !engine.end) {
+					clock.advanceTo(t);
+					engine.eventRunner.runPending();
+				}
+				if (engine.end) break;
+				clock.advanceTo(next);
+				moveTo(next - startTime);
+				engine.step();
+				engine.eventRunner.runPending();
+			}
+			return !engine.end;
+		} finally {
+			Engine.bind(previous);
+		}
+	}
+
+	/** Ends the game and releases its state. */
+	public void end () {
+		engine.end();
+		clock.cancelAll();
+		engine.finish();
+	}
+
+	private void moveTo (long time) {
+		int n = track.size();
+		if (n == 0) return;
+		double[] a = (double[])track.firstElement();
+		double[] b = a;
+		for (int i = 1; i < n; i++) {
+			b = (double[])track.elementAt(i);
+			if (b[0] > time) break;
+			a = b;
+		}
+		if (b == a || time <= a[0]) {
+			latitude = a[1]; longitude = a[2]; altitude = a[3];
+		} else {
+			double f = (time - a[0]) / (b[0] - a[0]);
+			latitude = a[1] + (b[1] - a[1]) * f;
+			longitude = a[2] + (b[2] - a[2]) * f;
+			altitude = a[3] + (b[3] - a[3]) * f;
+		}
+		if (b != a && (b[1] != a[1] || b[2] != a[2])) {
+			heading = ZonePoint.angle2azimuth(new ZonePoint(b[1], b[2], 0).bearing(a[1], a[2]));
+		}
+	}
+
+	public double getLatitude () { return latitude; }
+	public double getLongitude () { return longitude; }
+	public double getAltitude () { return altitude; }
+	public double getHeading () { return heading; }
+	public double getPrecision () { return 1; }
+	public int getState () { return ONLINE; }
+	public void connect () { }
+	public void disconnect () { }
+}
@@ -5,8 +5,6 @@ import se.krka.kahlua.vm.*;
 import java.io.*;
 
 public class Timer extends EventTable {
-	
-	private static java.util.Timer globalTimer;
 
 	private static JavaFunction start = new JavaFunction() {
 		public int call (LuaCallFrame callFrame, int nArguments) {
@@ -34,27 +32,35 @@ public class Timer extends EventTable {
 	};
 
 	public static void register () {
-		Engine.instance.savegame.addJavafunc(start);
-		Engine.instance.savegame.addJavafunc(stop);
-		Engine.instance.savegame.addJavafunc(tick);
+		Engine.current().savegame.addJavafunc(start);
+		Engine.current().savegame.addJavafunc(stop);
+		Engine.current().savegame.addJavafunc(tick);
 	}
 
 	protected String luaTostring () { return "a ZTimer instance"; }
 	
-	private class TimerTask extends java.util.TimerTask {
+	private class TimerTask extends Clock.Task {
 		public boolean restart = false;
 		public void run() {
-			tick();
-			Engine.refreshUI();
-			if (restart) {
-				cancel();
-				task = null;
-				start();
+			// the clock's thread may be shared by several sessions
+			Engine previous = Engine.bind(engine);
+			try {
+				tick();
+				Engine.refreshUI();
+				if (restart) {
+					cancel();
+					task = null;
+					start();
+				}
+			} finally {
+				Engine.bind(previous);
 			}
 		}	
 	}
 	
 	private TimerTask task = null;
+	/** game that this timer belongs to */
+	private Engine engine;
 	
 	private static final int COUNTDOWN = 0;
 	private static final int INTERVAL = 1;
@@ -66,7 +72,7 @@ public class Timer extends EventTable {
 	private long lastTick = 0;
 	
 	public Timer () {
-		if (globalTimer == null) globalTimer = new java.util.Timer();
+		engine = Engine.current();
 		table.rawset("Start", start);
 		table.rawset("Stop", stop);
 		table.rawset("Tick", tick);
@@ -96,7 +102,7 @@ public class Timer extends EventTable {
 	}
 	
 	public void start () {
-		Engine.log("TIME: " + name + " start", Engine.LOG_CALL);
+		Engine.log(Engine.LOG_CALL, "TIME: {} start", name);
 		if (task != null) return;
 		if (duration == 0) {
 			// XXX this might be a problem if the timer is interval
@@ -109,22 +115,22 @@ public class Timer extends EventTable {
 
 	private void start (long when, boolean callEvent) {
 		task = new TimerTask();
-		lastTick = System.currentTimeMillis();
+		lastTick = clock().currentTimeMillis();
 		if (callEvent) callEvent("OnStart", null);
 		updateRemaining();
 		switch (type) {
 			case COUNTDOWN:
-				globalTimer.schedule(task, when);
+				clock().schedule(task, when, 0);
 				break;
 			case INTERVAL:
-				globalTimer.scheduleAtFixedRate(task, when, duration);
+				clock().schedule(task, when, duration);
 				break;
 		}
 	}
 	
 	public void stop () {
 		if (task != null) {
-			Engine.log("TIME: " + name + " stop", Engine.LOG_CALL);
+			Engine.log(Engine.LOG_CALL, "TIME: {} stop", name);
 			task.cancel();
 			task = null;
 			callEvent("OnStop", null);
@@ -132,9 +138,9 @@ public class Timer extends EventTable {
 	}
 	
 	public void tick () {
-		Engine.log("TIME: " + name + " tick", Engine.LOG_CALL);
+		Engine.log(Engine.LOG_CALL, "TIME: {} tick", name);
 		Engine.callEvent(this, "OnTick", null);
-		lastTick = System.currentTimeMillis();
+		lastTick = clock().currentTimeMillis();
 		updateRemaining();
 		if (type == COUNTDOWN && task != null) {
 			task.cancel();
@@ -150,15 +156,29 @@ public class Timer extends EventTable {
 		if (task == null) {
 			table.rawset("Remaining", ZERO);
 		} else {
-			long stm = System.currentTimeMillis();
+			long stm = clock().currentTimeMillis();
 			long remaining = (duration/1000) - ((stm - lastTick)/1000);
 			table.rawset("Remaining", LuaState.toDouble(remaining));
 		}
 	}
 	
+	public boolean isRunning () {
+		return task != null;
+	}
+
+	/** Cancels the timer without calling any events, when its game ends. */
+	public void dispose () {
+		if (task != null) task.cancel();
+		task = null;
+	}
+
+	private Clock clock () {
+		return engine == null ? Clock.SYSTEM : engine.getClock();
+	}
+
+	/** Cancels timers of all games that run on the system clock. */
 	public static void kill() {
-		if (globalTimer != null) globalTimer.cancel();
-		globalTimer = null;
+		Clock.SYSTEM.cancelAll();
 	}
 
 	public void serialize (DataOutputStream out) throws IOException {
@@ -168,15 +188,21 @@ public class Timer extends EventTable {
 	}
 
 	public void deserialize (DataInputStream in) throws IOException {
+		// a savegame journal may update a timer that is already running
+		if (task != null) {
+			task.cancel();
+			task = null;
+		}
 		boolean resume = in.readBoolean();
 		lastTick = in.readLong();
 		super.deserialize(in);
 
 		if (resume) {
-			if (lastTick + duration < System.currentTimeMillis()) {
+			long now = clock().currentTimeMillis();
+			if (lastTick + duration < now) {
 				Engine.callEvent(this, "OnTick", null);
 			} else {
-				start(lastTick + duration - System.currentTimeMillis(), false);
+				start(lastTick + duration - now, false);
 			}
 			if (type == INTERVAL) start();
 		}
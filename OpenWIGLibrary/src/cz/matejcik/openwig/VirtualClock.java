@@ -0,0 +1,109 @@
+package cz.matejcik.openwig;
+
+import java.util.Vector;
+
+/** Clock whose time moves only when advanced.
+ * <p>
+ * Scheduled tasks run in the thread that calls advanceTo(), ordered
+ * by their time; tasks due at the same time run in the order in which
+ * they were scheduled. So a game driven by this clock plays the same
+ * way every time, no matter how fast the machine is.
+ */
+public class VirtualClock extends Clock {
+
+	/** scheduled task with its time */
+	private static class Entry {
+		public Task task;
+		public long due;
+		public long period;
+		public long order;
+	}
+
+	private long now;
+	/** entries ordered by due time and order */
+	private Vector queue = new Vector();
+	private long counter = 0;
+
+	public VirtualClock (long start) {
+		now = start;
+	}
+
+	public synchronized long currentTimeMillis () {
+		return now;
+	}
+
+	protected synchronized void add (Task task, long delay, long period) {
+		Entry e = new Entry();
+		e.task = task;
+		e.due = now + delay;
+		e.period = period;
+		e.order = counter++;
+		insert(e);
+	}
+
+	private void insert (Entry e) {
+		// binary search for the first entry that comes after e
+		int lo = 0, hi = queue.size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			Entry m = (Entry)queue.elementAt(mid);
+			if (m.due < e.due || (m.due == e.due && m.order < e.order)) lo = mid + 1;
+			else hi = mid;
+		}
+		queue.insertElementAt(e, lo);
+	}
+
+	/** Returns time of the next task that is still scheduled,
+	 * or Long.MAX_VALUE if there is none.
+	 */
+	public synchronized long nextTime () {
+		while (!queue.isEmpty()) {
+			Entry e = (Entry)queue.firstElement();
+			if (!e.task.isCancelled()) return e.due;
+			queue.removeElementAt(0);
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/** Removes the first task if it is due by the specified time. */
+	private synchronized Entry next (long time) {
+		if (queue.isEmpty()) return null;
+		Entry e = (Entry)queue.firstElement();
+		if (e.due > time) return null;
+		queue.removeElementAt(0);
+		if (e.due > now) now = e.due;
+		if (e.period > 0 && !e.task.isCancelled()) {
+			// next run, ordered after everything scheduled so far
+			Entry n = new Entry();
+			n.task = e.task;
+			n.due = e.due + e.period;
+			n.period = e.period;
+			n.order = counter++;
+			insert(n);
+		}
+		return e;
+	}
+
+	/** Moves time forward to the specified time, running the tasks
+	 * that come due on the way. Tasks scheduled by them run too,
+	 * if they are due by then. Time never moves backwards.
+	 */
+	public void advanceTo (long time) {
+		Entry e;
+		while ((e = next(time)) != null) {
+			if (!e.task.isCancelled()) e.task.run();
+		}
+		synchronized (this) {
+			if (time > now) now = time;
+		}
+	}
+
+	/** Moves time forward by the specified number of milliseconds. */
+	public void advance (long millis) {
+		advanceTo(currentTimeMillis() + millis);
+	}
+
+	public synchronized void cancelAll () {
+		queue.removeAllElements();
+	}
+}
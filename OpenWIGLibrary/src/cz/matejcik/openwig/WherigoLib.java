@@ -134,7 +134,7 @@ public class WherigoLib implements JavaFunction {
 		LuaTable wig = new LuaTableImpl();
 		environment.rawset("Wherigo", wig);
 		for (int i = 0; i < NUM_FUNCTIONS; i++) {
-			Engine.instance.savegame.addJavafunc(functions[i]);
+			Engine.current().savegame.addJavafunc(functions[i]);
 			wig.rawset(names[i], functions[i]);
 		}
 		
@@ -147,7 +147,7 @@ public class WherigoLib implements JavaFunction {
 		state.setClassMetatable(WherigoLib.class, wig);	
 		wig.rawset("__index", wig);
 		
-		wig.rawset("Player", Engine.instance.player);
+		wig.rawset("Player", Engine.current().player);
 		wig.rawset("INVALID_ZONEPOINT", null);
 		
 		// screen constants
@@ -168,7 +168,7 @@ public class WherigoLib implements JavaFunction {
 			String key = (String)e.nextElement();
 			envtable.rawset(key, env.get(key));
 		}
-		envtable.rawset("Device", Engine.instance.gwcfile.device);
+		envtable.rawset("Device", Engine.current().gwcfile.device);
 		environment.rawset("Env", envtable);
 
 		Cartridge.register();
@@ -195,7 +195,7 @@ public class WherigoLib implements JavaFunction {
 			// generic constructors:
 			case ZITEM: return construct(new Thing(false), callFrame, nArguments);
 			case ZCHARACTER: return construct(new Thing(true), callFrame, nArguments);
-			case CARTRIDGE: return construct(Engine.instance.cartridge = new Cartridge(), callFrame, nArguments);
+			case CARTRIDGE: return construct(Engine.current().cartridge = new Cartridge(), callFrame, nArguments);
 			case ZONE:
 			case ZCOMMAND:
 			case ZMEDIA:
@@ -254,7 +254,7 @@ public class WherigoLib implements JavaFunction {
 					cont.moveTo(target);
 			}
 		}
-		if (c == null) c = Engine.instance.cartridge;
+		if (c == null) c = Engine.current().cartridge;
 		c.addObject(what);
 		return callFrame.push(what);
 	}
@@ -313,7 +313,7 @@ public class WherigoLib implements JavaFunction {
 		String[] texts = new String[n];
 		Media[] media = new Media[n];
 		for (int i = 1; i <= n; i++) {
-			LuaTable item = (LuaTable)lt.rawget(new Double(i));
+			LuaTable item = (LuaTable)lt.rawget(LuaState.toDouble(i));
 			texts[i-1] = Engine.removeHtml((String)item.rawget("Text"));
 			media[i-1] = (Media)item.rawget("Media");
 		}
@@ -343,8 +343,9 @@ public class WherigoLib implements JavaFunction {
 			Object o = callFrame.get(1);
 			if (o instanceof EventTable) et = (EventTable)o;
 		}
-		Engine.log("CALL: ShowScreen("+screen+") " + (et == null ? "" : et.name), Engine.LOG_CALL);
-		Engine.ui.showScreen(screen, et);
+		if (Engine.isLogging(Engine.LOG_CALL))
+			Engine.log(Engine.LOG_CALL, "CALL: ShowScreen(" + screen + ") {}", et == null ? "" : et.name);
+		Engine.current().userInterface.showScreen(screen, et);
 		return 0;
 	}
 	
@@ -378,7 +379,7 @@ public class WherigoLib implements JavaFunction {
 		BaseLib.luaAssert(nArguments >= 1, "insufficient arguments for ShowStatusText");
 		String text = (String)callFrame.get(0);
 		if (text != null && text.length() == 0) text = null;
-		Engine.ui.setStatusText(text);
+		Engine.current().userInterface.setStatusText(text);
 		return 0;
 	}
 
@@ -393,7 +394,7 @@ public class WherigoLib implements JavaFunction {
 			text = arg.toString();
 		}
 		if (text != null && text.length() == 0) return 0;
-		Engine.log("CUST: " + text, Engine.LOG_CALL);
+		Engine.log(Engine.LOG_CALL, "CUST: {}", text);
 		return 0;
 	}
 	
@@ -402,7 +403,7 @@ public class WherigoLib implements JavaFunction {
 	  String cmd = (String) callFrame.get(0);
 	  if (cmd != null && cmd.length() == 0)
 	    cmd = null;
-	  Engine.ui.command(cmd);
+	  Engine.current().userInterface.command(cmd);
 	  return 0;
 	}
 }
@@ -47,9 +47,27 @@ public class Zone extends Thing {
 	public double pbbTop, pbbBottom, pbbLeft, pbbRight; // pbb = proximity bounding box
 	public ZonePoint bbCenter = new ZonePoint(0,0,0);
 	private double diameter; // approximate zone diameter - distance from bounding-box center to farthest vertex
+	private double centerCos; // cosine of bbCenter latitude, for distance to center without trigonometry
 	private double insideTolerance = 5, proximityTolerance = 10, distantTolerance = 20; // hysteresis tolerance
 
 	private static final double DEFAULT_PROXIMITY = 1500.0;
+
+	// incremental evaluation: result of the last precise walk() holds
+	// while the player stays within slack metres from the anchor
+	private double anchorLat, anchorLon, slack = -1;
+	private double edgeLat, edgeLon; // result of nearestEdge()
+	/** how much can displayed distance lag behind, relative to the distance */
+	private static final double STALE_DISTANCE = 0.05;
+
+	// edge tables built by preprocess(): edge i goes from vertex i to vertex i+1.
+	// vertex 0 is a copy of the last point, so that the polygon is closed
+	private double[] vlat, vlon; // points.length + 1 vertices
+	private double[] elat, elon, elen; // edge vectors and their squared lengths
+
+	/** spatial index of the owning cartridge, kept up to date by preprocess() */
+	ZoneIndex index = null;
+	/** number of the last Cartridge.walk that evaluated this zone precisely */
+	int walkMark = 0;
 	
 	protected void setItem (String key, Object value) {
 		if ("Points".equals(key) && value != null) {
@@ -57,12 +75,12 @@ public class Zone extends Thing {
 			int n = lt.len();
 			points = new ZonePoint[n];
 			for (int i = 1; i <= n; i++) {
-				ZonePoint zp = (ZonePoint) lt.rawget(new Double(i));
+				ZonePoint zp = (ZonePoint) lt.rawget(LuaState.toDouble(i));
 				points[i-1] = zp;
 			}
 			if (active) {
 				preprocess();
-				walk(Engine.instance.player.position);
+				walk(Engine.current().player.position);
 				//setcontain();
 			}
 		} else if ("Active".equals(key)) {
@@ -71,11 +89,12 @@ public class Zone extends Thing {
 			active = a;
 			if (a) preprocess();
 			if (active) {
-				walk(Engine.instance.player.position);
+				walk(Engine.current().player.position);
 				//setcontain();
 			} else { // if the zone is deactivated, remove player, just to be sure
+				if (index != null) index.remove(this);
 				contain = ncontain = (distanceRange < 0) ? DISTANT : NOWHERE;
-				Engine.instance.player.leaveZone(this);
+				Engine.current().player.leaveZone(this);
 			}
 		} else if ("Visible".equals(key)) {
 			boolean a = LuaState.boolEval(value);
@@ -88,8 +107,8 @@ public class Zone extends Thing {
 				contain = ncontain = DISTANT;
 			}
 		} else if ("ProximityRange".equals(key) && value instanceof Double) {
-			preprocess();
 			proximityRange = LuaState.fromDouble(value);
+			preprocess();
 		} else if ("ShowObjects".equals(key)) {
 			String v = (String)value;
 			if ("Always".equals(v)) {
@@ -106,6 +125,11 @@ public class Zone extends Thing {
 		} else super.setItem(key, value);
 	}
 	
+	/** true if the zone has a state change that the next tick() reports */
+	boolean hasPendingState () {
+		return active && contain != ncontain;
+	}
+
 	public void tick () {
 		if (!active) return;
 		if (contain != ncontain) setcontain();
@@ -121,28 +145,28 @@ public class Zone extends Thing {
 	private void setcontain () {
 		if (contain == ncontain) return;
 		if (contain == INSIDE) {
-			Engine.instance.player.leaveZone(this);
+			Engine.current().player.leaveZone(this);
 			Engine.callEvent(this, "OnExit", null);
 		}
 		contain = ncontain;
 		if (contain == INSIDE) {
-			Engine.instance.player.enterZone(this);
+			Engine.current().player.enterZone(this);
 		}
 		switch (contain) {
 			case INSIDE:
-				Engine.log("ZONE: inside "+name, Engine.LOG_PROP);
+				Engine.log(Engine.LOG_PROP, "ZONE: inside {}", name);
 				Engine.callEvent(this, "OnEnter", null);
 				break;
 			case PROXIMITY:
-				Engine.log("ZONE: proximity "+name, Engine.LOG_PROP);
+				Engine.log(Engine.LOG_PROP, "ZONE: proximity {}", name);
 				Engine.callEvent(this, "OnProximity", null);
 				break;
 			case DISTANT:
-				Engine.log("ZONE: distant "+name, Engine.LOG_PROP);
+				Engine.log(Engine.LOG_PROP, "ZONE: distant {}", name);
 				Engine.callEvent(this, "OnDistant", null);
 				break;
 			case NOWHERE:
-				Engine.log("ZONE: out-of-range "+name, Engine.LOG_PROP);
+				Engine.log(Engine.LOG_PROP, "ZONE: out-of-range {}", name);
 				Engine.callEvent(this, "OnNotInRange", null);
 				break;
 			default:
@@ -153,7 +177,11 @@ public class Zone extends Thing {
 
 	/** calculate bounding-box values */
 	private void preprocess () {
-		if (points == null || points.length == 0) return;
+		slack = -1;
+		if (points == null || points.length == 0) {
+			if (index != null) index.remove(this);
+			return;
+		}
 
 		// first calculate bounding box for zone shape
 		bbTop = Double.NEGATIVE_INFINITY; bbBottom = Double.POSITIVE_INFINITY;
@@ -167,6 +195,7 @@ public class Zone extends Thing {
 		// its center point
 		bbCenter.latitude = bbBottom + ((bbTop - bbBottom) / 2);
 		bbCenter.longitude = bbLeft + ((bbRight - bbLeft) / 2);
+		centerCos = Math.cos(bbCenter.latitude * ZonePoint.PI_180);
 
 		// margins for proximity bounding box
 		double proximityX = ZonePoint.m2lat((proximityRange < DEFAULT_PROXIMITY) ? DEFAULT_PROXIMITY : proximityRange);
@@ -188,6 +217,31 @@ public class Zone extends Thing {
 			}
 		}
 		diameter = bbCenter.distance(xx, yy);
+
+		buildEdges();
+		if (index != null) index.update(this);
+	}
+
+	/** fills edge tables for walk() */
+	private void buildEdges () {
+		int n = points.length;
+		if (vlat == null || vlat.length != n + 1) {
+			vlat = new double[n + 1]; vlon = new double[n + 1];
+			elat = new double[n]; elon = new double[n]; elen = new double[n];
+		}
+		vlat[0] = points[n - 1].latitude; vlon[0] = points[n - 1].longitude;
+		for (int i = 0; i < n; i++) {
+			vlat[i + 1] = points[i].latitude;
+			vlon[i + 1] = points[i].longitude;
+			double x = vlat[i + 1] - vlat[i], y = vlon[i + 1] - vlon[i];
+			elat[i] = x; elon[i] = y;
+			elen[i] = x * x + y * y;
+		}
+	}
+
+	/** whether the zone should be in the spatial index */
+	boolean isIndexable () {
+		return active && points != null && points.length > 0;
 	}
 	
 	public void walk (ZonePoint z) {
@@ -195,101 +249,199 @@ public class Zone extends Thing {
 			return;
 		}
 
-		double dist = 0;
 		// are we inside proximity bounding-box?
-		if (z.latitude > pbbBottom && z.latitude < pbbTop && z.longitude > pbbLeft && z.longitude < pbbRight) {
-			ncontain = PROXIMITY;
-			// are we within zone bounding box?
-			if (z.latitude > bbBottom && z.latitude < bbTop && z.longitude > bbLeft && z.longitude < bbRight && points.length > 2) {
-				// yes, we need precise inside evaluation
-				// the following code is adapted from http://www.visibone.com/inpoly/
-				double xt = z.latitude, yt = z.longitude;
-				double ax = points[points.length - 1].latitude, ay = points[points.length - 1].longitude;
-				boolean inside = false;
-				for (int i = 0; i < points.length; i++) {
-					double bx = points[i].latitude, by = points[i].longitude;
-					double x1, y1, x2, y2;
-					if (bx > ax) {
-						x1 = ax; y1 = ay;
-						x2 = bx; y2 = by;
-					} else {
-						x1 = bx; y1 = by;
-						x2 = ax; y2 = ay;
-					}
-					if (x1 < xt && xt <= x2) { // consider!
-						if (ay > yt && by > yt) { // we're completely below -> flip
-							inside = !inside;
-						} else if (ay < yt && by < yt) { // we're completely above -> ignore
-							// ...
-						} else if ((yt - y1)*(x2 - x1) < (y2 - y1)*(xt - x1)) {
-							// we're below (hopefully)
-							inside = !inside;
-						}
-					}
-					ax = bx; ay = by;
-				}
-				if (inside) {
-					ncontain = INSIDE;
-					distance = dist = 0;
-					nearestPoint.sync(z);
+		if (!(z.latitude > pbbBottom && z.latitude < pbbTop && z.longitude > pbbLeft && z.longitude < pbbRight)) {
+			walkFar(z);
+			return;
+		}
+
+		// nothing can change until the player moves far enough from the last evaluation
+		if (slack > 0 && movedSquared(z) < slack * slack) return;
+
+		double dist = 0;
+		boolean inside = false;
+		ncontain = PROXIMITY;
+		// are we within zone bounding box?
+		if (z.latitude > bbBottom && z.latitude < bbTop && z.longitude > bbLeft && z.longitude < bbRight && points.length > 2) {
+			// yes, we need precise inside evaluation
+			// the following code is adapted from http://www.visibone.com/inpoly/
+			double xt = z.latitude, yt = z.longitude;
+			double[] vlat = this.vlat, vlon = this.vlon, elat = this.elat, elon = this.elon;
+			int n = elat.length;
+			double ax = vlat[0], ay = vlon[0];
+			for (int i = 0; i < n; i++) {
+				double bx = vlat[i + 1], by = vlon[i + 1];
+				// edge oriented upwards: from (x1,y1) to x2, vector (dx,dy)
+				double x1, y1, x2, dx, dy;
+				if (bx > ax) {
+					x1 = ax; y1 = ay; x2 = bx;
+					dx = elat[i]; dy = elon[i];
+				} else {
+					x1 = bx; y1 = by; x2 = ax;
+					dx = -elat[i]; dy = -elon[i];
 				}
-			}
-			if (ncontain != INSIDE) {
-				// now we need precise distance calculation
-				double ax = points[points.length - 1].latitude, ay = points[points.length - 1].longitude;
-				double x, y;
-				double nx = ax, ny = ay;
-				double ndist = Double.POSITIVE_INFINITY;
-				for (int i = 0; i < points.length; i++) {
-					double bx = points[i].latitude, by = points[i].longitude;
-					// find distance to vertex (ax,ay)-(bx,by)
-					double dot_ta = (z.latitude - ax) * (bx - ax) + (z.longitude - ay) * (by - ay);
-					if (dot_ta <= 0) {// IT IS OFF THE AVERTEX
-						x = ax;
-						y = ay;
-					} else {
-						double dot_tb = (z.latitude - bx) * (ax - bx) + (z.longitude - by) * (ay - by);
-						if (dot_tb <= 0) { // SEE IF b IS THE NEAREST POINT - ANGLE IS OBTUSE
-							x = bx;
-							y = by;
-						} else {
-							// FIND THE REAL NEAREST POINT ON THE LINE SEGMENT - BASED ON RATIO
-							x = ax + ((bx - ax) * dot_ta) / (dot_ta + dot_tb);
-							y = ay + ((by - ay) * dot_ta) / (dot_ta + dot_tb);
-						}
+				if (x1 < xt && xt <= x2) { // consider!
+					if (ay > yt && by > yt) { // we're completely below -> flip
+						inside = !inside;
+					} else if (ay < yt && by < yt) { // we're completely above -> ignore
+						// ...
+					} else if ((yt - y1)*dx < dy*(xt - x1)) {
+						// we're below (hopefully)
+						inside = !inside;
 					}
-					double dd = (x - z.latitude) * (x - z.latitude) + (y - z.longitude) * (y - z.longitude);
-					if (dd < ndist) {
-						nx = x;
-						ny = y;
-						ndist = dd;
-					}
-					ax = bx;
-					ay = by;
 				}
-				nearestPoint.latitude = nx;
-				nearestPoint.longitude = ny;
-				distance = dist = z.distance(nx, ny);
-
-				if (distance < proximityRange || proximityRange < 0)
-					ncontain = PROXIMITY;
-				else if (distance < distanceRange || distanceRange < 0)
-					ncontain = DISTANT;
-				else
-					ncontain = NOWHERE;
+				ax = bx; ay = by;
 			}
+		}
+
+		// precise distance calculation. inside the zone this is only used for slack
+		double ndist = nearestEdge(z);
+		if (inside) {
+			ncontain = INSIDE;
+			distance = dist = 0;
+			nearestPoint.sync(z);
 		} else {
-			// only need to calculate distance to center + diameter
-			distance = bbCenter.distance(z); // display distance, definitely bigger than precise distance
-			dist = distance - diameter; // calc distance approximation
-			nearestPoint.sync(bbCenter);
-			if (dist < distanceRange || distanceRange < 0)
+			nearestPoint.latitude = edgeLat;
+			nearestPoint.longitude = edgeLon;
+			distance = dist = z.distance(edgeLat, edgeLon);
+
+			if (distance < proximityRange || proximityRange < 0)
+				ncontain = PROXIMITY;
+			else if (distance < distanceRange || distanceRange < 0)
 				ncontain = DISTANT;
 			else
 				ncontain = NOWHERE;
-			// account for tolerances
 		}
 
+		applyTolerances(dist);
+		settle(z, dist, ndist, inside);
+	}
+
+	/** Finds the point on zone boundary nearest to z, in degree space.
+	 * Stores it in edgeLat, edgeLon and returns its squared distance in degrees.
+	 */
+	private double nearestEdge (ZonePoint z) {
+		double[] vlat = this.vlat, vlon = this.vlon, elat = this.elat, elon = this.elon, elen = this.elen;
+		double zx = z.latitude, zy = z.longitude;
+		double x, y;
+		double nx = vlat[0], ny = vlon[0];
+		double ndist = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < elat.length; i++) {
+			double ax = vlat[i], ay = vlon[i];
+			// find distance to edge (ax,ay)-(ax,ay)+(ex,ey)
+			double ex = elat[i], ey = elon[i];
+			double dot = (zx - ax) * ex + (zy - ay) * ey;
+			if (dot <= 0) { // IT IS OFF THE A VERTEX
+				x = ax;
+				y = ay;
+			} else if (dot >= elen[i]) { // SEE IF b IS THE NEAREST POINT - ANGLE IS OBTUSE
+				x = vlat[i + 1];
+				y = vlon[i + 1];
+			} else {
+				// FIND THE REAL NEAREST POINT ON THE LINE SEGMENT - BASED ON RATIO
+				double t = dot / elen[i];
+				x = ax + ex * t;
+				y = ay + ey * t;
+			}
+			double dd = (x - zx) * (x - zx) + (y - zy) * (y - zy);
+			if (dd < ndist) {
+				nx = x;
+				ny = y;
+				ndist = dd;
+			}
+		}
+		edgeLat = nx;
+		edgeLon = ny;
+		return ndist;
+	}
+
+	/** squared distance in metres between z and the anchor of the last evaluation */
+	private double movedSquared (ZonePoint z) {
+		double mx = ZonePoint.lat2m(z.latitude - anchorLat);
+		double my = (z.longitude - anchorLon) * ZonePoint.PI_180 * centerCos * 6367449;
+		return mx * mx + my * my;
+	}
+
+	/** Remembers position of a precise evaluation and works out how far
+	 * the player can go from it before the result could change.
+	 * <p>
+	 * The nearest boundary point is searched in degrees, so the metric
+	 * distance is only known to lie between minCoef and maxCoef times
+	 * the degree distance, and a different edge can win after a small move.
+	 * The player may only move so far that this whole interval stays
+	 * on the same side of every threshold used for ncontain. Outside the
+	 * zone, the move is also limited to a few percent of the distance,
+	 * which is how much the displayed distance can lag behind.
+	 *
+	 * @param ndist squared distance to boundary in degrees, as returned by nearestEdge()
+	 * @param inside whether the player is inside the polygon
+	 */
+	private void settle (ZonePoint z, double dist, double ndist, boolean inside) {
+		double latCoef = ZonePoint.LATITUDE_COEF;
+		double lonCoef = ZonePoint.PI_180 * centerCos * 6367449;
+		// cosine is taken at zone center, not at player's latitude
+		double minCoef = Math.min(latCoef, lonCoef) * 0.99;
+		double maxCoef = Math.max(latCoef, lonCoef) * 1.01;
+		double d = Math.sqrt(ndist);
+
+		double s;
+		if (inside) {
+			// stays inside until the boundary is crossed
+			s = d * minCoef;
+		} else {
+			// negative ranges mean "everywhere" and need no check
+			s = dist * STALE_DISTANCE;
+			s = gap(d, insideTolerance, minCoef, maxCoef, s);
+			s = gap(d, proximityRange, minCoef, maxCoef, s);
+			s = gap(d, proximityRange + proximityTolerance, minCoef, maxCoef, s);
+			s = gap(d, distanceRange, minCoef, maxCoef, s);
+			s = gap(d, distanceRange + distantTolerance, minCoef, maxCoef, s);
+			// and the proximity box, outside of which walkFar takes over
+			s = Math.min(s, Math.min(z.latitude - pbbBottom, pbbTop - z.latitude) * latCoef);
+			s = Math.min(s, Math.min(z.longitude - pbbLeft, pbbRight - z.longitude) * lonCoef);
+		}
+		anchorLat = z.latitude;
+		anchorLon = z.longitude;
+		slack = s;
+	}
+
+	/** Limits move (in metres) so that boundary distance can't cross the threshold.
+	 * After a move of m metres, the degree distance is within d +- m / minCoef.
+	 */
+	private static double gap (double d, double threshold, double minCoef, double maxCoef, double max) {
+		if (threshold <= 0) return max;
+		double m;
+		if (d * maxCoef < threshold) m = (threshold / maxCoef - d) * minCoef;
+		else if (d * minCoef >= threshold) m = d * minCoef - threshold;
+		else m = 0;
+		return Math.min(m, max);
+	}
+
+	/** Evaluates position outside the proximity bounding box.
+	 * <p>
+	 * Only needs distance to center and diameter. Cartridge.walk calls
+	 * this directly for zones that the spatial index rules out.
+	 */
+	void walkFar (ZonePoint z) {
+		if (!active || points == null || points.length == 0 || z == null) {
+			return;
+		}
+		slack = -1;
+		// this is bbCenter.distance(z), with the cosine precomputed
+		double mx = Math.abs(ZonePoint.lat2m(z.latitude - bbCenter.latitude));
+		double my = Math.abs((z.longitude - bbCenter.longitude) * ZonePoint.PI_180 * centerCos * 6367449);
+		distance = Math.sqrt(mx * mx + my * my); // display distance, definitely bigger than precise distance
+		double dist = distance - diameter; // calc distance approximation
+		nearestPoint.sync(bbCenter);
+		if (dist < distanceRange || distanceRange < 0)
+			ncontain = DISTANT;
+		else
+			ncontain = NOWHERE;
+
+		applyTolerances(dist);
+	}
+
+	private void applyTolerances (double dist) {
 		// account for tolerances (notice no breaks)
 		if (ncontain < contain) switch (contain) {
 			case DISTANT:
@@ -337,7 +489,7 @@ public class Zone extends Thing {
 	}
 	
 	public boolean contains (Thing t) {
-		if (t == Engine.instance.player) {
+		if (t == Engine.current().player) {
 			return contain == INSIDE;
 		} else return super.contains(t);
 	}
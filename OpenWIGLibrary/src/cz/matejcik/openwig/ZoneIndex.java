@@ -0,0 +1,118 @@
+package cz.matejcik.openwig;
+
+import java.util.Hashtable;
+
+/** Uniform grid over proximity bounding boxes of active zones.
+ * <p>
+ * Every active zone is registered in all grid cells that its proximity
+ * bounding box touches. A point can only be inside proximity bounding box
+ * of zones registered in the point's own cell, so only those need precise
+ * evaluation. Zones whose box spans too many cells are kept in a separate
+ * list and always treated as candidates.
+ * <p>
+ * Zone calls update() whenever its bounding boxes are recalculated
+ * and remove() when it is deactivated. That is rare compared to lookups,
+ * so cells are plain arrays that get copied on change.
+ */
+class ZoneIndex {
+
+	/** cell size in degrees, roughly 2 km in latitude */
+	private static final double CELL = 0.02;
+	/** zones covering more cells than this go to the "large" list */
+	private static final int MAX_CELLS = 64;
+
+	/** Long cell key -> Zone[] */
+	private Hashtable cells = new Hashtable();
+	private Zone[] large = EMPTY;
+	/** zone -> int[] { bottom row, top row, left column, right column } */
+	private Hashtable ranges = new Hashtable();
+
+	private static final Zone[] EMPTY = new Zone[0];
+
+	private static int cell (double degrees) {
+		return (int)Math.floor(degrees / CELL);
+	}
+
+	private static Long key (int row, int col) {
+		return new Long(((long)row << 32) | (col & 0xffffffffL));
+	}
+
+	/** (re)registers the zone according to its current proximity bounding box */
+	public void update (Zone z) {
+		remove(z);
+		if (!z.isIndexable()) return;
+
+		int[] range = new int[] {
+			cell(z.pbbBottom), cell(z.pbbTop),
+			cell(z.pbbLeft), cell(z.pbbRight)
+		};
+		ranges.put(z, range);
+
+		long count = (long)(range[1] - range[0] + 1) * (range[3] - range[2] + 1);
+		if (count > MAX_CELLS) {
+			large = add(large, z);
+			return;
+		}
+		for (int row = range[0]; row <= range[1]; row++) {
+			for (int col = range[2]; col <= range[3]; col++) {
+				Long k = key(row, col);
+				Zone[] cell = (Zone[])cells.get(k);
+				cells.put(k, add(cell == null ? EMPTY : cell, z));
+			}
+		}
+	}
+
+	/** unregisters the zone */
+	public void remove (Zone z) {
+		int[] range = (int[])ranges.remove(z);
+		if (range == null) return;
+		Zone[] l = remove(large, z);
+		if (l != large) {
+			large = l;
+			return;
+		}
+		for (int row = range[0]; row <= range[1]; row++) {
+			for (int col = range[2]; col <= range[3]; col++) {
+				Long k = key(row, col);
+				Zone[] cell = (Zone[])cells.get(k);
+				if (cell == null) continue;
+				cell = remove(cell, z);
+				if (cell.length == 0) cells.remove(k);
+				else cells.put(k, cell);
+			}
+		}
+	}
+
+	private static Zone[] add (Zone[] zones, Zone z) {
+		Zone[] n = new Zone[zones.length + 1];
+		System.arraycopy(zones, 0, n, 0, zones.length);
+		n[zones.length] = z;
+		return n;
+	}
+
+	/** returns a copy without z, or the same array if z is not there */
+	private static Zone[] remove (Zone[] zones, Zone z) {
+		for (int i = 0; i < zones.length; i++) {
+			if (zones[i] != z) continue;
+			Zone[] n = new Zone[zones.length - 1];
+			System.arraycopy(zones, 0, n, 0, i);
+			System.arraycopy(zones, i + 1, n, i, n.length - i);
+			return n;
+		}
+		return zones;
+	}
+
+	/** Returns zones from the cell containing the specified point.
+	 * Zones from large list are not included, see large().
+	 * The returned array must not be modified.
+	 */
+	public Zone[] near (double lat, double lon) {
+		Zone[] cell = (Zone[])cells.get(key(cell(lat), cell(lon)));
+		return cell == null ? EMPTY : cell;
+	}
+
+	/** Returns zones that are too large for the grid. */
+	public Zone[] large () {
+		return large;
+	}
+}
@@ -0,0 +1,210 @@
+package cz.matejcik.openwig.formats;
+
+import cz.matejcik.openwig.Logger;
+import java.io.*;
+import java.util.Calendar;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/** Compact binary format of the game log.
+ * <p>
+ * The file starts with the magic "OWLG" and a version byte. Each record
+ * then consists of:
+ * <ul>
+ * <li>level, one byte
+ * <li>time in milliseconds, as a zigzag varint difference from the previous record
+ * <li>latitude and longitude in millionths of a degree, two ints
+ * <li>altitude and precision, two floats
+ * <li>template: varint id; an id that wasn't seen before is followed by the
+ * template itself, so every template is stored once
+ * <li>number of arguments, one byte, and the arguments, each a type byte
+ * followed by the value
+ * </ul>
+ * Strings are a varint length followed by UTF-8 bytes.
+ * <p>
+ * Reader reads the records back, and decode() turns them into lines
+ * of the text log.
+ */
+public class BinaryLog {
+
+	private static final byte[] MAGIC = { 'O', 'W', 'L', 'G' };
+	public static final int VERSION = 1;
+
+	private static final int ARG_NIL = 0;
+	private static final int ARG_STRING = 1;
+	private static final int ARG_DOUBLE = 2;
+	private static final int ARG_TRUE = 3;
+	private static final int ARG_FALSE = 4;
+
+	private OutputStream stream;
+	private SaveBuffer buffer = new SaveBuffer(8192);
+	private DataOutputStream out = new DataOutputStream(buffer);
+	/** template -> Integer id */
+	private Hashtable templateIds = new Hashtable();
+	private long lastTime = 0;
+
+	public BinaryLog (OutputStream stream) throws IOException {
+		this.stream = stream;
+		buffer.reset(stream);
+		out.write(MAGIC);
+		out.writeByte(VERSION);
+	}
+
+	public void write (long time, int level, double lat, double lon, double alt, double precision,
+	String template, int argc, Object a, Object b, Object c) throws IOException {
+		out.writeByte(level);
+		long delta = time - lastTime;
+		writeVarLong(out, (delta << 1) ^ (delta >> 63));
+		lastTime = time;
+		out.writeInt((int)(lat * 1000000));
+		out.writeInt((int)(lon * 1000000));
+		out.writeFloat((float)alt);
+		out.writeFloat((float)precision);
+
+		Integer id = (Integer)templateIds.get(template);
+		if (id == null) {
+			id = new Integer(templateIds.size());
+			templateIds.put(template, id);
+			writeVarLong(out, id.intValue());
+			writeString(out, template);
+		} else {
+			writeVarLong(out, id.intValue());
+		}
+
+		out.writeByte(argc);
+		if (argc > 0) writeArg(a);
+		if (argc > 1) writeArg(b);
+		if (argc > 2) writeArg(c);
+	}
+
+	private void writeArg (Object o) throws IOException {
+		if (o == null) {
+			out.writeByte(ARG_NIL);
+		} else if (o instanceof Double) {
+			out.writeByte(ARG_DOUBLE);
+			out.writeDouble(((Double)o).doubleValue());
+		} else if (o instanceof Boolean) {
+			out.writeByte(((Boolean)o).booleanValue() ? ARG_TRUE : ARG_FALSE);
+		} else {
+			out.writeByte(ARG_STRING);
+			writeString(out, o.toString());
+		}
+	}
+
+	public void flush () throws IOException {
+		out.flush();
+	}
+
+	public void close () throws IOException {
+		out.flush();
+		stream.close();
+	}
+
+	private static void writeVarLong (DataOutputStream out, long v) throws IOException {
+		while ((v & ~0x7fL) != 0) {
+			out.writeByte((int)(v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte((int)v);
+	}
+
+	private static long readVarLong (DataInputStream in) throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			v |= (long)(b & 0x7f) << shift;
+			if ((b & 0x80) == 0) return v;
+		}
+		throw new IOException("malformed varint");
+	}
+
+	private static void writeString (DataOutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes("UTF-8");
+		writeVarLong(out, b.length);
+		out.write(b);
+	}
+
+	private static String readString (DataInputStream in) throws IOException {
+		byte[] b = new byte[(int)readVarLong(in)];
+		in.readFully(b);
+		return new String(b, "UTF-8");
+	}
+
+	/** A decoded record. */
+	public static class Record {
+		public long time;
+		public int level;
+		public double latitude, longitude, altitude, precision;
+		public String template;
+		public int argc;
+		public Object[] args = new Object[3];
+	}
+
+	/** Reads records of a binary log. */
+	public static class Reader {
+		private DataInputStream in;
+		private Vector templates = new Vector();
+		private long lastTime = 0;
+
+		public Reader (InputStream stream) throws IOException {
+			in = new DataInputStream(stream);
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			for (int i = 0; i < magic.length; i++)
+				if (magic[i] != MAGIC[i]) throw new IOException("not a binary log");
+			int version = in.readUnsignedByte();
+			if (version != VERSION) throw new IOException("unsupported log version " + version);
+		}
+
+		/** Reads the next record into r.
+		 * @return false at the end of the log
+		 */
+		public boolean next (Record r) throws IOException {
+			int level = in.read();
+			if (level == -1) return false;
+			r.level = (byte)level;
+			long z = readVarLong(in);
+			lastTime += (z >>> 1) ^ -(z & 1);
+			r.time = lastTime;
+			r.latitude = in.readInt() / 1000000.0;
+			r.longitude = in.readInt() / 1000000.0;
+			// floats printed as the doubles they stand for, not with float noise
+			r.altitude = Double.parseDouble(Float.toString(in.readFloat()));
+			r.precision = Double.parseDouble(Float.toString(in.readFloat()));
+
+			int id = (int)readVarLong(in);
+			if (id == templates.size()) templates.addElement(readString(in));
+			else if (id > templates.size()) throw new IOException("unknown template " + id);
+			r.template = (String)templates.elementAt(id);
+
+			r.argc = in.readUnsignedByte();
+			if (r.argc > r.args.length) throw new IOException("too many arguments");
+			for (int i = 0; i < r.argc; i++) r.args[i] = readArg();
+			return true;
+		}
+
+		private Object readArg () throws IOException {
+			int type = in.readUnsignedByte();
+			switch (type) {
+				case ARG_NIL: return null;
+				case ARG_STRING: return readString(in);
+				case ARG_DOUBLE: return new Double(in.readDouble());
+				case ARG_TRUE: return Boolean.TRUE;
+				case ARG_FALSE: return Boolean.FALSE;
+				default: throw new IOException("unknown argument type " + type);
+			}
+		}
+	}
+
+	/** Writes a binary log as text, in the format of the text log. */
+	public static void decode (InputStream in, PrintStream out) throws IOException {
+		Reader reader = new Reader(in);
+		Record r = new Record();
+		Calendar calendar = Calendar.getInstance();
+		while (reader.next(r)) {
+			Logger.format(out, calendar, r.time, r.level, r.latitude, r.longitude, r.altitude, r.precision,
+				r.template, r.argc, r.args[0], r.args[1], r.args[2]);
+		}
+		out.flush();
+	}
+}
@@ -14,7 +14,7 @@ public class CartridgeFile {
 	private static final byte[] CART_ID = { 0x02, 0x0a, 0x43, 0x41, 0x52, 0x54, 0x00 };
 			// 02 0a CART 00
 
-	private static final int CACHE_LIMIT = 128000; // in kB
+	private static int defaultCacheSize = 256000; // in bytes
 	
 	private SeekableFile source;
 
@@ -23,14 +23,33 @@ public class CartridgeFile {
 	private int files;
 	private int[] offsets;
 	private int[] ids;
+
+	// id -> index lookup: direct table when ids are dense (index[id]),
+	// otherwise open addressing hash with linear probing (hashIds, index)
+	private int[] index;
+	private int[] hashIds;
 	
 	public double latitude, longitude;
 	public String type, member, name, description, startdesc, version, author, url, device, code;
 	public int iconId, splashId;
 
 	public String filename;
+
+	private MediaCache cache = new MediaCache(defaultCacheSize);
 	
 	protected CartridgeFile() { }
+
+	/** Sets media cache size, in bytes, for cartridges read from now on.
+	 * Individual cartridges can be resized through getCache().
+	 */
+	public static void setDefaultCacheSize (int bytes) {
+		defaultCacheSize = bytes;
+	}
+
+	/** Returns the media cache, for tuning and statistics. */
+	public MediaCache getCache () {
+		return cache;
+	}
 	
 	private boolean fileOk () throws IOException {
 		byte[] buf = new byte[CART_ID.length];
@@ -50,16 +69,23 @@ public class CartridgeFile {
 	public static CartridgeFile read (SeekableFile source, FileHandle savefile)
 	throws IOException {
 		CartridgeFile cf = new CartridgeFile();
-		cf.source = source;
+		cf.open(source, savefile);
+		return cf;
+	}
+
+	/** Reads cartridge header from source.
+	 * Subclasses call this from their own factory methods.
+	 */
+	protected void open (SeekableFile source, FileHandle savefile)
+	throws IOException {
+		this.source = source;
 		
-		if (!cf.fileOk()) throw new IOException("invalid cartridge file");
+		if (!fileOk()) throw new IOException("invalid cartridge file");
 		
-		cf.scanOffsets();
-		cf.scanHeader();
+		scanOffsets();
+		scanHeader();
 
-		cf.savegame = new Savegame(savefile);
-			
-		return cf;
+		savegame = new Savegame(savefile);
 	}
 	
 	private void scanOffsets () throws IOException {
@@ -70,6 +96,47 @@ public class CartridgeFile {
 			ids[i] = source.readShort();
 			offsets[i] = source.readInt();
 		}
+		buildIndex();
+	}
+
+	private void buildIndex () {
+		int max = 0;
+		for (int i = 0; i < files; i++) max = Math.max(max, ids[i]);
+
+		if (max < files * 4 + 64) {
+			hashIds = null;
+			index = new int[max + 1];
+			for (int i = 0; i <= max; i++) index[i] = -1;
+			// backwards, so that the first of duplicate ids wins
+			for (int i = files - 1; i >= 0; i--)
+				if (ids[i] > 0) index[ids[i]] = i;
+		} else {
+			int size = 16;
+			while (size < files * 2) size *= 2;
+			hashIds = new int[size];
+			index = new int[size];
+			for (int i = 0; i < files; i++) {
+				if (ids[i] < 1) continue;
+				int h = ids[i] & (size - 1);
+				while (hashIds[h] != 0 && hashIds[h] != ids[i]) h = (h + 1) & (size - 1);
+				if (hashIds[h] == 0) {
+					hashIds[h] = ids[i];
+					index[h] = i;
+				}
+			}
+		}
+	}
+
+	/** Returns position of the file in offsets, or -1 if there is no such file. */
+	private int lookup (int oid) {
+		if (oid < 1) return -1;
+		if (hashIds == null) return oid < index.length ? index[oid] : -1;
+		int h = oid & (hashIds.length - 1);
+		while (hashIds[h] != 0) {
+			if (hashIds[h] == oid) return index[h];
+			h = (h + 1) & (hashIds.length - 1);
+		}
+		return -1;
 	}
 	
 	private void scanHeader () throws IOException {
@@ -100,57 +167,124 @@ public class CartridgeFile {
 
 	/** Return the Lua bytecode for this cartridge. */
 	public byte[] getBytecode () throws IOException {
-		source.seek(offsets[0]);
-		int len = source.readInt();
+		int len = seekBytecode();
 		byte[] ffile = new byte[len];
 		source.readFully(ffile);
 		return ffile;
 	}
 
-	private int lastId = -1;
-	private byte[] lastFile = null;
-
-	/** Return data of the specified data file. */
-	public byte[] getFile (int oid) throws IOException {
-		if (oid == lastId) return lastFile;
-
-		if (oid < 1) // invalid, apparently. or bytecode - lookie no touchie
-			return null;
+	/** Moves source to the start of Lua bytecode.
+	 * @return length of the bytecode
+	 */
+	protected int seekBytecode () throws IOException {
+		source.seek(offsets[0]);
+		return source.readInt();
+	}
 
-		int id = -1;
-		for (int i = 0; i < ids.length; i++)
-			if (ids[i] == oid) {
-				id = i;
-				break;
-			}
-		if (id == -1) return null;
+	/** Moves source to the start of data of the specified file.
+	 * @return length of the data, or -1 if there is no such file
+	 */
+	protected int seekFile (int oid) throws IOException {
+		// oid < 1 is invalid, apparently. or bytecode - lookie no touchie
+		int id = lookup(oid);
+		if (id == -1) return -1;
 		
 		source.seek(offsets[id]);
 		int a = source.read();
 		// id of resource. 0 means deleted
-		if (a < 1) return null;
+		if (a < 1) return -1;
 
 		int ttype = source.readInt(); // we don't need this?
-		int len = source.readInt();
+		return source.readInt();
+	}
 
-		// we found the data - release cache
-		lastFile = null;
-		lastId = -1;
+	/** Return data of the specified data file. */
+	public byte[] getFile (int oid) throws IOException {
+		byte[] ffile = cache.get(oid);
+		if (ffile != null) return ffile;
+		return readFile(oid);
+	}
 
+	/** reads the file from source and stores it in cache */
+	private byte[] readFile (int oid) throws IOException {
 		byte[] ffile;
+		int len = seekFile(oid);
+		if (len < 0) return null;
+
 		try {
 			ffile = new byte[len];
-			source.readFully(ffile);
 		} catch (OutOfMemoryError e) {
-			return null;
+			// release cache and try once more
+			cache.clear();
+			try {
+				ffile = new byte[len];
+			} catch (OutOfMemoryError f) {
+				return null;
+			}
 		}
+		source.readFully(ffile);
 
-		if (len < CACHE_LIMIT) {
-			lastId = oid;
-			lastFile = ffile;
-		}
+		cache.put(oid, ffile);
 		return ffile;
 	}
+
+	/** Returns data of several files at once.
+	 * <p>
+	 * Files that are not cached are read in the order in which they are
+	 * stored, so the reads go through the cartridge sequentially.
+	 * @param oids ids of requested files
+	 * @return data of the files in the order of oids, null for missing files
+	 */
+	public byte[][] getFiles (int[] oids) throws IOException {
+		byte[][] result = new byte[oids.length][];
+		// files that need reading: their offsets and positions in oids
+		int[] offs = new int[oids.length];
+		int[] order = new int[oids.length];
+		int n = 0;
+		for (int i = 0; i < oids.length; i++) {
+			result[i] = cache.get(oids[i]);
+			if (result[i] != null) continue;
+			int id = lookup(oids[i]);
+			if (id == -1) continue;
+			offs[n] = offsets[id];
+			order[n++] = i;
+		}
+		sort(offs, order, n);
+		for (int i = 0; i < n; i++) {
+			int k = order[i];
+			// duplicate requests are served by the first read
+			if (i > 0 && oids[order[i - 1]] == oids[k]) {
+				result[k] = result[order[i - 1]];
+				continue;
+			}
+			result[k] = readFile(oids[k]);
+		}
+		return result;
+	}
+
+	/** shell sort of the first n keys, moving values along */
+	private static void sort (int[] keys, int[] values, int n) {
+		int gap = 1;
+		while (gap < n / 3) gap = gap * 3 + 1;
+		for (; gap > 0; gap /= 3) {
+			for (int i = gap; i < n; i++) {
+				int k = keys[i], v = values[i];
+				int j = i;
+				while (j >= gap && keys[j - gap] > k) {
+					keys[j] = keys[j - gap];
+					values[j] = values[j - gap];
+					j -= gap;
+				}
+				keys[j] = k;
+				values[j] = v;
+			}
+		}
+	}
+
+	/** Loads the specified file into media cache, unless it is already there. */
+	public void prefetch (int oid) throws IOException {
+		if (!cache.contains(oid)) getFile(oid);
+	}
 	
 	public Savegame getSavegame () throws IOException {
 		return savegame;
@@ -0,0 +1,124 @@
+package cz.matejcik.openwig.formats;
+
+import java.util.Hashtable;
+
+/** Least-recently-used cache of media files, bounded by total size in bytes.
+ * <p>
+ * Files bigger than half of the capacity are not cached at all, so that
+ * one large sound doesn't push out all the icons.
+ * Hit, miss and eviction counts are kept for tuning the capacity.
+ */
+public class MediaCache {
+
+	private static class Entry {
+		int id;
+		byte[] data;
+		Entry prev, next;
+	}
+
+	/** Integer id -> Entry */
+	private Hashtable entries = new Hashtable();
+	/** list sentinel: head.next is the most recently used entry, head.prev the least */
+	private Entry head = new Entry();
+
+	private int capacity;
+	private int size = 0;
+
+	private int hits = 0, misses = 0, evictions = 0;
+
+	public MediaCache (int capacity) {
+		head.prev = head.next = head;
+		this.capacity = capacity;
+	}
+
+	/** Returns data of the specified file, or null if it is not cached. */
+	public synchronized byte[] get (int id) {
+		// UI tends to ask for the same file repeatedly
+		if (head.next != head && head.next.id == id) {
+			hits++;
+			return head.next.data;
+		}
+		Entry e = (Entry)entries.get(new Integer(id));
+		if (e == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		unlink(e);
+		link(e);
+		return e.data;
+	}
+
+	/** Checks for the file without affecting statistics or order. */
+	public synchronized boolean contains (int id) {
+		return entries.containsKey(new Integer(id));
+	}
+
+	/** Stores the file, evicting least recently used ones as needed. */
+	public synchronized void put (int id, byte[] data) {
+		remove(id);
+		if (data == null || data.length > capacity / 2) return;
+		Entry e = new Entry();
+		e.id = id;
+		e.data = data;
+		entries.put(new Integer(id), e);
+		link(e);
+		size += data.length;
+		trim();
+	}
+
+	public synchronized void remove (int id) {
+		Entry e = (Entry)entries.remove(new Integer(id));
+		if (e == null) return;
+		unlink(e);
+		size -= e.data.length;
+	}
+
+	/** Drops all cached files. Statistics are kept. */
+	public synchronized void clear () {
+		entries.clear();
+		head.prev = head.next = head;
+		size = 0;
+	}
+
+	/** Changes maximum total size of cached files, evicting if needed. */
+	public synchronized void setCapacity (int capacity) {
+		this.capacity = capacity;
+		trim();
+		// what was small enough before might not be now
+		Entry e = head.next;
+		while (e != head) {
+			Entry n = e.next;
+			if (e.data.length > capacity / 2) remove(e.id);
+			e = n;
+		}
+	}
+
+	private void trim () {
+		while (size > capacity && head.prev != head) {
+			remove(head.prev.id);
+			evictions++;
+		}
+	}
+
+	private void link (Entry e) {
+		e.prev = head;
+		e.next = head.next;
+		head.next.prev = e;
+		head.next = e;
+	}
+
+	private void unlink (Entry e) {
+		e.prev.next = e.next;
+		e.next.prev = e.prev;
+		e.prev = e.next = null;
+	}
+
+	public synchronized int getCapacity () { return capacity; }
+	/** total size of cached files in bytes */
+	public synchronized int getSize () { return size; }
+	public synchronized int getCount () { return entries.size(); }
+	public synchronized int getHits () { return hits; }
+	public synchronized int getMisses () { return misses; }
+	public synchronized int getEvictions () { return evictions; }
+}
@@ -0,0 +1,74 @@
+package cz.matejcik.openwig.formats;
+
+/** Maps objects to int ids by identity.
+ * <p>
+ * Used by Savegame to find objects that were already written.
+ * Unlike a Hashtable, it doesn't box the ids, doesn't synchronize
+ * and doesn't call equals() or hashCode() of the stored objects.
+ */
+final class ObjectIdMap {
+
+	private Object[] keys;
+	private int[] values;
+	private int size = 0;
+	/** number of bits of the table size */
+	private int bits;
+
+	public ObjectIdMap (int capacity) {
+		bits = 4;
+		while ((1 << bits) < capacity * 2) bits++;
+		keys = new Object[1 << bits];
+		values = new int[1 << bits];
+	}
+
+	private int slot (Object key) {
+		// spread identity hashes, which tend to be close to each other
+		int h = System.identityHashCode(key) * 0x9E3779B9;
+		return h >>> (32 - bits);
+	}
+
+	/** Returns id of the object, or -1 if it isn't in the map. */
+	public int get (Object key) {
+		int mask = keys.length - 1;
+		int i = slot(key);
+		while (true) {
+			Object k = keys[i];
+			if (k == key) return values[i];
+			if (k == null) return -1;
+			i = (i + 1) & mask;
+		}
+	}
+
+	/** Stores id of an object that isn't in the map yet. */
+	public void put (Object key, int value) {
+		if ((size + 1) * 2 > keys.length) grow();
+		int mask = keys.length - 1;
+		int i = slot(key);
+		while (keys[i] != null) i = (i + 1) & mask;
+		keys[i] = key;
+		values[i] = value;
+		size++;
+	}
+
+	private void grow () {
+		Object[] oldKeys = keys;
+		int[] oldValues = values;
+		bits++;
+		keys = new Object[1 << bits];
+		values = new int[1 << bits];
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++)
+			if (oldKeys[i] != null) put(oldKeys[i], oldValues[i]);
+	}
+
+	public int size () {
+		return size;
+	}
+
+	/** Forgets all objects. The table keeps its size. */
+	public void clear () {
+		if (size == 0) return;
+		for (int i = 0; i < keys.length; i++) keys[i] = null;
+		size = 0;
+	}
+}
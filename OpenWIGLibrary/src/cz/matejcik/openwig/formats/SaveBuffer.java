@@ -0,0 +1,101 @@
+package cz.matejcik.openwig.formats;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** Output buffer for Savegame.
+ * <p>
+ * Collects the many small writes of the savegame encoder in a byte array
+ * and passes them to the file in chunks of the buffer size. The buffer
+ * is kept between saves, and unlike BufferedOutputStream it doesn't
+ * synchronize on every byte.
+ * <p>
+ * Without a target, the buffer grows to hold everything written,
+ * which is used for journal records that are written with their length.
+ */
+final class SaveBuffer extends OutputStream {
+
+	private byte[] buf;
+	private int count = 0;
+	private OutputStream target;
+	private int written = 0;
+
+	public SaveBuffer (int size) {
+		buf = new byte[size];
+	}
+
+	/** Starts writing to a new target. Pass null to collect data in memory. */
+	public void reset (OutputStream target) {
+		this.target = target;
+		count = 0;
+		written = 0;
+	}
+
+	public void write (int b) throws IOException {
+		if (count == buf.length) makeRoom(1);
+		buf[count++] = (byte)b;
+	}
+
+	public void write (byte[] b, int off, int len) throws IOException {
+		if (target != null && len >= buf.length) {
+			// no point in copying big blocks
+			flushBuffer();
+			target.write(b, off, len);
+			written += len;
+			return;
+		}
+		if (count + len > buf.length) makeRoom(len);
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	private void makeRoom (int len) throws IOException {
+		if (target != null) {
+			flushBuffer();
+		} else {
+			int size = buf.length * 2;
+			if (size < count + len) size = count + len;
+			byte[] n = new byte[size];
+			System.arraycopy(buf, 0, n, 0, count);
+			buf = n;
+		}
+	}
+
+	private void flushBuffer () throws IOException {
+		if (count == 0) return;
+		target.write(buf, 0, count);
+		written += count;
+		count = 0;
+	}
+
+	public void flush () throws IOException {
+		if (target == null) return;
+		flushBuffer();
+		target.flush();
+	}
+
+	/** Number of bytes written since last reset, including those still in the buffer. */
+	public int size () {
+		return written + count;
+	}
+
+	/** Copies data collected in memory. */
+	public byte[] toByteArray () {
+		byte[] b = new byte[count];
+		System.arraycopy(buf, 0, b, 0, count);
+		return b;
+	}
+
+	/** Checks whether data collected in memory are the same as b. */
+	public boolean contentEquals (byte[] b) {
+		if (b == null || b.length != count) return false;
+		for (int i = 0; i < count; i++)
+			if (b[i] != buf[i]) return false;
+		return true;
+	}
+
+	/** Writes data collected in memory to out. */
+	public void writeTo (OutputStream out) throws IOException {
+		out.write(buf, 0, count);
+	}
+}
@@ -2,8 +2,10 @@ package cz.matejcik.openwig.formats;
 
 import java.io.*;
 import java.util.Hashtable;
+import java.util.Vector;
 
 import cz.matejcik.openwig.Engine;
+import cz.matejcik.openwig.EventTable;
 import cz.matejcik.openwig.Serializable;
 import cz.matejcik.openwig.platform.FileHandle;
 import se.krka.kahlua.vm.*;
@@ -34,39 +36,254 @@ public class Savegame {
 		return Class.forName(s);
 	}
 
+	/** version whose savegames this one can still read */
+	private static final String PREVIOUS_VERSION = "428";
+
 	protected boolean versionOk (String ver) {
-		return Engine.VERSION.equals(ver);
+		// older readers don't know shared closures, prototype records and
+		// the journal, so saves with those carry a new version
+		return Engine.VERSION.equals(ver) || PREVIOUS_VERSION.equals(ver);
+	}
+
+	/** Turns incremental saving on or off.
+	 * <p>
+	 * In incremental mode, the first store writes a full snapshot, like
+	 * normally. Following stores only append a journal record with
+	 * objects that changed since, which restore replays after reading
+	 * the snapshot. When the journal grows to half the size of the
+	 * snapshot, it is compacted into a new snapshot.
+	 * <p>
+	 * To find changes, Savegame keeps references to all stored objects,
+	 * including those that are no longer reachable, until next snapshot.
+	 */
+	public synchronized void setIncremental (boolean incremental) {
+		this.incremental = incremental;
+		dropSnapshot();
 	}
 
-	public void store (LuaTable table)
+	public boolean isIncremental () {
+		return incremental;
+	}
+
+	/** Stores the game.
+	 * Data go to a temporary file first, which replaces the save file
+	 * only when everything was written.
+	 * In incremental mode, only changes are appended to the save file,
+	 * if possible.
+	 */
+	public synchronized void store (LuaTable table)
 	throws IOException {
-		DataOutputStream out = null;
-		if (saveFile.exists())
-			saveFile.truncate(0);
-		else
-			saveFile.create();
+		if (incremental && snapshotRoot == table && journalSize * 2 <= snapshotSize) {
+			try {
+				storeDelta();
+				return;
+			} catch (IOException e) {
+				// the journal might be damaged now; a snapshot replaces it
+				Engine.log("STOR: journal write failed, storing full game: "+e.toString(), Engine.LOG_WARN);
+				dropSnapshot();
+			} catch (RuntimeException e) {
+				dropSnapshot();
+				throw e;
+			}
+		}
+		storeSnapshot(table);
+	}
+
+	private void storeSnapshot (LuaTable table)
+	throws IOException {
+		long start = System.currentTimeMillis();
+		snapshotRoot = null;
+		Engine.log("STOR: storing game", Engine.LOG_CALL);
+		OutputStream file = saveFile.openTemporaryOutputStream();
+		int size;
+		boolean written = false;
 		try {
-			Engine.log("STOR: storing game", Engine.LOG_CALL);
-			out = saveFile.openDataOutputStream();
+			buffer.reset(file);
 
 			out.writeUTF(SIGNATURE);
 			out.writeUTF(Engine.VERSION);
 			resetObjectStore();
 
 			//specialcase cartridge:
-			storeValue(Engine.instance.cartridge, out);
+			storeValue(Engine.current().cartridge, out);
 			
 			storeValue(table, out);
-			Engine.log("STOR: store successful", Engine.LOG_CALL);
+			out.flush();
+			size = buffer.size();
+			written = true;
 		} finally {
-			try { out.close(); } catch (Exception e) { }
+			if (!incremental) resetObjectStore();
+			buffer.reset(null);
+			// the save failed already, that error is the one to report
+			if (!written) try { file.close(); } catch (Exception e) { }
 		}
+		// a file that can't be closed may be incomplete, so it must not replace the save
+		file.close();
+		saveFile.commitTemporary();
+		if (incremental) {
+			updateBaselines();
+			snapshotRoot = table;
+			snapshotSize = size;
+			journalSize = 0;
+		}
+		lastSize = size;
+		lastTime = System.currentTimeMillis() - start;
+		Engine.log("STOR: store successful, "+lastSize+" bytes in "+lastTime+" ms", Engine.LOG_CALL);
+	}
+
+	/** Size in bytes of the last stored game, or -1 if none was stored yet. */
+	public int getLastSaveSize () {
+		return lastSize;
+	}
+
+	/** How long it took to store the last game, in milliseconds, or -1 if none was stored yet. */
+	public long getLastSaveTime () {
+		return lastTime;
+	}
+
+	/** Appends a journal record with objects that changed since last store. */
+	private void storeDelta ()
+	throws IOException {
+		long start = System.currentTimeMillis();
+		journal.reset(null);
+		int known = currentId;
+		int changes = 0;
+		for (int id = 0; id < known; id++) {
+			Object obj = stored[id];
+			if (obj instanceof LuaTableImpl) {
+				if (!storeTableDelta(id, (LuaTableImpl)obj)) continue;
+			} else if (obj instanceof LuaClosure) {
+				LuaClosure c = (LuaClosure)obj;
+				if (sameUpvalues(c, (Object[])baselines[id])) continue;
+				journalOut.writeByte(DELTA_UPVALUES);
+				journalOut.writeInt(id);
+				for (int i = 0; i < c.upvalues.length; i++)
+					storeValue(c.upvalues[i].getValue(), journalOut);
+				baselines[id] = null;
+			} else if (obj instanceof Serializable) {
+				// Java fields of an EventTable, like Container.container, follow its
+				// table. Its record goes after that of the table, so that replaying
+				// it through deserialize() brings them in line with the new contents.
+				boolean tableChanged = false;
+				if (obj instanceof EventTable) {
+					LuaTable t = ((EventTable)obj).table;
+					int tid = objectIds.get(t);
+					if (t instanceof LuaTableImpl && tid >= 0 && tid < known && storeTableDelta(tid, (LuaTableImpl)t)) {
+						changes++;
+						tableChanged = true;
+					}
+				}
+				if (!tableChanged && probe((Serializable)obj) && probe.contentEquals((byte[])baselines[id])) continue;
+				journalOut.writeByte(DELTA_OBJECT);
+				journalOut.writeInt(id);
+				((Serializable)obj).serialize(journalOut);
+				baselines[id] = null;
+			} else {
+				continue;
+			}
+			changes++;
+		}
+		if (changes == 0) {
+			lastSize = 0;
+			lastTime = System.currentTimeMillis() - start;
+			Engine.log("STOR: nothing changed", Engine.LOG_CALL);
+			return;
+		}
+		journalOut.writeByte(DELTA_END);
+		updateBaselines();
+
+		DataOutputStream file = new DataOutputStream(saveFile.openAppendOutputStream());
+		boolean written = false;
+		try {
+			file.writeByte(JOURNAL_RECORD);
+			file.writeInt(journal.size());
+			journal.writeTo(file);
+			file.flush();
+			written = true;
+		} finally {
+			if (!written) try { file.close(); } catch (Exception e) { }
+		}
+		// if the record can't be closed, store() replaces the journal with a snapshot
+		file.close();
+		lastSize = journal.size() + 5;
+		journalSize += lastSize;
+		lastTime = System.currentTimeMillis() - start;
+		Engine.log("STOR: stored "+changes+" changed objects, "+lastSize+" bytes in "+lastTime+" ms", Engine.LOG_CALL);
+	}
+
+	/** Writes a journal entry with contents of the table, if it changed. */
+	private boolean storeTableDelta (int id, LuaTableImpl t)
+	throws IOException {
+		if (!t.isDirty()) return false;
+		t.clearDirty();
+		journalOut.writeByte(DELTA_TABLE);
+		journalOut.writeInt(id);
+		serializeLuaTable(t, journalOut);
+		return true;
+	}
+
+	/** Serializes the object into the probe buffer, without storing anything new.
+	 * @return false if the object refers to objects that weren't stored yet
+	 */
+	private boolean probe (Serializable obj)
+	throws IOException {
+		probe.reset(null);
+		probing = true;
+		probeMiss = false;
+		try {
+			obj.serialize(probeOut);
+		} finally {
+			probing = false;
+		}
+		return !probeMiss;
+	}
+
+	private static boolean sameUpvalues (LuaClosure c, Object[] values) {
+		if (values == null || values.length != c.upvalues.length) return false;
+		for (int i = 0; i < values.length; i++) {
+			Object v = c.upvalues[i].getValue();
+			if (v != values[i] && (v == null || !v.equals(values[i]))) return false;
+		}
+		return true;
+	}
+
+	/** Records current state of closures and Serializable objects that don't have it yet. */
+	private void updateBaselines ()
+	throws IOException {
+		if (baselines.length < stored.length) {
+			Object[] n = new Object[stored.length];
+			System.arraycopy(baselines, 0, n, 0, baselines.length);
+			baselines = n;
+		}
+		for (int id = 0; id < currentId; id++) {
+			if (baselines[id] != null) continue;
+			Object obj = stored[id];
+			if (obj instanceof LuaClosure) {
+				LuaClosure c = (LuaClosure)obj;
+				Object[] values = new Object[c.upvalues.length];
+				for (int i = 0; i < values.length; i++) values[i] = c.upvalues[i].getValue();
+				baselines[id] = values;
+			} else if (obj instanceof Serializable) {
+				// left null if it can't be probed, so that it is written next time
+				if (probe((Serializable)obj)) baselines[id] = probe.toByteArray();
+			}
+		}
+	}
+
+	private void dropSnapshot () {
+		snapshotRoot = null;
+		resetObjectStore();
 	}
 
 	protected void resetObjectStore () {
-		objectStore = new Hashtable(256);
-		// XXX why did i choose to use LuaTable over Hashtable?
+		objectIds.clear();
+		for (int i = 0; i < currentId && i < stored.length; i++) stored[i] = null;
+		for (int i = 0; i < currentId && i < baselines.length; i++) baselines[i] = null;
+		for (int i = 0; i < currentId && i < restored.length; i++) restored[i] = null;
 		currentId = 0;
+		protoIds.clear();
+		for (int i = 0; i < currentProto; i++) restoredProtos[i] = null;
+		currentProto = 0;
 		level = 0;
 	}
 
@@ -86,20 +303,120 @@ public class Savegame {
 			resetObjectStore();
 
 			// specialcase cartridge: (TODO make a generic mechanism for this)
-			Engine.instance.cartridge = (cz.matejcik.openwig.Cartridge)restoreValue(dis, null);
+			Engine.current().cartridge = (cz.matejcik.openwig.Cartridge)restoreValue(dis, null);
 			
 			restoreValue(dis, table);
+
+			replayJournal(dis);
 		} catch (IOException e) {
 			e.printStackTrace();
 			throw new IOException("Problem loading game: "+e.getMessage());
 		} finally {
+			dropSnapshot();
 			dis.close();
 		}
 	}
 
-	private Hashtable objectStore;
+	/** Applies journal records that follow the snapshot. */
+	private void replayJournal (DataInputStream dis)
+	throws IOException {
+		int records = 0;
+		while (true) {
+			int marker = dis.read();
+			if (marker == -1) break;
+			byte[] record;
+			try {
+				if (marker != JOURNAL_RECORD) throw new EOFException();
+				int len = dis.readInt();
+				if (len <= 0) throw new EOFException();
+				record = new byte[len];
+				dis.readFully(record);
+			} catch (EOFException e) {
+				// the game was interrupted while saving, last record is incomplete
+				Engine.log("REST: ignoring incomplete journal record", Engine.LOG_WARN);
+				break;
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+			while (true) {
+				byte type = in.readByte();
+				if (type == DELTA_END) break;
+				int id = in.readInt();
+				Object obj = (id >= 0 && id < currentId) ? restored[id] : null;
+				if (obj == null) throw new IOException("journal refers to unknown object "+id);
+				if (debug) debug("journal: object "+id+"\n");
+				switch (type) {
+					case DELTA_TABLE:
+						replaceContents((LuaTable)obj, deserializeLuaTable(in, new LuaTableImpl()));
+						break;
+					case DELTA_OBJECT:
+						((Serializable)obj).deserialize(in);
+						break;
+					case DELTA_UPVALUES:
+						LuaClosure c = (LuaClosure)obj;
+						for (int i = 0; i < c.upvalues.length; i++)
+							c.upvalues[i].value = restoreValue(in, null);
+						break;
+					default:
+						throw new IOException("unknown journal entry "+type);
+				}
+			}
+			records++;
+		}
+		if (records > 0) Engine.log("REST: replayed "+records+" journal records", Engine.LOG_CALL);
+	}
+
+	private static void replaceContents (LuaTable table, LuaTable contents) {
+		Vector removed = new Vector();
+		Object next = null;
+		while ((next = table.next(next)) != null) {
+			if (contents.rawget(next) == null) removed.addElement(next);
+		}
+		for (int i = 0; i < removed.size(); i++) table.rawset(removed.elementAt(i), null);
+		next = null;
+		while ((next = contents.next(next)) != null) {
+			table.rawset(next, contents.rawget(next));
+		}
+	}
+
+	/** ids of objects already stored */
+	private ObjectIdMap objectIds = new ObjectIdMap(256);
+	/** objects already restored, by id */
+	private Object[] restored = new Object[256];
 	private int currentId;
 
+	/** ids of function prototypes already stored */
+	private ObjectIdMap protoIds = new ObjectIdMap(64);
+	/** function prototypes already restored, by id */
+	private LuaPrototype[] restoredProtos = new LuaPrototype[64];
+	private int currentProto;
+
+	/** code of the running cartridge, in depth-first order */
+	private LuaPrototype[] cartridgeProtos = new LuaPrototype[0];
+	private ObjectIdMap cartridgeProtoIds = new ObjectIdMap(0);
+	private int cartridgeFingerprint;
+
+	private SaveBuffer buffer = new SaveBuffer(8192);
+	/** encoder writing to the buffer, reused between saves */
+	private DataOutputStream out = new DataOutputStream(buffer);
+	private int lastSize = -1;
+	private long lastTime = -1;
+
+	private boolean incremental = false;
+	/** root table of the snapshot that the journal continues, null if there is none */
+	private LuaTable snapshotRoot;
+	private int snapshotSize, journalSize;
+	/** objects stored since the snapshot, by id */
+	private Object[] stored = new Object[256];
+	/** state of stored objects that don't track their changes, by id:
+	 * byte[] with output of serialize(), or Object[] with upvalues of a closure */
+	private Object[] baselines = new Object[256];
+
+	private SaveBuffer journal = new SaveBuffer(1024);
+	private DataOutputStream journalOut = new DataOutputStream(journal);
+	private SaveBuffer probe = new SaveBuffer(256);
+	private DataOutputStream probeOut = new DataOutputStream(probe);
+	private boolean probing, probeMiss;
+
 	private Hashtable idToJavafuncMap = new Hashtable(128);
 	private Hashtable javafuncToIdMap = new Hashtable(128);
 	private int currentJavafunc = 0;
@@ -132,10 +449,22 @@ public class Savegame {
 	private static final byte LUA_OBJECT	= 0x06;
 	private static final byte LUA_REFERENCE = 0x07;
 	private static final byte LUA_JAVAFUNC	= 0x08;
+	private static final byte LUA_SHARED_CLOSURE = 0x09;
 
 	private static final byte LUATABLE_PAIR = 0x10;
 	private static final byte LUATABLE_END  = 0x11;
 
+	private static final byte JOURNAL_RECORD = 0x20;
+	private static final byte DELTA_TABLE    = 0x21;
+	private static final byte DELTA_OBJECT   = 0x22;
+	private static final byte DELTA_UPVALUES = 0x23;
+	private static final byte DELTA_END      = 0x24;
+
+	private static final byte PROTO_DUMP      = 0x30;
+	private static final byte PROTO_REFERENCE = 0x31;
+	private static final byte PROTO_CARTRIDGE = 0x32;
+	private static final byte PROTO_BYTECODE  = 0x33;
+
 	public void addJavafunc (JavaFunction javafunc) {
 		Integer id = new Integer(currentJavafunc++);
 		idToJavafuncMap.put(id, javafunc);
@@ -159,26 +488,31 @@ public class Savegame {
 			out.writeByte(LUA_NIL);
 			return;
 		}
-		Integer i = (Integer)objectStore.get(obj);
-		if (i != null) {
+		int i = objectIds.get(obj);
+		if (i >= 0) {
 			out.writeByte(LUA_REFERENCE);
- 			if (debug) debug("reference "+i.intValue()+" ("+obj.toString()+")");
-			out.writeInt(i.intValue());
+ 			if (debug) debug("reference "+i+" ("+obj.toString()+")");
+			out.writeInt(i);
+		} else if (probing) {
+			probeMiss = true;
+			out.writeByte(LUA_NIL);
 		} else {
-			i = new Integer(currentId++);
-			objectStore.put(obj, i);
-			if (debug) debug("(ref"+i.intValue()+")");
+			i = currentId++;
+			objectIds.put(obj, i);
+			if (incremental) remember(i, obj);
+			if (debug) debug("(ref"+i+")");
 			if (obj instanceof Serializable) {
 				out.writeByte(LUA_OBJECT);
 				out.writeUTF(obj.getClass().getName());
 				if (debug) debug(obj.getClass().getName() + " (" + obj.toString()+")");
 				((Serializable)obj).serialize(out);
 			} else if (obj instanceof LuaTable) {
+				if (obj instanceof LuaTableImpl) ((LuaTableImpl)obj).clearDirty();
 				out.writeByte(LUA_TABLE);
 				if (debug) debug("table("+obj.toString()+"):\n");
 				serializeLuaTable((LuaTable)obj, out);
 			} else if (obj instanceof LuaClosure) {
-				out.writeByte(LUA_CLOSURE);
+				out.writeByte(LUA_SHARED_CLOSURE);
 				if (debug) debug("closure("+obj.toString()+")");
 				serializeLuaClosure((LuaClosure)obj, out);
 			} else {
@@ -264,10 +598,24 @@ public class Savegame {
 		}
 	}
 
+	private void remember (int id, Object o) {
+		if (id >= stored.length) {
+			Object[] n = new Object[stored.length * 2];
+			System.arraycopy(stored, 0, n, 0, stored.length);
+			stored = n;
+		}
+		stored[id] = o;
+	}
+
 	private void restCache (Object o) {
-		Integer i = new Integer(currentId++);
-		objectStore.put(i, o);
-		if (debug) debug("(ref"+i.intValue()+")");
+		if (currentId == restored.length) {
+			Object[] n = new Object[restored.length * 2];
+			System.arraycopy(restored, 0, n, 0, restored.length);
+			restored = n;
+		}
+		restored[currentId] = o;
+		if (debug) debug("(ref"+currentId+")");
+		currentId++;
 	}
 
 	private Object restoreObject (DataInputStream in, byte type, Object target)
@@ -283,8 +631,9 @@ public class Savegame {
 				if (debug) debug("table:\n");
 				return deserializeLuaTable(in, lti);
 			case LUA_CLOSURE:
+			case LUA_SHARED_CLOSURE:
 				if (debug) debug("closure: ");
-				LuaClosure lc = deserializeLuaClosure(in);
+				LuaClosure lc = deserializeLuaClosure(in, type == LUA_SHARED_CLOSURE);
 				if (debug) debug(lc.toString());
 				return lc;
 			case LUA_OBJECT:
@@ -306,11 +655,11 @@ public class Savegame {
 				}
 				return s;
 			case LUA_REFERENCE:
-				Integer what = new Integer(in.readInt());
-				if (debug) debug("reference "+what.intValue());
-				Object result = objectStore.get(what);
+				int what = in.readInt();
+				if (debug) debug("reference "+what);
+				Object result = (what >= 0 && what < currentId) ? restored[what] : null;
 				if (result == null) {
-					Engine.log("REST: not found reference "+what.toString()+" in object store", Engine.LOG_WARN);
+					Engine.log("REST: not found reference "+what+" in object store", Engine.LOG_WARN);
 					if (debug) debug(" (which happens to be null?)");
 					return target;
 				} else {
@@ -345,7 +694,7 @@ public class Savegame {
 
 	private void serializeLuaClosure (LuaClosure closure, DataOutputStream out)
 	throws IOException {
-		closure.prototype.dump(out);
+		storePrototype(closure.prototype, out);
 		for (int i = 0; i < closure.upvalues.length; i++) {
 			UpValue u = closure.upvalues[i];
 			if (u.value == null) {
@@ -356,9 +705,11 @@ public class Savegame {
 		}
 	}
 
-	private LuaClosure deserializeLuaClosure (DataInputStream in)
+	private LuaClosure deserializeLuaClosure (DataInputStream in, boolean shared)
 	throws IOException {
-		LuaClosure closure = LuaPrototype.loadByteCode(in, Engine.state.getEnvironment());
+		LuaClosure closure;
+		if (shared) closure = new LuaClosure(restorePrototype(in), Engine.current().luaState.getEnvironment());
+		else closure = LuaPrototype.loadByteCode(in, Engine.current().luaState.getEnvironment());
 		restCache(closure);
 		for (int i = 0; i < closure.upvalues.length; i++) {
 			UpValue u = new UpValue();
@@ -367,4 +718,102 @@ public class Savegame {
 		}
 		return closure;
 	}
+
+	/** Sets code of the running cartridge.
+	 * <p>
+	 * Closures whose functions come from the cartridge are then stored
+	 * as references into its code, instead of dumping their bytecode.
+	 * Restore needs the same code to find them.
+	 */
+	public void setCartridgeCode (LuaPrototype root) {
+		Vector v = new Vector();
+		if (root != null) flattenPrototypes(root, v);
+		cartridgeProtos = new LuaPrototype[v.size()];
+		v.copyInto(cartridgeProtos);
+		cartridgeProtoIds = new ObjectIdMap(cartridgeProtos.length);
+		for (int i = 0; i < cartridgeProtos.length; i++) cartridgeProtoIds.put(cartridgeProtos[i], i);
+		cartridgeFingerprint = fingerprint(cartridgeProtos);
+	}
+
+	private static void flattenPrototypes (LuaPrototype p, Vector v) {
+		v.addElement(p);
+		for (int i = 0; i < p.prototypes.length; i++) flattenPrototypes(p.prototypes[i], v);
+	}
+
+	/** Identifies the cartridge code, so that references into different code are refused. */
+	private static int fingerprint (LuaPrototype[] protos) {
+		int h = protos.length;
+		for (int i = 0; i < protos.length; i++) {
+			LuaPrototype p = protos[i];
+			h = h * 31 + p.numParams;
+			h = h * 31 + p.numUpvalues;
+			h = h * 31 + p.constants.length;
+			int[] code = p.code;
+			for (int j = 0; j < code.length; j++) h = h * 31 + code[j];
+		}
+		return h;
+	}
+
+	/** Writes a function prototype, or a reference to it if it was already written. */
+	private void storePrototype (LuaPrototype p, DataOutputStream out)
+	throws IOException {
+		int i = protoIds.get(p);
+		if (i >= 0) {
+			out.writeByte(PROTO_REFERENCE);
+			out.writeInt(i);
+			if (debug) debug("prototype "+i+" ");
+			return;
+		}
+		protoIds.put(p, currentProto++);
+		i = cartridgeProtoIds.get(p);
+		if (i >= 0) {
+			out.writeByte(PROTO_CARTRIDGE);
+			out.writeInt(cartridgeFingerprint);
+			out.writeInt(i);
+			if (debug) debug("cartridge prototype "+i+" ");
+		} else {
+			// with its size, so that restore can load it from an array
+			ByteArrayOutputStream dump = new ByteArrayOutputStream();
+			p.dump(dump);
+			out.writeByte(PROTO_BYTECODE);
+			out.writeInt(dump.size());
+			dump.writeTo(out);
+		}
+	}
+
+	private LuaPrototype restorePrototype (DataInputStream in)
+	throws IOException {
+		byte type = in.readByte();
+		LuaPrototype p;
+		switch (type) {
+			case PROTO_REFERENCE:
+				int id = in.readInt();
+				if (id < 0 || id >= currentProto) throw new IOException("unknown function prototype "+id);
+				return restoredProtos[id];
+			case PROTO_CARTRIDGE:
+				int fp = in.readInt();
+				int index = in.readInt();
+				if (fp != cartridgeFingerprint || index < 0 || index >= cartridgeProtos.length)
+					throw new IOException("savegame doesn't match cartridge code");
+				p = cartridgeProtos[index];
+				break;
+			case PROTO_DUMP:
+				p = LuaPrototype.loadByteCode(in, null).prototype;
+				break;
+			case PROTO_BYTECODE:
+				byte[] dump = new byte[in.readInt()];
+				in.readFully(dump);
+				p = LuaPrototype.loadByteCode(dump, null).prototype;
+				break;
+			default:
+				throw new IOException("unknown function prototype type "+type);
+		}
+		if (currentProto == restoredProtos.length) {
+			LuaPrototype[] n = new LuaPrototype[restoredProtos.length * 2];
+			System.arraycopy(restoredProtos, 0, n, 0, restoredProtos.length);
+			restoredProtos = n;
+		}
+		restoredProtos[currentProto++] = p;
+		return p;
+	}
 }
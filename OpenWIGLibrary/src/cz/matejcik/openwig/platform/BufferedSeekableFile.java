@@ -0,0 +1,165 @@
+package cz.matejcik.openwig.platform;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/** SeekableFile that reads through a window over the file.
+ * <p>
+ * Primitives and strings are decoded straight from the window, so
+ * parsing a header costs a few large reads instead of a native call
+ * for every number and every byte of a string. Seeking inside the
+ * window keeps it, seeking elsewhere throws it away.
+ * <p>
+ * Subclasses only provide reading from an absolute position.
+ */
+public abstract class BufferedSeekableFile implements SeekableFile {
+
+	private byte[] buf;
+	/** file position of buf[0] */
+	private long start = 0;
+	/** number of valid bytes in buf */
+	private int count = 0;
+	/** current position in buf */
+	private int pos = 0;
+
+	private char[] chars = new char[64];
+
+	protected BufferedSeekableFile (int size) {
+		buf = new byte[size];
+	}
+
+	protected BufferedSeekableFile () {
+		this(8192);
+	}
+
+	/** Reads up to len bytes from the specified position of the file.
+	 * @return number of bytes read, or -1 at end of file
+	 */
+	protected abstract int readAt (long position, byte[] b, int off, int len) throws IOException;
+
+	/** Returns the length of the file. */
+	protected abstract long length () throws IOException;
+
+	/** Makes sure that at least n bytes are available in the window.
+	 * @return false if the file ends sooner
+	 */
+	private boolean fill (int n) throws IOException {
+		if (count - pos >= n) return true;
+		// move the rest to the front and read after it
+		int rest = count - pos;
+		System.arraycopy(buf, pos, buf, 0, rest);
+		start += pos;
+		pos = 0;
+		count = rest;
+		while (count < n) {
+			int r = readAt(start + count, buf, count, buf.length - count);
+			if (r <= 0) return false;
+			count += r;
+		}
+		return true;
+	}
+
+	private void require (int n) throws IOException {
+		if (!fill(n)) throw new EOFException();
+	}
+
+	public void seek (long position) throws IOException {
+		if (position >= start && position <= start + count) {
+			pos = (int)(position - start);
+		} else {
+			start = position;
+			count = 0;
+			pos = 0;
+		}
+	}
+
+	public long position () throws IOException {
+		return start + pos;
+	}
+
+	/** Skips at most what bytes, stopping at the end of the file.
+	 * @return number of bytes actually skipped
+	 */
+	public long skip (long what) throws IOException {
+		if (what <= 0) return 0;
+		long here = start + pos;
+		long to = Math.min(here + what, Math.max(here, length()));
+		seek(to);
+		return to - here;
+	}
+
+	public short readShort () throws IOException {
+		require(2);
+		int p = pos;
+		pos += 2;
+		return (short)((buf[p] & 0xff) | (buf[p + 1] << 8));
+	}
+
+	public int readInt () throws IOException {
+		require(4);
+		int p = pos;
+		pos += 4;
+		return (buf[p] & 0xff) | (buf[p + 1] & 0xff) << 8
+			| (buf[p + 2] & 0xff) << 16 | buf[p + 3] << 24;
+	}
+
+	public long readLong () throws IOException {
+		require(8);
+		int p = pos;
+		pos += 8;
+		int lo = (buf[p] & 0xff) | (buf[p + 1] & 0xff) << 8
+			| (buf[p + 2] & 0xff) << 16 | buf[p + 3] << 24;
+		int hi = (buf[p + 4] & 0xff) | (buf[p + 5] & 0xff) << 8
+			| (buf[p + 6] & 0xff) << 16 | buf[p + 7] << 24;
+		return ((long)hi << 32) | (lo & 0xffffffffL);
+	}
+
+	public double readDouble () throws IOException {
+		return Double.longBitsToDouble(readLong());
+	}
+
+	public void readFully (byte[] b) throws IOException {
+		int done = count - pos;
+		if (done >= b.length) {
+			System.arraycopy(buf, pos, b, 0, b.length);
+			pos += b.length;
+			return;
+		}
+		System.arraycopy(buf, pos, b, 0, done);
+		long at = start + count;
+		// read the rest directly, it would only pass through the window
+		while (done < b.length) {
+			int r = readAt(at, b, done, b.length - done);
+			if (r <= 0) {
+				seek(at);
+				throw new EOFException();
+			}
+			done += r;
+			at += r;
+		}
+		start = at;
+		count = 0;
+		pos = 0;
+	}
+
+	public String readString () throws IOException {
+		int len = 0;
+		while (true) {
+			if (pos == count && !fill(1)) break;
+			int b = buf[pos++] & 0xff;
+			if (b == 0) break;
+			if (len == chars.length) {
+				char[] n = new char[len * 2];
+				System.arraycopy(chars, 0, n, 0, len);
+				chars = n;
+			}
+			chars[len++] = (char)b;
+		}
+		return new String(chars, 0, len);
+	}
+
+	public int read () throws IOException {
+		if (pos == count && !fill(1)) return -1;
+		return buf[pos++] & 0xff;
+	}
+}
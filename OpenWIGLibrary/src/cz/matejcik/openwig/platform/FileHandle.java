@@ -9,7 +9,9 @@ import java.io.*;
  * both reading and writing.
  * <p>
  * FileHandle is used by Savegame to create save files only when needed
- * and to read and write game state data.
+ * and to read and write game state data. Savegame writes a temporary file
+ * first and replaces the underlying file only after the whole game is stored,
+ * so that a failed save doesn't destroy the previous one.
  */
 public interface FileHandle {
 	/** Opens a DataInputStream for reading */
@@ -37,4 +39,18 @@ public interface FileHandle {
 	 * @param len desired length of file.
 	 */
 	void truncate (long len) throws IOException;
+
+	/** Opens a stream for writing a temporary file next to the underlying one.
+	 * If such a file exists, it is overwritten.
+	 */
+	OutputStream openTemporaryOutputStream () throws IOException;
+
+	/** Replaces the underlying file with the temporary file.
+	 * Should be atomic where the platform allows it, so that after a crash
+	 * the underlying file holds either the old or the new data.
+	 */
+	void commitTemporary () throws IOException;
+
+	/** Opens a stream for writing at the end of the underlying file. */
+	OutputStream openAppendOutputStream () throws IOException;
 }
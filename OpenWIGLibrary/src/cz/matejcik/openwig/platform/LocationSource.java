@@ -0,0 +1,47 @@
+package cz.matejcik.openwig.platform;
+
+import java.util.Vector;
+
+/** LocationService that tells when it has a new fix.
+ * <p>
+ * Engine polls a plain LocationService once per second. A LocationSource
+ * lets it react to each new position right away, and sleep when there
+ * is neither a new position nor anything else to do.
+ */
+public interface LocationSource extends LocationService {
+
+	/** Receiver of location updates */
+	public static interface Listener {
+		/** Called when the source has a new position, in the thread
+		 * that received it. Should return quickly.
+		 */
+		public void locationChanged (LocationService source);
+	}
+
+	public void addLocationListener (Listener l);
+	public void removeLocationListener (Listener l);
+
+	/** Listeners of a LocationSource, for implementations to share. */
+	public static class ListenerList {
+		private Vector listeners = new Vector();
+
+		public synchronized void add (Listener l) {
+			if (!listeners.contains(l)) listeners.addElement(l);
+		}
+
+		public synchronized void remove (Listener l) {
+			listeners.removeElement(l);
+		}
+
+		/** Tells all listeners about a new position of source. */
+		public void fire (LocationService source) {
+			Listener[] ls;
+			synchronized (this) {
+				if (listeners.isEmpty()) return;
+				ls = new Listener[listeners.size()];
+				listeners.copyInto(ls);
+			}
+			for (int i = 0; i < ls.length; i++) ls[i].locationChanged(source);
+		}
+	}
+}
@@ -104,7 +104,7 @@ public class OsLib implements JavaFunction {
 
 	private int time(LuaCallFrame cf, int nargs) {
 		if (nargs == 0) {
-			double t = (double) System.currentTimeMillis() * TIME_DIVIDEND_INVERTED;
+			double t = (double) cf.thread.state.currentTimeMillis() * TIME_DIVIDEND_INVERTED;
 			cf.push(LuaState.toDouble(t));
 		} else {
 			LuaTable table = (LuaTable) BaseLib.getArg(cf, 1, BaseLib.TYPE_TABLE, "time");
@@ -123,11 +123,11 @@ public class OsLib implements JavaFunction {
 
 	private int date(LuaCallFrame cf, int nargs) {
 		if (nargs == 0) {
-			return cf.push(getdate(DEFAULT_FORMAT));
+			return cf.push(getdate(DEFAULT_FORMAT, cf.thread.state.currentTimeMillis()));
 		} else {
 			String format = BaseLib.rawTostring(cf.get(0));
 			if (nargs == 1) {
-				return cf.push(getdate(format));
+				return cf.push(getdate(format, cf.thread.state.currentTimeMillis()));
 			} else {
 				Double rawTonumber = BaseLib.rawTonumber(cf.get(1));
 				long time = (long) (rawTonumber.doubleValue() * TIME_DIVIDEND);
@@ -21,6 +21,8 @@ THE SOFTWARE.
  */
 package se.krka.kahlua.stdlib;
 
+import java.util.Hashtable;
+
 import se.krka.kahlua.vm.JavaFunction;
 import se.krka.kahlua.vm.LuaCallFrame;
 import se.krka.kahlua.vm.LuaState;
@@ -739,7 +741,7 @@ public final class StringLib implements JavaFunction {
 		int offset = ii - 1;
 		for (int i = 0; i < nReturns; i++) {
 			char c = s.charAt(offset + i);
-			callFrame.set(i, new Double((double) c));                   
+			callFrame.set(i, LuaState.toDouble((int) c));                   
 		}
 		return nReturns;
 	}
@@ -788,164 +790,156 @@ public final class StringLib implements JavaFunction {
 
 	/* Pattern Matching
 	 * Original code that this was adapted from is copyright (c) 2008 groundspeak, inc.
+	 *
+	 * The matcher works on int positions in char arrays, -1 meaning "no match".
+	 * Patterns are parsed once and kept in a small cache; working buffers
+	 * live in pooled MatchStates, so a match allocates nothing but its results.
 	 */
 
-	public static class MatchState {
-
-		public MatchState () {
-			capture = new Capture[ LUA_MAXCAPTURES ];
-			for ( int i = 0; i < LUA_MAXCAPTURES; i ++ ) {
-				capture[i] = new Capture ();
-			}
-		}
-		public StringPointer src_init;  /* init of source string */
-
-		public int endIndex; /* end (`\0') of source string */
-
-		public LuaCallFrame callFrame;
-		public int level;  /* total number of captures (finished or unfinished) */
-
-		public Capture[] capture;
-
-		public static class Capture {
-
-			public StringPointer init;
-			public int len;
-		}
-
-		public Object[] getCaptures() {
-			if (level <= 0) {
-				return null;
-			}
-			Object[] caps = new String[level];
-			for (int i = 0; i < level; i++) {
-				if (capture[i].len == CAP_POSITION) {
-					caps[i] = new Double(src_init.length() - capture[i].init.length() + 1);
-				} else {
-					caps[i] = capture[i].init.getString().substring(0, capture[i].len);
-				}
-			}
-			return caps;
+	private static final int PATTERN_CACHE_SIZE = 64;
+	/** MatchState keeps buffers up to this many chars when returned to the pool */
+	private static final int MAX_POOLED_BUFFER = 4096;
+
+	/** String -> Pattern */
+	private static final Hashtable patterns = new Hashtable();
+	private static MatchState pool;
+
+	private static final class Pattern {
+		final char[] chars;
+		/** 1 if the pattern is anchored with '^', 0 otherwise */
+		final int start;
+		/** pattern contains no special characters, find() can search for it as-is */
+		final boolean plain;
+		/** classEnd() for every position, filled in as the pattern is used; 0 if not known yet */
+		final int[] ends;
+
+		Pattern (String pattern) {
+			chars = pattern.toCharArray();
+			start = (chars.length > 0 && chars[0] == '^') ? 1 : 0;
+			plain = noSpecialChars(pattern);
+			ends = new int[chars.length];
 		}
 	}
 
-	public static class StringPointer {
-
-		private String string;
-		private int index = 0;
-
-		public StringPointer(String original) {
-			this.string = original;
-		}
-
-		public StringPointer(String original, int index) {
-			this.string = original;
-			this.index = index;
-		}
+	private static final class MatchState {
+		String source;
+		char[] src = new char[64];
+		int srcLen;
 
-		public StringPointer getClone() {
-			StringPointer newSP = new StringPointer( this.getOriginalString(), this.getIndex() );
-			return newSP;
-		}
+		char[] pat;
+		int patLen;
+		int[] ends;
 
-		public int getIndex () {
-			return index;
-		}
+		LuaCallFrame callFrame;
+		int level;  /* total number of captures (finished or unfinished) */
+		final int[] captureInit = new int[LUA_MAXCAPTURES];
+		final int[] captureLen = new int[LUA_MAXCAPTURES];
 
-		public void setIndex ( int ind ) {
-			index = ind;
-		}
+		/** gsub output */
+		char[] out = new char[64];
+		int outLen;
 
-		public String getOriginalString () {
-			return string;
-		}
+		MatchState next;
 
-		public void setOriginalString(String orStr) {
-			string = orStr;
+		void append (char c) {
+			if (outLen == out.length) grow(1);
+			out[outLen++] = c;
 		}
 
-		public String getString() {
-			return getString(0);
+		void append (char[] chars, int start, int end) {
+			int len = end - start;
+			if (outLen + len > out.length) grow(len);
+			System.arraycopy(chars, start, out, outLen, len);
+			outLen += len;
 		}
 
-		public String getString(int i) {
-			return string.substring ( index + i, string.length () );
+		void append (String s) {
+			int len = s.length();
+			if (outLen + len > out.length) grow(len);
+			s.getChars(0, len, out, outLen);
+			outLen += len;
 		}
 
-		public char getChar() {
-			return getChar(0);
-		}
-
-		public char getChar(int strIndex) {
-			if ( index + strIndex >= string.length () )
-				return '\0';
-			else
-				return string.charAt ( index + strIndex );
-		}
-
-		public int length() {
-			return string.length () - index;
-		}
-
-		public int postIncrStringI ( int num ) {
-			int oldIndex = index;
-			index += num;
-			return oldIndex;
-		}
-
-		public int preIncrStringI ( int num ) {
-			index += num;
-			return index;
+		private void grow (int extra) {
+			int size = out.length * 2;
+			if (size < outLen + extra) size = outLen + extra;
+			char[] n = new char[size];
+			System.arraycopy(out, 0, n, 0, outLen);
+			out = n;
 		}
+	}
 
-		public char postIncrString ( int num ) {
-			char c = getChar();
-			index += num;
-			return c;
+	private static Pattern compile (String pattern) {
+		Pattern p = (Pattern)patterns.get(pattern);
+		if (p == null) {
+			p = new Pattern(pattern);
+			// generated patterns could fill the cache; start over rather than keep them all
+			if (patterns.size() >= PATTERN_CACHE_SIZE) patterns.clear();
+			patterns.put(pattern, p);
 		}
+		return p;
+	}
 
-		public char preIncrString ( int num ) {
-			index += num;
-			return getChar();
-		}
+	private static MatchState acquire (LuaCallFrame callFrame, String source, Pattern pattern) {
+		MatchState ms;
+		synchronized (patterns) {
+			ms = pool;
+			if (ms != null) pool = ms.next;
+		}
+		if (ms == null) ms = new MatchState();
+		int len = source.length();
+		if (ms.src.length < len) ms.src = new char[len];
+		source.getChars(0, len, ms.src, 0);
+		ms.source = source;
+		ms.srcLen = len;
+		ms.pat = pattern.chars;
+		ms.patLen = pattern.chars.length;
+		ms.ends = pattern.ends;
+		ms.callFrame = callFrame;
+		ms.level = 0;
+		ms.outLen = 0;
+		return ms;
+	}
 
-		public int compareTo(StringPointer cmp, int len) {
-			return this.string.substring(this.index,this.index+len).compareTo(
-					cmp.string.substring(cmp.index, cmp.index+len));
+	private static void release (MatchState ms) {
+		ms.source = null;
+		ms.pat = null;
+		ms.ends = null;
+		ms.callFrame = null;
+		if (ms.src.length > MAX_POOLED_BUFFER) ms.src = new char[64];
+		if (ms.out.length > MAX_POOLED_BUFFER) ms.out = new char[64];
+		synchronized (patterns) {
+			ms.next = pool;
+			pool = ms;
 		}
 	}
 
-	private static Object push_onecapture ( MatchState ms, int i, StringPointer s, StringPointer e ) {
+	/** Returns capture number i of the last match. With no captures, capture 0 is the whole match s..e. */
+	private static Object getCapture (MatchState ms, int i, int s, int e) {
 		if (i >= ms.level) {
-			if ( i == 0 ) { // ms->level == 0, too
-				String res = s.string.substring(s.index, e.index);
-				ms.callFrame.push(res);
-				return res;
+			if (i == 0) { // ms->level == 0, too
+				return ms.source.substring(s, e);
 			} else {
 				throw new RuntimeException("invalid capture index");
 			}
+		}
+		int l = ms.captureLen[i];
+		if (l == CAP_UNFINISHED) {
+			throw new RuntimeException("unfinished capture");
+		} else if (l == CAP_POSITION) {
+			return LuaState.toDouble(ms.captureInit[i] + 1);
 		} else {
-			int l = ms.capture[i].len;
-			if (l == CAP_UNFINISHED) {
-				throw new RuntimeException("unfinished capture");
-			} else if (l == CAP_POSITION) {
-				Double res = new Double(ms.src_init.length() - ms.capture[i].init.length() + 1);
-				ms.callFrame.push(res);
-				return res;
-			} else {
-				int index = ms.capture[i].init.index;
-				String res = ms.capture[i].init.string.substring(index, index+l);
-				ms.callFrame.push(res);
-				return res;
-			}
+			int init = ms.captureInit[i];
+			return ms.source.substring(init, init + l);
 		}
 	}
 
-	private static int push_captures ( MatchState ms, StringPointer s, StringPointer e ) {
-		int nlevels = ( ms.level == 0 && s != null ) ? 1 : ms.level;
+	/** pushes the captures, or the whole match s..e if there are none and s is not -1 */
+	private static int push_captures ( MatchState ms, int s, int e ) {
+		int nlevels = ( ms.level == 0 && s >= 0 ) ? 1 : ms.level;
 		BaseLib.luaAssert(nlevels <= LUA_MAXCAPTURES, "too many captures");
 		for (int i = 0; i < nlevels; i++) {
-			push_onecapture (ms, i, s, e);
+			ms.callFrame.push(getCapture(ms, i, s, e));
 		}
 		return nlevels;  // number of strings pushed
 	}
@@ -978,55 +972,46 @@ public final class StringLib implements JavaFunction {
 			init = source.length();
 		}
 
-		if ( find && ( plain || noSpecialChars(pattern) ) ) { // explicit plain request or no special characters?
+		Pattern p = ( find && plain ) ? null : compile(pattern);
+		if ( find && ( plain || p.plain ) ) { // explicit plain request or no special characters?
 			// do a plain search
 			int pos = source.indexOf(pattern, init);
 			if ( pos > -1 ) {
 				return callFrame.push(LuaState.toDouble(pos + 1), LuaState.toDouble(pos + pattern.length()));
 			}
 		} else {
-			StringPointer s = new StringPointer(source);
-			StringPointer p = new StringPointer(pattern);
-
-			MatchState ms = new MatchState ();
-			boolean anchor = false;
-			if ( p.getChar () == '^' ) {
-				anchor = true;
-				p.postIncrString ( 1 );
-			}
-			StringPointer s1 = s.getClone();
-			s1.postIncrString ( init );
-
-			ms.callFrame = callFrame;
-			ms.src_init = s.getClone();
-			ms.endIndex = s.getString().length();
-			do {
-				StringPointer res;
-				ms.level = 0;
-				if ( ( res = match ( ms, s1, p ) ) != null ) {
-					if ( find ) {
-						return callFrame.push(new Double(s.length () - s1.length () + 1), new Double(s.length () - res.length ())) +
-						push_captures ( ms, null, null );
-					} else {
-						return push_captures ( ms, s1, res );
+			MatchState ms = acquire(callFrame, source, p);
+			try {
+				boolean anchor = p.start > 0;
+				int s1 = init;
+				do {
+					int res;
+					ms.level = 0;
+					if ( ( res = match ( ms, s1, p.start ) ) >= 0 ) {
+						if ( find ) {
+							return callFrame.push(LuaState.toDouble(s1 + 1), LuaState.toDouble(res)) +
+							push_captures ( ms, -1, -1 );
+						} else {
+							return push_captures ( ms, s1, res );
+						}
 					}
-				}
-
-			} while ( s1.postIncrStringI ( 1 ) < ms.endIndex && !anchor );
+				} while ( s1++ < ms.srcLen && !anchor );
+			} finally {
+				release(ms);
+			}
 		}
 		return callFrame.pushNil();  // not found
 	}
 
-	private static StringPointer startCapture ( MatchState ms, StringPointer s, StringPointer p, int what ) {
-		StringPointer res;
+	private static int startCapture ( MatchState ms, int s, int p, int what ) {
+		int res;
 		int level = ms.level;
 		BaseLib.luaAssert(level < LUA_MAXCAPTURES, "too many captures");
 
-		ms.capture[level].init = s.getClone();
-		ms.capture[level].init.setIndex ( s.getIndex () );
-		ms.capture[level].len = what;
+		ms.captureInit[level] = s;
+		ms.captureLen[level] = what;
 		ms.level = level + 1;
-		if ( ( res = match ( ms, s, p ) ) == null ) /* match failed? */ {
+		if ( ( res = match ( ms, s, p ) ) < 0 ) /* match failed? */ {
 			ms.level --;  /* undo capture */
 		}
 		return res;
@@ -1035,306 +1020,269 @@ public final class StringLib implements JavaFunction {
 	private static int captureToClose ( MatchState ms ) {
 		int level = ms.level;
 		for ( level --; level >= 0; level -- ) {
-			if ( ms.capture[level].len == CAP_UNFINISHED ) {
+			if ( ms.captureLen[level] == CAP_UNFINISHED ) {
 				return level;
 			}
 		}
 		throw new RuntimeException("invalid pattern capture");
 	}
 
-	private static StringPointer endCapture ( MatchState ms, StringPointer s, StringPointer p ) {
+	private static int endCapture ( MatchState ms, int s, int p ) {
 		int l = captureToClose ( ms );
-		StringPointer res;
-		ms.capture[l].len = ms.capture[l].init.length () - s.length ();  /* close capture */
-		if ( ( res = match ( ms, s, p ) ) == null ) /* match failed? */ {
-			ms.capture[l].len = CAP_UNFINISHED;  /* undo capture */
+		int res;
+		ms.captureLen[l] = s - ms.captureInit[l];  /* close capture */
+		if ( ( res = match ( ms, s, p ) ) < 0 ) /* match failed? */ {
+			ms.captureLen[l] = CAP_UNFINISHED;  /* undo capture */
 		}
 		return res;
 	}
 
 	private static int checkCapture ( MatchState ms, int l ) {
 		l -= '1'; // convert chars 1-9 to actual ints 1-9
-		BaseLib.luaAssert(l < 0 || l >= ms.level || ms.capture[l].len == CAP_UNFINISHED,
+		BaseLib.luaAssert(!(l < 0 || l >= ms.level || ms.captureLen[l] == CAP_UNFINISHED),
 		"invalid capture index");
 		return l;
 	}
 
-	private static StringPointer matchCapture ( MatchState ms, StringPointer s, int l ) {
-		int len;
+	private static int matchCapture ( MatchState ms, int s, int l ) {
 		l = checkCapture ( ms, l );
-		len = ms.capture[l].len;
-		if ( ( ms.endIndex - s.length () ) >= len && ms.capture[l].init.compareTo(s, len) == 0 ) {
-			StringPointer sp = s.getClone();
-			sp.postIncrString ( len );
-			return sp;
-		}
-		else {
-			return null;
+		int len = ms.captureLen[l];
+		if ( len < 0 || ms.srcLen - s < len ) { // position captures match nothing
+			return -1;
+		}
+		char[] src = ms.src;
+		int init = ms.captureInit[l];
+		for ( int i = 0; i < len; i++ ) {
+			if ( src[init + i] != src[s + i] ) {
+				return -1;
+			}
 		}
+		return s + len;
 	}
 
-	private static StringPointer matchBalance ( MatchState ms, StringPointer ss, StringPointer p ) {
-
-		BaseLib.luaAssert(!(p.getChar () == 0 || p.getChar ( 1 ) == 0), "unbalanced pattern");
+	private static int matchBalance ( MatchState ms, int s, int p ) {
+		char[] pat = ms.pat;
+		BaseLib.luaAssert(!(p + 1 >= ms.patLen || pat[p] == 0 || pat[p + 1] == 0), "unbalanced pattern");
 
-		StringPointer s = ss.getClone();
-		if ( s.getChar () != p.getChar () ) {
-			return null;
+		if ( s >= ms.srcLen || ms.src[s] != pat[p] ) {
+			return -1;
 		} else {
-			int b = p.getChar ();
-			int e = p.getChar ( 1 );
+			char[] src = ms.src;
+			char b = pat[p];
+			char e = pat[p + 1];
 			int cont = 1;
 
-			while ( s.preIncrStringI ( 1 ) < ms.endIndex ) {
-				if ( s.getChar () == e ) {
+			while ( ++s < ms.srcLen ) {
+				if ( src[s] == e ) {
 					if (  -- cont == 0 ) {
-						StringPointer sp = s.getClone();
-						sp.postIncrString ( 1 );
-						return sp;
+						return s + 1;
 					}
-				} else if ( s.getChar () == b ) {
+				} else if ( src[s] == b ) {
 					cont ++;
 				}
 			}
 		}
-		return null;  /* string ends out of balance */
+		return -1;  /* string ends out of balance */
 	}
 
-	private static StringPointer classEnd ( MatchState ms, StringPointer pp ) {
-		StringPointer p = pp.getClone();
-		switch ( p.postIncrString ( 1 ) ) {
+	/** character of the pattern, '\0' past its end */
+	private static char patChar ( MatchState ms, int p ) {
+		return p < ms.patLen ? ms.pat[p] : '\0';
+	}
+
+	private static int classEnd ( MatchState ms, int p ) {
+		int end = ms.ends[p];
+		if ( end != 0 ) {
+			return end;
+		}
+		end = p;
+		switch ( ms.pat[end++] ) {
 		case L_ESC: {
-			BaseLib.luaAssert(p.getChar () != '\0', "malformed pattern (ends with '%')");
-			p.postIncrString ( 1 );
-			return p;
+			BaseLib.luaAssert(patChar ( ms, end ) != '\0', "malformed pattern (ends with '%')");
+			end++;
+			break;
 		}
 		case '[': {
-			if ( p.getChar () == '^' ) {
-				p.postIncrString ( 1 );
+			if ( patChar ( ms, end ) == '^' ) {
+				end++;
 			}
-			do { // look for a `]' 
-				BaseLib.luaAssert(p.getChar () != '\0', "malformed pattern (missing ']')");
+			do { // look for a `]'
+				BaseLib.luaAssert(patChar ( ms, end ) != '\0', "malformed pattern (missing ']')");
 
-				if ( p.postIncrString ( 1 ) == L_ESC && p.getChar () != '\0' ) {
-					p.postIncrString ( 1 );  // skip escapes (e.g. `%]')
+				if ( ms.pat[end++] == L_ESC && patChar ( ms, end ) != '\0' ) {
+					end++;  // skip escapes (e.g. `%]')
 				}
 
-			} while ( p.getChar () != ']' );
+			} while ( patChar ( ms, end ) != ']' );
 
-			p.postIncrString ( 1 );
-			return p;
-		}
-		default: {
-			return p;
+			end++;
+			break;
 		}
 		}
+		ms.ends[p] = end;
+		return end;
 	}
 
-	private static boolean singleMatch ( char c, StringPointer p, StringPointer ep ) {
-		switch ( p.getChar () ) {
+	private static boolean singleMatch ( MatchState ms, char c, int p, int ep ) {
+		switch ( ms.pat[p] ) {
 		case '.':
 			return true;  // matches any char
 		case L_ESC:
-			return matchClass ( p.getChar ( 1 ), c );
-		case '[': {
-			StringPointer sp = ep.getClone();
-			sp.postIncrString ( -1 );
-			return matchBracketClass ( c, p, sp );
-		}
+			return matchClass ( ms.pat[p + 1], c );
+		case '[':
+			return matchBracketClass ( ms, c, p, ep - 1 );
 		default:
-			return ( p.getChar () == c );
+			return ( ms.pat[p] == c );
 		}
 	}
 
-	private static StringPointer minExpand ( MatchState ms, StringPointer ss, StringPointer p, StringPointer ep ) {
-		StringPointer sp = ep.getClone();
-		StringPointer s = ss.getClone();
-
-		sp.postIncrString ( 1 );
+	private static int minExpand ( MatchState ms, int s, int p, int ep ) {
 		while (true) {
-			StringPointer res = match ( ms, s, sp );
-			if ( res != null ) {
+			int res = match ( ms, s, ep + 1 );
+			if ( res >= 0 ) {
 				return res;
-			} else if ( s.getIndex () < ms.endIndex && singleMatch ( s.getChar (), p, ep ) ) {
-				s.postIncrString ( 1 );  // try with one more repetition 
+			} else if ( s < ms.srcLen && singleMatch ( ms, ms.src[s], p, ep ) ) {
+				s++;  // try with one more repetition
 			} else {
-				return null;
+				return -1;
 			}
 		}
 	}
 
-	private static StringPointer maxExpand(MatchState ms, StringPointer s, StringPointer p, StringPointer ep) {
+	private static int maxExpand(MatchState ms, int s, int p, int ep) {
 		int i = 0;  // counts maximum expand for item
-		while (s.getIndex () + i < ms.endIndex && singleMatch(s.getChar(i), p, ep)) {
+		while (s + i < ms.srcLen && singleMatch(ms, ms.src[s + i], p, ep)) {
 			i ++;
 		}
-		// keeps trying to match with the maximum repetitions 
+		// keeps trying to match with the maximum repetitions
 		while (i >= 0) {
-			StringPointer sp1 = s.getClone();
-			sp1.postIncrString(i);
-			StringPointer sp2 = ep.getClone();
-			sp2.postIncrString(1);
-			StringPointer res = match(ms, sp1, sp2);
-			if (res != null) {
+			int res = match(ms, s + i, ep + 1);
+			if (res >= 0) {
 				return res;
 			}
 			i --;  // else didn't match; reduce 1 repetition to try again
 		}
-		return null;
+		return -1;
 	}
 
-	private static boolean matchBracketClass(char c, StringPointer pp, StringPointer ecc) {
-		StringPointer p = pp.getClone();
-		StringPointer ec = ecc.getClone();
+	private static boolean matchBracketClass(MatchState ms, char c, int p, int ec) {
+		char[] pat = ms.pat;
 		boolean sig = true;
-		if (p.getChar(1) == '^') {
+		if (pat[p + 1] == '^') {
 			sig = false;
-			p.postIncrString(1);  // skip the `^'
+			p++;  // skip the `^'
 		}
-		while (p.preIncrStringI(1) < ec.getIndex()) {
-			if (p.getChar() == L_ESC) {
-				p.postIncrString(1);
-				if (matchClass(p.getChar(), c)) {
+		while (++p < ec) {
+			if (pat[p] == L_ESC) {
+				p++;
+				if (matchClass(pat[p], c)) {
 					return sig;
 				}
-			} else if ((p.getChar(1) == '-') && (p.getIndex() + 2 < ec.getIndex())) {
-				p.postIncrString(2);
-				if (p.getChar(-2) <= c && c <= p.getChar()) {
+			} else if ((pat[p + 1] == '-') && (p + 2 < ec)) {
+				p += 2;
+				if (pat[p - 2] <= c && c <= pat[p]) {
 					return sig;
 				}
-			} else if (p.getChar () == c) {
+			} else if (pat[p] == c) {
 				return sig;
 			}
 		}
 		return !sig;
 	}
 
-	private static StringPointer match(MatchState ms, StringPointer ss, StringPointer pp) {
-		StringPointer s = ss.getClone();
-		StringPointer p = pp.getClone();
-		boolean isContinue = true;
-		boolean isDefault = false;
-		while (isContinue) {
-			isContinue = false;
-			isDefault = false;
-			switch (p.getChar()) {
+	/** Matches pattern from position p against source from position s.
+	 * Returns the end of the match in source, or -1.
+	 */
+	private static int match(MatchState ms, int s, int p) {
+		char[] pat = ms.pat;
+		int patLen = ms.patLen;
+		while (true) {
+			char pc = p < patLen ? pat[p] : '\0';
+			switch (pc) {
 			case '(': { // start capture
-				StringPointer p1 = p.getClone();
-				if (p.getChar(1) == ')') { // position capture?
-					p1.postIncrString(2);
-					return startCapture(ms, s, p1, CAP_POSITION);
+				if (patChar(ms, p + 1) == ')') { // position capture?
+					return startCapture(ms, s, p + 2, CAP_POSITION);
 				} else {
-					p1.postIncrString(1);
-					return startCapture(ms, s, p1, CAP_UNFINISHED);
+					return startCapture(ms, s, p + 1, CAP_UNFINISHED);
 				}
 			}
-			case ')': { // end capture 
-				StringPointer p1 = p.getClone();
-				p1.postIncrString(1);
-				return endCapture(ms, s, p1);
+			case ')': { // end capture
+				return endCapture(ms, s, p + 1);
 			}
 			case L_ESC: {
-				switch (p.getChar(1)) {
-				case 'b': { // balanced string?
-					StringPointer p1 = p.getClone();
-					p1.postIncrString(2);
-					s = matchBalance(ms, s, p1);
-					if (s == null) {
-						return null;
+				char next = patChar(ms, p + 1);
+				if (next == 'b') { // balanced string?
+					s = matchBalance(ms, s, p + 2);
+					if (s < 0) {
+						return -1;
 					}
-					p.postIncrString(4);
-					isContinue = true;
+					p += 4;
 					continue; // else return match(ms, s, p+4);
-				}
-				case 'f': { // frontier?
-					p.postIncrString (2);
-					BaseLib.luaAssert(p.getChar() == '[' , "missing '[' after '%%f' in pattern");
+				} else if (next == 'f') { // frontier?
+					p += 2;
+					BaseLib.luaAssert(patChar(ms, p) == '[' , "missing '[' after '%%f' in pattern");
 
-					StringPointer ep = classEnd(ms, p);  // points to what is next
-					char previous = (s.getIndex() == ms.src_init.getIndex()) ? '\0' : s.getChar(-1);
+					int ep = classEnd(ms, p);  // points to what is next
+					char previous = (s == 0) ? '\0' : ms.src[s - 1];
+					char current = (s < ms.srcLen) ? ms.src[s] : '\0';
 
-					StringPointer ep1 = ep.getClone();
-					ep1.postIncrString(-1);
-					if (matchBracketClass(previous, p, ep1) || !matchBracketClass(s.getChar(), p, ep1)) {
-						return null;
+					if (matchBracketClass(ms, previous, p, ep - 1) || !matchBracketClass(ms, current, p, ep - 1)) {
+						return -1;
 					}
 					p = ep;
-					isContinue = true;
 					continue; // else return match(ms, s, ep);
-				}
-				default: {
-					if (Character.isDigit(p.getChar(1))) { // capture results (%0-%9)?
-						s = matchCapture(ms, s, p.getChar(1));
-						if (s == null) {
-							return null;
-						}
-						p.postIncrString(2);
-						isContinue = true;
-						continue; // else return match(ms, s, p+2) 
+				} else if (Character.isDigit(next)) { // capture results (%0-%9)?
+					s = matchCapture(ms, s, next);
+					if (s < 0) {
+						return -1;
 					}
-					isDefault = true; // case default 
+					p += 2;
+					continue; // else return match(ms, s, p+2)
 				}
-				}
-				break;
+				break; // pattern item
 			}
 			case '\0': {  // end of pattern
 				return s;  // match succeeded
 			}
 			case '$': {
-				if (p.getChar(1) == '\0') { // is the `$' the last char in pattern?
-					return (s.getIndex() == ms.endIndex) ? s : null;  // check end of string 
+				if (patChar(ms, p + 1) == '\0') { // is the `$' the last char in pattern?
+					return (s == ms.srcLen) ? s : -1;  // check end of string
 				}
-			}
-			default: { // it is a pattern item
-				isDefault = true;
+				break; // pattern item
 			}
 			}
 
-			if (isDefault) { // it is a pattern item
-				isDefault = false;
-				StringPointer ep = classEnd(ms, p);  // points to what is next
-				boolean m = (s.getIndex () < ms.endIndex && singleMatch(s.getChar(), p, ep));
-				switch (ep.getChar()) {
-				case '?':  { // optional
-					StringPointer res;
-					StringPointer s1 = s.getClone();
-					s1.postIncrString ( 1 );
-					StringPointer ep1 = ep.getClone();
-					ep1.postIncrString ( 1 );
-
-					if (m && ((res = match(ms, s1, ep1)) != null)) {
-						return res;
-					}
-					p = ep;
-					p.postIncrString(1);
-					isContinue = true;
-					continue; // else return match(ms, s, ep+1);
-				}
-				case '*': { // 0 or more repetitions 
-					return maxExpand(ms, s, p, ep);
-				}
-				case '+': { // 1 or more repetitions
-					StringPointer s1 = s.getClone();
-					s1.postIncrString(1);
-					return (m ? maxExpand(ms, s1, p, ep) : null);
-				}
-				case '-': { // 0 or more repetitions (minimum) 
-					return minExpand(ms, s, p, ep);
-				}
-				default: {
-					if (!m) {
-						return null;
-					}
-					s.postIncrString(1);
-
-					p = ep;
-					isContinue = true;
-					continue; // else return match(ms, s+1, ep);
+			// it is a pattern item
+			int ep = classEnd(ms, p);  // points to what is next
+			boolean m = (s < ms.srcLen && singleMatch(ms, ms.src[s], p, ep));
+			switch (patChar(ms, ep)) {
+			case '?':  { // optional
+				int res;
+				if (m && ((res = match(ms, s + 1, ep + 1)) >= 0)) {
+					return res;
 				}
+				p = ep + 1;
+				continue; // else return match(ms, s, ep+1);
+			}
+			case '*': { // 0 or more repetitions
+				return maxExpand(ms, s, p, ep);
+			}
+			case '+': { // 1 or more repetitions
+				return (m ? maxExpand(ms, s + 1, p, ep) : -1);
+			}
+			case '-': { // 0 or more repetitions (minimum)
+				return minExpand(ms, s, p, ep);
+			}
+			default: {
+				if (!m) {
+					return -1;
 				}
+				s++;
+				p = ep;
+				continue; // else return match(ms, s+1, ep);
+			}
 			}
 		}
-		return null;
 	}
 
 	private static boolean matchClass(char classIdentifier, char c) {
@@ -1389,14 +1337,8 @@ public final class StringLib implements JavaFunction {
 		// if i isn't supplied, we want to substitute all occurrences of the pattern
 		int maxSubstitutions = (num == null) ? Integer.MAX_VALUE : num.intValue(); 
 
-		StringPointer pattern = new StringPointer (pTemp);
-		StringPointer src = new StringPointer (srcTemp);
-
-		boolean anchor = false;
-		if (pattern.getChar() == '^') {
-			anchor = true;
-			pattern.postIncrString ( 1 );
-		}
+		Pattern pattern = compile(pTemp);
+		boolean anchor = pattern.start > 0;
 
 		String replType = BaseLib.type(repl);
 		if (!(replType == BaseLib.TYPE_FUNCTION ||
@@ -1405,98 +1347,95 @@ public final class StringLib implements JavaFunction {
 			BaseLib.fail(("string/function/table expected, got "+replType));
 		}
 
-		MatchState ms = new MatchState ();
-		ms.callFrame = cf;
-		ms.src_init = src.getClone();
-		ms.endIndex = src.length();
-
-		int n = 0;
-		StringBuffer b = new StringBuffer();
-		StringPointer e = null;
-		while (n < maxSubstitutions) {
-			ms.level = 0;
-			e = match(ms, src, pattern);
-			if (e != null) {
-				n++;
-				addValue(ms, repl, b, src, e);
-			}
+		MatchState ms = acquire(cf, srcTemp, pattern);
+		try {
+			int n = 0;
+			int src = 0;
+			int copied = 0; // source up to here is already in the output
+			while (n < maxSubstitutions) {
+				ms.level = 0;
+				int e = match(ms, src, pattern.start);
+				if (e >= 0) {
+					n++;
+					ms.append(ms.src, copied, src);
+					addValue(ms, repl, src, e);
+					copied = e;
+				}
 
-			if (e != null && e.getIndex() > src.getIndex()) { // non empty match?
-				src.setIndex (e.getIndex());  // skip it 
-			} else if (src.getIndex() < ms.endIndex) {
-				b.append(src.postIncrString(1));
-			} else {
-				break;
-			}
+				if (e > src) { // non empty match?
+					src = e;  // skip it
+				} else if (src < ms.srcLen) {
+					src++;
+				} else {
+					break;
+				}
 
-			if (anchor) {
-				break;
+				if (anchor) {
+					break;
+				}
+			}
+			String result = srcTemp;
+			if (n > 0) {
+				ms.append(ms.src, copied, ms.srcLen);
+				result = new String(ms.out, 0, ms.outLen);
 			}
+			return cf.push(result, LuaState.toDouble(n));
+		} finally {
+			release(ms);
 		}
-		return cf.push(b.append(src.getString()).toString(), new Double(n));
 	}
 
-	private static void addValue(MatchState ms, Object repl, StringBuffer b, StringPointer src, StringPointer e) {
+	private static void addValue(MatchState ms, Object repl, int s, int e) {
 		String type = BaseLib.type(repl);
 		if (type == BaseLib.TYPE_NUMBER || type == BaseLib.TYPE_STRING) {
-			b.append(addString (ms, repl, src, e));
+			addString (ms, BaseLib.tostring(repl, ms.callFrame.thread.state), s, e);
 		} else {
-			String match = src.getString().substring(0, e.getIndex() - src.getIndex());
-			Object[] captures = ms.getCaptures();
-			if (captures != null) {
-				match = BaseLib.rawTostring(captures[0]);
-			}
+			Object match = getCapture(ms, 0, s, e);
 			Object res = null;
 			if (type == BaseLib.TYPE_FUNCTION) {
 				res = ms.callFrame.thread.state.call(repl, match, null, null);
 			} else if (type == BaseLib.TYPE_TABLE) {
 				res = ((LuaTable)repl).rawget(match);
 			}
-			if (res == null) {
-				res = match;
+			if (!LuaState.boolEval(res)) {
+				ms.append(ms.src, s, e);  // keep the original text
+			} else {
+				String resType = BaseLib.type(res);
+				if (resType != BaseLib.TYPE_NUMBER && resType != BaseLib.TYPE_STRING) {
+					BaseLib.fail("invalid replacement value (a " + resType + ")");
+				}
+				ms.append(BaseLib.rawTostring(res));
 			}
-			b.append(BaseLib.rawTostring(res));
 		}
 	}
 
-	private static String addString(MatchState ms, Object repl, StringPointer s, StringPointer e) {
-		String replTemp = BaseLib.tostring(repl, ms.callFrame.thread.state);
-		StringPointer replStr = new StringPointer (replTemp);
-		StringBuffer buf = new StringBuffer();
-		for (int i = 0; i < replTemp.length(); i++) {
-			if (replStr.getChar ( i ) != L_ESC) {
-				buf.append(replStr.getChar(i));
+	private static void addString(MatchState ms, String repl, int s, int e) {
+		int len = repl.length();
+		for (int i = 0; i < len; i++) {
+			char c = repl.charAt(i);
+			if (c != L_ESC) {
+				ms.append(c);
 			} else {
 				i ++;  // skip ESC
-				if (!Character.isDigit(replStr.getChar(i))) {
-					buf.append(replStr.getChar(i));
-				} else if (replStr.getChar(i) == '0') {
-					String str = s.getString ();
-					int len = s.length() - e.length();
-					if (len > str.length() ) {
-						len = str.length();
-					}
-					buf.append(str.substring(0, len));
+				c = i < len ? repl.charAt(i) : '\0';
+				if (!Character.isDigit(c)) {
+					ms.append(c);
+				} else if (c == '0') {
+					ms.append(ms.src, s, e);
 				} else {
-					int captureIndex = replStr.getChar(i) - '1';
-					Object[] captures = ms.getCaptures();
-					if (captures == null || captureIndex > ms.level) {
-						throw new RuntimeException("invalid capture index");
-					}
-					Object o = captures[captureIndex];
+					Object o = getCapture(ms, c - '1', s, e);
 					if(o instanceof Double) {
 						Double doubleValue = ((Double)o);
 						if( doubleValue.doubleValue() - doubleValue.intValue() == 0 ) {
-							buf.append(String.valueOf(((Double)o).intValue())); 
+							ms.append(String.valueOf(((Double)o).intValue())); 
 						} else {
-							buf.append(String.valueOf(((Double)o).doubleValue()));
+							ms.append(String.valueOf(((Double)o).doubleValue()));
 						}
 					} else {
-						buf.append(o);
+						ms.append((String)o);
 					}
 				}
 			}
 		}
-		return buf.toString();
 	}
 }
@@ -142,7 +142,11 @@ public final class TableLib implements JavaFunction {
 
 	public static void rawappend(LuaTable table, Object element) {
 		int position = 1 + table.len();
-		table.rawset(LuaState.toDouble(position), element);
+		if (table instanceof LuaTableImpl) {
+			((LuaTableImpl) table).rawset(position, element);
+		} else {
+			table.rawset(LuaState.toDouble(position), element);
+		}
 	}
 
 	public static void insert(LuaState state, LuaTable table, int position, Object element) {
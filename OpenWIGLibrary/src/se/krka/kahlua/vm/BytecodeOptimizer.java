@@ -0,0 +1,151 @@
+package se.krka.kahlua.vm;
+
+import java.util.Vector;
+
+/**
+ * Rewrites the code of a function into the form that the interpreter
+ * runs, once when the function is loaded.
+ * <p>
+ * Every instruction stays in its place, so a pc means the same in
+ * both forms: line numbers, inline caches and compiled code keep using
+ * it, and the original code is left alone for dump() and savegames.
+ * The rewriting
+ * <ul>
+ * <li>gives instructions with a constant operand opcodes of their own,
+ * with the index of the constant already decoded: GETFIELD, SETFIELD
+ * and ADDK to POWK,</li>
+ * <li>folds arithmetic and comparisons of two number constants, which
+ * luac leaves for division by zero and for comparisons,</li>
+ * <li>marks pairs of instructions after which the interpreter runs the
+ * second one without going through the dispatch: GETGLOBAL+GETFIELD
+ * (<code>Wherigo.ZonePoint</code>), SELF+CALL (<code>obj:method()</code>)
+ * and LOADK+SETFIELD (<code>obj.key = "text"</code> in functions with
+ * more than 256 constants). The second instruction keeps its own form,
+ * so a jump to it works as before.</li>
+ * </ul>
+ */
+final class BytecodeOptimizer {
+
+	private BytecodeOptimizer() { }
+
+	/** Sets p.ops, and p.folded for constants made by folding. */
+	static void optimize(LuaPrototype p) {
+		int[] code = p.code;
+		Object[] constants = p.constants;
+		int[] ops = new int[code.length];
+		boolean[] data = new boolean[code.length];
+		Vector folded = new Vector();
+		boolean changed = false;
+
+		for (int i = 0; i < code.length; i++) {
+			int op = code[i];
+			ops[i] = op;
+			if (data[i]) {
+				continue;
+			}
+			int opcode = op & 63;
+			int b = LuaState.getB9(op);
+			int c = LuaState.getC9(op);
+
+			// words that follow CLOSURE and SETLIST are not instructions
+			if (opcode == LuaState.OP_CLOSURE) {
+				int n = p.prototypes[LuaState.getBx(op)].numUpvalues;
+				for (int j = 1; j <= n && i + j < code.length; j++) {
+					data[i + j] = true;
+				}
+			} else if (opcode == LuaState.OP_SETLIST && c == 0 && i + 1 < code.length) {
+				data[i + 1] = true;
+			}
+
+			switch (opcode) {
+			case LuaState.OP_GETTABLE:
+				if (c >= 256 && constants[c - 256] instanceof String) {
+					ops[i] = withC(withOpcode(op, LuaState.OP_GETFIELD), c - 256);
+				}
+				break;
+			case LuaState.OP_SETTABLE:
+				if (b >= 256) {
+					ops[i] = withB(withOpcode(op, LuaState.OP_SETFIELD), b - 256);
+				}
+				break;
+			case LuaState.OP_ADD:
+			case LuaState.OP_SUB:
+			case LuaState.OP_MUL:
+			case LuaState.OP_DIV:
+			case LuaState.OP_MOD:
+			case LuaState.OP_POW:
+				if (isNumber(constants, b) && isNumber(constants, c)) {
+					folded.addElement(LuaState.primitiveMath(number(constants, b), number(constants, c), opcode));
+					ops[i] = LuaState.OP_LOADF | (LuaState.getA8(op) << 6) | ((folded.size() - 1) << 14);
+				} else if (b < 256 && isNumber(constants, c)) {
+					int k = opcode - LuaState.OP_ADD + LuaState.OP_ADDK;
+					ops[i] = withC(withOpcode(op, k), c - 256);
+				}
+				break;
+			case LuaState.OP_EQ:
+			case LuaState.OP_LT:
+			case LuaState.OP_LE:
+				if (isNumber(constants, b) && isNumber(constants, c)) {
+					double bd = number(constants, b);
+					double cd = number(constants, c);
+					boolean res = opcode == LuaState.OP_EQ ? bd == cd
+						: opcode == LuaState.OP_LT ? bd < cd : bd <= cd;
+					// skips the following jump, or does nothing
+					int skip = res == (LuaState.getA8(op) == 0) ? 1 : 0;
+					ops[i] = LuaState.OP_JMP | ((skip + 131071) << 14);
+				}
+				break;
+			}
+			if (ops[i] != op) {
+				changed = true;
+			}
+		}
+
+		for (int i = 0; i + 1 < code.length; i++) {
+			if (data[i] || data[i + 1]) {
+				continue;
+			}
+			int first = ops[i] & 63;
+			int second = ops[i + 1] & 63;
+			int fused = -1;
+			if (first == LuaState.OP_GETGLOBAL && second == LuaState.OP_GETFIELD) {
+				fused = LuaState.OP_GETGLOBAL_FIELD;
+			} else if (first == LuaState.OP_SELF && second == LuaState.OP_CALL) {
+				fused = LuaState.OP_SELF_CALL;
+			} else if (first == LuaState.OP_LOADK && second == LuaState.OP_SETFIELD) {
+				fused = LuaState.OP_LOADK_SETFIELD;
+			}
+			if (fused >= 0) {
+				ops[i] = withOpcode(ops[i], fused);
+				changed = true;
+			}
+		}
+
+		if (folded.size() > 0) {
+			p.folded = new Object[folded.size()];
+			folded.copyInto(p.folded);
+		}
+		// functions with nothing to rewrite share the array
+		p.ops = changed ? ops : code;
+	}
+
+	private static boolean isNumber(Object[] constants, int rk) {
+		return rk >= 256 && constants[rk - 256] instanceof Double;
+	}
+
+	private static double number(Object[] constants, int rk) {
+		return LuaState.fromDouble(constants[rk - 256]);
+	}
+
+	private static int withOpcode(int op, int opcode) {
+		return (op & ~63) | opcode;
+	}
+
+	private static int withB(int op, int b) {
+		return (op & ~(511 << 23)) | (b << 23);
+	}
+
+	private static int withC(int op, int c) {
+		return (op & ~(511 << 14)) | (c << 14);
+	}
+}
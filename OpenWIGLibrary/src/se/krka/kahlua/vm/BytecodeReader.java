@@ -0,0 +1,198 @@
+package se.krka.kahlua.vm;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Reads the parts of a compiled Lua chunk.
+ * <p>
+ * A chunk that is already in memory, like cartridge code or a function
+ * in a savegame, is read straight from its array. Arrays of
+ * instructions and line numbers are decoded in one loop each, with the
+ * byte order of the chunk chosen once per array instead of once per value.
+ * A chunk in a stream is read in pieces of exactly the size needed next,
+ * so that nothing after the chunk is consumed.
+ */
+final class BytecodeReader {
+
+	private final DataInputStream stream;
+	private byte[] buf;
+	private int pos, limit;
+
+	boolean littleEndian;
+	/** size of size_t in the chunk, 4 or 8 */
+	int sizeT = 4;
+
+	BytecodeReader (byte[] data, int offset, int length) {
+		stream = null;
+		buf = data;
+		pos = offset;
+		limit = offset + length;
+	}
+
+	BytecodeReader (DataInputStream in) {
+		stream = in;
+		buf = new byte[256];
+	}
+
+	/** Makes n bytes available at pos. */
+	private void require (int n) throws IOException {
+		if (n < 0) throw new IOException("Could not load bytecode:bad size");
+		if (stream == null) {
+			if (limit - pos < n) throw new EOFException();
+			return;
+		}
+		if (buf.length < n) buf = new byte[Math.max(n, 2 * buf.length)];
+		stream.readFully(buf, 0, n);
+		pos = 0;
+		limit = n;
+	}
+
+	int readByte () throws IOException {
+		require(1);
+		return buf[pos++] & 0xff;
+	}
+
+	int readInt () throws IOException {
+		require(4);
+		int i = getInt(buf, pos, littleEndian);
+		pos += 4;
+		return i;
+	}
+
+	long readLong () throws IOException {
+		require(8);
+		long hi = getInt(buf, littleEndian ? pos + 4 : pos, littleEndian);
+		long lo = getInt(buf, littleEndian ? pos : pos + 4, littleEndian);
+		pos += 8;
+		return (hi << 32) | (lo & 0xffffffffL);
+	}
+
+	/** Reads a count and that many ints. */
+	int[] readInts () throws IOException {
+		int n = readCount();
+		require(4 * n);
+		int[] ints = decodeInts(buf, pos, n, littleEndian);
+		pos += 4 * n;
+		return ints;
+	}
+
+	/** Reads a count and that many ints, without decoding them. */
+	byte[] readIntBytes () throws IOException {
+		int n = readCount();
+		require(4 * n);
+		byte[] bytes = new byte[4 * n];
+		System.arraycopy(buf, pos, bytes, 0, bytes.length);
+		pos += bytes.length;
+		return bytes;
+	}
+
+	int readCount () throws IOException {
+		int n = readInt();
+		if (n < 0 || n > 0x1fffffff) throw new IOException("Could not load bytecode:bad count " + n);
+		return n;
+	}
+
+	private int readSize () throws IOException {
+		long len;
+		if (sizeT == 4) {
+			len = readInt() & 0xffffffffL;
+		} else {
+			len = readLong();
+		}
+		// Change this to a proper string loader if you need longer strings.
+		// The extra code needed seems unnecessary for the common use cases.
+		if (len < 0 || len > 0x10000) throw new IOException("Could not load bytecode:Too long string:" + (len - 1));
+		return (int) len;
+	}
+
+	/** Reads a string stored with its length and a trailing zero. */
+	String readString () throws IOException {
+		int len = readSize();
+		if (len == 0) {
+			return null;
+		}
+		require(len);
+		int start = pos;
+		int end = pos + len - 1;
+		pos += len;
+		if (buf[end] != 0) throw new IOException("Could not load bytecode:String loading");
+
+		// plain ASCII decodes the same in any encoding
+		byte[] b = buf;
+		int i = start;
+		while (i < end && b[i] >= 0) i++;
+		if (i == end) {
+			char[] chars = new char[end - start];
+			for (int j = 0; j < chars.length; j++) chars[j] = (char) b[start + j];
+			return new String(chars);
+		}
+		return decodeUTF(b, start, end - start);
+	}
+
+	/** Skips a string, such as a name of a local variable. */
+	void skipString () throws IOException {
+		skip(readSize());
+	}
+
+	void skip (int n) throws IOException {
+		if (stream != null && n > buf.length) {
+			while (n > 0) {
+				int step = Math.min(n, buf.length);
+				require(step);
+				n -= step;
+			}
+			pos = limit;
+			return;
+		}
+		require(n);
+		pos += n;
+	}
+
+	/** Decodes length bytes of modified UTF-8, which are followed by a zero. */
+	private static String decodeUTF (byte[] b, int offset, int length) {
+		byte[] stringData = new byte[2 + length + 1];
+		stringData[0] = (byte) ((length >> 8) & 0xff);
+		stringData[1] = (byte) (length & 0xff);
+		System.arraycopy(b, offset, stringData, 2, length + 1);
+		try {
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(stringData));
+			String s = dis.readUTF();
+			dis.close();
+			return s;
+		} catch (IOException e) {
+			// it is unlikely to be a broken UTF, more likely someting
+			// in an unknown encoding. replace every non-ASCII with '?'
+			for (int i = 2; i < stringData.length; i++)
+				if ((stringData[i] & 0x80) == 0x80) stringData[i] = (byte)'?';
+			return new String(stringData, 2, stringData.length - 2);
+		}
+	}
+
+	private static int getInt (byte[] b, int p, boolean littleEndian) {
+		if (littleEndian) {
+			return (b[p] & 0xff) | (b[p + 1] & 0xff) << 8
+				| (b[p + 2] & 0xff) << 16 | b[p + 3] << 24;
+		}
+		return b[p] << 24 | (b[p + 1] & 0xff) << 16
+			| (b[p + 2] & 0xff) << 8 | (b[p + 3] & 0xff);
+	}
+
+	static int[] decodeInts (byte[] b, int p, int n, boolean littleEndian) {
+		int[] ints = new int[n];
+		if (littleEndian) {
+			for (int i = 0; i < n; i++, p += 4) {
+				ints[i] = (b[p] & 0xff) | (b[p + 1] & 0xff) << 8
+					| (b[p + 2] & 0xff) << 16 | b[p + 3] << 24;
+			}
+		} else {
+			for (int i = 0; i < n; i++, p += 4) {
+				ints[i] = b[p] << 24 | (b[p + 1] & 0xff) << 16
+					| (b[p + 2] & 0xff) << 8 | (b[p + 3] & 0xff);
+			}
+		}
+		return ints;
+	}
+}
@@ -0,0 +1,189 @@
+package se.krka.kahlua.vm;
+
+import se.krka.kahlua.stdlib.CoroutineLib;
+
+/**
+ * Code of a Lua function made by a {@link LuaCompiler}.
+ * <p>
+ * Compiled code works on the same call frame as the interpreter: registers
+ * are the frame's stack slots and the frame's pc says where to continue.
+ * run() starts at the pc and executes instructions until it gets to one it
+ * doesn't handle - a return, a tail call, a call of a Lua function or of
+ * a coroutine function, a closure, or whatever else the compiler left out.
+ * It then returns with the pc pointing at that instruction, and the
+ * interpreter executes it. That way frames are pushed and popped, and
+ * coroutines switched, only by the interpreter.
+ * <p>
+ * The static methods do the work of single instructions, with operands
+ * already decoded, for compiled code to call.
+ */
+public abstract class CompiledFunction {
+
+	protected final LuaPrototype prototype;
+	protected final Object[] constants;
+
+	protected CompiledFunction(LuaPrototype prototype) {
+		this.prototype = prototype;
+		this.constants = prototype.constants;
+	}
+
+	/**
+	 * Runs the function in callFrame from callFrame.pc, and leaves the pc
+	 * at the first instruction that the interpreter should execute.
+	 */
+	public abstract void run(LuaState state, LuaCallFrame callFrame);
+
+	public static Object getUpval(LuaCallFrame callFrame, int b) {
+		return callFrame.closure.upvalues[b].getValue();
+	}
+
+	public static void setUpval(LuaCallFrame callFrame, int b, Object value) {
+		callFrame.closure.upvalues[b].setValue(value);
+	}
+
+	/** GETGLOBAL; pc is that of the next instruction, as in the interpreter */
+	public static Object getGlobal(LuaState state, LuaCallFrame callFrame, int pc, Object key) {
+		LuaClosure closure = callFrame.closure;
+		if (key instanceof String) {
+			return state.tableGet(LuaState.inlineCache(closure.prototype, pc - 1), closure.env, (String) key);
+		}
+		return state.tableGet(closure.env, key);
+	}
+
+	/** GETTABLE with a constant string key */
+	public static Object getField(LuaState state, LuaCallFrame callFrame, int pc, Object table, String key) {
+		return state.tableGet(LuaState.inlineCache(callFrame.closure.prototype, pc - 1), table, key);
+	}
+
+	public static void setGlobal(LuaState state, LuaCallFrame callFrame, Object key, Object value) {
+		state.tableSet(callFrame.closure.env, key, value);
+	}
+
+	/** NEWTABLE, with the sizes as encoded in the instruction */
+	public static LuaTable newTable(int b, int c) {
+		return new LuaTableImpl(LuaState.fb2int(b), LuaState.fb2int(c));
+	}
+
+	/** SELF; constantKey tells whether the key is a constant string */
+	public static void self(LuaState state, LuaCallFrame callFrame, int pc, int a, int b, Object key, boolean constantKey) {
+		Object bObj = callFrame.get(b);
+		Object fun;
+		if (constantKey) {
+			fun = state.tableGet(LuaState.inlineCache(callFrame.closure.prototype, pc - 1), bObj, (String) key);
+		} else {
+			fun = state.tableGet(bObj, key);
+		}
+		callFrame.set(a, fun);
+		callFrame.set(a + 1, bObj);
+	}
+
+	public static Object arith(LuaState state, Object bo, Object co, int opcode) {
+		if (bo instanceof Double && co instanceof Double) {
+			return LuaState.primitiveMath(LuaState.fromDouble(bo), LuaState.fromDouble(co), opcode);
+		}
+		return state.arith(bo, co, opcode);
+	}
+
+	public static Object unm(LuaState state, Object o) {
+		return state.unm(o);
+	}
+
+	public static Boolean not(Object o) {
+		return LuaState.toBoolean(!LuaState.boolEval(o));
+	}
+
+	public static Object len(LuaState state, Object o) {
+		return state.len(o);
+	}
+
+	public static Object concat(LuaState state, LuaCallFrame callFrame, int b, int c) {
+		return state.concat(callFrame, b, c);
+	}
+
+	/** EQ, LT or LE, without the jump */
+	public static boolean compare(LuaState state, Object bo, Object co, int opcode) {
+		if (bo instanceof Double && co instanceof Double) {
+			double bd = LuaState.fromDouble(bo);
+			double cd = LuaState.fromDouble(co);
+			if (opcode == LuaState.OP_EQ) {
+				return bd == cd;
+			} else if (opcode == LuaState.OP_LT) {
+				return bd < cd;
+			}
+			return bd <= cd;
+		}
+		return state.compare(bo, co, opcode);
+	}
+
+	/** TESTSET; returns true when the next instruction is skipped */
+	public static boolean testSet(LuaCallFrame callFrame, int a, int b, int c) {
+		Object value = callFrame.get(b);
+		if (LuaState.boolEval(value) != (c == 0)) {
+			callFrame.set(a, value);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * CALL of a Java function. Returns false, without touching anything,
+	 * when the called value is something else, for the interpreter to call.
+	 */
+	public static boolean call(LuaState state, LuaCallFrame callFrame, int a, int b, int c) {
+		Object fun = callFrame.get(a);
+		// coroutine functions switch threads, which only the interpreter can follow
+		if (!(fun instanceof JavaFunction) || fun instanceof CoroutineLib) {
+			return false;
+		}
+		int nArguments = b - 1;
+		if (nArguments != -1) {
+			callFrame.setTop(a + nArguments + 1);
+		} else {
+			nArguments = callFrame.getTop() - a - 1;
+		}
+		callFrame.restoreTop = c != 0;
+
+		int base = callFrame.localBase;
+		state.callJava((JavaFunction) fun, base + a + 1, base + a, nArguments);
+
+		if (callFrame.restoreTop) {
+			callFrame.setTop(callFrame.closure.prototype.maxStacksize);
+		}
+		return true;
+	}
+
+	public static void forPrep(LuaCallFrame callFrame, int a) {
+		double iter = LuaState.fromDouble(callFrame.get(a));
+		double step = LuaState.fromDouble(callFrame.get(a + 2));
+		callFrame.set(a, LuaState.toDouble(iter - step));
+	}
+
+	/** FORLOOP; returns true when the loop goes on */
+	public static boolean forLoop(LuaCallFrame callFrame, int a) {
+		double iter = LuaState.fromDouble(callFrame.get(a));
+		double end = LuaState.fromDouble(callFrame.get(a + 1));
+		double step = LuaState.fromDouble(callFrame.get(a + 2));
+		iter += step;
+		Double iterDouble = LuaState.toDouble(iter);
+		callFrame.set(a, iterDouble);
+
+		if ((step > 0) ? iter <= end : iter >= end) {
+			callFrame.set(a + 3, iterDouble);
+			return true;
+		}
+		callFrame.clearFromIndex(a);
+		return false;
+	}
+
+	/** TFORLOOP; returns true when the next instruction is skipped */
+	public static boolean tforLoop(LuaState state, LuaCallFrame callFrame, int op) {
+		int pc = callFrame.pc;
+		state.tforloop(callFrame, op);
+		return callFrame.pc != pc;
+	}
+
+	/** SETLIST with the block number in the instruction */
+	public static void setList(LuaState state, LuaCallFrame callFrame, int op) {
+		state.setlist(callFrame, op, callFrame.closure.prototype.code);
+	}
+}
@@ -0,0 +1,37 @@
+package se.krka.kahlua.vm;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Remembers where a GETGLOBAL, GETTABLE or SELF instruction with a constant
+ * string key found its value the last time: the hash slot in the table
+ * itself and, for lookups that fall through to a metatable, the slot of
+ * __index in the metatable and the slot of the key in the __index table.
+ * <p>
+ * A slot stays valid for as long as the shape of its table does not change.
+ * Keys are never removed from a table, only their values set to nil,
+ * so only the position is cached and the value is read on every use.
+ * <p>
+ * Caches live in prototypes, which sessions share, so tables are held
+ * weakly and a finished game's tables don't stay reachable through them.
+ * An entry is never changed, only replaced, so a thread always sees
+ * a table together with the slot that was found in it.
+ */
+final class InlineCache {
+	Entry table, meta, index;
+
+	static final class Entry extends WeakReference {
+		final int shape;
+		final int slot;
+
+		Entry(LuaTableImpl table, String key) {
+			super(table);
+			shape = table.shape;
+			slot = table.slotOf(key);
+		}
+
+		boolean holds(LuaTableImpl table) {
+			return shape == table.shape && get() == table;
+		}
+	}
+}
@@ -32,11 +32,15 @@ public final class LuaClosure {
 		this.prototype = prototype;
 		this.env = env;
 		upvalues = new UpValue[prototype.numUpvalues];
+		if (prototype.ops == null) {
+			// a prototype that was put together by hand, not loaded
+			BytecodeOptimizer.optimize(prototype);
+		}
 	}
 	
 	public String toString() {
-		if (prototype.lines.length > 0) {
-			return "function " + prototype.toString() + ":" + prototype.lines[0];
+		if (prototype.getLines().length > 0) {
+			return "function " + prototype.toString() + ":" + prototype.getLines()[0];
 		}
 		return "function[" + Integer.toString(hashCode(), 36) + "]";
 	}
@@ -0,0 +1,11 @@
+package se.krka.kahlua.vm;
+
+/**
+ * Turns a function into code that runs without the interpreter loop.
+ * LuaState asks for it once a function has been called often enough,
+ * see {@link LuaState#setCompiler}.
+ */
+public interface LuaCompiler {
+	/** Returns compiled code for the prototype, or null to keep interpreting it. */
+	public CompiledFunction compile(LuaPrototype prototype);
+}
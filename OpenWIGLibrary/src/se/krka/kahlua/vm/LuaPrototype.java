@@ -21,7 +21,6 @@ THE SOFTWARE.
 */
 package se.krka.kahlua.vm;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -42,19 +41,31 @@ public final class LuaPrototype {
 
     // debug info
     public String name;
-    public int[] lines;
+    private int[] lines;
+    private byte[] lineData;
+    private boolean lineLittleEndian;
 
 	public int numUpvalues;
 
 	public int maxStacksize;
+
+	// per-instruction lookup caches, created when first needed
+	InlineCache[] inlineCaches;
+
+	// the code as the interpreter runs it, see BytecodeOptimizer,
+	// and constants that it made by folding
+	int[] ops;
+	Object[] folded;
+
+	// calls counted for the compiler, and what it made of this function
+	int calls;
+	CompiledFunction compiled;
 	
 	public LuaPrototype() {
 	}
 
-	public LuaPrototype(DataInputStream in, boolean littleEndian, String parentName, int size_t) throws IOException {
-		int tmp;
-
-		name = readLuaString(in, size_t, littleEndian);
+	LuaPrototype(BytecodeReader in, String parentName) throws IOException {
+		name = in.readString();
 		if (name == null) {
 			name = parentName;
 		}
@@ -64,41 +75,32 @@ public final class LuaPrototype {
 		in.readInt();
 		in.readInt();
 
-		numUpvalues = in.read();
-		numParams = in.read();
-		int isVararg = in.read();
+		numUpvalues = in.readByte();
+		numParams = in.readByte();
+		int isVararg = in.readByte();
 		this.isVararg = (isVararg & 2) != 0;
-		maxStacksize = in.read();
+		maxStacksize = in.readByte();
 
-		int codeLen = toInt(in.readInt(), littleEndian);
-		code = new int[codeLen];
-		for (int i = 0; i < codeLen; i++) {
-			int op = toInt(in.readInt(), littleEndian);
-			code[i] = op;
-		}
+		code = in.readInts();
 
-		int constantsLen = toInt(in.readInt(), littleEndian);
+		int constantsLen = in.readCount();
 		constants = new Object[constantsLen];
 		for (int i = 0; i < constantsLen; i++) {
 			Object o = null;
-			int type = in.read();
+			int type = in.readByte();
 			switch (type) {
 			case 0:
 				// Do nothing - this constant is null by default
 			    break;
 			case 1:
-			    int b = in.read();
+			    int b = in.readByte();
 			    o = b == 0 ? Boolean.FALSE : Boolean.TRUE;
 			    break;
 			case 3:
-				long bits = in.readLong();
-				if (littleEndian) {
-					bits = rev(bits);
-				}
-				o = LuaState.toDouble(Double.longBitsToDouble(bits));
+				o = LuaState.toDouble(Double.longBitsToDouble(in.readLong()));
 				break;
 			case 4:
-				o = readLuaString(in, size_t, littleEndian);
+				o = in.readString();
 				break;
 			default:
 			    throw new IOException("unknown constant type: " + type);
@@ -106,93 +108,55 @@ public final class LuaPrototype {
 			constants[i] = o;
 		}
 
-		int prototypesLen = toInt(in.readInt(), littleEndian);
+		int prototypesLen = in.readCount();
 		prototypes = new LuaPrototype[prototypesLen];
 		for (int i = 0; i < prototypesLen; i++) {
-			prototypes[i] = new LuaPrototype(in, littleEndian, name, size_t);
+			prototypes[i] = new LuaPrototype(in, name);
 		}
 
 		// DEBUGGING INFORMATION
 
-		// read lines
-		tmp = toInt(in.readInt(), littleEndian);
-
-		lines = new int[tmp];
-
-		for (int i = 0; i < tmp; i++) {
-			int tmp2 = toInt(in.readInt(), littleEndian);
-			lines[i] = tmp2;
-		}
+		// lines are only needed for error messages, see getLines()
+		lineData = in.readIntBytes();
+		lineLittleEndian = in.littleEndian;
 
 		// skip locals
-		tmp = toInt(in.readInt(), littleEndian);
+		int tmp = in.readCount();
 		for (int i = 0; i < tmp; i++) {
-			readLuaString(in, size_t, littleEndian);
-			in.readInt();
-			in.readInt();
+			in.skipString();
+			in.skip(8);
 		}
 
-		// read upvalues
-		tmp = toInt(in.readInt(), littleEndian);
+		// skip upvalues
+		tmp = in.readCount();
 		for (int i = 0; i < tmp; i++) {
-			readLuaString(in, size_t, littleEndian);
+			in.skipString();
 		}
-	}
 
-	public String toString() {
-		return name;
+		BytecodeOptimizer.optimize(this);
 	}
 
-	// NOTE: known weakness - will crash if a string is longer than 2^16 - 1
-	private static String readLuaString(DataInputStream in, int size_t, boolean littleEndian) throws IOException {
-		long len = 0;
-
-		if (size_t == 4) {
-			int i = in.readInt();
-			len = toInt(i, littleEndian);
-		} else if (size_t == 8) {
-			len = toLong(in.readLong(), littleEndian);
-		} else {
-			loadAssert(false, "Bad string size");
-		}
-
-		if (len == 0) {
-			return null;
+	/**
+	 * Returns line numbers of the instructions. Loaded functions keep
+	 * them undecoded until they are first asked for.
+	 */
+	public synchronized int[] getLines() {
+		if (lines == null) {
+			lines = lineData == null ? new int[0]
+				: BytecodeReader.decodeInts(lineData, 0, lineData.length / 4, lineLittleEndian);
+			lineData = null;
 		}
+		return lines;
+	}
 
-		len = len - 1;
-
-		// Change this to a proper string loader if you need longer strings.
-		// The extra code needed seems unnecessary for the common use cases.
-		loadAssert(len < 0x10000, "Too long string:" + len);
-
-		int iLen = (int) len;
-		byte[] stringData = new byte[2 + 1 + iLen];
-
-		stringData[0] = (byte) ((iLen >> 8) & 0xff);
-		stringData[1] = (byte) (iLen & 0xff);
-
-		// Remember to read the trailing 0 too
-		in.readFully(stringData, 2, iLen + 1);
-		loadAssert(stringData[2 + iLen] == 0, "String loading");
-
-		try {
-			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(stringData));
-			String s = dis.readUTF();
-			dis.close();
-
-			return s;
-		} catch (IOException e) {
-			return loadUndecodable(stringData);
-		}
+	/** Returns the number of line numbers, without decoding them. */
+	public synchronized int getLineCount() {
+		if (lines != null) return lines.length;
+		return lineData == null ? 0 : lineData.length / 4;
 	}
-	
-	private static String loadUndecodable (byte[] bytes) {
-		// it is unlikely to be a broken UTF, more likely someting
-		// in an unknown encoding. replace every non-ASCII with '?'
-		for (int i = 2; i < bytes.length; i++)
-			if ((bytes[i] & 0x80) == 0x80) bytes[i] = (byte)'?';
-		return new String(bytes, 2, bytes.length - 2);
+
+	public String toString() {
+		return name;
 	}
 
 	public static int rev(int v) {
@@ -236,55 +200,70 @@ public final class LuaPrototype {
 
 
 	public static LuaClosure loadByteCode(DataInputStream in, LuaTable env)
+	throws IOException {
+		return load(new BytecodeReader(in), env);
+	}
+
+	/**
+	 * Loads a chunk that is already in memory. This is faster than
+	 * reading it from a stream.
+	 */
+	public static LuaClosure loadByteCode(byte[] data, LuaTable env)
+	throws IOException {
+		return load(new BytecodeReader(data, 0, data.length), env);
+	}
+
+	private static LuaClosure load(BytecodeReader in, LuaTable env)
 	throws IOException {
 		int tmp;
 
 //		Read lua header
-		tmp = in.read();
+		tmp = in.readByte();
 		loadAssert(tmp == 27, "Signature 1");
 
-		tmp = in.read();
+		tmp = in.readByte();
 		loadAssert(tmp == 'L', "Signature 2");
 
-		tmp = in.read();
+		tmp = in.readByte();
 		loadAssert(tmp == 'u', "Signature 3");
 
-		tmp = in.read();
+		tmp = in.readByte();
 		loadAssert(tmp == 'a', "Signature 4");
 
 //		Version = 5.1
-		tmp = in.read();
+		tmp = in.readByte();
 		loadAssert(tmp == 0x51, "Version");
 
 //		Format
-		tmp = in.read();
+		tmp = in.readByte();
 		loadAssert(tmp == 0, "Format");
 
 //		Little Endian!
-		boolean littleEndian = in.read() == 1;
+		in.littleEndian = in.readByte() == 1;
 
 //		Size of int
-		tmp = in.read();
+		tmp = in.readByte();
 		loadAssert(tmp == 4, "Size int");
 
 //		Size of size_t
-		int size_t = in.read();
+		int size_t = in.readByte();
 		loadAssert(size_t == 4 || size_t == 8, "Size t");
+		in.sizeT = size_t;
 
 //		Size of instruction
-		tmp = in.read();
+		tmp = in.readByte();
 		loadAssert(tmp == 4, "Size instr");
 
 //		Size of number
-		tmp = in.read();
+		tmp = in.readByte();
 		loadAssert(tmp == 8, "Size number");
 
 //		Integral
-		tmp = in.read();
+		tmp = in.readByte();
 		loadAssert(tmp == 0, "Integral");
 
 //		Done with header, start reading functions
-		LuaPrototype mainPrototype = new LuaPrototype(in, littleEndian, null, size_t);
+		LuaPrototype mainPrototype = new LuaPrototype(in, null);
 		LuaClosure closure = new LuaClosure(mainPrototype, env);
 		return closure;
 	}
@@ -383,6 +362,7 @@ public final class LuaPrototype {
 		// DEBUGGING INFORMATION
 
 		// read lines
+		int[] lines = getLines();
 		int linesLen = lines.length;
 		dos.writeInt(linesLen);
 		for (int i = 0; i < linesLen; i++) {
@@ -111,8 +111,28 @@ public class LuaState {
 
 	public static final int OP_VARARG = 37;
 
+	// Instructions made by BytecodeOptimizer, never found in luac output.
+	// The constant operand of GETFIELD, SETFIELD and ADDK..POWK is the
+	// index of the constant; the pairs run the instruction after them.
+	static final int OP_GETFIELD = 38;
+	static final int OP_SETFIELD = 39;
+	static final int OP_GETGLOBAL_FIELD = 40;
+	static final int OP_SELF_CALL = 41;
+	static final int OP_LOADK_SETFIELD = 42;
+	static final int OP_LOADF = 43;
+	static final int OP_ADDK = 44;
+	static final int OP_SUBK = 45;
+	static final int OP_MULK = 46;
+	static final int OP_DIVK = 47;
+	static final int OP_MODK = 48;
+	static final int OP_POWK = 49;
+
 	public LuaThread currentThread;
 
+	// turns functions that are called often into JVM code, see setCompiler
+	private LuaCompiler compiler;
+	private int compileThreshold;
+
 	// Needed for Math lib - every state needs its own random
 	public final Random random = new Random();
 
@@ -213,6 +233,9 @@ public class LuaState {
 		LuaCallFrame callFrame = currentThread.pushNewCallFrame((LuaClosure) o, null,
 				base + 1, base, nArguments, false, false);
 		callFrame.init();
+		if (compiler != null) {
+			entered(callFrame.closure.prototype);
+		}
 
 		luaMainloop();
 
@@ -223,7 +246,7 @@ public class LuaState {
 		return nReturnValues;
 	}
 
-	private int callJava(JavaFunction f, int localBase, int returnBase,
+	int callJava(JavaFunction f, int localBase, int returnBase,
 			int nArguments) {
 		LuaThread thread = currentThread;
 
@@ -255,18 +278,35 @@ public class LuaState {
 		return f;
 	}
 
+	/*
+	 * The interpreter loop keeps only the opcodes that make up most of
+	 * the executed code: moves, constants, table access, calls, arithmetic
+	 * on numbers, jumps, tests and numeric for loops. Everything else -
+	 * metamethod fallbacks, concatenation, returns, tail calls, varargs,
+	 * closures, SETLIST and error unwinding - lives in separate methods.
+	 * That keeps the loop small enough for the JIT to compile it early
+	 * and keep its locals in registers; the cold methods are compiled,
+	 * or inlined, on their own when they get hot.
+	 *
+	 * Cold opcodes that switch to another call frame return it, or null
+	 * when the interpreter should return to its Java caller.
+	 */
 	private final void luaMainloop() {
 		LuaCallFrame callFrame = currentThread.currentCallFrame();
 		LuaClosure closure = callFrame.closure;
 		LuaPrototype prototype = closure.prototype;
-		int[] opcodes = prototype.code;
+		int[] opcodes = prototype.ops;
+		CompiledFunction compiled = prototype.compiled;
 
-		int returnBase = callFrame.returnBase;
-		
 		while (true) {
 			try {
 				int a, b, c;
 
+				if (compiled != null) {
+					// runs up to an instruction that it leaves to us
+					compiled.run(this, callFrame);
+				}
+
 				int op = opcodes[callFrame.pc++];
 				int opcode = op & 63;
 
@@ -277,10 +317,29 @@ public class LuaState {
 					callFrame.set(a, callFrame.get(b));
 					break;
 				}
-				case OP_LOADK: {
+				case OP_LOADK:
+				case OP_LOADK_SETFIELD: {
 					a = getA8(op);
 					b = getBx(op);
 					callFrame.set(a, prototype.constants[b]);
+					if (opcode == OP_LOADK) {
+						break;
+					}
+					op = opcodes[callFrame.pc++];
+				}
+				// fall through to the SETFIELD that follows
+				case OP_SETFIELD: {
+					a = getA8(op);
+					b = getB9(op);
+					c = getC9(op);
+					tableSet(callFrame.get(a), prototype.constants[b],
+							getRegisterOrConstant(callFrame, c, prototype));
+					break;
+				}
+				case OP_LOADF: {
+					a = getA8(op);
+					b = getBx(op);
+					callFrame.set(a, prototype.folded[b]);
 					break;
 				}
 				case OP_LOADBOOL: {
@@ -307,11 +366,30 @@ public class LuaState {
 					callFrame.set(a, uv.getValue());
 					break;
 				}
-				case OP_GETGLOBAL: {
+				case OP_GETGLOBAL:
+				case OP_GETGLOBAL_FIELD: {
 					a = getA8(op);
 					b = getBx(op);
-					Object res = tableGet(closure.env, prototype.constants[b]);
+					Object key = prototype.constants[b];
+					Object res;
+					if (key instanceof String) {
+						res = tableGet(inlineCache(prototype, callFrame.pc - 1), closure.env, (String) key);
+					} else {
+						res = tableGet(closure.env, key);
+					}
 					callFrame.set(a, res);
+					if (opcode == OP_GETGLOBAL) {
+						break;
+					}
+					op = opcodes[callFrame.pc++];
+				}
+				// fall through to the GETFIELD that follows
+				case OP_GETFIELD: {
+					a = getA8(op);
+					b = getB9(op);
+					c = getC9(op);
+					String key = (String) prototype.constants[c];
+					callFrame.set(a, tableGet(inlineCache(prototype, callFrame.pc - 1), callFrame.get(b), key));
 					break;
 				}
 				case OP_GETTABLE: {
@@ -319,12 +397,10 @@ public class LuaState {
 					b = getB9(op);
 					c = getC9(op);
 
+					// constant string keys are GETFIELD
 					Object bObj = callFrame.get(b);
-
 					Object key = getRegisterOrConstant(callFrame, c, prototype);
-
-					Object res = tableGet(bObj, key);
-					callFrame.set(a, res);
+					callFrame.set(a, tableGet(bObj, key));
 					break;
 				}
 				case OP_SETGLOBAL: {
@@ -362,28 +438,12 @@ public class LuaState {
 				}
 				case OP_NEWTABLE: {
 					a = getA8(op);
-
-					// Used to set up initial array and hash size - not
-					// implemented
-					// b = getB9(op);
-					// c = getC9(op);
-
-					LuaTable t = new LuaTableImpl();
-					callFrame.set(a, t);
-					break;
-				}
-				case OP_SELF: {
-					a = getA8(op);
 					b = getB9(op);
 					c = getC9(op);
 
-					Object key = getRegisterOrConstant(callFrame, c, prototype);
-					Object bObj = callFrame.get(b);
-
-					Object fun = tableGet(bObj, key);
-
-					callFrame.set(a, fun);
-					callFrame.set(a + 1, bObj);
+					// b and c hold the initial array and hash size
+					LuaTable t = new LuaTableImpl(fb2int(b), fb2int(c));
+					callFrame.set(a, t);
 					break;
 				}
 				case OP_ADD:
@@ -399,40 +459,44 @@ public class LuaState {
 					Object bo = getRegisterOrConstant(callFrame, b, prototype);
 					Object co = getRegisterOrConstant(callFrame, c, prototype);
 
-					Double bd = null, cd = null;
-					Object res = null;
-					if ((bd = BaseLib.rawTonumber(bo)) == null
-							|| (cd = BaseLib.rawTonumber(co)) == null) {
-						String meta_op = meta_ops[opcode];
-
-						Object metafun = getBinMetaOp(bo, co, meta_op);
-						if (!(metafun != null)) {
-							BaseLib.fail((meta_op + " not defined for operands"));
-						}
-						res = call(metafun, bo, co, null);
+					Object res;
+					if (bo instanceof Double && co instanceof Double) {
+						res = primitiveMath(fromDouble(bo), fromDouble(co), opcode);
 					} else {
-						res = primitiveMath(bd, cd, opcode);
+						res = arith(bo, co, opcode);
 					}
 					callFrame.set(a, res);
 					break;
 				}
-				case OP_UNM: {
+				case OP_ADDK:
+				case OP_SUBK:
+				case OP_MULK:
+				case OP_DIVK:
+				case OP_MODK:
+				case OP_POWK: {
 					a = getA8(op);
 					b = getB9(op);
-					Object aObj = callFrame.get(b);
+					c = getC9(op);
+					opcode += OP_ADD - OP_ADDK;
+
+					Object bo = callFrame.get(b);
+					Object co = prototype.constants[c];
 
-					Double aDouble = BaseLib.rawTonumber(aObj);
 					Object res;
-					if (aDouble != null) {
-						res = toDouble(-fromDouble(aDouble));
+					if (bo instanceof Double) {
+						res = primitiveMath(fromDouble(bo), fromDouble(co), opcode);
 					} else {
-						Object metafun = getMetaOp(aObj, "__unm");
-						//BaseLib.luaAssert(metafun != null, "__unm not defined for operand");
-						res = call(metafun, aObj, null, null);
+						res = arith(bo, co, opcode);
 					}
 					callFrame.set(a, res);
 					break;
 				}
+				case OP_UNM: {
+					a = getA8(op);
+					b = getB9(op);
+					callFrame.set(a, unm(callFrame.get(b)));
+					break;
+				}
 				case OP_NOT: {
 					a = getA8(op);
 					b = getB9(op);
@@ -443,80 +507,14 @@ public class LuaState {
 				case OP_LEN: {
 					a = getA8(op);
 					b = getB9(op);
-
-					Object o = callFrame.get(b);
-					Object res;
-					if (o instanceof LuaTable) {
-						LuaTable t = (LuaTable) o;
-						res = toDouble(t.len());
-					} else if (o instanceof String) {
-						String s = (String) o;
-						res = toDouble(s.length());
-					} else {
-						Object f = getMetaOp(o, "__len");
-						BaseLib.luaAssert(f != null, "__len not defined for operand");
-						res = call(f, o, null, null);
-					}
-					callFrame.set(a, res);
+					callFrame.set(a, len(callFrame.get(b)));
 					break;
 				}
 				case OP_CONCAT: {
 					a = getA8(op);
 					b = getB9(op);
 					c = getC9(op);
-
-					int first = b;
-					int last = c;
-
-					Object res = callFrame.get(last);
-					last--;
-					while (first <= last) {
-						// Optimize for multi string concats
-						{
-							String resStr = BaseLib.rawTostring(res);
-							if (res != null) {
-
-								int nStrings = 0;
-								int pos = last;
-								while (first <= pos) {
-									Object o = callFrame.get(pos);
-									pos--;
-									if (BaseLib.rawTostring(o) == null) {
-										break;
-									}
-									nStrings++;
-								}
-								if (nStrings > 0) {
-									StringBuffer concatBuffer = new StringBuffer();
-
-									int firstString = last - nStrings + 1;
-									while (firstString <= last) {
-										concatBuffer.append(BaseLib
-												.rawTostring(callFrame
-														.get(firstString)));
-										firstString++;
-									}
-									concatBuffer.append(resStr);
-
-									res = concatBuffer.toString();
-
-									last = last - nStrings;
-								}
-							}
-						}
-						if (first <= last) {
-							Object leftConcat = callFrame.get(last);
-
-							Object metafun = getBinMetaOp(leftConcat, res,
-									"__concat");
-							if (!(metafun != null)) {
-								BaseLib.fail(("__concat not defined for operands: " + leftConcat + " and " + res));
-							}
-							res = call(metafun, leftConcat, res, null);
-							last--;
-						}
-					}
-					callFrame.set(a, res);
+					callFrame.set(a, concat(callFrame, b, c));
 					break;
 				}
 				case OP_JMP: {
@@ -533,89 +531,23 @@ public class LuaState {
 					Object bo = getRegisterOrConstant(callFrame, b, prototype);
 					Object co = getRegisterOrConstant(callFrame, c, prototype);
 
+					boolean resBool;
 					if (bo instanceof Double && co instanceof Double) {
 						double bd_primitive = fromDouble(bo);
 						double cd_primitive = fromDouble(co);
 
 						if (opcode == OP_EQ) {
-							if ((bd_primitive == cd_primitive) == (a == 0)) {
-								callFrame.pc++;
-							}
-						} else {
-							if (opcode == OP_LT) {
-								if ((bd_primitive < cd_primitive) == (a == 0)) {
-									callFrame.pc++;
-								}
-							} else { // opcode must be OP_LE
-								if ((bd_primitive <= cd_primitive) == (a == 0)) {
-									callFrame.pc++;
-								}
-							}
-						}
-					} else if (bo instanceof String && co instanceof String) {
-						if (opcode == OP_EQ) {
-							if ((bo.equals(co)) == (a == 0)) {
-								callFrame.pc++;
-							}
-						} else {
-							String bs = (String) bo;
-							String cs = (String) co;
-							int cmp = bs.compareTo(cs);
-
-							if (opcode == OP_LT) {
-								if ((cmp < 0) == (a == 0)) {
-									callFrame.pc++;
-								}
-							} else { // opcode must be OP_LE
-								if ((cmp <= 0) == (a == 0)) {
-									callFrame.pc++;
-								}
-							}
+							resBool = bd_primitive == cd_primitive;
+						} else if (opcode == OP_LT) {
+							resBool = bd_primitive < cd_primitive;
+						} else { // opcode must be OP_LE
+							resBool = bd_primitive <= cd_primitive;
 						}
 					} else {
-						boolean resBool;
-						if (bo == co) {
-							resBool = true;
-						} else {
-							boolean invert = false;
-
-							String meta_op = meta_ops[opcode];
-
-							Object metafun = getCompMetaOp(bo, co, meta_op);
-
-							/*
-							 * Special case: OP_LE uses OP_LT if __le is not
-							 * defined. a <= b is then translated to not (b < a)
-							 */
-							if (metafun == null && opcode == OP_LE) {
-								metafun = getCompMetaOp(bo, co, "__lt");
-
-								// Swap the objects
-								Object tmp = bo;
-								bo = co;
-								co = tmp;
-
-								// Invert a (i.e. add the "not"
-								invert = true;
-							}
-
-							if (metafun == null && opcode == OP_EQ) {
-								resBool = LuaState.luaEquals(bo, co);
-							} else {
-								if (!(metafun != null)) {
-									BaseLib.fail((meta_op + " not defined for operand"));
-								}
-								Object res = call(metafun, bo, co, null);
-								resBool = boolEval(res);
-							}
-
-							if (invert) {
-								resBool = !resBool;
-							}
-						}
-						if (resBool == (a == 0)) {
-							callFrame.pc++;
-						}
+						resBool = compare(bo, co, opcode);
+					}
+					if (resBool == (a == 0)) {
+						callFrame.pc++;
 					}
 					break;
 				}
@@ -645,6 +577,30 @@ public class LuaState {
 
 					break;
 				}
+				case OP_SELF:
+				case OP_SELF_CALL: {
+					a = getA8(op);
+					b = getB9(op);
+					c = getC9(op);
+
+					Object key = getRegisterOrConstant(callFrame, c, prototype);
+					Object bObj = callFrame.get(b);
+
+					Object fun;
+					if (c >= 256 && key instanceof String) {
+						fun = tableGet(inlineCache(prototype, callFrame.pc - 1), bObj, (String) key);
+					} else {
+						fun = tableGet(bObj, key);
+					}
+
+					callFrame.set(a, fun);
+					callFrame.set(a + 1, bObj);
+					if (opcode == OP_SELF) {
+						break;
+					}
+					op = opcodes[callFrame.pc++];
+				}
+				// fall through to the CALL that follows
 				case OP_CALL: {
 					a = getA8(op);
 					b = getB9(op);
@@ -664,15 +620,10 @@ public class LuaState {
 					int returnBase2 = base + a;
 
 					Object funObject = callFrame.get(a);
-					BaseLib.luaAssert(funObject != null, "Tried to call nil");
-					Object fun = prepareMetatableCall(funObject);
-					if (!(fun != null)) {
-						BaseLib.fail(("Object " + funObject + " did not have __call metatable set"));
-					}
-
-					// If it's a metatable __call, prepend the caller as the
-					// first argument
-					if (fun != funObject) {
+					Object fun = funObject;
+					if (!(fun instanceof LuaClosure || fun instanceof JavaFunction)) {
+						fun = metaCall(funObject);
+						// the called object becomes the first argument
 						localBase2 = returnBase2;
 						nArguments2++;
 					}
@@ -683,13 +634,12 @@ public class LuaState {
 										returnBase2, nArguments2, true,
 										callFrame.insideCoroutine);
 						newCallFrame.init();
+						if (compiler != null) {
+							entered(newCallFrame.closure.prototype);
+						}
 
 						callFrame = newCallFrame;
-						closure = newCallFrame.closure;
-						prototype = closure.prototype;
-						opcodes = prototype.code;
-						returnBase = callFrame.returnBase;
-					} else if (fun instanceof JavaFunction) {
+					} else {
 						callJava((JavaFunction) fun, localBase2, returnBase2,
 								nArguments2);
 
@@ -701,155 +651,36 @@ public class LuaState {
 							return;
 						}
 
-						closure = callFrame.closure;
-						prototype = closure.prototype;
-						opcodes = prototype.code;
-						returnBase = callFrame.returnBase;
-
 						if (callFrame.restoreTop) {
-							callFrame.setTop(prototype.maxStacksize);
+							callFrame.setTop(callFrame.closure.prototype.maxStacksize);
 						}
-					} else {
-						throw new RuntimeException(
-								"Tried to call a non-function: " + fun);
 					}
-
+					closure = callFrame.closure;
+					prototype = closure.prototype;
+					opcodes = prototype.ops;
+					compiled = prototype.compiled;
 					break;
 				}
 				case OP_TAILCALL: {
-					int base = callFrame.localBase;
-
-					currentThread.closeUpvalues(base);
-
-					a = getA8(op);
-					b = getB9(op);
-					int nArguments2 = b - 1;
-					if (nArguments2 == -1) {
-						nArguments2 = callFrame.getTop() - a - 1;
-					}
-
-					callFrame.restoreTop = false;
-
-					Object funObject = callFrame.get(a);
-					BaseLib.luaAssert(funObject != null, "Tried to call nil");
-					Object fun = prepareMetatableCall(funObject);
-					if (!(fun != null)) {
-						BaseLib.fail(("Object " + funObject + " did not have __call metatable set"));
-					}
-
-					int localBase2 = returnBase + 1;
-
-					// If it's a metatable __call, prepend the caller as the
-					// first argument
-					if (fun != funObject) {
-						localBase2 = returnBase;
-						nArguments2++;
-					}
-
-					currentThread.stackCopy(base + a, returnBase,
-							nArguments2 + 1);
-					currentThread.setTop(returnBase + nArguments2 + 1);
-
-					if (fun instanceof LuaClosure) {
-						callFrame.localBase = localBase2;
-						callFrame.nArguments = nArguments2;
-						callFrame.closure = (LuaClosure) fun;
-						callFrame.init();
-					} else {
-						if (!(fun instanceof JavaFunction)) {
-							BaseLib.fail(("Tried to call a non-function: " + fun));
-						}
-						LuaThread oldThread = currentThread;
-						callJava((JavaFunction) fun, localBase2, returnBase,
-								nArguments2);
-
-						callFrame = currentThread.currentCallFrame();
-						oldThread.popCallFrame();
-
-						if (oldThread != currentThread) {
-							if (oldThread.isDead()) {
-
-								if (currentThread.parent == oldThread) {
-									currentThread.parent = oldThread.parent;
-									oldThread.parent = null;
-
-									// This is an implicit yield, so push a TRUE
-									// to the parent
-									currentThread.parent.currentCallFrame()
-											.push(Boolean.TRUE);
-								}
-							}
-
-							callFrame = currentThread.currentCallFrame();
-							if (callFrame.isJava()) {
-								return;
-							}
-						} else {
-							if (!callFrame.fromLua) {
-								return;
-							}
-							callFrame = currentThread.currentCallFrame();
-
-							if (callFrame.restoreTop) {
-								callFrame
-										.setTop(callFrame.closure.prototype.maxStacksize);
-							}
-						}
+					callFrame = tailCall(callFrame, op);
+					if (callFrame == null) {
+						return;
 					}
-
 					closure = callFrame.closure;
 					prototype = closure.prototype;
-					opcodes = prototype.code;
-					returnBase = callFrame.returnBase;
-
+					opcodes = prototype.ops;
+					compiled = prototype.compiled;
 					break;
 				}
 				case OP_RETURN: {
-					a = getA8(op);
-					b = getB9(op) - 1;
-
-					int base = callFrame.localBase;
-					currentThread.closeUpvalues(base);
-
-					if (b == -1) {
-						b = callFrame.getTop() - a;
-					}
-
-					currentThread.stackCopy(callFrame.localBase + a,
-							returnBase, b);
-					currentThread.setTop(returnBase + b);
-
-					if (callFrame.fromLua) {
-						if (callFrame.insideCoroutine
-								&& currentThread.callFrameTop == 1) {
-							callFrame.localBase = callFrame.returnBase;
-							LuaThread thread = currentThread;
-							CoroutineLib.yieldHelper(callFrame, callFrame, b);
-							thread.popCallFrame();
-
-							// If this thread is called from a java function,
-							// return immediately
-							callFrame = currentThread.currentCallFrame();
-							if (callFrame.isJava()) {
-								return;
-							}
-						} else {
-							currentThread.popCallFrame();
-						}
-						callFrame = currentThread.currentCallFrame();
-
-						closure = callFrame.closure;
-						prototype = closure.prototype;
-						opcodes = prototype.code;
-						returnBase = callFrame.returnBase;
-
-						if (callFrame.restoreTop) {
-							callFrame.setTop(prototype.maxStacksize);
-						}
-					} else {
-						currentThread.popCallFrame();
+					callFrame = luaReturn(callFrame, op);
+					if (callFrame == null) {
 						return;
 					}
+					closure = callFrame.closure;
+					prototype = closure.prototype;
+					opcodes = prototype.ops;
+					compiled = prototype.compiled;
 					break;
 				}
 				case OP_FORPREP: {
@@ -882,44 +713,11 @@ public class LuaState {
 					break;
 				}
 				case OP_TFORLOOP: {
-					a = getA8(op);
-					c = getC9(op);
-
-					callFrame.setTop(a + 6);
-					callFrame.stackCopy(a, a + 3, 3);
-					call(2);
-					callFrame.clearFromIndex(a + 3 + c);
-					callFrame.setPrototypeStacksize();
-
-					Object aObj3 = callFrame.get(a + 3);
-					if (aObj3 != null) {
-						callFrame.set(a + 2, aObj3);
-					} else {
-						callFrame.pc++;
-					}
+					tforloop(callFrame, op);
 					break;
 				}
 				case OP_SETLIST: {
-					a = getA8(op);
-					b = getB9(op);
-					c = getC9(op);
-
-					if (b == 0) {
-						b = callFrame.getTop() - a - 1;
-					}
-
-					if (c == 0) {
-						c = opcodes[callFrame.pc++];
-					}
-
-					int offset = (c - 1) * FIELDS_PER_FLUSH;
-
-					LuaTable t = (LuaTable) callFrame.get(a);
-					for (int i = 1; i <= b; i++) {
-						Object key = toDouble(offset + i);
-						Object value = callFrame.get(a + i);
-						t.rawset(key, value);
-					}
+					setlist(callFrame, op, opcodes);
 					break;
 				}
 				case OP_CLOSE: {
@@ -928,30 +726,7 @@ public class LuaState {
 					break;
 				}
 				case OP_CLOSURE: {
-					a = getA8(op);
-					b = getBx(op);
-					LuaPrototype newPrototype = prototype.prototypes[b];
-					LuaClosure newClosure = new LuaClosure(newPrototype,
-							closure.env);
-					callFrame.set(a, newClosure);
-					int numUpvalues = newPrototype.numUpvalues;
-					for (int i = 0; i < numUpvalues; i++) {
-						op = opcodes[callFrame.pc++];
-						opcode = op & 63;
-						b = getB9(op);
-						switch (opcode) {
-						case OP_MOVE: {
-							newClosure.upvalues[i] = callFrame.findUpvalue(b);
-							break;
-						}
-						case OP_GETUPVAL: {
-							newClosure.upvalues[i] = closure.upvalues[b];
-							break;
-						}
-						default:
-							// should never happen
-						}
-					}
+					closure(callFrame, op, closure);
 					break;
 				}
 				case OP_VARARG: {
@@ -966,64 +741,463 @@ public class LuaState {
 				}
 				} // switch
 			} catch (RuntimeException e) {
-				// inspectThread(currentThread);
+				callFrame = unwind(e);
+				closure = callFrame.closure;
+				prototype = closure.prototype;
+				opcodes = prototype.ops;
+				compiled = prototype.compiled;
+			}
+		}
+	}
 
-				// Pop off all java frames first
-				while (true) {
-					callFrame = currentThread.currentCallFrame();
+	/**
+	 * Sets the compiler for functions that are called at least threshold
+	 * times, or null to interpret everything. Compiled functions run on the
+	 * same call frames as interpreted ones and leave the instructions they
+	 * can't handle to the interpreter, so the two can be mixed freely.
+	 */
+	public void setCompiler(LuaCompiler compiler, int threshold) {
+		this.compiler = compiler;
+		this.compileThreshold = threshold;
+	}
 
-					if (callFrame.isLua()) {
-						break;
-					}
-					currentThread.addStackTrace(callFrame);
-					currentThread.popCallFrame();
-				}
+	private void entered(LuaPrototype prototype) {
+		if (++prototype.calls == compileThreshold) {
+			prototype.compiled = compiler.compile(prototype);
+		}
+	}
 
-				boolean rethrow = true;
-				while (true) {
-					callFrame = currentThread.currentCallFrame();
-					if (callFrame == null) {
-						LuaThread parent = currentThread.parent;
-						if (parent != null) {
-							currentThread.parent = null;
-							// Yield and fail
-
-							// Copy arguments
-							LuaCallFrame nextCallFrame = parent
-									.currentCallFrame();
-
-							nextCallFrame.push(Boolean.FALSE);
-							nextCallFrame.push(e.getMessage());
-							nextCallFrame.push(currentThread.stackTrace);
-
-							currentThread.state.currentThread = parent;
-							currentThread = parent;
-							callFrame = currentThread.currentCallFrame();
-							closure = callFrame.closure;
-							prototype = closure.prototype;
-							opcodes = prototype.code;
-							returnBase = callFrame.returnBase;
-
-							rethrow = false;
+	/** Arithmetic with string coercion or metamethods. */
+	Object arith(Object bo, Object co, int opcode) {
+		Double bd, cd;
+		if ((bd = BaseLib.rawTonumber(bo)) == null
+				|| (cd = BaseLib.rawTonumber(co)) == null) {
+			String meta_op = meta_ops[opcode];
+
+			Object metafun = getBinMetaOp(bo, co, meta_op);
+			if (!(metafun != null)) {
+				BaseLib.fail((meta_op + " not defined for operands"));
+			}
+			return call(metafun, bo, co, null);
+		}
+		return primitiveMath(fromDouble(bd), fromDouble(cd), opcode);
+	}
+
+	Object unm(Object aObj) {
+		Double aDouble = BaseLib.rawTonumber(aObj);
+		if (aDouble != null) {
+			return toDouble(-fromDouble(aDouble));
+		}
+		Object metafun = getMetaOp(aObj, "__unm");
+		//BaseLib.luaAssert(metafun != null, "__unm not defined for operand");
+		return call(metafun, aObj, null, null);
+	}
+
+	Object len(Object o) {
+		if (o instanceof LuaTable) {
+			LuaTable t = (LuaTable) o;
+			return toDouble(t.len());
+		} else if (o instanceof String) {
+			String s = (String) o;
+			return toDouble(s.length());
+		}
+		Object f = getMetaOp(o, "__len");
+		BaseLib.luaAssert(f != null, "__len not defined for operand");
+		return call(f, o, null, null);
+	}
+
+	Object concat(LuaCallFrame callFrame, int first, int last) {
+		Object res = callFrame.get(last);
+		last--;
+		while (first <= last) {
+			// Optimize for multi string concats
+			{
+				String resStr = BaseLib.rawTostring(res);
+				if (res != null) {
+
+					int nStrings = 0;
+					int pos = last;
+					while (first <= pos) {
+						Object o = callFrame.get(pos);
+						pos--;
+						if (BaseLib.rawTostring(o) == null) {
+							break;
 						}
-						break;
+						nStrings++;
 					}
-					currentThread.addStackTrace(callFrame);
-					currentThread.popCallFrame();
+					if (nStrings > 0) {
+						StringBuffer concatBuffer = new StringBuffer();
+
+						int firstString = last - nStrings + 1;
+						while (firstString <= last) {
+							concatBuffer.append(BaseLib
+									.rawTostring(callFrame
+											.get(firstString)));
+							firstString++;
+						}
+						concatBuffer.append(resStr);
 
-					if (!callFrame.fromLua) {
-						break;
+						res = concatBuffer.toString();
+
+						last = last - nStrings;
+					}
+				}
+			}
+			if (first <= last) {
+				Object leftConcat = callFrame.get(last);
+
+				Object metafun = getBinMetaOp(leftConcat, res,
+						"__concat");
+				if (!(metafun != null)) {
+					BaseLib.fail(("__concat not defined for operands: " + leftConcat + " and " + res));
+				}
+				res = call(metafun, leftConcat, res, null);
+				last--;
+			}
+		}
+		return res;
+	}
+
+	/** EQ, LT and LE on anything but two numbers. */
+	boolean compare(Object bo, Object co, int opcode) {
+		if (bo instanceof String && co instanceof String) {
+			if (opcode == OP_EQ) {
+				return bo.equals(co);
+			}
+			String bs = (String) bo;
+			String cs = (String) co;
+			int cmp = bs.compareTo(cs);
+
+			if (opcode == OP_LT) {
+				return cmp < 0;
+			} else { // opcode must be OP_LE
+				return cmp <= 0;
+			}
+		}
+		if (bo == co) {
+			return true;
+		}
+		boolean resBool;
+		boolean invert = false;
+
+		String meta_op = meta_ops[opcode];
+
+		Object metafun = getCompMetaOp(bo, co, meta_op);
+
+		/*
+		 * Special case: OP_LE uses OP_LT if __le is not
+		 * defined. a <= b is then translated to not (b < a)
+		 */
+		if (metafun == null && opcode == OP_LE) {
+			metafun = getCompMetaOp(bo, co, "__lt");
+
+			// Swap the objects
+			Object tmp = bo;
+			bo = co;
+			co = tmp;
+
+			// Invert a (i.e. add the "not"
+			invert = true;
+		}
+
+		if (metafun == null && opcode == OP_EQ) {
+			resBool = LuaState.luaEquals(bo, co);
+		} else {
+			if (!(metafun != null)) {
+				BaseLib.fail((meta_op + " not defined for operand"));
+			}
+			Object res = call(metafun, bo, co, null);
+			resBool = boolEval(res);
+		}
+
+		if (invert) {
+			resBool = !resBool;
+		}
+		return resBool;
+	}
+
+	/** Finds the __call metamethod of a value that is not a function. */
+	private Object metaCall(Object funObject) {
+		BaseLib.luaAssert(funObject != null, "Tried to call nil");
+		Object fun = prepareMetatableCall(funObject);
+		if (!(fun != null)) {
+			BaseLib.fail(("Object " + funObject + " did not have __call metatable set"));
+		}
+		if (!(fun instanceof LuaClosure || fun instanceof JavaFunction)) {
+			throw new RuntimeException(
+					"Tried to call a non-function: " + fun);
+		}
+		return fun;
+	}
+
+	private LuaCallFrame tailCall(LuaCallFrame callFrame, int op) {
+		int base = callFrame.localBase;
+		int returnBase = callFrame.returnBase;
+
+		currentThread.closeUpvalues(base);
+
+		int a = getA8(op);
+		int b = getB9(op);
+		int nArguments2 = b - 1;
+		if (nArguments2 == -1) {
+			nArguments2 = callFrame.getTop() - a - 1;
+		}
+
+		callFrame.restoreTop = false;
+
+		Object funObject = callFrame.get(a);
+		BaseLib.luaAssert(funObject != null, "Tried to call nil");
+		Object fun = prepareMetatableCall(funObject);
+		if (!(fun != null)) {
+			BaseLib.fail(("Object " + funObject + " did not have __call metatable set"));
+		}
+
+		int localBase2 = returnBase + 1;
+
+		// If it's a metatable __call, prepend the caller as the
+		// first argument
+		if (fun != funObject) {
+			localBase2 = returnBase;
+			nArguments2++;
+		}
+
+		currentThread.stackCopy(base + a, returnBase,
+				nArguments2 + 1);
+		currentThread.setTop(returnBase + nArguments2 + 1);
+
+		if (fun instanceof LuaClosure) {
+			callFrame.localBase = localBase2;
+			callFrame.nArguments = nArguments2;
+			callFrame.closure = (LuaClosure) fun;
+			callFrame.init();
+			if (compiler != null) {
+				entered(callFrame.closure.prototype);
+			}
+		} else {
+			if (!(fun instanceof JavaFunction)) {
+				BaseLib.fail(("Tried to call a non-function: " + fun));
+			}
+			LuaThread oldThread = currentThread;
+			callJava((JavaFunction) fun, localBase2, returnBase,
+					nArguments2);
+
+			callFrame = currentThread.currentCallFrame();
+			oldThread.popCallFrame();
+
+			if (oldThread != currentThread) {
+				if (oldThread.isDead()) {
+
+					if (currentThread.parent == oldThread) {
+						currentThread.parent = oldThread.parent;
+						oldThread.parent = null;
+
+						// This is an implicit yield, so push a TRUE
+						// to the parent
+						currentThread.parent.currentCallFrame()
+								.push(Boolean.TRUE);
 					}
 				}
-				// Close all live upvalues before resuming
-				if (callFrame != null) {
-					callFrame.closeUpvalues(0);
+
+				callFrame = currentThread.currentCallFrame();
+				if (callFrame.isJava()) {
+					return null;
+				}
+			} else {
+				if (!callFrame.fromLua) {
+					return null;
 				}
-				if (rethrow) {
-					throw e;
+				callFrame = currentThread.currentCallFrame();
+
+				if (callFrame.restoreTop) {
+					callFrame
+							.setTop(callFrame.closure.prototype.maxStacksize);
 				}
 			}
 		}
+		return callFrame;
+	}
+
+	private LuaCallFrame luaReturn(LuaCallFrame callFrame, int op) {
+		int a = getA8(op);
+		int b = getB9(op) - 1;
+		int returnBase = callFrame.returnBase;
+
+		int base = callFrame.localBase;
+		currentThread.closeUpvalues(base);
+
+		if (b == -1) {
+			b = callFrame.getTop() - a;
+		}
+
+		currentThread.stackCopy(callFrame.localBase + a,
+				returnBase, b);
+		currentThread.setTop(returnBase + b);
+
+		if (!callFrame.fromLua) {
+			currentThread.popCallFrame();
+			return null;
+		}
+		if (callFrame.insideCoroutine
+				&& currentThread.callFrameTop == 1) {
+			callFrame.localBase = callFrame.returnBase;
+			LuaThread thread = currentThread;
+			CoroutineLib.yieldHelper(callFrame, callFrame, b);
+			thread.popCallFrame();
+
+			// If this thread is called from a java function,
+			// return immediately
+			callFrame = currentThread.currentCallFrame();
+			if (callFrame.isJava()) {
+				return null;
+			}
+		} else {
+			currentThread.popCallFrame();
+		}
+		callFrame = currentThread.currentCallFrame();
+
+		if (callFrame.restoreTop) {
+			callFrame.setTop(callFrame.closure.prototype.maxStacksize);
+		}
+		return callFrame;
+	}
+
+	void tforloop(LuaCallFrame callFrame, int op) {
+		int a = getA8(op);
+		int c = getC9(op);
+
+		callFrame.setTop(a + 6);
+		callFrame.stackCopy(a, a + 3, 3);
+		call(2);
+		callFrame.clearFromIndex(a + 3 + c);
+		callFrame.setPrototypeStacksize();
+
+		Object aObj3 = callFrame.get(a + 3);
+		if (aObj3 != null) {
+			callFrame.set(a + 2, aObj3);
+		} else {
+			callFrame.pc++;
+		}
+	}
+
+	void setlist(LuaCallFrame callFrame, int op, int[] opcodes) {
+		int a = getA8(op);
+		int b = getB9(op);
+		int c = getC9(op);
+
+		if (b == 0) {
+			b = callFrame.getTop() - a - 1;
+		}
+
+		if (c == 0) {
+			c = opcodes[callFrame.pc++];
+		}
+
+		int offset = (c - 1) * FIELDS_PER_FLUSH;
+
+		LuaTable t = (LuaTable) callFrame.get(a);
+		if (t instanceof LuaTableImpl) {
+			LuaTableImpl ti = (LuaTableImpl) t;
+			for (int i = 1; i <= b; i++) {
+				ti.rawset(offset + i, callFrame.get(a + i));
+			}
+		} else {
+			for (int i = 1; i <= b; i++) {
+				Object key = toDouble(offset + i);
+				Object value = callFrame.get(a + i);
+				t.rawset(key, value);
+			}
+		}
+	}
+
+	private void closure(LuaCallFrame callFrame, int op, LuaClosure closure) {
+		int a = getA8(op);
+		int b = getBx(op);
+		LuaPrototype prototype = closure.prototype;
+		int[] opcodes = prototype.code;
+		LuaPrototype newPrototype = prototype.prototypes[b];
+		LuaClosure newClosure = new LuaClosure(newPrototype,
+				closure.env);
+		callFrame.set(a, newClosure);
+		int numUpvalues = newPrototype.numUpvalues;
+		for (int i = 0; i < numUpvalues; i++) {
+			op = opcodes[callFrame.pc++];
+			int opcode = op & 63;
+			b = getB9(op);
+			switch (opcode) {
+			case OP_MOVE: {
+				newClosure.upvalues[i] = callFrame.findUpvalue(b);
+				break;
+			}
+			case OP_GETUPVAL: {
+				newClosure.upvalues[i] = closure.upvalues[b];
+				break;
+			}
+			default:
+				// should never happen
+			}
+		}
+	}
+
+	/**
+	 * Pops the frames that an error passes through. Returns the frame
+	 * of the parent coroutine that gets the error as a result of
+	 * resume, or rethrows e if there is none.
+	 */
+	private LuaCallFrame unwind(RuntimeException e) {
+		LuaCallFrame callFrame;
+		// inspectThread(currentThread);
+
+		// Pop off all java frames first
+		while (true) {
+			callFrame = currentThread.currentCallFrame();
+
+			if (callFrame.isLua()) {
+				break;
+			}
+			currentThread.addStackTrace(callFrame);
+			currentThread.popCallFrame();
+		}
+
+		boolean rethrow = true;
+		while (true) {
+			callFrame = currentThread.currentCallFrame();
+			if (callFrame == null) {
+				LuaThread parent = currentThread.parent;
+				if (parent != null) {
+					currentThread.parent = null;
+					// Yield and fail
+
+					// Copy arguments
+					LuaCallFrame nextCallFrame = parent
+							.currentCallFrame();
+
+					nextCallFrame.push(Boolean.FALSE);
+					nextCallFrame.push(e.getMessage());
+					nextCallFrame.push(currentThread.stackTrace);
+
+					currentThread.state.currentThread = parent;
+					currentThread = parent;
+					callFrame = currentThread.currentCallFrame();
+
+					rethrow = false;
+				}
+				break;
+			}
+			currentThread.addStackTrace(callFrame);
+			currentThread.popCallFrame();
+
+			if (!callFrame.fromLua) {
+				break;
+			}
+		}
+		// Close all live upvalues before resuming
+		if (callFrame != null) {
+			callFrame.closeUpvalues(0);
+		}
+		if (rethrow) {
+			throw e;
+		}
+		return callFrame;
 	}
 
 	public Object getMetaOp(Object o, String meta_op) {
@@ -1068,29 +1242,39 @@ public class LuaState {
 	 * private static final int getA24(int op) { return (op >>> 6); }
 	 */
 
-	private static final int getA8(int op) {
+	static final int getA8(int op) {
 		return (op >>> 6) & 255;
 	}
 
-	private static final int getC9(int op) {
+	static final int getC9(int op) {
 		return (op >>> 14) & 511;
 	}
 
-	private static final int getB9(int op) {
+	static final int getB9(int op) {
 		return (op >>> 23) & 511;
 	}
 
-	private static final int getBx(int op) {
+	static final int getBx(int op) {
 		return (op >>> 14);
 	}
 
-	private static final int getSBx(int op) {
+	static final int getSBx(int op) {
 		return (op >>> 14) - 131071;
 	}
 
-	private Double primitiveMath(Double x, Double y, int opcode) {
-		double v1 = fromDouble(x);
-		double v2 = fromDouble(y);
+	/**
+	 * Decodes the "floating point byte" used for table sizes in OP_NEWTABLE
+	 * (eeeeexxx, value is (1xxx) * 2^(eeeee - 1) if eeeee != 0, else xxx)
+	 */
+	static final int fb2int(int x) {
+		int e = (x >>> 3) & 31;
+		if (e == 0) {
+			return x;
+		}
+		return ((x & 7) + 8) << (e - 1);
+	}
+
+	static Double primitiveMath(double v1, double v2, int opcode) {
 		double res = 0;
 		switch (opcode) {
 		case OP_ADD:
@@ -1191,6 +1375,76 @@ public class LuaState {
 		throw new RuntimeException("loop in gettable");
 	}
 
+	static InlineCache inlineCache(LuaPrototype prototype, int pc) {
+		InlineCache[] caches = prototype.inlineCaches;
+		if (caches == null) {
+			caches = new InlineCache[prototype.code.length];
+			prototype.inlineCaches = caches;
+		}
+		InlineCache ic = caches[pc];
+		if (ic == null) {
+			ic = new InlineCache();
+			caches[pc] = ic;
+		}
+		return ic;
+	}
+
+	/**
+	 * Same as tableGet(table, key), but remembers the slots where the value
+	 * was found. Handles plain tables and one level of table __index,
+	 * anything else goes the slow way.
+	 */
+	Object tableGet(InlineCache ic, Object table, String key) {
+		if (!(table instanceof LuaTableImpl)) {
+			return tableGet(table, key);
+		}
+		LuaTableImpl t = (LuaTableImpl) table;
+		InlineCache.Entry e = ic.table;
+		if (e == null || !e.holds(t)) {
+			e = new InlineCache.Entry(t, key);
+			ic.table = e;
+		}
+		if (e.slot >= 0) {
+			Object res = t.slotValue(e.slot);
+			if (res != null) {
+				return res;
+			}
+		}
+
+		LuaTable m = t.getMetatable();
+		if (!(m instanceof LuaTableImpl)) {
+			// without a metatable of its own, class metatables apply
+			return tableGet(table, key);
+		}
+		LuaTableImpl meta = (LuaTableImpl) m;
+		e = ic.meta;
+		if (e == null || !e.holds(meta)) {
+			e = new InlineCache.Entry(meta, "__index");
+			ic.meta = e;
+		}
+		Object metaOp = e.slot >= 0 ? meta.slotValue(e.slot) : null;
+		if (metaOp == null) {
+			return null;
+		}
+		if (!(metaOp instanceof LuaTableImpl)) {
+			return tableGet(table, key);
+		}
+
+		LuaTableImpl index = (LuaTableImpl) metaOp;
+		e = ic.index;
+		if (e == null || !e.holds(index)) {
+			e = new InlineCache.Entry(index, key);
+			ic.index = e;
+		}
+		if (e.slot >= 0) {
+			Object res = index.slotValue(e.slot);
+			if (res != null) {
+				return res;
+			}
+		}
+		return tableGet(table, key);
+	}
+
 	public void tableSet(Object table, Object key, Object value) {
 		Object curObj = table;
 		for (int i = LuaState.MAX_INDEX_RECURSION; i > 0; i--) {
@@ -1346,12 +1600,47 @@ public class LuaState {
 		return ((Double) o).doubleValue();
 	}
 
+	/*
+	 * Boxed values for small integers, created lazily. Loop counters,
+	 * table indices and lengths are almost always in this range, so the
+	 * interpreter does not have to allocate a new Double for each of them.
+	 */
+	private static final int DOUBLE_CACHE_LOW = -128;
+	private static final int DOUBLE_CACHE_HIGH = 1023;
+	private static final Double[] doubleCache = new Double[DOUBLE_CACHE_HIGH - DOUBLE_CACHE_LOW + 1];
+
 	public static Double toDouble(double d) {
+		int i = (int) d;
+		// the cache must not hand out 0.0 for -0.0
+		if (i == d && i >= DOUBLE_CACHE_LOW && i <= DOUBLE_CACHE_HIGH && (i != 0 || 1 / d > 0)) {
+			return cachedDouble(i);
+		}
 		return new Double(d);
 	}
 
 	public static Double toDouble(long d) {
-		return toDouble((double) d);
+		if (d >= DOUBLE_CACHE_LOW && d <= DOUBLE_CACHE_HIGH) {
+			return cachedDouble((int) d);
+		}
+		return new Double(d);
+	}
+
+	public static Double toDouble(int d) {
+		if (d >= DOUBLE_CACHE_LOW && d <= DOUBLE_CACHE_HIGH) {
+			return cachedDouble(d);
+		}
+		return new Double(d);
+	}
+
+	private static Double cachedDouble(int i) {
+		int index = i - DOUBLE_CACHE_LOW;
+		Double d = doubleCache[index];
+		if (d == null) {
+			// racing threads may both create it, which is harmless
+			d = new Double(i);
+			doubleCache[index] = d;
+		}
+		return d;
 	}
 
 	public static boolean boolEval(Object o) {
@@ -1386,6 +1675,14 @@ public class LuaState {
 	public void unlock() {
 	}
 
+	/**
+	 * Current time for os.time() and os.date(), in milliseconds.
+	 * Override to run scripts on a clock other than the system one.
+	 */
+	public long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
     public PrintStream getOut() {
         return out;
     }
@@ -30,6 +30,14 @@ import se.krka.kahlua.stdlib.BaseLib;
 public final class LuaTableImpl implements LuaTable {
 	private boolean weakKeys, weakValues;
 
+	// Array part - array[i - 1] holds the value for key i
+	private Object[] array;
+	/*
+	 * A border of the array part: array[0 .. border - 1] are all non-nil
+	 * and border == array.length or array[border] is nil.
+	 */
+	private int border;
+
 	// Hash part
 	private Object[] keys;
 	private Object[] values;
@@ -40,6 +48,15 @@ public final class LuaTableImpl implements LuaTable {
 	private Object keyIndexCacheKey;
 	private int keyIndexCacheValue = -1;
 
+	/*
+	 * Changes whenever a key is added to the hash part or keys move
+	 * between its slots. Used by InlineCache to validate remembered slots.
+	 */
+	int shape;
+
+	/* Set by every rawset, cleared by whoever tracks changes (Savegame). */
+	private boolean dirty;
+
 	private static final int[] log_2 = new int[] {
 		0,1,2,2,3,3,3,3,4,4,4,4,4,4,4,4,5,5,5,5,5,5,5,5,5,5,5,5,5,5,5,5,
 		6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,6,
@@ -70,8 +87,32 @@ public final class LuaTableImpl implements LuaTable {
 		return p;
 	}
 
+	private static int ceilLog2(int x) {
+		// assert x >= 1
+		return luaO_log2(x - 1) + 1;
+	}
+
+	private static final int MAXBITS = 26;
+	private static final int MAXASIZE = 1 << MAXBITS;
+
+	private static final Object[] EMPTY_ARRAY = new Object[0];
+
 	public LuaTableImpl() {
+		this(0, 1);
+	}
+
+	/**
+	 * Creates a table with preallocated array and hash parts,
+	 * as requested by OP_NEWTABLE.
+	 */
+	public LuaTableImpl(int arrayCapacity, int hashCapacity) {
+		array = arrayCapacity > 0 ? new Object[arrayCapacity] : EMPTY_ARRAY;
+		border = 0;
+
 		int capacity = 1;
+		if (hashCapacity > 1) {
+			capacity = nearestPowerOfTwo(hashCapacity - 1) << 1;
+		}
 
 		keys = new Object[capacity];
 		values = new Object[capacity];
@@ -80,6 +121,35 @@ public final class LuaTableImpl implements LuaTable {
 		freeIndex = capacity;
 	}
 
+	/** Returns the array index for a key, or -1 if it belongs to the hash part. */
+	private int arrayIndex(Object key) {
+		if (key instanceof Double) {
+			double d = ((Double) key).doubleValue();
+			int i = (int) d;
+			if (i == d && i >= 1 && i <= array.length) {
+				return i - 1;
+			}
+		}
+		return -1;
+	}
+
+	private void arraySet(int index, Object value) {
+		// assert 0 <= index < array.length
+		array[index] = value;
+		if (value == null) {
+			if (index < border) {
+				border = index;
+			}
+		} else if (index == border) {
+			int length = array.length;
+			int b = border + 1;
+			while (b < length && array[b] != null) {
+				b++;
+			}
+			border = b;
+		}
+	}
+
 	private int getMP(Object key) {
 		// assert key != null
 		int capacity = keys.length;
@@ -149,22 +219,7 @@ public final class LuaTableImpl implements LuaTable {
 		 * java implements equals and hashcode for Double
 		 */
 		if (key instanceof Double) {
-			double dkey = LuaState.fromDouble(key);
-			while (true) {
-				if (currentKey instanceof Double) {
-					double dCurrentKey = LuaState.fromDouble(currentKey);
-					if (dkey == dCurrentKey) {
-						return index;
-					}
-				}
-
-				index = next[index];
-				if (index == -1) {
-					return -1;
-				}
-				currentKey = __getKey(index);
-			}
-
+			return hash_primitiveFindNumber(LuaState.fromDouble(key), index);
 		}
 
 		if (key instanceof String) {
@@ -193,9 +248,36 @@ public final class LuaTableImpl implements LuaTable {
 		}		
 	}
 
+	private final int hash_primitiveFindNumber(double dkey, int index) {
+		Object currentKey = __getKey(index);
+		if (currentKey == null) {
+			return -1;
+		}
+		while (true) {
+			if (currentKey instanceof Double) {
+				double dCurrentKey = LuaState.fromDouble(currentKey);
+				if (dkey == dCurrentKey) {
+					return index;
+				}
+			}
+
+			index = next[index];
+			if (index == -1) {
+				return -1;
+			}
+			currentKey = __getKey(index);
+		}
+	}
+
+	private int getHashIndex(double key) {
+		int mp = numberHashcode(key) & (keys.length - 1);
+		return hash_primitiveFindNumber(key, mp);
+	}
+
 	private final int hash_primitiveNewKey(Object key, int mp) {
 		keyIndexCacheKey = null;
 		keyIndexCacheValue = -1;
+		shape++;
 
 		// assert key not in table
 		// Assert key != null
@@ -256,6 +338,7 @@ public final class LuaTableImpl implements LuaTable {
 	}
 
 	private void hash_rehash(Object newKey) {
+		shape++;
 		// NOTE: it's important to avoid GC of weak stuff here, so convert it
 		// to plain before rehashing
 		boolean oldWeakKeys = weakKeys, oldWeakValues = weakValues;
@@ -263,20 +346,49 @@ public final class LuaTableImpl implements LuaTable {
 
 		Object[] oldKeys = keys;
 		Object[] oldValues = values;
+		Object[] oldArray = array;
 		int hashLength = oldKeys.length;
 
-		int usedTotal = 0 + 1; // include the newKey
+		/*
+		 * nums[i] is the number of integer keys k with 2^(i-1) < k <= 2^i,
+		 * the same slicing as luaH_resize in Lua 5.1
+		 */
+		int[] nums = new int[MAXBITS + 1];
+		int arrayKeys = countArray(nums);
+		int usedTotal = arrayKeys + 1; // include the newKey
 
 		for (int i = hashLength - 1; i >= 0; --i) {
-			Object key = keys[i];
-			if (key != null && values[i] != null) {
+			Object key = oldKeys[i];
+			if (key != null && oldValues[i] != null) {
 				usedTotal++;
+				arrayKeys += countInt(key, nums);
 			}
 		}
-		
-		int hashCapacity = 2 * nearestPowerOfTwo(usedTotal);
-		if (hashCapacity < 2) {
-			hashCapacity = 2;
+		arrayKeys += countInt(newKey, nums);
+
+		int arrayCapacity = 0;
+		int arrayUsed = 0;
+		// weak values are kept in the hash part only
+		if (!oldWeakValues) {
+			int a = 0;
+			for (int i = 0, twotoi = 1; twotoi / 2 < arrayKeys; i++, twotoi <<= 1) {
+				if (nums[i] > 0) {
+					a += nums[i];
+					if (a > twotoi / 2) {
+						arrayCapacity = twotoi;
+						arrayUsed = a;
+					}
+				}
+				if (a == arrayKeys) {
+					break;
+				}
+			}
+		}
+
+		int hashUsed = usedTotal - arrayUsed;
+		int hashCapacity = 1;
+		if (hashUsed > 0) {
+			hashCapacity = 2 * nearestPowerOfTwo(hashUsed);
 		}
 
 		keys = new Object[hashCapacity];
@@ -285,6 +397,22 @@ public final class LuaTableImpl implements LuaTable {
 
 		freeIndex = hashCapacity;
 
+		if (arrayCapacity != oldArray.length) {
+			array = arrayCapacity > 0 ? new Object[arrayCapacity] : EMPTY_ARRAY;
+			int keep = Math.min(arrayCapacity, oldArray.length);
+			System.arraycopy(oldArray, 0, array, 0, keep);
+			if (border > keep) {
+				border = keep;
+			}
+
+			for (int i = oldArray.length - 1; i >= keep; --i) {
+				Object value = oldArray[i];
+				if (value != null) {
+					rawset(LuaState.toDouble(i + 1), value);
+				}
+			}
+		}
+
 		for (int i = hashLength - 1; i >= 0; --i) {
 			Object key = oldKeys[i];
 			if (key != null) {
@@ -297,16 +425,71 @@ public final class LuaTableImpl implements LuaTable {
 		updateWeakSettings(oldWeakKeys, oldWeakValues);
 	}
 
+	private int countArray(int[] nums) {
+		int total = 0;
+		int i = 1;
+		int length = array.length;
+		for (int lg = 0, ttlg = 1; lg <= MAXBITS; lg++, ttlg <<= 1) {
+			int lim = ttlg;
+			if (lim > length) {
+				lim = length;
+				if (i > lim) {
+					break;
+				}
+			}
+			int count = 0;
+			for (; i <= lim; i++) {
+				if (array[i - 1] != null) {
+					count++;
+				}
+			}
+			nums[lg] += count;
+			total += count;
+		}
+		return total;
+	}
+
+	private static int countInt(Object key, int[] nums) {
+		if (key instanceof Double) {
+			double d = ((Double) key).doubleValue();
+			int k = (int) d;
+			if (k == d && k >= 1 && k <= MAXASIZE) {
+				nums[ceilLog2(k)]++;
+				return 1;
+			}
+		}
+		return 0;
+	}
+
 	private LuaTable metatable;
 
+	/** Returns true if the table was modified since the last clearDirty(). */
+	public boolean isDirty() {
+		return dirty;
+	}
+
+	public void clearDirty() {
+		dirty = false;
+	}
+
 	public final void rawset(Object key, Object value) {
-		checkKey(key);	    	
+		checkKey(key);
+		dirty = true;
+		int index = arrayIndex(key);
+		if (index >= 0) {
+			arraySet(index, value);
+			return;
+		}
 		rawsetHash(key, value);
 	}
 
 	private void rawsetHash(Object key, Object value) {
 		int index = getHashIndex(key);
 		if (index < 0) {
+			if (value == null) {
+				// setting a missing key to nil is a no-op
+				return;
+			}
 			int mp = getMP(key);
 			index = hash_primitiveNewKey(key, mp);
 			if (index < 0) {
@@ -318,17 +501,41 @@ public final class LuaTableImpl implements LuaTable {
 	}
 	
 	public Object rawget(int index) {
-		return rawgetHash(LuaState.toDouble(index));
+		if (index >= 1 && index <= array.length) {
+			return array[index - 1];
+		}
+		int hashIndex = getHashIndex((double) index);
+		if (hashIndex >= 0) {
+			return __getValue(hashIndex);
+		}
+		return null;
 	}
 
 	public void rawset(int index, Object value) {
-		rawsetHash(LuaState.toDouble(index), value);
+		dirty = true;
+		if (index >= 1 && index <= array.length) {
+			arraySet(index - 1, value);
+			return;
+		}
+		int hashIndex = getHashIndex((double) index);
+		if (hashIndex >= 0) {
+			__setValue(hashIndex, value);
+			return;
+		}
+		if (value != null) {
+			rawsetHash(LuaState.toDouble(index), value);
+		}
 	}
 	
 	public final Object rawget(Object key) {
 		checkKey(key);
 		if (key instanceof Double) {
-			BaseLib.luaAssert(!((Double) key).isNaN(), "table index is NaN");
+			double d = ((Double) key).doubleValue();
+			BaseLib.luaAssert(d == d, "table index is NaN");
+			int i = (int) d;
+			if (i == d && i >= 1 && i <= array.length) {
+				return array[i - 1];
+			}
 		}
 		return rawgetHash(key);
 	}
@@ -341,6 +548,22 @@ public final class LuaTableImpl implements LuaTable {
 		return null;
 	}
 
+	/**
+	 * Returns the hash slot of a string key, or -1 if it is not there.
+	 * The slot is valid until shape changes.
+	 */
+	final int slotOf(String key) {
+		return getHashIndex(key);
+	}
+
+	final Object slotValue(int slot) {
+		// a slot found before a rehash may be past the end of the arrays
+		if (slot >= values.length) {
+			return null;
+		}
+		return __getValue(slot);
+	}
+
 	private int getHashIndex(Object key) {
 		if (key == keyIndexCacheKey) {
 			return keyIndexCacheValue;
@@ -358,16 +581,30 @@ public final class LuaTableImpl implements LuaTable {
 		BaseLib.luaAssert(key != null, "table index is nil");
 	}
 
-	private Object nextHash(Object key) {
+	public final Object next(Object key) {
+		int arrayLength = array.length;
 		int index = 0;
 		if (key != null) {
-			index = 1 + getHashIndex(key);
-			if (index <= 0) {
-				BaseLib.fail("invalid key to 'next'");
-				return null;
+			index = arrayIndex(key);
+			if (index < 0) {
+				index = getHashIndex(key);
+				if (index < 0) {
+					BaseLib.fail("invalid key to 'next'");
+					return null;
+				}
+				index += arrayLength;
+			}
+			index++;
+		}
+
+		while (index < arrayLength) {
+			if (array[index] != null) {
+				return LuaState.toDouble(index + 1);
 			}
+			index++;
 		}
 
+		index -= arrayLength;
 		while (true) {
 			if (index == keys.length) {
 				return null;
@@ -380,33 +617,47 @@ public final class LuaTableImpl implements LuaTable {
 		}
 	}
 
-	public final Object next(Object key) {
-		return nextHash(key);
+	/** Size of the array part, which tests use to see where keys went. */
+	final int arraySize() {
+		return array.length;
 	}
 
 	public final int len() {
-		int high = 2 * keys.length;
-		int low = 0;
-		while (low < high) {
-			int middle = (high + low + 1) >> 1;
-			Object value = rawget(middle);
-			if (value == null) {
-				high = middle - 1;
-			} else {
-				low = middle;
+		int j = border;
+		if (j < array.length) {
+			return j;
+		}
+
+		// the array part is full, so the border may continue into the hash part
+		int i = j;
+		j++;
+		while (rawget(j) != null) {
+			i = j;
+			if (j > Integer.MAX_VALUE / 2) {
+				// table was built with bad purposes: resort to linear search
+				i = 1;
+				while (rawget(i) != null) {
+					i++;
+				}
+				return i - 1;
 			}
+			j *= 2;
 		}
-		while (rawget(low + 1) != null) {
-			low++;
+		// a border is now between i and j
+		while (j - i > 1) {
+			int m = (i + j) >>> 1;
+			if (rawget(m) == null) {
+				j = m;
+			} else {
+				i = m;
+			}
 		}
-		return low;
+		return i;
 	}
 	
 	public static int luaHashcode(Object a) {
 		if (a instanceof Double) {
-			Double ad = (Double) a;
-			long l = Double.doubleToLongBits(ad.doubleValue()) & 0x7fffffffffffffffL;
-			return (int) (l ^ (l >>> 32));
+			return numberHashcode(((Double) a).doubleValue());
 		}		
 		if (a instanceof String) {
 			return a.hashCode();
@@ -414,9 +665,15 @@ public final class LuaTableImpl implements LuaTable {
 		return System.identityHashCode(a);
 	}
 
+	private static int numberHashcode(double d) {
+		long l = Double.doubleToLongBits(d) & 0x7fffffffffffffffL;
+		return (int) (l ^ (l >>> 32));
+	}
+
 	private void updateWeakSettings(boolean k, boolean v) {
 		keyIndexCacheKey = null;
 		keyIndexCacheValue = -1;
+		shape++;
 		if (k != weakKeys) {
 			fixWeakRefs(keys, k);
 			weakKeys = k;
@@ -424,6 +681,17 @@ public final class LuaTableImpl implements LuaTable {
 		if (v != weakValues) {
 			fixWeakRefs(values, v);
 			weakValues = v;
+			if (v && array.length > 0) {
+				// weak values live in the hash part only
+				Object[] oldArray = array;
+				array = EMPTY_ARRAY;
+				border = 0;
+				for (int i = 0; i < oldArray.length; i++) {
+					if (oldArray[i] != null) {
+						rawsetHash(LuaState.toDouble(i + 1), oldArray[i]);
+					}
+				}
+			}
 		}
 	}
 
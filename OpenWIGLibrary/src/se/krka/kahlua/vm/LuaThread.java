@@ -254,7 +254,7 @@ public class LuaThread {
 
 	private String getStackTrace(LuaCallFrame frame) {
 		if (frame.isLua()) {
-			int[] lines = frame.closure.prototype.lines;
+			int[] lines = frame.closure.prototype.getLines();
 			if (lines != null) {
 				int pc = frame.pc - 1;
 				if (pc >= 0 && pc < lines.length) {
@@ -292,7 +292,7 @@ public class LuaThread {
 				String s2 = "java";
 				if (callFrame.isLua()) {
 					int pc = callFrame.pc - 1;
-					int[] lines = callFrame.closure.prototype.lines;
+					int[] lines = callFrame.closure.prototype.getLines();
 					s2 = callFrame.closure.prototype.name + ":";
 					if (pc >= 0 && pc < lines.length) {
 						s2 = s2 + lines[pc];
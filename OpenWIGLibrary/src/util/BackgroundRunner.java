@@ -1,7 +1,11 @@
 package util;
 
-import java.util.Vector;
-
+/** Runs tasks one after another in a background thread.
+ * <p>
+ * Tasks are kept in a circular array guarded by the runner's monitor,
+ * so posting and taking a task are constant-time and the monitor is held
+ * only for a few field updates, never while a task runs.
+ */
 public class BackgroundRunner extends Thread {
 
 	private static BackgroundRunner instance;
@@ -13,8 +17,19 @@ public class BackgroundRunner extends Thread {
 	}
 
 	public BackgroundRunner (boolean paused) {
+		this(paused, true);
+	}
+
+	private BackgroundRunner (boolean paused, boolean thread) {
 		this.paused = paused;
-		start();
+		if (thread) start();
+	}
+
+	/** Creates a paused runner without a thread of its own.
+	 * Its tasks run only when somebody calls runPending().
+	 */
+	public static BackgroundRunner manual () {
+		return new BackgroundRunner(true, false);
 	}
 
 	synchronized public void pause () {
@@ -32,7 +47,9 @@ public class BackgroundRunner extends Thread {
 		return instance;
 	}
 	
-	private Vector queue = new Vector();
+	// circular queue: count tasks starting at head
+	private Runnable[] queue = new Runnable[16];
+	private int head = 0, count = 0;
 	private boolean end = false;
 	private Runnable queueProcessedListener = null;
 
@@ -48,10 +65,9 @@ public class BackgroundRunner extends Thread {
 				if (end) return;
 			} }
 			events = false;
-			while (!queue.isEmpty()) {
+			Runnable c;
+			while ((c = take()) != null) {
 				events = true;
-				Runnable c = (Runnable)queue.firstElement();
-				queue.removeElementAt(0);
 				try {
 					c.run();
 				} catch (Throwable t) {
@@ -61,18 +77,63 @@ public class BackgroundRunner extends Thread {
 			}
 			if (events && queueProcessedListener != null) queueProcessedListener.run();
 			synchronized (this) {
-				if (!queue.isEmpty()) continue;
+				if (count > 0) continue;
 				if (end) return;
 				try { wait(); } catch (InterruptedException e) { }
 			}
 		}
 	}
 
+	/** Runs waiting tasks in the calling thread until there are none left,
+	 * including the tasks that they post. Does nothing while paused.
+	 * Meant for runners created by manual().
+	 */
+	public void runPending () {
+		boolean events = false;
+		Runnable c;
+		while (!paused && !end && (c = take()) != null) {
+			events = true;
+			try {
+				c.run();
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}
+		if (events && queueProcessedListener != null) queueProcessedListener.run();
+	}
+
+	/** removes and returns the first task, or null if there is none */
+	synchronized private Runnable take () {
+		if (count == 0) return null;
+		Runnable c = queue[head];
+		queue[head] = null;
+		head = (head + 1) & (queue.length - 1);
+		count--;
+		return c;
+	}
+
 	synchronized public void perform (Runnable c) {
-		queue.addElement(c);
+		if (count == queue.length) {
+			Runnable[] n = new Runnable[queue.length * 2];
+			for (int i = 0; i < count; i++)
+				n[i] = queue[(head + i) & (queue.length - 1)];
+			queue = n;
+			head = 0;
+		}
+		queue[(head + count) & (queue.length - 1)] = c;
+		count++;
 		notify();
 	}
 
+	/** Like perform(), but does nothing if the last waiting task
+	 * equals to c. Use for tasks where running once stands for
+	 * running several times in a row, like UI refreshes.
+	 */
+	synchronized public void coalesce (Runnable c) {
+		if (count > 0 && c.equals(queue[(head + count - 1) & (queue.length - 1)])) return;
+		perform(c);
+	}
+
 	public static void performTask (Runnable c) {
 		getInstance().perform(c);
 	}
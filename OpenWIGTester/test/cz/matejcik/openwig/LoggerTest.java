@@ -0,0 +1,148 @@
+package cz.matejcik.openwig;
+
+import cz.matejcik.openwig.formats.BinaryLog;
+import cz.matejcik.openwig.platform.LocationService;
+import cz.matejcik.openwig.testmockups.TestEngine;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LoggerTest {
+
+	@After
+	public void tearDown () {
+		Engine.bind(null);
+	}
+
+	private static void fill (Logger log) {
+		log.add(1000, Logger.RAW, 0, 0, 0, 0, "--- header ---", 0, null, null, null);
+		log.add(2000, Engine.LOG_PROP, 50.08, 14.43, 235.5, 5, "PROP: {}.{} is set to {}", 3, "Zone", "Active", Boolean.TRUE);
+		log.add(3500, Engine.LOG_CALL, 50.08, 14.43, 235.5, 5, "EVNT: {}.{} ({})", 3, "Timer", "OnTick", new Double(2));
+		log.add(2500, Engine.LOG_WARN, -12.5, -70.25, -3, Double.POSITIVE_INFINITY, "PROP: {}.{} is set to {}", 3, "Zone", "Name", null);
+		log.add(4000, Engine.LOG_CALL, 1, 2, 3, 4, "CUST: custom event {}", 1, "{}", null, null);
+		log.add(5000, Engine.LOG_ERROR, 1, 2, 3, 4, "no arguments {}", 0, null, null, null);
+	}
+
+	private static String[] messages (String log) {
+		String[] lines = log.split("\n");
+		for (int i = 0; i < lines.length; i++) {
+			int p = lines[i].indexOf("|:: ");
+			if (p != -1) lines[i] = lines[i].substring(p + 4);
+		}
+		return lines;
+	}
+
+	@Test
+	public void testText () throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Logger log = new Logger(out, Logger.TEXT);
+		fill(log);
+		log.close();
+		String text = out.toString();
+		assertArrayEquals(new String[] {
+			"--- header ---",
+			"PROP: Zone.Active is set to true",
+			"EVNT: Timer.OnTick (2.0)",
+			"PROP: Zone.Name is set to nil",
+			"CUST: custom event {}",
+			"no arguments {}",
+		}, messages(text));
+		assertTrue(text.indexOf("|50.08|14.43|235.5|5.0|:: PROP: Zone.Active") != -1);
+	}
+
+	@Test
+	public void testBinaryDecodesToText () throws IOException {
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		Logger log = new Logger(text, Logger.TEXT);
+		fill(log);
+		log.close();
+
+		ByteArrayOutputStream binary = new ByteArrayOutputStream();
+		log = new Logger(binary, Logger.BINARY);
+		fill(log);
+		log.close();
+		assertTrue(binary.size() < text.size());
+
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+		PrintStream ps = new PrintStream(decoded);
+		BinaryLog.decode(new ByteArrayInputStream(binary.toByteArray()), ps);
+		assertArrayEquals(messages(text.toString()), messages(decoded.toString()));
+	}
+
+	@Test
+	public void testManyRecords () throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Logger log = new Logger(out, Logger.BINARY);
+		for (int i = 0; i < 10000; i++)
+			log.add(i, Engine.LOG_CALL, 0, 0, 0, 0, "record {}", 1, new Double(i), null, null);
+		log.flush();
+		int flushed = out.size();
+		log.close();
+		assertEquals(flushed, out.size());
+
+		BinaryLog.Reader reader = new BinaryLog.Reader(new ByteArrayInputStream(out.toByteArray()));
+		BinaryLog.Record r = new BinaryLog.Record();
+		int n = 0;
+		while (reader.next(r)) {
+			assertEquals(n, r.time);
+			assertEquals(new Double(n), r.args[0]);
+			n++;
+		}
+		assertEquals(10000, n);
+	}
+
+	@Test
+	public void testWriterEndsWhenIdle () throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Logger log = new Logger(out, Logger.TEXT);
+		log.add(1000, Engine.LOG_WARN, 0, 0, 0, 0, "first", 0, null, null, null);
+		assertTrue(log.hasWriter());
+		for (int i = 0; i < 100 && log.hasWriter(); i++) Thread.sleep(50);
+		assertFalse("a log that isn't closed shouldn't keep its thread", log.hasWriter());
+
+		// the next record starts it again
+		log.add(2000, Engine.LOG_WARN, 0, 0, 0, 0, "second", 0, null, null, null);
+		assertTrue(log.hasWriter());
+		log.close();
+		assertArrayEquals(new String[] { "first", "second" }, messages(out.toString()));
+	}
+
+	@Test
+	public void testLevelCheckedFirst () throws IOException {
+		TestEngine engine = new TestEngine();
+		engine.locationService = new LocationService() {
+			public double getLatitude () { return 0; }
+			public double getLongitude () { return 0; }
+			public double getAltitude () { return 0; }
+			public double getHeading () { return 0; }
+			public double getPrecision () { return 0; }
+			public int getState () { return ONLINE; }
+			public void connect () { }
+			public void disconnect () { }
+		};
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Logger log = new Logger(out, Logger.TEXT);
+		engine.setLogger(log);
+		Engine.bind(engine);
+
+		final int[] built = new int[1];
+		Object expensive = new Object() {
+			public String toString () {
+				built[0]++;
+				return "expensive";
+			}
+		};
+		// the default level only lets warnings through
+		assertFalse(Engine.isLogging(Engine.LOG_PROP));
+		Engine.log(Engine.LOG_PROP, "PROP: {}", expensive);
+		assertEquals(0, built[0]);
+		Engine.log(Engine.LOG_WARN, "WARN: {}", expensive);
+		assertEquals(1, built[0]);
+		log.close();
+		assertArrayEquals(new String[] { "WARN: expensive" }, messages(out.toString()));
+	}
+}
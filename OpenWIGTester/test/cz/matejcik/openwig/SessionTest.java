@@ -0,0 +1,83 @@
+package cz.matejcik.openwig;
+
+import cz.matejcik.openwig.testmockups.TestEngine;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import util.BackgroundRunner;
+
+public class SessionTest {
+
+	@Before
+	public void setUp () {
+		TestEngine.initialize();
+	}
+
+	@After
+	public void tearDown () {
+		Engine.bind(null);
+		TestEngine.kill();
+	}
+
+	@Test
+	public void testCurrentIsMainInstance () {
+		assertSame(Engine.instance, Engine.current());
+	}
+
+	@Test
+	public void testBind () throws Exception {
+		final Engine session = new TestEngine();
+		final Engine[] seen = new Engine[1];
+		Thread t = new Thread() {
+			public void run () {
+				Engine.bind(session);
+				seen[0] = Engine.current();
+				Engine.bind(null);
+			}
+		};
+		t.start();
+		t.join();
+		assertSame(session, seen[0]);
+		assertSame(Engine.instance, Engine.current());
+
+		assertNull(Engine.bind(session));
+		assertSame(session, Engine.current());
+		assertSame(session, Engine.bind(null));
+		assertSame(Engine.instance, Engine.current());
+	}
+
+	@Test
+	public void testFinishUnbinds () throws Exception {
+		final Engine session = new TestEngine();
+		session.eventRunner = new BackgroundRunner(false);
+		final Object done = new Object();
+		synchronized (done) {
+			session.eventRunner.perform(new Runnable() {
+				public void run () {
+					Engine.bind(session);
+					synchronized (done) { done.notify(); }
+				}
+			});
+			done.wait(5000);
+		}
+		assertEquals(1, Engine.boundThreads());
+
+		session.finish();
+		assertEquals(0, Engine.boundThreads());
+		assertSame(Engine.instance, Engine.current());
+	}
+
+	@Test
+	public void testMediaIdsPerSession () {
+		Media.reset();
+		assertEquals(1, new Media().id);
+		assertEquals(2, new Media().id);
+
+		Engine previous = Engine.bind(new TestEngine());
+		assertEquals(1, new Media().id);
+		Engine.bind(previous);
+
+		assertEquals(3, new Media().id);
+	}
+}
@@ -0,0 +1,109 @@
+package cz.matejcik.openwig;
+
+import cz.matejcik.openwig.testmockups.TestEngine;
+import java.util.Vector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import se.krka.kahlua.vm.JavaFunction;
+import se.krka.kahlua.vm.LuaState;
+import se.krka.kahlua.vm.LuaTable;
+import util.BackgroundRunner;
+import static org.junit.Assert.*;
+
+public class VirtualClockTest {
+
+	private VirtualClock clock;
+	private Vector runs;
+
+	@Before
+	public void setUp () {
+		clock = new VirtualClock(10000);
+		runs = new Vector();
+	}
+
+	@After
+	public void tearDown () {
+		Engine.bind(null);
+	}
+
+	private Clock.Task task (final String name) {
+		return new Clock.Task() {
+			public void run () {
+				runs.addElement(name + "@" + clock.currentTimeMillis());
+			}
+		};
+	}
+
+	@Test
+	public void testOrder () {
+		clock.schedule(task("c"), 300, 0);
+		clock.schedule(task("a"), 100, 0);
+		clock.schedule(task("b"), 100, 0);
+		clock.schedule(task("late"), 5000, 0);
+		assertEquals(10100, clock.nextTime());
+		clock.advance(1000);
+		assertEquals("[a@10100, b@10100, c@10300]", runs.toString());
+		assertEquals(11000, clock.currentTimeMillis());
+		assertEquals(15000, clock.nextTime());
+	}
+
+	@Test
+	public void testPeriodAndCancel () {
+		Clock.Task t = task("t");
+		clock.schedule(t, 0, 400);
+		clock.advance(1000);
+		assertEquals("[t@10000, t@10400, t@10800]", runs.toString());
+		t.cancel();
+		clock.advance(1000);
+		assertEquals(3, runs.size());
+		assertEquals(Long.MAX_VALUE, clock.nextTime());
+	}
+
+	@Test
+	public void testTaskSchedulesTask () {
+		clock.schedule(new Clock.Task() {
+			public void run () {
+				clock.schedule(task("inner"), 50, 0);
+			}
+		}, 100, 0);
+		clock.advance(200);
+		assertEquals("[inner@10150]", runs.toString());
+	}
+
+	@Test
+	public void testTimer () {
+		TestEngine engine = new TestEngine();
+		engine.setClock(clock);
+		engine.eventRunner = BackgroundRunner.manual();
+		Engine.bind(engine);
+
+		Timer timer = new Timer();
+		timer.setItem("Type", "Interval");
+		timer.setItem("Duration", LuaState.toDouble(5));
+		timer.start();
+		clock.advance(2000);
+		timer.updateRemaining();
+		assertEquals(3.0, LuaState.fromDouble(timer.table.rawget("Remaining")), 0);
+		// ticked at 5 seconds, now one second into the next interval
+		clock.advance(4000);
+		timer.updateRemaining();
+		assertEquals(4.0, LuaState.fromDouble(timer.table.rawget("Remaining")), 0);
+		timer.stop();
+		assertEquals(Long.MAX_VALUE, clock.nextTime());
+	}
+
+	@Test
+	public void testOsTime () {
+		LuaState state = new LuaState(System.out) {
+			public long currentTimeMillis () {
+				return clock.currentTimeMillis();
+			}
+		};
+		LuaTable os = (LuaTable)state.getEnvironment().rawget("os");
+		JavaFunction time = (JavaFunction)os.rawget("time");
+		assertEquals(10.0, LuaState.fromDouble(state.call(time, new Object[0])), 0);
+		clock.advance(5000);
+		assertEquals(15.0, LuaState.fromDouble(state.call(time, new Object[0])), 0);
+	}
+}
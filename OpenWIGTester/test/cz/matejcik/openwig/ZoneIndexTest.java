@@ -0,0 +1,107 @@
+package cz.matejcik.openwig;
+
+import cz.matejcik.openwig.testmockups.TestEngine;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import se.krka.kahlua.vm.LuaState;
+import se.krka.kahlua.vm.LuaTable;
+import se.krka.kahlua.vm.LuaTableImpl;
+
+public class ZoneIndexTest {
+
+	private static boolean contains (Zone[] zones, Zone z) {
+		for (int i = 0; i < zones.length; i++)
+			if (zones[i] == z) return true;
+		return false;
+	}
+
+	@BeforeClass
+	public static void setUpClass () throws Exception {
+		TestEngine.initialize();
+	}
+
+	@AfterClass
+	public static void tearDownClass () throws Exception {
+		TestEngine.kill();
+	}
+
+	private static Zone square (double lat, double lon, double size, double proximity) {
+		Zone z = new Zone();
+		LuaTable points = new LuaTableImpl();
+		points.rawset(LuaState.toDouble(1), new ZonePoint(lat, lon, 0));
+		points.rawset(LuaState.toDouble(2), new ZonePoint(lat + size, lon, 0));
+		points.rawset(LuaState.toDouble(3), new ZonePoint(lat + size, lon + size, 0));
+		points.rawset(LuaState.toDouble(4), new ZonePoint(lat, lon + size, 0));
+		z.rawset("ProximityRange", LuaState.toDouble(proximity));
+		z.rawset("Points", points);
+		z.rawset("Active", Boolean.TRUE);
+		return z;
+	}
+
+	@Test
+	public void testNear () {
+		ZoneIndex index = new ZoneIndex();
+		Zone z = square(50, 14, 0.001, 100);
+		z.index = index;
+		index.update(z);
+		assertTrue(contains(index.near(50.0005, 14.0005), z));
+		// proximity box is at least 1500 m around the zone
+		assertTrue(contains(index.near(50.011, 14.0005), z));
+		assertFalse(contains(index.near(50.2, 14.0005), z));
+		assertFalse(contains(index.near(50.0005, 15), z));
+	}
+
+	@Test
+	public void testDeactivate () {
+		ZoneIndex index = new ZoneIndex();
+		Zone z = square(50, 14, 0.001, 100);
+		z.index = index;
+		index.update(z);
+		z.rawset("Active", Boolean.FALSE);
+		assertFalse(contains(index.near(50.0005, 14.0005), z));
+		z.rawset("Active", Boolean.TRUE);
+		assertTrue(contains(index.near(50.0005, 14.0005), z));
+	}
+
+	@Test
+	public void testMove () {
+		ZoneIndex index = new ZoneIndex();
+		Zone z = square(50, 14, 0.001, 100);
+		z.index = index;
+		index.update(z);
+		LuaTable points = new LuaTableImpl();
+		points.rawset(LuaState.toDouble(1), new ZonePoint(51, 15, 0));
+		points.rawset(LuaState.toDouble(2), new ZonePoint(51.001, 15, 0));
+		points.rawset(LuaState.toDouble(3), new ZonePoint(51.001, 15.001, 0));
+		z.rawset("Points", points);
+		assertFalse(contains(index.near(50.0005, 14.0005), z));
+		assertTrue(contains(index.near(51.0005, 15.0005), z));
+	}
+
+	@Test
+	public void testLarge () {
+		ZoneIndex index = new ZoneIndex();
+		Zone z = square(50, 14, 0.5, 100);
+		z.index = index;
+		index.update(z);
+		assertTrue(contains(index.large(), z));
+		assertFalse(contains(index.near(50.25, 14.25), z));
+		z.rawset("Active", Boolean.FALSE);
+		assertFalse(contains(index.large(), z));
+	}
+
+	@Test
+	public void testWalk () {
+		Cartridge c = new Cartridge();
+		Zone near = square(50, 14, 0.001, 100);
+		Zone far = square(50.5, 14, 0.001, 100);
+		c.addObject(near);
+		c.addObject(far);
+		ZonePoint inside = new ZonePoint(50.0005, 14.0005, 0);
+		c.walk(inside);
+		assertEquals(0, near.distance, 0);
+		assertEquals(far.bbCenter.distance(inside), far.distance, 1e-6);
+	}
+}
@@ -0,0 +1,62 @@
+package cz.matejcik.openwig.formats;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MediaCacheTest {
+
+	@Test
+	public void testLru () {
+		MediaCache cache = new MediaCache(300);
+		cache.put(1, new byte[100]);
+		cache.put(2, new byte[100]);
+		cache.put(3, new byte[100]);
+		assertEquals(300, cache.getSize());
+		// 1 becomes most recently used, 2 gets evicted
+		assertNotNull(cache.get(1));
+		cache.put(4, new byte[100]);
+		assertNull(cache.get(2));
+		assertNotNull(cache.get(1));
+		assertNotNull(cache.get(3));
+		assertNotNull(cache.get(4));
+		assertEquals(300, cache.getSize());
+		assertEquals(1, cache.getEvictions());
+		assertEquals(4, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void testTooLarge () {
+		MediaCache cache = new MediaCache(300);
+		cache.put(1, new byte[100]);
+		cache.put(2, new byte[200]);
+		assertFalse(cache.contains(2));
+		assertTrue(cache.contains(1));
+	}
+
+	@Test
+	public void testReplace () {
+		MediaCache cache = new MediaCache(300);
+		cache.put(1, new byte[100]);
+		cache.put(1, new byte[50]);
+		assertEquals(50, cache.getSize());
+		assertEquals(1, cache.getCount());
+	}
+
+	@Test
+	public void testCapacity () {
+		MediaCache cache = new MediaCache(1000);
+		cache.put(1, new byte[400]);
+		cache.put(2, new byte[100]);
+		cache.put(3, new byte[100]);
+		cache.setCapacity(250);
+		assertFalse(cache.contains(1));
+		assertEquals(2, cache.getCount());
+		cache.setCapacity(200);
+		assertEquals(2, cache.getCount());
+		// 2 is evicted, 3 is more than half of the new capacity
+		cache.setCapacity(180);
+		assertEquals(0, cache.getCount());
+		assertEquals(0, cache.getSize());
+	}
+}
@@ -0,0 +1,41 @@
+package cz.matejcik.openwig.formats;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ObjectIdMapTest {
+
+	/** object that claims to be equal to any other */
+	private static class Same {
+		public boolean equals (Object o) { return o instanceof Same; }
+		public int hashCode () { return 1; }
+	}
+
+	@Test
+	public void testIdentity () {
+		ObjectIdMap map = new ObjectIdMap(4);
+		Same a = new Same(), b = new Same();
+		map.put(a, 0);
+		assertEquals(0, map.get(a));
+		assertEquals(-1, map.get(b));
+		map.put(b, 1);
+		assertEquals(1, map.get(b));
+		assertEquals(2, map.size());
+	}
+
+	@Test
+	public void testGrowAndClear () {
+		ObjectIdMap map = new ObjectIdMap(4);
+		Object[] objs = new Object[1000];
+		for (int i = 0; i < objs.length; i++) {
+			objs[i] = new Object();
+			map.put(objs[i], i);
+		}
+		for (int i = 0; i < objs.length; i++)
+			assertEquals(i, map.get(objs[i]));
+		map.clear();
+		assertEquals(0, map.size());
+		for (int i = 0; i < objs.length; i++)
+			assertEquals(-1, map.get(objs[i]));
+	}
+}
@@ -0,0 +1,203 @@
+package cz.matejcik.openwig.formats;
+
+import cz.matejcik.openwig.*;
+import cz.matejcik.openwig.testmockups.TestEngine;
+import cz.matejcik.openwig.testmockups.TestFileHandle;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import se.krka.kahlua.vm.LuaClosure;
+import se.krka.kahlua.vm.LuaPrototype;
+import se.krka.kahlua.vm.LuaState;
+import se.krka.kahlua.vm.LuaTable;
+import se.krka.kahlua.vm.LuaTableImpl;
+
+public class SavegameTest {
+
+	private TestFileHandle file;
+	private Savegame savegame;
+
+	@Before
+	public void setUp () {
+		TestEngine.initialize();
+		file = new TestFileHandle();
+		savegame = new Savegame(file);
+		Engine.instance.savegame = savegame;
+		Engine.instance.cartridge = new Cartridge();
+		Engine.instance.luaState = new LuaState(System.out);
+		Cartridge.register();
+		Container.register();
+		Player.register();
+	}
+
+	@After
+	public void tearDown () {
+		TestEngine.kill();
+	}
+
+	/** function that returns its n-th register */
+	private static LuaPrototype function (int n, LuaPrototype[] children) {
+		LuaPrototype p = new LuaPrototype();
+		p.name = "test" + n;
+		p.code = new int[] { LuaState.OP_RETURN | (n << 6) | (2 << 23) };
+		p.constants = new Object[0];
+		p.prototypes = children;
+		p.maxStacksize = n + 1;
+		return p;
+	}
+
+	private LuaTable restore () throws IOException {
+		LuaTable env = new LuaTableImpl();
+		savegame.restore(env);
+		return env;
+	}
+
+	@Test
+	public void testStoreRestore () throws Exception {
+		LuaTable env = new LuaTableImpl();
+		LuaTable shared = new LuaTableImpl();
+		shared.rawset("name", "shared");
+		env.rawset("a", shared);
+		env.rawset("b", shared);
+		env.rawset("n", LuaState.toDouble(42));
+		env.rawset("flag", Boolean.TRUE);
+		Thing item = new Thing(false);
+		item.rawset("Name", "item");
+		item.moveTo(Engine.instance.player);
+		env.rawset("item", item);
+		env.rawset("player", Engine.instance.player);
+		savegame.store(env);
+
+		LuaTable restored = restore();
+		assertEquals(LuaState.toDouble(42), restored.rawget("n"));
+		assertEquals(Boolean.TRUE, restored.rawget("flag"));
+		assertSame(restored.rawget("a"), restored.rawget("b"));
+		assertEquals("shared", ((LuaTable)restored.rawget("a")).rawget("name"));
+		Thing restoredItem = (Thing)restored.rawget("item");
+		assertEquals("item", restoredItem.name);
+		assertSame(restored.rawget("player"), Engine.instance.player);
+		assertSame(Engine.instance.player, restoredItem.container);
+	}
+
+	@Test
+	public void testFailedCloseKeepsSave () throws Exception {
+		LuaTable env = new LuaTableImpl();
+		env.rawset("value", "old");
+		savegame.store(env);
+		byte[] saved = file.getData();
+
+		env.rawset("value", "new");
+		file.failClose = true;
+		try {
+			savegame.store(env);
+			fail("store should report the failed close");
+		} catch (IOException e) {
+			// expected
+		}
+		assertTrue(Arrays.equals(saved, file.getData()));
+		assertEquals("old", restore().rawget("value"));
+
+		file.failClose = false;
+		savegame.store(env);
+		assertEquals("new", restore().rawget("value"));
+	}
+
+	@Test
+	public void testIncremental () throws Exception {
+		savegame.setIncremental(true);
+		LuaTable env = new LuaTableImpl();
+		Zone zone = new Zone();
+		Thing item = new Thing(false);
+		item.moveTo(zone);
+		env.rawset("zone", zone);
+		env.rawset("item", item);
+		env.rawset("player", Engine.instance.player);
+		env.rawset("counter", LuaState.toDouble(1));
+		savegame.store(env);
+		int snapshot = file.getData().length;
+
+		item.moveTo(Engine.instance.player);
+		env.rawset("counter", LuaState.toDouble(2));
+		LuaTable added = new LuaTableImpl();
+		added.rawset("x", "y");
+		env.rawset("added", added);
+		savegame.store(env);
+		assertTrue("store should append a journal", file.getData().length > snapshot);
+
+		LuaTable restored = restore();
+		assertEquals(LuaState.toDouble(2), restored.rawget("counter"));
+		assertEquals("y", ((LuaTable)restored.rawget("added")).rawget("x"));
+		Zone restoredZone = (Zone)restored.rawget("zone");
+		Thing restoredItem = (Thing)restored.rawget("item");
+		Player player = Engine.instance.player;
+		assertSame(player, restoredItem.container);
+		assertSame(player, restoredItem.rawget("Container"));
+		assertTrue(player.contains(restoredItem));
+		assertFalse(restoredZone.contains(restoredItem));
+	}
+
+	@Test
+	public void testCartridgePrototypes () throws Exception {
+		LuaPrototype handler = function(1, new LuaPrototype[0]);
+		LuaPrototype root = function(0, new LuaPrototype[] { handler });
+		savegame.setCartridgeCode(root);
+
+		LuaTable env = new LuaTableImpl();
+		LuaTable globals = Engine.instance.luaState.getEnvironment();
+		env.rawset("a", new LuaClosure(handler, globals));
+		env.rawset("b", new LuaClosure(handler, globals));
+		savegame.store(env);
+
+		LuaTable restored = restore();
+		LuaClosure a = (LuaClosure)restored.rawget("a");
+		LuaClosure b = (LuaClosure)restored.rawget("b");
+		assertNotSame(a, b);
+		// both refer to the cartridge's code instead of copies of it
+		assertSame(handler, a.prototype);
+		assertSame(handler, b.prototype);
+	}
+
+	@Test
+	public void testDifferentCartridgeRefused () throws Exception {
+		LuaPrototype handler = function(1, new LuaPrototype[0]);
+		savegame.setCartridgeCode(function(0, new LuaPrototype[] { handler }));
+		LuaTable env = new LuaTableImpl();
+		env.rawset("f", new LuaClosure(handler, Engine.instance.luaState.getEnvironment()));
+		savegame.store(env);
+
+		// same shape, different code
+		savegame.setCartridgeCode(function(0, new LuaPrototype[] { function(2, new LuaPrototype[0]) }));
+		try {
+			restore();
+			fail("restore should refuse a save made with different code");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().indexOf("doesn't match") >= 0);
+		}
+	}
+
+	@Test
+	public void testPreviousVersion () throws Exception {
+		LuaTable env = new LuaTableImpl();
+		env.rawset("value", "old");
+		savegame.store(env);
+		byte[] data = file.getData();
+		byte[] version = Engine.VERSION.getBytes();
+		String contents = new String(data, "ISO-8859-1");
+		int at = contents.indexOf(Engine.VERSION);
+		assertTrue(at > 0);
+
+		System.arraycopy("428".getBytes(), 0, data, at, version.length);
+		assertEquals("old", restore().rawget("value"));
+
+		System.arraycopy("427".getBytes(), 0, data, at, version.length);
+		try {
+			restore();
+			fail("restore should refuse an unknown version");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package cz.matejcik.openwig.platform;
+
+import java.io.EOFException;
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BufferedSeekableFileTest {
+
+	/** file in memory that returns at most three bytes per read */
+	private static class Stingy extends BufferedSeekableFile {
+		private byte[] data;
+		public int reads = 0;
+
+		public Stingy (byte[] data, int window) {
+			super(window);
+			this.data = data;
+		}
+
+		protected int readAt (long position, byte[] b, int off, int len) {
+			reads++;
+			if (position >= data.length) return -1;
+			int n = Math.min(Math.min(len, 3), data.length - (int)position);
+			System.arraycopy(data, (int)position, b, off, n);
+			return n;
+		}
+
+		protected long length () {
+			return data.length;
+		}
+	}
+
+	private static byte[] bytes (int... b) {
+		byte[] r = new byte[b.length];
+		for (int i = 0; i < b.length; i++) r[i] = (byte)b[i];
+		return r;
+	}
+
+	@Test
+	public void testLittleEndian () throws IOException {
+		Stingy f = new Stingy(bytes(
+			0x34, 0x12,
+			0xfe, 0xff,
+			0x78, 0x56, 0x34, 0x12,
+			0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0xf0, 0x3f,
+			0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff), 16);
+		assertEquals(0x1234, f.readShort());
+		assertEquals(-2, f.readShort());
+		assertEquals(0x12345678, f.readInt());
+		assertEquals(1.0, f.readDouble(), 0);
+		assertEquals(-1L, f.readLong());
+		assertEquals(24, f.position());
+		assertEquals(-1, f.read());
+	}
+
+	@Test
+	public void testStrings () throws IOException {
+		Stingy f = new Stingy("first\0second one that is longer than the window\0é\0tail".getBytes("ISO-8859-1"), 8);
+		assertEquals("first", f.readString());
+		assertEquals("second one that is longer than the window", f.readString());
+		assertEquals("é", f.readString());
+		assertEquals("tail", f.readString());
+		assertEquals("", f.readString());
+	}
+
+	@Test
+	public void testSeekAndSkip () throws IOException {
+		byte[] data = new byte[100];
+		for (int i = 0; i < data.length; i++) data[i] = (byte)i;
+		Stingy f = new Stingy(data, 16);
+		f.seek(50);
+		assertEquals(50, f.read());
+		f.skip(10);
+		assertEquals(61, f.position());
+		assertEquals(61, f.read());
+		f.seek(51);
+		assertEquals(51, f.read());
+		f.seek(5);
+		assertEquals(5, f.read());
+		// like RandomAccessFile.skipBytes, skip stops at the end
+		assertEquals(0, f.skip(-3));
+		f.seek(95);
+		assertEquals(5, f.skip(10));
+		assertEquals(100, f.position());
+		assertEquals(-1, f.read());
+		assertEquals(0, f.skip(1));
+	}
+
+	@Test
+	public void testSeekInsideWindow () throws IOException {
+		byte[] data = new byte[100];
+		Stingy f = new Stingy(data, 16);
+		f.readShort();
+		f.read();
+		int reads = f.reads;
+		f.seek(0);
+		f.readShort();
+		assertEquals(reads, f.reads);
+	}
+
+	@Test
+	public void testReadFully () throws IOException {
+		byte[] data = new byte[100];
+		for (int i = 0; i < data.length; i++) data[i] = (byte)i;
+		Stingy f = new Stingy(data, 16);
+		f.read();
+		byte[] b = new byte[40];
+		f.readFully(b);
+		for (int i = 0; i < b.length; i++) assertEquals(i + 1, b[i]);
+		assertEquals(41, f.position());
+		assertEquals(41, f.read());
+		f.seek(90);
+		try {
+			f.readFully(new byte[20]);
+			fail("expected EOFException");
+		} catch (EOFException e) { }
+	}
+
+	@Test(expected = EOFException.class)
+	public void testShortAtEnd () throws IOException {
+		Stingy f = new Stingy(bytes(1, 2, 3), 16);
+		f.readInt();
+	}
+}
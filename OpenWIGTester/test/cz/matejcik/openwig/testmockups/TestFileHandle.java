@@ -0,0 +1,92 @@
+package cz.matejcik.openwig.testmockups;
+
+import cz.matejcik.openwig.platform.FileHandle;
+import java.io.*;
+
+/** FileHandle keeping the file in memory. */
+public class TestFileHandle implements FileHandle {
+
+	private byte[] data = null;
+	private ByteArrayOutputStream temp = null;
+
+	/** makes closing the temporary file fail, as on a full disk */
+	public boolean failClose = false;
+
+	public DataInputStream openDataInputStream () throws IOException {
+		if (data == null) throw new FileNotFoundException();
+		return new DataInputStream(new ByteArrayInputStream(data));
+	}
+
+	public DataOutputStream openDataOutputStream () throws IOException {
+		if (data == null) throw new FileNotFoundException();
+		return new DataOutputStream(new Appender(true));
+	}
+
+	public boolean exists () throws IOException {
+		return data != null;
+	}
+
+	public void create () throws IOException {
+		data = new byte[0];
+	}
+
+	public void delete () throws IOException {
+		data = null;
+	}
+
+	public void truncate (long len) throws IOException {
+		byte[] b = new byte[(int)Math.min(len, data.length)];
+		System.arraycopy(data, 0, b, 0, b.length);
+		data = b;
+	}
+
+	public OutputStream openTemporaryOutputStream () throws IOException {
+		temp = new ByteArrayOutputStream() {
+			public void close () throws IOException {
+				if (failClose) throw new IOException("no space left on device");
+			}
+		};
+		return temp;
+	}
+
+	public void commitTemporary () throws IOException {
+		data = temp.toByteArray();
+		temp = null;
+	}
+
+	public OutputStream openAppendOutputStream () throws IOException {
+		if (data == null) throw new FileNotFoundException();
+		return new Appender(false);
+	}
+
+	/** Returns contents of the file, or null if it doesn't exist. */
+	public byte[] getData () {
+		return data;
+	}
+
+	/** writes to the file when it is flushed or closed */
+	private class Appender extends ByteArrayOutputStream {
+		private boolean replace;
+
+		Appender (boolean replace) {
+			this.replace = replace;
+		}
+
+		public void flush () {
+			byte[] b = toByteArray();
+			if (replace) {
+				data = b;
+				return;
+			}
+			byte[] n = new byte[data.length + b.length];
+			System.arraycopy(data, 0, n, 0, data.length);
+			System.arraycopy(b, 0, n, data.length, b.length);
+			data = n;
+			reset();
+		}
+
+		public void close () {
+			flush();
+		}
+	}
+}
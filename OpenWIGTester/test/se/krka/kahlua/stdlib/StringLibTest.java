@@ -0,0 +1,75 @@
+package se.krka.kahlua.stdlib;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import se.krka.kahlua.vm.JavaFunction;
+import se.krka.kahlua.vm.LuaCallFrame;
+import se.krka.kahlua.vm.LuaState;
+import se.krka.kahlua.vm.LuaTable;
+import se.krka.kahlua.vm.LuaTableImpl;
+
+public class StringLibTest {
+
+	private LuaState state;
+	private Object gsub;
+
+	@Before
+	public void setUp () {
+		state = new LuaState(System.out);
+		LuaTable string = (LuaTable) state.getEnvironment().rawget("string");
+		gsub = string.rawget("gsub");
+	}
+
+	/** function replacement that returns the given value for "b", nil otherwise */
+	private static JavaFunction returning (final Object value) {
+		return new JavaFunction() {
+			public int call (LuaCallFrame callFrame, int nArguments) {
+				if ("b".equals(callFrame.get(0))) return callFrame.push(value);
+				return callFrame.pushNil();
+			}
+		};
+	}
+
+	private Object[] gsub (String s, String pattern, Object repl) {
+		return state.pcall(gsub, new Object[] { s, pattern, repl });
+	}
+
+	private void assertReplaced (String expected, Object[] result) {
+		assertEquals(Boolean.TRUE, result[0]);
+		assertEquals(expected, result[1]);
+	}
+
+	private void assertInvalid (String type, Object[] result) {
+		assertEquals(Boolean.FALSE, result[0]);
+		assertTrue(String.valueOf(result[1]), String.valueOf(result[1]).indexOf("invalid replacement value (a " + type + ")") >= 0);
+	}
+
+	@Test
+	public void testFunctionReplacement () {
+		assertReplaced("aXc", gsub("abc", "%w", returning("X")));
+		assertReplaced("a2c", gsub("abc", "%w", returning(LuaState.toDouble(2))));
+		assertReplaced("abc", gsub("abc", "%w", returning(null)));
+		assertReplaced("abc", gsub("abc", "%w", returning(Boolean.FALSE)));
+		assertInvalid("boolean", gsub("abc", "%w", returning(Boolean.TRUE)));
+		assertInvalid("table", gsub("abc", "%w", returning(new LuaTableImpl())));
+	}
+
+	@Test
+	public void testTableReplacement () {
+		LuaTable t = new LuaTableImpl();
+		t.rawset("a", LuaState.toDouble(1));
+		t.rawset("c", Boolean.FALSE);
+		assertReplaced("1bc", gsub("abc", ".", t));
+		t.rawset("b", Boolean.TRUE);
+		assertInvalid("boolean", gsub("abc", ".", t));
+		t.rawset("b", new LuaTableImpl());
+		assertInvalid("table", gsub("abc", ".", t));
+	}
+
+	@Test
+	public void testStringReplacement () {
+		assertReplaced("[a][b][c]", gsub("abc", "%w", "[%0]"));
+		assertReplaced("abc", gsub("abc", "x", "y"));
+	}
+}
@@ -0,0 +1,213 @@
+package se.krka.kahlua.vm;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/** Runs each function as rewritten by the optimizer and as it was
+ * loaded, and checks that both give the same results.
+ */
+public class BytecodeOptimizerTest {
+
+	private static int abc (int op, int a, int b, int c) {
+		return op | (a << 6) | (c << 14) | (b << 23);
+	}
+
+	private static int abx (int op, int a, int bx) {
+		return op | (a << 6) | (bx << 14);
+	}
+
+	private static int jmp (int sbx) {
+		return LuaState.OP_JMP | ((sbx + 131071) << 14);
+	}
+
+	/** RK operand of the i-th constant */
+	private static int k (int i) {
+		return 256 + i;
+	}
+
+	private static Double n (double d) {
+		return LuaState.toDouble(d);
+	}
+
+	private static LuaPrototype function (int[] code, Object[] constants, LuaPrototype[] children) {
+		LuaPrototype p = new LuaPrototype();
+		p.name = "test";
+		p.code = code;
+		p.constants = constants;
+		p.prototypes = children;
+		p.maxStacksize = 8;
+		return p;
+	}
+
+	/** function that returns the constant */
+	private static LuaPrototype returning (Object value, int numUpvalues) {
+		LuaPrototype p = function(new int[] {
+			abx(LuaState.OP_LOADK, 0, 0),
+			abc(LuaState.OP_RETURN, 0, 2, 0),
+		}, new Object[] { value }, new LuaPrototype[0]);
+		p.numUpvalues = numUpvalues;
+		return p;
+	}
+
+	private static JavaFunction returningJava (final Object value) {
+		return new JavaFunction() {
+			public int call (LuaCallFrame callFrame, int nArguments) {
+				return callFrame.push(value);
+			}
+		};
+	}
+
+	private static LuaTable table (String key, Object value) {
+		LuaTable t = new LuaTableImpl();
+		t.rawset(key, value);
+		return t;
+	}
+
+	private static Object[] run (LuaPrototype p, LuaTable globals) {
+		LuaState state = new LuaState(System.out);
+		if (globals != null) {
+			for (Object key = globals.next(null); key != null; key = globals.next(key))
+				state.getEnvironment().rawset(key, globals.rawget(key));
+		}
+		return state.pcall(new LuaClosure(p, state.getEnvironment()));
+	}
+
+	/** Runs the code optimized and as it is.
+	 * @return the optimized function, for checking what was rewritten
+	 */
+	private static LuaPrototype assertSameResults (int[] code, Object[] constants, LuaPrototype[] children, LuaTable globals) {
+		LuaPrototype plain = function(code, constants, children);
+		plain.ops = plain.code;
+		Object[] expected = run(plain, globals);
+		assertEquals("failed: " + (expected.length > 1 ? expected[1] : null), Boolean.TRUE, expected[0]);
+
+		LuaPrototype optimized = function(code, constants, children);
+		BytecodeOptimizer.optimize(optimized);
+		assertSame(code, optimized.code);
+		assertArrayEquals(expected, run(optimized, globals));
+		return optimized;
+	}
+
+	private static int opcode (LuaPrototype p, int pc) {
+		return p.ops[pc] & 63;
+	}
+
+	@Test
+	public void testFoldingDivisionByZero () {
+		LuaPrototype p = assertSameResults(new int[] {
+			abc(LuaState.OP_DIV, 0, k(0), k(1)),
+			abc(LuaState.OP_MOD, 1, k(1), k(1)),
+			abc(LuaState.OP_MOD, 2, k(0), k(1)),
+			abc(LuaState.OP_DIV, 3, k(1), k(1)),
+			abc(LuaState.OP_RETURN, 0, 5, 0),
+		}, new Object[] { n(1), n(0) }, new LuaPrototype[0], null);
+		for (int pc = 0; pc < 4; pc++) assertEquals(LuaState.OP_LOADF, opcode(p, pc));
+
+		Object[] r = run(p, null);
+		assertEquals(n(Double.POSITIVE_INFINITY), r[1]);
+		assertTrue(Double.isNaN(LuaState.fromDouble(r[2])));
+		assertTrue(Double.isNaN(LuaState.fromDouble(r[3])));
+		assertTrue(Double.isNaN(LuaState.fromDouble(r[4])));
+	}
+
+	@Test
+	public void testFoldingComparisons () {
+		int[] opcodes = { LuaState.OP_EQ, LuaState.OP_LT, LuaState.OP_LE };
+		double[][] pairs = { { 1, 2 }, { 2, 1 }, { 2, 2 } };
+		for (int i = 0; i < opcodes.length; i++) {
+			for (int a = 0; a <= 1; a++) {
+				for (int j = 0; j < pairs.length; j++) {
+					LuaPrototype p = assertSameResults(new int[] {
+						abc(opcodes[i], a, k(0), k(1)),
+						jmp(2),
+						abx(LuaState.OP_LOADK, 0, 2),
+						jmp(1),
+						abx(LuaState.OP_LOADK, 0, 3),
+						abc(LuaState.OP_RETURN, 0, 2, 0),
+					}, new Object[] { n(pairs[j][0]), n(pairs[j][1]), "fell through", "jumped" }, new LuaPrototype[0], null);
+					assertEquals(LuaState.OP_JMP, opcode(p, 0));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testJumpIntoGetGlobalField () {
+		LuaTable globals = new LuaTableImpl();
+		globals.rawset("t", table("x", "from t"));
+		globals.rawset("u", table("x", "from u"));
+		LuaPrototype p = assertSameResults(new int[] {
+			abx(LuaState.OP_GETGLOBAL, 1, 1),
+			jmp(1),
+			abx(LuaState.OP_GETGLOBAL, 1, 0),
+			// the jump lands here, with u in the register
+			abc(LuaState.OP_GETTABLE, 1, 1, k(2)),
+			abc(LuaState.OP_RETURN, 1, 2, 0),
+		}, new Object[] { "t", "u", "x" }, new LuaPrototype[0], globals);
+		assertEquals(LuaState.OP_GETGLOBAL_FIELD, opcode(p, 2));
+		assertEquals("from u", run(p, globals)[1]);
+	}
+
+	@Test
+	public void testJumpIntoLoadkSetfield () {
+		LuaPrototype p = assertSameResults(new int[] {
+			abc(LuaState.OP_NEWTABLE, 0, 0, 0),
+			abx(LuaState.OP_LOADK, 1, 0),
+			jmp(1),
+			abx(LuaState.OP_LOADK, 1, 1),
+			// the jump lands here, with "a" in the register
+			abc(LuaState.OP_SETTABLE, 0, k(2), 1),
+			abc(LuaState.OP_GETTABLE, 2, 0, k(2)),
+			abc(LuaState.OP_RETURN, 2, 2, 0),
+		}, new Object[] { "a", "b", "key" }, new LuaPrototype[0], null);
+		assertEquals(LuaState.OP_LOADK_SETFIELD, opcode(p, 3));
+		assertEquals("a", run(p, null)[1]);
+	}
+
+	@Test
+	public void testJumpIntoSelfCall () {
+		LuaTable obj = new LuaTableImpl();
+		obj.rawset("m", returningJava("m"));
+		obj.rawset("n", returningJava("n"));
+		LuaTable globals = new LuaTableImpl();
+		globals.rawset("obj", obj);
+		LuaPrototype p = assertSameResults(new int[] {
+			abx(LuaState.OP_GETGLOBAL, 0, 0),
+			abc(LuaState.OP_SELF, 1, 0, k(1)),
+			jmp(1),
+			abc(LuaState.OP_SELF, 1, 0, k(2)),
+			// the jump lands here, with obj.m in the register
+			abc(LuaState.OP_CALL, 1, 2, 2),
+			abc(LuaState.OP_RETURN, 1, 2, 0),
+		}, new Object[] { "obj", "m", "n" }, new LuaPrototype[0], globals);
+		assertEquals(LuaState.OP_SELF_CALL, opcode(p, 3));
+		assertEquals("m", run(p, globals)[1]);
+	}
+
+	@Test
+	public void testClosureUpvaluesAreNotInstructions () {
+		LuaTable globals = new LuaTableImpl();
+		globals.rawset("t", table("x", "field"));
+		int[] code = {
+			abx(LuaState.OP_CLOSURE, 0, 0),
+			// upvalue words that read like GETGLOBAL t; GETTABLE with "x"
+			abx(LuaState.OP_GETGLOBAL, 0, 0),
+			abc(LuaState.OP_GETTABLE, 0, 0, k(1)),
+			abc(LuaState.OP_CALL, 0, 1, 2),
+			// the same pair as real instructions
+			abx(LuaState.OP_GETGLOBAL, 1, 0),
+			abc(LuaState.OP_GETTABLE, 1, 1, k(1)),
+			abc(LuaState.OP_RETURN, 0, 3, 0),
+		};
+		LuaPrototype child = returning("child", 2);
+		LuaPrototype p = assertSameResults(code, new Object[] { "t", "x" }, new LuaPrototype[] { child }, globals);
+		assertEquals(code[1], p.ops[1]);
+		assertEquals(code[2], p.ops[2]);
+		assertEquals(LuaState.OP_GETGLOBAL_FIELD, opcode(p, 4));
+		assertEquals(LuaState.OP_GETFIELD, opcode(p, 5));
+
+		Object[] r = run(p, globals);
+		assertEquals("child", r[1]);
+		assertEquals("field", r[2]);
+	}
+}
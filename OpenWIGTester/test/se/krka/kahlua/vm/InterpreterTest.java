@@ -0,0 +1,56 @@
+package se.krka.kahlua.vm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/** Runs interpreter.lua, which checks the opcodes that the interpreter
+ * handles outside its main loop. interpreter.lbc was compiled from it
+ * with luac -s.
+ */
+public class InterpreterTest {
+
+	private static LuaClosure load (LuaState state, String name) throws IOException {
+		InputStream in = InterpreterTest.class.getResourceAsStream(name);
+		assertNotNull(name + " is missing", in);
+		try {
+			return LuaPrototype.loadByteCode(in, state.getEnvironment());
+		} finally {
+			in.close();
+		}
+	}
+
+	private static LuaState state () throws IOException {
+		LuaState state = new LuaState(System.out);
+		state.call(load(state, "/cz/matejcik/openwig/stdlib.lbc"), null, null, null);
+		return state;
+	}
+
+	private static void assertOk (LuaState state, LuaClosure chunk) {
+		Object[] r = state.pcall(chunk);
+		assertEquals(r.length > 2 ? r[1] + "\n" + r[2] : String.valueOf(r[1]), Boolean.TRUE, r[0]);
+		assertEquals("ok", r[1]);
+	}
+
+	/** makes the function and the ones inside it run their code as loaded */
+	private static void unoptimize (LuaPrototype p) {
+		p.ops = p.code;
+		p.folded = null;
+		for (int i = 0; i < p.prototypes.length; i++) unoptimize(p.prototypes[i]);
+	}
+
+	@Test
+	public void testColdOpcodes () throws IOException {
+		LuaState state = state();
+		assertOk(state, load(state, "interpreter.lbc"));
+	}
+
+	@Test
+	public void testColdOpcodesUnoptimized () throws IOException {
+		LuaState state = state();
+		LuaClosure chunk = load(state, "interpreter.lbc");
+		unoptimize(chunk.prototype);
+		assertOk(state, chunk);
+	}
+}
@@ -0,0 +1,183 @@
+package se.krka.kahlua.vm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/** Loading a chunk from an array and from a stream must give the same functions. */
+public class LuaPrototypeTest {
+
+	private static byte[] stdlib () throws IOException {
+		InputStream in = LuaPrototypeTest.class.getResourceAsStream("/cz/matejcik/openwig/stdlib.lbc");
+		assertNotNull("stdlib.lbc is missing", in);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int n;
+		while ((n = in.read(buf)) != -1) out.write(buf, 0, n);
+		in.close();
+		return out.toByteArray();
+	}
+
+	private static LuaPrototype fromArray (byte[] data) throws IOException {
+		return LuaPrototype.loadByteCode(data, new LuaTableImpl()).prototype;
+	}
+
+	private static LuaPrototype fromStream (byte[] data) throws IOException {
+		return LuaPrototype.loadByteCode(new ByteArrayInputStream(data), new LuaTableImpl()).prototype;
+	}
+
+	private static byte[] dump (LuaPrototype p) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		p.dump(out);
+		return out.toByteArray();
+	}
+
+	/** Writes the function as a chunk in the specified byte order and size of size_t,
+	 * like luac on such a machine would.
+	 */
+	private static byte[] chunk (LuaPrototype p, boolean littleEndian, int sizeT) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(out);
+		dos.write(new byte[] { 27, 'L', 'u', 'a', 0x51, 0 });
+		dos.write(littleEndian ? 1 : 0);
+		dos.write(new byte[] { 4, (byte)sizeT, 4, 8, 0 });
+		writeFunction(p, dos, littleEndian, sizeT);
+		dos.close();
+		return out.toByteArray();
+	}
+
+	private static void writeInt (DataOutputStream dos, int v, boolean littleEndian) throws IOException {
+		dos.writeInt(littleEndian ? Integer.reverseBytes(v) : v);
+	}
+
+	private static void writeString (DataOutputStream dos, String s, boolean littleEndian, int sizeT) throws IOException {
+		byte[] b = s.getBytes("UTF-8");
+		long len = b.length + 1;
+		if (sizeT == 8) dos.writeLong(littleEndian ? Long.reverseBytes(len) : len);
+		else writeInt(dos, (int)len, littleEndian);
+		dos.write(b);
+		dos.write(0);
+	}
+
+	private static void writeFunction (LuaPrototype p, DataOutputStream dos, boolean le, int sizeT) throws IOException {
+		writeString(dos, p.name, le, sizeT);
+		writeInt(dos, 0, le);
+		writeInt(dos, 0, le);
+		dos.write(new byte[] { (byte)p.numUpvalues, (byte)p.numParams, (byte)(p.isVararg ? 2 : 0), (byte)p.maxStacksize });
+		writeInt(dos, p.code.length, le);
+		for (int i = 0; i < p.code.length; i++) writeInt(dos, p.code[i], le);
+		writeInt(dos, p.constants.length, le);
+		for (int i = 0; i < p.constants.length; i++) {
+			Object o = p.constants[i];
+			if (o == null) {
+				dos.write(0);
+			} else if (o instanceof Boolean) {
+				dos.write(1);
+				dos.write(((Boolean)o).booleanValue() ? 1 : 0);
+			} else if (o instanceof Double) {
+				dos.write(3);
+				long bits = Double.doubleToLongBits(((Double)o).doubleValue());
+				dos.writeLong(le ? Long.reverseBytes(bits) : bits);
+			} else {
+				dos.write(4);
+				writeString(dos, (String)o, le, sizeT);
+			}
+		}
+		writeInt(dos, p.prototypes.length, le);
+		for (int i = 0; i < p.prototypes.length; i++) writeFunction(p.prototypes[i], dos, le, sizeT);
+		int[] lines = p.getLines();
+		writeInt(dos, lines.length, le);
+		for (int i = 0; i < lines.length; i++) writeInt(dos, lines[i], le);
+		// a local and an upvalue name, which the loader skips
+		writeInt(dos, 1, le);
+		writeString(dos, "local", le, sizeT);
+		writeInt(dos, 0, le);
+		writeInt(dos, p.code.length, le);
+		writeInt(dos, 1, le);
+		writeString(dos, "upvalue", le, sizeT);
+	}
+
+	private static void assertSamePrototype (LuaPrototype expected, LuaPrototype actual) {
+		assertEquals(expected.name, actual.name);
+		assertEquals(expected.numParams, actual.numParams);
+		assertEquals(expected.isVararg, actual.isVararg);
+		assertEquals(expected.numUpvalues, actual.numUpvalues);
+		assertEquals(expected.maxStacksize, actual.maxStacksize);
+		assertArrayEquals(expected.code, actual.code);
+		assertArrayEquals(expected.constants, actual.constants);
+		assertEquals(expected.getLineCount(), actual.getLineCount());
+		assertArrayEquals(expected.getLines(), actual.getLines());
+		assertEquals(expected.prototypes.length, actual.prototypes.length);
+		for (int i = 0; i < expected.prototypes.length; i++)
+			assertSamePrototype(expected.prototypes[i], actual.prototypes[i]);
+	}
+
+	@Test
+	public void testArrayAndStream () throws IOException {
+		byte[] data = stdlib();
+		LuaPrototype p = fromArray(data);
+		assertTrue(p.prototypes.length > 0);
+		assertSamePrototype(fromStream(data), p);
+	}
+
+	@Test
+	public void testByteOrderAndSizeT () throws IOException {
+		// luac writes the byte order and size_t of its machine
+		LuaPrototype constants = new LuaPrototype();
+		constants.name = "@constants.lua";
+		constants.code = new int[] { LuaState.OP_RETURN | (1 << 23) };
+		constants.constants = new Object[] { "\u017elu\u0165ou\u010dk\u00fd k\u016f\u0148", "", LuaState.toDouble(-0.5), Boolean.FALSE, null };
+		constants.prototypes = new LuaPrototype[0];
+		LuaPrototype[] functions = { fromArray(stdlib()), constants };
+		for (int f = 0; f < functions.length; f++) {
+			for (int sizeT = 4; sizeT <= 8; sizeT += 4) {
+				for (int order = 0; order <= 1; order++) {
+					byte[] data = chunk(functions[f], order == 1, sizeT);
+					assertSamePrototype(functions[f], fromArray(data));
+					assertSamePrototype(functions[f], fromStream(data));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testDumpRoundTrip () throws IOException {
+		LuaPrototype p = fromArray(chunk(fromArray(stdlib()), true, 4));
+		byte[] dumped = dump(p);
+		assertSamePrototype(p, fromArray(dumped));
+		assertArrayEquals(dumped, dump(fromStream(dumped)));
+	}
+
+	@Test
+	public void testStreamLeavesFollowingRecords () throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(out);
+		dos.write(stdlib());
+		dos.writeInt(0x12345678);
+		dos.writeUTF("next record");
+		dos.close();
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+		LuaPrototype.loadByteCode(in, new LuaTableImpl());
+		assertEquals(0x12345678, in.readInt());
+		assertEquals("next record", in.readUTF());
+	}
+
+	@Test
+	public void testLineCountWithoutDecoding () throws IOException {
+		LuaPrototype p = fromArray(stdlib());
+		int count = p.getLineCount();
+		assertEquals(p.code.length, count);
+		assertEquals(count, p.getLines().length);
+		assertEquals(count, p.getLineCount());
+
+		LuaPrototype empty = new LuaPrototype();
+		assertEquals(0, empty.getLineCount());
+		assertEquals(0, empty.getLines().length);
+	}
+}
@@ -0,0 +1,149 @@
+package se.krka.kahlua.vm;
+
+import java.util.Hashtable;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LuaTableImplTest {
+
+	private static Double n (int i) {
+		return LuaState.toDouble(i);
+	}
+
+	private static Double n (double d) {
+		return LuaState.toDouble(d);
+	}
+
+	/** checks that len() is a border: t[len] is not nil (or len is 0) and t[len+1] is nil */
+	private static void assertBorder (LuaTableImpl t) {
+		int len = t.len();
+		assertTrue("len " + len, len == 0 || t.rawget(n(len)) != null);
+		assertNull("len " + len, t.rawget(n(len + 1)));
+	}
+
+	@Test
+	public void testLenWithHoles () {
+		LuaTableImpl t = new LuaTableImpl();
+		for (int i = 1; i <= 10; i++) t.rawset(n(i), "v" + i);
+		assertEquals(10, t.len());
+
+		t.rawset(n(5), null);
+		assertBorder(t);
+		t.rawset(n(9), null);
+		assertBorder(t);
+
+		t.rawset(n(5), "again");
+		t.rawset(n(9), "again");
+		assertEquals(10, t.len());
+
+		// a hole at 1 leaves 0 as a border
+		LuaTableImpl u = new LuaTableImpl();
+		u.rawset(n(2), "two");
+		u.rawset(n(3), "three");
+		assertBorder(u);
+		assertEquals(0, new LuaTableImpl().len());
+	}
+
+	@Test
+	public void testNilShrinksBorder () {
+		LuaTableImpl t = new LuaTableImpl(8, 0);
+		for (int i = 1; i <= 8; i++) t.rawset(i, "v" + i);
+		assertEquals(8, t.len());
+		t.rawset(8, null);
+		assertEquals(7, t.len());
+		t.rawset(n(3), null);
+		assertEquals(2, t.len());
+		t.rawset(1, null);
+		assertEquals(0, t.len());
+		// filling the holes moves the border back up
+		t.rawset(1, "v1");
+		assertEquals(2, t.len());
+		t.rawset(3, "v3");
+		assertEquals(7, t.len());
+	}
+
+	@Test
+	public void testRehashMovesKeysToArray () {
+		LuaTableImpl t = new LuaTableImpl();
+		// backwards, so that the keys start out in the hash part
+		for (int i = 64; i >= 1; i--) t.rawset(n(i), "v" + i);
+		assertTrue(t.arraySize() >= 32);
+		for (int i = 1; i <= 64; i++) assertEquals("v" + i, t.rawget(n(i)));
+		assertEquals(64, t.len());
+	}
+
+	@Test
+	public void testRehashMovesKeysToHash () {
+		LuaTableImpl t = new LuaTableImpl();
+		for (int i = 1; i <= 64; i++) t.rawset(n(i), "v" + i);
+		assertEquals(64, t.arraySize());
+		// leave a sparse array, and rehash by adding other keys
+		for (int i = 1; i <= 64; i++) if (i % 16 != 0) t.rawset(n(i), null);
+		for (int i = 0; i < 100; i++) t.rawset("k" + i, n(i));
+		assertTrue(t.arraySize() < 64);
+		for (int i = 1; i <= 64; i++) {
+			if (i % 16 == 0) assertEquals("v" + i, t.rawget(n(i)));
+			else assertNull(t.rawget(n(i)));
+		}
+		for (int i = 0; i < 100; i++) assertEquals(n(i), t.rawget("k" + i));
+	}
+
+	@Test
+	public void testNextVisitsBothParts () {
+		LuaTableImpl t = new LuaTableImpl();
+		for (int i = 1; i <= 5; i++) t.rawset(n(i), "v" + i);
+		t.rawset("a", "A");
+		t.rawset("b", "B");
+		t.rawset(n(100), "hundred");
+		t.rawset(n(2.5), "fraction");
+		assertTrue(t.arraySize() >= 5);
+
+		Hashtable seen = new Hashtable();
+		Object key = null;
+		int i = 0;
+		while ((key = t.next(key)) != null) {
+			// the array part comes first, in order
+			if (i < 5) assertEquals(n(i + 1), key);
+			assertNull("visited twice: " + key, seen.put(key, t.rawget(key)));
+			i++;
+		}
+		assertEquals(9, seen.size());
+		assertEquals("hundred", seen.get(n(100)));
+		assertEquals("fraction", seen.get(n(2.5)));
+		assertEquals("B", seen.get("b"));
+	}
+
+	@Test
+	public void testWeakValues () {
+		LuaTableImpl t = new LuaTableImpl();
+		Object kept = new Object();
+		for (int i = 1; i <= 8; i++) t.rawset(n(i), new Object());
+		t.rawset(n(9), kept);
+		t.rawset("string", "strings are never collected");
+
+		LuaTableImpl meta = new LuaTableImpl();
+		meta.rawset("__mode", "v");
+		t.setMetatable(meta);
+		// weak values are kept in the hash part only
+		assertEquals(0, t.arraySize());
+		for (int i = 10; i <= 40; i++) t.rawset(n(i), kept);
+		assertEquals(0, t.arraySize());
+
+		for (int tries = 0; tries < 20 && t.rawget(n(1)) != null; tries++) {
+			System.gc();
+		}
+		for (int i = 1; i <= 8; i++) assertNull(t.rawget(n(i)));
+		assertSame(kept, t.rawget(n(9)));
+		assertSame(kept, t.rawget(n(40)));
+		assertEquals("strings are never collected", t.rawget("string"));
+
+		// collected values don't show up in next()
+		int count = 0;
+		Object key = null;
+		while ((key = t.next(key)) != null) {
+			assertNotNull(t.rawget(key));
+			count++;
+		}
+		assertEquals(33, count);
+	}
+}
@@ -0,0 +1,208 @@
+-- Exercises the opcodes that the interpreter handles outside its main loop:
+-- metamethod fallbacks, CONCAT, RETURN, TAILCALL, TFORLOOP, SETLIST,
+-- CLOSURE, __call and error unwinding. Returns "ok", or fails an assert.
+
+-- arithmetic, comparison, UNM and CONCAT metamethods
+local V = {}
+V.__index = V
+local function vec (x, y) return setmetatable({ x = x, y = y }, V) end
+V.__add = function (a, b) return vec(a.x + b.x, a.y + b.y) end
+V.__sub = function (a, b) return vec(a.x - b.x, a.y - b.y) end
+V.__mul = function (a, b)
+	if type(a) == "number" then return vec(a * b.x, a * b.y) end
+	return vec(a.x * b, a.y * b)
+end
+V.__div = function (a, b) return vec(a.x / b, a.y / b) end
+V.__mod = function (a, b) return vec(a.x % b, a.y % b) end
+V.__pow = function (a, b) return vec(a.x ^ b, a.y ^ b) end
+V.__unm = function (a) return vec(-a.x, -a.y) end
+local function norm (a) return a.x * a.x + a.y * a.y end
+V.__eq = function (a, b) return a.x == b.x and a.y == b.y end
+V.__lt = function (a, b) return norm(a) < norm(b) end
+V.__le = function (a, b) return norm(a) <= norm(b) end
+V.__concat = function (a, b)
+	local function s (v) return type(v) == "table" and "(" .. v.x .. "," .. v.y .. ")" or tostring(v) end
+	return s(a) .. s(b)
+end
+
+local a, b = vec(1, 2), vec(3, 4)
+local c = a + b
+assert(c.x == 4 and c.y == 6)
+c = b - a
+assert(c.x == 2 and c.y == 2)
+c = 2 * a
+assert(c.x == 2 and c.y == 4)
+c = a * 3
+assert(c.x == 3 and c.y == 6)
+c = b / 2
+assert(c.x == 1.5 and c.y == 2)
+c = b % 3
+assert(c.x == 0 and c.y == 1)
+c = a ^ 2
+assert(c.x == 1 and c.y == 4)
+c = -a
+assert(c.x == -1 and c.y == -2)
+-- tables have a length of their own, __len is only for userdata
+assert(#b == 0)
+assert(a == vec(1, 2))
+assert(a ~= b)
+assert(a < b and not (b < a))
+assert(a <= vec(2, 1) and b > a and b >= a)
+assert(a .. "!" == "(1,2)!")
+assert(a .. b == "(1,2)(3,4)")
+
+-- numbers and strings in arithmetic and comparisons
+assert("10" + 5 == 15)
+assert("3" * "4" == 12)
+assert(-"2" == -2)
+assert(10 % "3" == 1)
+assert("a" < "b" and "abc" < "abd" and "Z" < "a" and "" < "a")
+assert("b" >= "a" and "a" <= "a")
+assert(#"hello" == 5)
+local ok = pcall(function () return {} < {} end)
+assert(not ok)
+ok = pcall(function () return 1 < "2" end)
+assert(not ok)
+ok = pcall(function () return {} + 1 end)
+assert(not ok)
+
+-- CONCAT of several values at once
+local n = 42
+assert("a" .. 1 .. "b" .. 2.5 .. "c" .. n == "a1b2.5c42")
+assert(1 .. 2 == "12")
+local parts = {}
+for i = 1, 100 do parts[i] = i end
+local s = ""
+for i = 1, #parts do s = s .. parts[i] .. "," end
+assert(#s == 292)
+ok = pcall(function () return {} .. "a" end)
+assert(not ok)
+
+-- RETURN with several values, and varargs
+local function many () return 1, 2, 3 end
+local function none () end
+local function pack (...) return { n = select("#", ...), ... } end
+local t = pack(many())
+assert(t.n == 3 and t[1] == 1 and t[3] == 3)
+t = pack(many(), many())
+assert(t.n == 4 and t[1] == 1 and t[2] == 1 and t[4] == 3)
+t = pack(none())
+assert(t.n == 0)
+t = pack(nil, nil)
+assert(t.n == 2)
+local function pass (...) return ... end
+local x, y, z, w = pass(7, 8, 9)
+assert(x == 7 and y == 8 and z == 9 and w == nil)
+assert(select("#", pass()) == 0)
+assert(select(2, pass("a", "b", "c")) == "b")
+
+-- TAILCALL, deep enough that frames must be reused
+local function count (k, acc)
+	if k == 0 then return acc end
+	return count(k - 1, acc + 1)
+end
+assert(count(20000, 0) == 20000)
+local function tailpass (...) return pass(...) end
+x, y = tailpass(1, 2)
+assert(x == 1 and y == 2)
+local function tailjava (v) return tostring(v) end
+assert(tailjava(12) == "12")
+
+-- TFORLOOP with pairs, ipairs and an iterator of our own
+local sum = 0
+for i, v in ipairs({ 10, 20, 30, nil, 50 }) do sum = sum + i * v end
+assert(sum == 140)
+local keys = 0
+for k, v in pairs({ a = 1, b = 2, 3, 4 }) do keys = keys + v end
+assert(keys == 10)
+local function range (m)
+	return function (_, i)
+		if i < m then return i + 1, i * i end
+	end, nil, 0
+end
+sum = 0
+for i, sq in range(5) do sum = sum + i + sq end
+assert(sum == 45)
+
+-- SETLIST with more than one block, and with a call at the end
+local big = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20,
+	21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32, 33, 34, 35, 36, 37, 38, 39, 40,
+	41, 42, 43, 44, 45, 46, 47, 48, 49, 50, 51, 52, 53, 54, 55, 56, 57, 58, 59, 60 }
+assert(#big == 60 and big[51] == 51 and big[60] == 60)
+t = { 0, many() }
+assert(#t == 4 and t[4] == 3)
+t = { many(), 0 }
+assert(#t == 2 and t[1] == 1)
+t = { pass() }
+assert(#t == 0)
+
+-- CLOSURE with shared and closed upvalues
+local function counter ()
+	local i = 0
+	return function () i = i + 1; return i end, function () return i end
+end
+local inc, get = counter()
+inc(); inc()
+assert(get() == 2)
+local fs = {}
+for i = 1, 3 do
+	local j = i * 10
+	fs[i] = function () return i + j end
+end
+assert(fs[1]() == 11 and fs[2]() == 22 and fs[3]() == 33)
+local k = 1
+local function outer ()
+	local function inner () k = k + 1; return k end
+	return inner
+end
+outer()(); outer()()
+assert(k == 3)
+
+-- __call
+local callable = setmetatable({}, { __call = function (self, p, q) return p + q, self end })
+local r, me = callable(2, 3)
+assert(r == 5 and me == callable)
+local function tailcallable () return callable(4, 5) end
+assert(tailcallable() == 9)
+
+-- error unwinding through Lua and Java frames
+local err = {}
+local function thrower (d) if d == 0 then error(err) end; return thrower(d - 1) end
+local okay, e = pcall(thrower, 10)
+assert(not okay and e == err)
+okay, e = pcall(function ()
+	local ok2, e2 = pcall(error, "inner", 0)
+	assert(not ok2 and e2 == "inner")
+	error("outer", 0)
+end)
+assert(not okay and e == "outer")
+okay, e = pcall(function () return a + {} end)
+assert(not okay)
+okay, e = pcall(function () return nil .. "x" end)
+assert(not okay)
+local depth = 0
+local function deep () depth = depth + 1; return 1 + deep() end
+okay = pcall(deep)
+assert(not okay and depth > 50)
+
+-- coroutines, which switch frames inside the loop
+local co = coroutine.create(function (p)
+	local q = coroutine.yield(p + 1)
+	for i = 1, 3 do q = q + coroutine.yield(i) end
+	return q * 2
+end)
+local _, v = coroutine.resume(co, 1)
+assert(v == 2)
+_, v = coroutine.resume(co, 10)
+assert(v == 1)
+coroutine.resume(co, 1)
+coroutine.resume(co, 1)
+_, v = coroutine.resume(co, 1)
+assert(v == 26 and coroutine.status(co) == "dead")
+local gen = coroutine.wrap(function () for i = 1, 3 do coroutine.yield(i) end end)
+assert(gen() == 1 and gen() == 2 and gen() == 3)
+co = coroutine.create(function () error("in coroutine", 0) end)
+okay, e = coroutine.resume(co)
+assert(not okay and e == "in coroutine" and coroutine.status(co) == "dead")
+
+return "ok"
@@ -0,0 +1,86 @@
+package util;
+
+import java.util.Vector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BackgroundRunnerTest {
+
+	private BackgroundRunner runner;
+	private Vector log;
+
+	private class Task implements Runnable {
+		private int n;
+		public Task (int n) { this.n = n; }
+		public void run () { log.addElement(new Integer(n)); }
+		public boolean equals (Object o) { return o instanceof Task && ((Task)o).n == n; }
+		public int hashCode () { return n; }
+	}
+
+	@Before
+	public void setUp () {
+		runner = new BackgroundRunner(true);
+		log = new Vector();
+	}
+
+	@After
+	public void tearDown () {
+		runner.kill();
+	}
+
+	/** waits until the paused runner processes everything posted so far */
+	private void drain () throws InterruptedException {
+		final Object done = new Object();
+		final boolean[] flag = new boolean[1];
+		runner.perform(new Runnable() {
+			public void run () {
+				synchronized (done) { flag[0] = true; done.notify(); }
+			}
+		});
+		runner.unpause();
+		synchronized (done) {
+			long end = System.currentTimeMillis() + 5000;
+			while (!flag[0] && System.currentTimeMillis() < end) done.wait(100);
+		}
+		assertTrue("runner did not finish", flag[0]);
+	}
+
+	@Test
+	public void testOrder () throws InterruptedException {
+		// more than the initial capacity, to go through wrap-around and growth
+		for (int i = 0; i < 10; i++) runner.perform(new Task(i));
+		drain();
+		runner.pause();
+		for (int i = 10; i < 100; i++) runner.perform(new Task(i));
+		drain();
+		assertEquals(100, log.size());
+		for (int i = 0; i < 100; i++)
+			assertEquals(new Integer(i), log.elementAt(i));
+	}
+
+	@Test
+	public void testCoalesce () throws InterruptedException {
+		runner.coalesce(new Task(1));
+		runner.coalesce(new Task(1));
+		runner.coalesce(new Task(2));
+		runner.coalesce(new Task(1));
+		runner.perform(new Task(1));
+		drain();
+		assertEquals(4, log.size());
+		assertEquals(new Integer(1), log.elementAt(0));
+		assertEquals(new Integer(2), log.elementAt(1));
+		assertEquals(new Integer(1), log.elementAt(2));
+		assertEquals(new Integer(1), log.elementAt(3));
+	}
+
+	@Test
+	public void testPaused () throws InterruptedException {
+		runner.perform(new Task(1));
+		Thread.sleep(100);
+		assertEquals(0, log.size());
+		drain();
+		assertEquals(1, log.size());
+	}
+}
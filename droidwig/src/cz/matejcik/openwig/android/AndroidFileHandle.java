@@ -6,9 +6,11 @@ import java.io.*;
 public class AndroidFileHandle implements FileHandle {
 
 	private File file;
+	private File temp;
 
 	public AndroidFileHandle (File file) {
 		this.file = file;
+		this.temp = new File(file.getPath() + ".tmp");
 	}
 
 	public DataInputStream openDataInputStream () throws IOException {
@@ -37,4 +39,19 @@ public class AndroidFileHandle implements FileHandle {
 		raf.close();
 	}
 
+	public OutputStream openTemporaryOutputStream () throws IOException {
+		return new FileOutputStream(temp);
+	}
+
+	public void commitTemporary () throws IOException {
+		// rename replaces the target atomically on POSIX systems
+		if (temp.renameTo(file)) return;
+		// elsewhere it refuses to overwrite
+		file.delete();
+		if (!temp.renameTo(file)) throw new IOException("could not replace " + file.getPath());
+	}
+
+	public OutputStream openAppendOutputStream () throws IOException {
+		return new FileOutputStream(file, true);
+	}
 }
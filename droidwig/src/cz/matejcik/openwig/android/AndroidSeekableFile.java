@@ -1,10 +1,10 @@
 package cz.matejcik.openwig.android;
 
-import cz.matejcik.openwig.platform.SeekableFile;
+import cz.matejcik.openwig.platform.BufferedSeekableFile;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 
-public class AndroidSeekableFile implements SeekableFile {
+public class AndroidSeekableFile extends BufferedSeekableFile {
 
 	private RandomAccessFile source;
 
@@ -13,50 +13,13 @@ public class AndroidSeekableFile implements SeekableFile {
 
 	}
 
-	public void seek (long pos) throws IOException {
-		source.seek(pos);
+	protected int readAt (long position, byte[] b, int off, int len) throws IOException {
+		source.seek(position);
+		return source.read(b, off, len);
 	}
 
-	public long position () throws IOException {
-		return source.getFilePointer();
-	}
-
-	public long skip (long what) throws IOException {
-		return source.skipBytes((int)what);
-	}
-
-	public short readShort () throws IOException {
-		return Short.reverseBytes(source.readShort());
-	}
-
-	public int readInt () throws IOException {
-		return Integer.reverseBytes(source.readInt());
-	}
-
-	public double readDouble () throws IOException {
-		return Double.longBitsToDouble(readLong());
-	}
-
-	public long readLong () throws IOException {
-		return Long.reverseBytes(source.readLong());
-	}
-
-	public void readFully (byte[] buf) throws IOException {
-		source.readFully(buf);
-	}
-
-	public String readString () throws IOException {
-		StringBuffer sb = new StringBuffer();
-		int b = source.read();
-		while (b > 0) {
-			sb.append((char)b);
-			b = source.read();
-		}
-		return sb.toString();
-	}
-
-	public int read () throws IOException {
-		return source.read();
+	protected long length () throws IOException {
+		return source.length();
 	}
 
 }
@@ -1,37 +1,91 @@
 package cz.matejcik.openwig.android;
 
-public class Location implements cz.matejcik.openwig.platform.LocationService {
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.location.LocationProvider;
+import android.os.Bundle;
+import cz.matejcik.openwig.platform.LocationSource;
+
+/** LocationSource backed by the GPS provider of Android's LocationManager.
+ * <p>
+ * Every fix that the provider delivers is passed on to the listeners,
+ * so the engine doesn't have to poll.
+ */
+public class Location implements LocationSource, LocationListener {
+
+	private LocationManager manager;
+
+	private double latitude = 0, longitude = 0, altitude = 0;
+	private double heading = 0, precision = Double.POSITIVE_INFINITY;
+	private int state = OFFLINE;
+
+	private LocationSource.ListenerList locationListeners = new LocationSource.ListenerList();
+
+	public Location (LocationManager manager) {
+		this.manager = manager;
+	}
 
 	public double getLatitude () {
-		throw new UnsupportedOperationException("Not supported yet.");
+		return latitude;
 	}
 
 	public double getLongitude () {
-		throw new UnsupportedOperationException("Not supported yet.");
+		return longitude;
 	}
 
 	public double getAltitude () {
-		throw new UnsupportedOperationException("Not supported yet.");
+		return altitude;
 	}
 
 	public double getHeading () {
-		throw new UnsupportedOperationException("Not supported yet.");
+		return heading;
 	}
 
 	public double getPrecision () {
-		throw new UnsupportedOperationException("Not supported yet.");
+		return precision;
 	}
 
 	public int getState () {
-		throw new UnsupportedOperationException("Not supported yet.");
+		return state;
 	}
 
 	public void connect () {
-		throw new UnsupportedOperationException("Not supported yet.");
+		if (state != OFFLINE) return;
+		state = CONNECTING;
+		manager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, this);
+		state = NO_FIX;
 	}
 
 	public void disconnect () {
-		throw new UnsupportedOperationException("Not supported yet.");
+		manager.removeUpdates(this);
+		state = OFFLINE;
+	}
+
+	public void addLocationListener (LocationSource.Listener l) {
+		locationListeners.add(l);
 	}
 
+	public void removeLocationListener (LocationSource.Listener l) {
+		locationListeners.remove(l);
+	}
+
+	public void onLocationChanged (android.location.Location location) {
+		latitude = location.getLatitude();
+		longitude = location.getLongitude();
+		if (location.hasAltitude()) altitude = location.getAltitude();
+		if (location.hasBearing()) heading = location.getBearing();
+		precision = location.hasAccuracy() ? location.getAccuracy() : Double.POSITIVE_INFINITY;
+		state = ONLINE;
+		locationListeners.fire(this);
+	}
+
+	public void onStatusChanged (String provider, int status, Bundle extras) {
+		if (status != LocationProvider.AVAILABLE && state == ONLINE) state = NO_FIX;
+	}
+
+	public void onProviderEnabled (String provider) { }
+
+	public void onProviderDisabled (String provider) {
+		state = NO_FIX;
+	}
 }
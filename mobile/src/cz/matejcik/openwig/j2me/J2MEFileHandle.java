@@ -4,11 +4,14 @@ import cz.matejcik.openwig.platform.FileHandle;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import javax.microedition.io.Connector;
 import javax.microedition.io.file.FileConnection;
 
 public class J2MEFileHandle implements FileHandle {
 
 	private FileConnection conn;
+	private FileConnection temp;
 
 	public J2MEFileHandle (FileConnection conn) {
 		this.conn = conn;
@@ -37,4 +40,23 @@ public class J2MEFileHandle implements FileHandle {
 	public void truncate (long len) throws IOException {
 		conn.truncate(len);
 	}
+
+	public OutputStream openTemporaryOutputStream () throws IOException {
+		if (temp == null) temp = (FileConnection)Connector.open(conn.getURL() + ".tmp", Connector.READ_WRITE);
+		if (temp.exists()) temp.truncate(0);
+		else temp.create();
+		return temp.openOutputStream();
+	}
+
+	public void commitTemporary () throws IOException {
+		// FileConnection can't rename over an existing file
+		if (conn.exists()) conn.delete();
+		temp.rename(conn.getName());
+		temp.close();
+		temp = null;
+	}
+
+	public OutputStream openAppendOutputStream () throws IOException {
+		return conn.openOutputStream(conn.fileSize());
+	}
 }
@@ -1,10 +1,10 @@
 package gps;
 
 import cz.matejcik.openwig.ZonePoint;
-import cz.matejcik.openwig.platform.LocationService;
+import cz.matejcik.openwig.platform.LocationSource;
 import javax.microedition.location.*;
 
-public class InternalProvider implements LocationService, LocationListener {
+public class InternalProvider implements LocationSource, LocationListener {
 	
 	private LocationProvider provider;
 	private int state;
@@ -17,6 +17,8 @@ public class InternalProvider implements LocationService, LocationListener {
 	private ZonePoint point = new ZonePoint();
 	private int li = 0;
 
+	private LocationSource.ListenerList locationListeners = new LocationSource.ListenerList();
+
 	public InternalProvider() throws Exception {
 		try {
 			Criteria c = new Criteria();
@@ -88,6 +90,14 @@ public class InternalProvider implements LocationService, LocationListener {
 	public void disconnect() {
 	}
 
+	public void addLocationListener(LocationSource.Listener l) {
+		locationListeners.add(l);
+	}
+
+	public void removeLocationListener(LocationSource.Listener l) {
+		locationListeners.remove(l);
+	}
+
 	public void locationUpdated(LocationProvider prov, Location location) {
 		if (location != null && location.isValid()) {
 			coords = location.getQualifiedCoordinates();
@@ -118,6 +128,7 @@ public class InternalProvider implements LocationService, LocationListener {
 				}
 			}
 			state = ONLINE;
+			locationListeners.fire(this);
 		} else {
 			state = NO_FIX;
 			// nothing, keep the old values?
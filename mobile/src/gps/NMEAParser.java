@@ -1,6 +1,7 @@
 package gps;
 
 import cz.matejcik.openwig.platform.LocationService;
+import cz.matejcik.openwig.platform.LocationSource;
 import java.io.*;
 import java.util.Hashtable;
 import java.util.Vector;
@@ -12,7 +13,7 @@ import gui.Midlet;
 /**
  * Tato trida se stara o zpracovani NMEA zprav zasilanych od GPS
  */
-public class NMEAParser implements Runnable, LocationService {
+public class NMEAParser implements Runnable, LocationSource {
 	//gps udaje
 	protected double latitude;
 	protected double longitude;
@@ -39,6 +40,16 @@ public class NMEAParser implements Runnable, LocationService {
 
 	private boolean hge100 = false;
 
+	private LocationSource.ListenerList locationListeners = new LocationSource.ListenerList();
+
+	public void addLocationListener (LocationSource.Listener l) {
+		locationListeners.add(l);
+	}
+
+	public void removeLocationListener (LocationSource.Listener l) {
+		locationListeners.remove(l);
+	}
+
 	/**
 	 * Pripojeni k neznamemu zarizeni
 	 */
@@ -245,9 +256,12 @@ public class NMEAParser implements Runnable, LocationService {
 			//cteni dat
 			boolean prevfix = fix;
 			while (thread != null) {
+				double lat = latitude, lon = longitude, alt = altitude;
 				receiveNmea(readline(inputStream));
 				if (prevfix != fix) Midlet.coordinates.fixChanged(fix);
 				prevfix = fix;
+				if (lat != latitude || lon != longitude || alt != altitude)
+					locationListeners.fire(this);
 			}
 		} catch (IOException ex) {
 			Midlet.coordinates.gpsError(ex.getMessage());
@@ -0,0 +1,21 @@
+package saveanalyzer;
+
+import cz.matejcik.openwig.formats.BinaryLog;
+import java.io.*;
+
+/** Prints a binary game log as text. */
+public class DecodeLog {
+
+	public static void main (String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("usage: DecodeLog <file>");
+			return;
+		}
+		InputStream in = new BufferedInputStream(new FileInputStream(args[0]));
+		try {
+			BinaryLog.decode(in, System.out);
+		} finally {
+			in.close();
+		}
+	}
+}